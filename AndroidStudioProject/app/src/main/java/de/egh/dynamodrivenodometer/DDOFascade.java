@@ -22,8 +22,12 @@ public class DDOFascade implements DeviceFacade {
 
 	private static final String TAG = DDOFascade.class.getSimpleName();
 
-	public DDOFascade(Context context) throws EghBluetoothNotSupported, EghBluetoothLeNotSupported{
+	/**Marks scan requests on the timeline*/
+	private final Tracer mTracer;
+
+	public DDOFascade(Context context, Tracer tracer) throws EghBluetoothNotSupported, EghBluetoothLeNotSupported{
 		this.mContext = context;
+		this.mTracer = tracer;
 
 		mBluetoothAdapter = ((BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE)).getAdapter();
 
@@ -51,9 +55,16 @@ public class DDOFascade implements DeviceFacade {
 		return DeviceType.DDO;
 	}
 
+	/**Notifications for the DDO are enabled on the GATT connection of the DeviceService.*/
+	@Override
+	public boolean setStreaming(boolean enable, ValueListener listener) {
+		return false;
+	}
+
 	@Override
 	public void scanDevice(boolean enable) {
 		Log.v(TAG, "scanLeDevice() " + enable);
+		mTracer.instant(DeviceService.Constants.Trace.DDO_SCAN);
 
 //		//Switching on
 //		if (enable) {
@@ -10,4 +10,16 @@ public interface DeviceFacade {
 
 	/**Search for device an connect to it or, if FALSE, disconnect from device.*/
 	public void scanDevice(final boolean enable);
+
+	/**
+	 * Switches streaming of values on or off. Returns TRUE, if the facade delivers the values itself
+	 * to the listener. FALSE means the facade can't stream, so the service has to use the
+	 * notifications of its GATT connection or poll the values.
+	 */
+	public boolean setStreaming(final boolean enable, final ValueListener listener);
+
+	/**Receives raw values from a device, will be called from a non-UI thread.*/
+	public interface ValueListener {
+		public void onValueReceived(byte[] value);
+	}
 }
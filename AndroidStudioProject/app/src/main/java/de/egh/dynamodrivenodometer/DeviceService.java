@@ -6,30 +6,53 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
 import java.util.List;
+import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import de.egh.dynamodrivenodometer.Exceptions.EghBluetoothLeNotSupported;
 import de.egh.dynamodrivenodometer.Exceptions.EghBluetoothNotSupported;
 
 /**
  * Created by ChristianSchulzendor on 05.08.2014.
+ *
+ * Threading: GATT callbacks run on binder threads, Mockbike frames on its executor. Both only hand
+ * the raw frames to the FrameQueue. The worker thread alone decodes them and updates the pipeline
+ * state, the read scheduling and the kinematics. The UI thread only gets samples through the
+ * SampleChannel.
  */
 public class DeviceService extends Service {
 
 	private static final String TAG = DeviceService.class.getSimpleName();
 	private final IBinder mBinder = new LocalBinder();
-	private int mConnectionState = Constants.State.DISCONNECTED;
-	private boolean readJob;
+	/**Written by GATT callbacks, read by the UI and the read job*/
+	private volatile int mConnectionState = Constants.State.DISCONNECTED;
+	/**TRUE, while values will be polled by the read job*/
+	private volatile boolean readJob;
 	// connection change and services discovered.
 	private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
 
@@ -40,21 +63,35 @@ public class DeviceService extends Service {
 			if (newState == BluetoothProfile.STATE_CONNECTED) {
 				intentAction = Constants.Actions.ACTION_GATT_CONNECTED;
 				mConnectionState = Constants.State.CONNECTED;
+				mConnectedAt = SystemClock.elapsedRealtime();
+				mTracer.end(Constants.Trace.CONNECT, mConnectSpan);
+				mWorkerHandler.post(mRunnableResetSequence);
+				DeviceType deviceType = getDeviceType();
+				if (deviceType != null) {
+					saveDeviceAddress(deviceType, mBluetoothDeviceAddress);
+				}
 				broadcastUpdate(intentAction);
 				Log.i(TAG, "Connected to GATT server.");
 				// Attempts to discover services after successful connection.
-				Log.i(TAG, "Attempting to start service discovery:" +
-						mBluetoothGatt.discoverServices());
+				mDiscoverySpan = mTracer.begin();
+				mGattOperationQueue.discoverServices(mDiscoveryCallback);
 
 
 			} else {
 				//Stop reading value
-				readJob = false;
+				stopReadJob();
+				mStreaming = false;
+				mWorkerHandler.post(mRunnableResetKinematics);
+				mGattOperationQueue.clear();
+				Log.i(TAG, "GATT queue: " + mGattOperationQueue);
 
 				if (newState == BluetoothProfile.STATE_DISCONNECTED) {
 					intentAction = Constants.Actions.ACTION_GATT_DISCONNECTED;
 					mConnectionState = Constants.State.DISCONNECTED;
-					Log.i(TAG, "Disconnected from GATT server.");
+					mDisconnects.increment();
+					mWorkerHandler.post(mRunnableSaveRollups);
+					Log.i(TAG, "Disconnected from GATT server, sequence: "
+							+ mSamplePipeline.getSequenceTracker());
 					broadcastUpdate(intentAction);
 				}
 			}
@@ -68,138 +105,479 @@ public class DeviceService extends Service {
 
 		@Override
 		public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-			if (status == BluetoothGatt.GATT_SUCCESS) {
-				broadcastUpdate(Constants.Actions.ACTION_GATT_SERVICES_DISCOVERED);
-			} else {
-				Log.w(TAG, "onServicesDiscovered received: " + status);
-			}
+			mGattOperationQueue.onServicesDiscovered(status);
 		}
 
-		private String characteristicValue(BluetoothGattCharacteristic characteristic) {
-
-			// For all other profiles, writes the data formatted in HEX.
-			final byte[] data = characteristic.getValue();
-			if (data != null && data.length > 0) {
+		@Override
+		public void onCharacteristicRead(BluetoothGatt gatt,
+		                                 BluetoothGattCharacteristic characteristic,
+		                                 int status) {
+			mGattOperationQueue.onCharacteristicRead(characteristic, status, characteristic.getValue());
+		}
 
-				final StringBuilder sb = new StringBuilder(data.length);
-				for (byte byteChar : data) {
-					if (byteChar != 0x00) {
-						char c = (char) (byteChar & 0xFF);
-						sb.append(c);
-					}
-				}
-				return sb.toString();
+		@Override
+		public void onCharacteristicWrite(BluetoothGatt gatt,
+		                                  BluetoothGattCharacteristic characteristic, int status) {
+			mGattOperationQueue.onCharacteristicWrite(characteristic, status);
+		}
 
-			}
+		@Override
+		public void onCharacteristicChanged(BluetoothGatt gatt,
+		                                    BluetoothGattCharacteristic characteristic) {
+			mTracer.instant(Constants.Trace.NOTIFICATION);
+			mValueListener.onValueReceived(characteristic.getValue());
+		}
 
-			return null;
+		@Override
+		public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+		                              int status) {
+			mGattOperationQueue.onDescriptorWrite(descriptor, status);
 		}
+	};
+	/**
+	 * Starts the operations of the GATT operation queue on the actual connection.
+	 */
+	private final GattOperationQueue.Gatt<BluetoothGattCharacteristic, BluetoothGattDescriptor> mGattOperations =
+			new GattOperationQueue.Gatt<BluetoothGattCharacteristic, BluetoothGattDescriptor>() {
+				@Override
+				public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+					BluetoothGatt gatt = mBluetoothGatt;
+					return gatt != null && gatt.readCharacteristic(characteristic);
+				}
 
-		private void broadcastUpdate(final String action,
-		                             final BluetoothGattCharacteristic characteristic) {
-			final Intent intent = new Intent(action);
-			intent.putExtra(Constants.Broadcast.DATA, characteristicValue(characteristic));
+				@Override
+				public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value) {
+					BluetoothGatt gatt = mBluetoothGatt;
+					return gatt != null && characteristic.setValue(value)
+							&& gatt.writeCharacteristic(characteristic);
+				}
 
-			sendBroadcast(intent);
-		}
+				@Override
+				public boolean writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value) {
+					BluetoothGatt gatt = mBluetoothGatt;
+					return gatt != null && descriptor.setValue(value) && gatt.writeDescriptor(descriptor);
+				}
 
+				@Override
+				public boolean discoverServices() {
+					BluetoothGatt gatt = mBluetoothGatt;
+					return gatt != null && gatt.discoverServices();
+				}
+			};
+	/**Runs all GATT operations one after another, created in onCreate()*/
+	private GattOperationQueue<BluetoothGattCharacteristic, BluetoothGattDescriptor> mGattOperationQueue;
+	private final GattOperationQueue.Callback mDiscoveryCallback = new GattOperationQueue.Callback() {
 		@Override
-		public void onCharacteristicRead(BluetoothGatt gatt,
-		                                 BluetoothGattCharacteristic characteristic,
-		                                 int status) {
-			Log.v(TAG, "onCharacteristicRead()");
-			if (status == BluetoothGatt.GATT_SUCCESS) {
-				Log.v(TAG, "Characteristic value: " + characteristic.getValue());
-				processCharacteristic(characteristic);
-				broadcastUpdate(Constants.Actions.ACTION_VALUE_AVAILABLE, characteristic);
+		public void onComplete(GattOperationQueue.Operation operation) {
+			mTracer.end(Constants.Trace.DISCOVERY, mDiscoverySpan, operation.getStatus());
+			if (operation.getStatus() == GattOperationQueue.STATUS_SUCCESS) {
+				mDiscoveredAt = SystemClock.elapsedRealtime();
+				broadcastUpdate(Constants.Actions.ACTION_GATT_SERVICES_DISCOVERED);
+			} else if (operation.getStatus() != GattOperationQueue.STATUS_CANCELLED) {
+				Log.w(TAG, "Service discovery failed: " + operation.getStatus() + "/"
+						+ operation.getGattStatus());
 			}
 		}
-
+	};
+	/**
+	 * Result of a read: The value is processed. Without value the read job continues anyway, so a
+	 * lost read doesn't stop polling.
+	 */
+	private final GattOperationQueue.Callback mReadCallback = new GattOperationQueue.Callback() {
 		@Override
-		public void onCharacteristicChanged(BluetoothGatt gatt,
-		                                    BluetoothGattCharacteristic characteristic) {
-			//	broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+		public void onComplete(GattOperationQueue.Operation operation) {
+			mTracer.end(Constants.Trace.READ, mReadSpan, operation.getStatus());
+			if (operation.getStatus() == GattOperationQueue.STATUS_SUCCESS) {
+				mBleRoundTrip.record(operation.getLatency());
+				mValueListener.onValueReceived(operation.getResult());
+			} else if (operation.getStatus() != GattOperationQueue.STATUS_CANCELLED) {
+				mDroppedReads.increment();
+				if (readJob && !mStreaming) {
+					Log.w(TAG, "Read failed: " + operation.getStatus() + "/" + operation.getGattStatus());
+					mWorkerHandler.post(mRunnableScheduleNextRead);
+				}
+			}
+		}
+	};
+	/**
+	 * Result of the descriptor write switching notifications.
+	 */
+	private final GattOperationQueue.Callback mNotificationCallback = new GattOperationQueue.Callback() {
+		@Override
+		public void onComplete(GattOperationQueue.Operation operation) {
+			if (operation.getStatus() == GattOperationQueue.STATUS_SUCCESS) {
+				Log.i(TAG, "Notifications switched.");
+				mStreaming = mStreamingRequested;
+				if (mStreaming) {
+					stopReadJob();
+				}
+			} else if (operation.getStatus() != GattOperationQueue.STATUS_CANCELLED) {
+				//Fall back to polling: The first read result starts the read job of the activity
+				Log.w(TAG, "Enabling notifications failed: " + operation.getStatus() + "/"
+						+ operation.getGattStatus());
+				mStreaming = false;
+				startReadJob();
+			}
+		}
+	};
+	/**
+	 * Entry for all values, from GATT reads, GATT notifications or a streaming facade.
+	 */
+	private final DeviceFacade.ValueListener mValueListener = new DeviceFacade.ValueListener() {
+		@Override
+		public void onValueReceived(byte[] value) {
+			long nanos = System.nanoTime();
+			try {
+				if (!mFrameQueue.offer(nanos, value)) {
+					mBackpressure.increment();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (mFramesPending.compareAndSet(false, true)) {
+				mWorkerHandler.post(mRunnableProcessFrames);
+			}
+		}
+	};
+	/**Raw frames on their way to the worker thread*/
+	private final FrameQueue mFrameQueue = new FrameQueue(Constants.Worker.QUEUE_CAPACITY,
+			FrameQueue.POLICY_DROP_OLDEST, 0);
+	/**TRUE from posting mRunnableProcessFrames until it starts*/
+	private final AtomicBoolean mFramesPending = new AtomicBoolean();
+	/**Worker thread processing the frames, started in onCreate()*/
+	private HandlerThread mWorkerThread;
+	private Handler mWorkerHandler;
+	/**Frame taken from the queue, only used on the worker thread*/
+	private final FrameQueue.Frame mFrame = new FrameQueue.Frame();
+	/**
+	 * Processes all queued frames on the worker thread. While polling, every value schedules the
+	 * next read.
+	 */
+	private final Runnable mRunnableProcessFrames = new Runnable() {
+		@Override
+		public void run() {
+			mFramesPending.set(false);
+			while (mFrameQueue.poll(mFrame)) {
+				recordFrame(mFrame.getNanos(), mFrame.getData(), mFrame.getLength());
+				processCharacteristic(mFrame.getNanos(), mFrame.getData(), mFrame.getLength());
+				if (readJob && !mStreaming) {
+					scheduleNextRead();
+				}
+			}
+		}
+	};
+	/**Continues polling after a failed read, the scheduler belongs to the worker thread*/
+	private final Runnable mRunnableScheduleNextRead = new Runnable() {
+		@Override
+		public void run() {
+			if (readJob && !mStreaming) {
+				scheduleNextRead();
+			}
+		}
+	};
+	/**Resets the state owned by the worker thread*/
+	private final Runnable mRunnableResetKinematics = new Runnable() {
+		@Override
+		public void run() {
+			mKinematicsEngine.reset();
+		}
+	};
+	/**Starts the sequence check of a new connection*/
+	private final Runnable mRunnableResetSequence = new Runnable() {
+		@Override
+		public void run() {
+			mSamplePipeline.resetSequence();
+		}
+	};
+	/**Saves changed rollups on the worker thread, see saveRollups()*/
+	private final Runnable mRunnableSaveRollups = new Runnable() {
+		@Override
+		public void run() {
+			saveRollups();
 		}
 	};
+	private final Runnable mRunnableSaveRollupsPeriodically = new Runnable() {
+		@Override
+		public void run() {
+			saveRollups();
+			mWorkerHandler.postDelayed(this, Constants.Journal.ROLLUPS_SAVE_INTERVAL);
+		}
+	};
+	/**Last sample of the saved rollups, only used on the worker thread after loading*/
+	private long mRollupsSavedTimestamp;
+	private final Runnable mRunnableResetScheduler = new Runnable() {
+		@Override
+		public void run() {
+			mSampleScheduler.reset();
+		}
+	};
+	/**TRUE, while values will be pushed by notifications, so there is no need for polling*/
+	private volatile boolean mStreaming;
+	/**Last streaming state requested by setStreaming()*/
+	private volatile boolean mStreamingRequested;
 	private BluetoothManager mBluetoothManager;
 	private BluetoothAdapter mBluetoothAdapter;  // Implements callback methods for GATT events that the app cares about.  For example,
 	private String mBluetoothDeviceAddress;
-	private BluetoothGatt mBluetoothGatt;
-	/**Facade to actual device*/
-private DeviceFacade mDeviceFacade;
-
+	/**Replaced on the UI thread, read by GATT callbacks and the read job*/
+	private volatile BluetoothGatt mBluetoothGatt;
+	/**Facade to actual device, replaced on the UI thread, read by GATT callbacks*/
+private volatile DeviceFacade mDeviceFacade;
+	/**Stores every distance value, NULL if the journal can't be opened*/
+	private RideJournal mRideJournal;
+	/**Per-minute, per-hour and per-day aggregates for history views*/
+	private RollupStore mRollupStore;
+	/**Later samples of the rollups go to the hours and days of the new time zone*/
+	private final BroadcastReceiver mTimeZoneReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			Log.i(TAG, "Time zone changed to " + TimeZone.getDefault().getID());
+			mRollupStore.setTimeZone(TimeZone.getDefault());
+		}
+	};
+	/**Lifetime distance from the raw counter of the device, which may reset or wrap*/
+	private final OdometerReconciler mOdometerReconciler = new OdometerReconciler();
+	/**Speed and acceleration from the distance values*/
+	private final KinematicsEngine mKinematicsEngine = new KinematicsEngine();
+	/**Delivers samples and messages to the consumers in this process*/
+	private final SampleChannel mSampleChannel = new SampleChannel();
+	private final SamplePipeline.Listener mPipelineListener = new SamplePipeline.Listener() {
+		@Override
+		public void onBaseOffsetChanged(OdometerReconciler reconciler) {
+			Log.i(TAG, "Odometer counter reconciled, base offset " + reconciler.getBaseOffset());
+			saveOdometer();
+		}
 
+		@Override
+		public void onSinkError(SampleSink sink, IOException e) {
+			Log.e(TAG, "Can't store sample in " + sink.getClass().getSimpleName() + ".", e);
+		}
+	};
+	/**Counters and latency histograms of the sample path*/
+	private final MetricsRegistry mMetrics = new MetricsRegistry();
+	private final MetricsRegistry.Counter mDistanceFrames = mMetrics.counter(Constants.Metrics.FRAMES_DISTANCE);
+	private final MetricsRegistry.Counter mMessageFrames = mMetrics.counter(Constants.Metrics.FRAMES_MESSAGE);
+	private final MetricsRegistry.Counter mInvalidFrames = mMetrics.counter(Constants.Metrics.FRAMES_INVALID);
+	private final MetricsRegistry.Counter mSamples = mMetrics.counter(Constants.Metrics.SAMPLES);
+	private final MetricsRegistry.Counter mTelemetryFrames = mMetrics.counter(Constants.Metrics.FRAMES_TELEMETRY);
+	private final MetricsRegistry.Counter mUnknownFrames = mMetrics.counter(Constants.Metrics.FRAMES_UNKNOWN);
+	private final MetricsRegistry.Counter mDuplicateFrames = mMetrics.counter(Constants.Metrics.FRAMES_DUPLICATE);
+	private final MetricsRegistry.Counter mMissingFrames = mMetrics.counter(Constants.Metrics.FRAMES_MISSING);
+	private final MetricsRegistry.Counter mConnects = mMetrics.counter(Constants.Metrics.CONNECTS);
+	private final MetricsRegistry.Counter mReconnects = mMetrics.counter(Constants.Metrics.RECONNECTS);
+	private final MetricsRegistry.Counter mDisconnects = mMetrics.counter(Constants.Metrics.DISCONNECTS);
+	private final MetricsRegistry.Counter mDroppedReads = mMetrics.counter(Constants.Metrics.READS_DROPPED);
+	private final MetricsRegistry.Histogram mBleRoundTrip = mMetrics.histogram(Constants.Metrics.BLE_ROUND_TRIP);
+	private final MetricsRegistry.Histogram mDecodeLatency = mMetrics.histogram(Constants.Metrics.DECODE);
+	private final MetricsRegistry.Histogram mQueueLatency = mMetrics.histogram(Constants.Metrics.QUEUE);
+	private final MetricsRegistry.Counter mBackpressure = mMetrics.counter(Constants.Metrics.BACKPRESSURE);
+	/**Timeline of connection, reads, processing and rendering, disabled until switched on*/
+	private final Tracer mTracer = new Tracer();
+	/**Start of the running spans, see Tracer.begin()*/
+	private volatile long mConnectSpan = Tracer.NOT_STARTED;
+	private volatile long mDiscoverySpan = Tracer.NOT_STARTED;
+	private volatile long mReadSpan = Tracer.NOT_STARTED;
+	/**Captures every raw value for replay with FrameReplayer, NULL if the capture can't be written*/
+	private volatile FrameRecorder mFrameRecorder;
+	private File mCaptureFile;
+	/**Processes every received value, only called on the worker thread*/
+	private final SamplePipeline mSamplePipeline = new SamplePipeline(mOdometerReconciler,
+			mKinematicsEngine, mSampleChannel, mPipelineListener);
+	/**Telemetry of the device, written by the worker thread*/
+	private final TelemetrySeries mVoltageSeries = new TelemetrySeries("voltage_mv",
+			Constants.Worker.TELEMETRY_CAPACITY);
+	private final TelemetrySeries mTemperatureSeries = new TelemetrySeries("temperature_dc",
+			Constants.Worker.TELEMETRY_CAPACITY);
 	/**
-	 * Analyses the value and updates storage and UI.
+	 * Start of the connection attempt, -1 after the first sample. Together with the times of
+	 * connection and service discovery this measures the time to the first sample.
 	 */
-	private void processCharacteristic(BluetoothGattCharacteristic characteristic) {
-
-		String message = null;
-		String data = characteristic.getStringValue(0);
+	private volatile long mConnectStartedAt = -1;
+	private volatile long mConnectedAt;
+	private volatile long mDiscoveredAt;
+	/**Milliseconds from the start of the last connection attempt to its first sample, -1 if none*/
+	private volatile long mTimeToFirstSample = -1;
+	/**Chooses the read interval while polling, only used on the worker thread*/
+	private final SampleScheduler mSampleScheduler = new SampleScheduler();
+	/**For timer-driven actions: The read job*/
+	private Handler mHandler;
+	/**
+	 * Reads the next value
+	 */
+	private final Runnable mRunnableValueReadJob = new Runnable() {
+		@Override
+		public void run() {
+			if (readJob && mBluetoothGatt != null && mConnectionState == Constants.State.CONNECTED) {
+				sendValueReadNotification();
+			}
+		}
+	};
 
-		if (data != null && data.length() > 0) {
-//			Log.v(TAG, "Value >>>" + data + "<<<");
 
-			//First character holds the type.
-			char dataType = data.charAt(0);
-			String dataContent = data.substring(1);
+	/**
+	 * Starts delivering values, preferably by streaming, otherwise by the read job. Call this, when
+	 * the services have been discovered.
+	 */
+	public void startValueReading() {
+		if (!setStreaming(true)) {
+			startReadJob();
+		}
+	}
 
-			//Distance value: Number of wheel rotation
-			if (dataType == 'D') {
+	/**
+	 * Starts polling with the first read. Every read value schedules the next read.
+	 */
+	private void startReadJob() {
+		Log.v(TAG, "startReadJob()");
+		readJob = true;
+		mWorkerHandler.post(mRunnableResetScheduler);
+		mHandler.post(mRunnableValueReadJob);
+	}
 
-				long value;
+	private void stopReadJob() {
+		readJob = false;
+		mHandler.removeCallbacks(mRunnableValueReadJob);
+	}
 
-				//Expecting the wheel rotation number as long value
-				try {
-					value = Long.valueOf(dataContent);
-					//dodDistanceValue = value;
-					//dodLastUpdateAt = System.currentTimeMillis();
-//					Log.v(TAG, "Value=" + dodDistanceValue);
-
-				} catch (Exception e) {
-					Log.v(TAG, "Caught exception: Not a long value >>>" + dataContent + "<<<");
-					message = "Not a number >>>" + dataContent + "<<<";
-				}
-			}
-			// Message
-			else if (dataType == 'M') {
-				Log.v(TAG, "Received message: " + dataContent);
-				message = dataContent;
-			}
+	/**
+	 * Posts the next read. The interval depends on the rotations of the last decoded value. Only
+	 * called on the worker thread.
+	 */
+	private void scheduleNextRead() {
+		long interval = mSampleScheduler.getInterval();
+		FrameDecoder decoder = mSamplePipeline.getDecoder();
+		if (decoder.hasDistance()) {
+			interval = mSampleScheduler.onSample(SystemClock.elapsedRealtime(),
+					mOdometerReconciler.getLifetime());
+		}
+		mHandler.removeCallbacks(mRunnableValueReadJob);
+		mHandler.postDelayed(mRunnableValueReadJob, interval);
+	}
 
-			//Unknown type
-			else {
-				Log.v(TAG, "Received value with unknown type: " + dataContent);
-				message = "Unknown value:" + dataContent;
+	/**
+	 * Analyses the value, updates storage and publishes it to the SampleChannel. The timestamp of
+	 * the sample is the time of arrival, not the time of processing.
+	 *
+	 * @param nanos Monotonic time of arrival.
+	 */
+	private void processCharacteristic(long nanos, byte[] data, int length) {
+		long span = mTracer.begin();
+		long start = System.nanoTime();
+		mQueueLatency.record(start - nanos);
+		long timestamp = System.currentTimeMillis() - (start - nanos) / 1000000;
+		int result = mSamplePipeline.process(timestamp, data, 0, length);
+		mDecodeLatency.record(System.nanoTime() - start);
+		mTracer.end(Constants.Trace.PROCESS, span, result);
+
+		FrameDecoder decoder = mSamplePipeline.getDecoder();
+		if (result == SamplePipeline.RESULT_DUPLICATE) {
+			mDuplicateFrames.increment();
+			return;
+		} else if (result == FrameDecoder.ERROR_UNKNOWN_TYPE) {
+			mUnknownFrames.increment();
+		} else if (result != FrameDecoder.OK) {
+			mInvalidFrames.increment();
+		} else if (decoder.hasDistance()) {
+			mDistanceFrames.increment();
+			mSamples.add(decoder.getSampleCount());
+			if (decoder.getSequence() >= 0) {
+				mMissingFrames.add(mSamplePipeline.getSequenceTracker().getLastGap());
 			}
+		} else if (decoder.getType() == FrameDecoder.TYPE_MESSAGE) {
+			mMessageFrames.increment();
+		} else {
+			mTelemetryFrames.increment();
 		}
 
-		// Invalid message
-		else {
-			Log.v(TAG, "Received invalid message >>>" + data + "<<<");
-			message = "Invalid message:" + data;
+		// Telemetry is parsed by its handler, the error of the decoder doesn't apply then. Unknown
+		// frames are only counted, without building a message for every one.
+		String message = result == decoder.getError() && result != FrameDecoder.ERROR_UNKNOWN_TYPE
+				? decoder.getMessage() : null;
+		if (message != null) {
+			Log.v(TAG, "Received: " + message);
+		} else if (mConnectStartedAt >= 0 && decoder.hasDistance()) {
+			long startedAt = mConnectStartedAt;
+			mConnectStartedAt = -1;
+			mTimeToFirstSample = SystemClock.elapsedRealtime() - startedAt;
+			Log.i(TAG, "Time to first sample " + mTimeToFirstSample + " ms: connected after "
+					+ Math.max(0, mConnectedAt - startedAt) + " ms, services after "
+					+ Math.max(0, mDiscoveredAt - startedAt) + " ms.");
 		}
+	}
 
-		if (message != null) {
-			//messageBox.add(message);
+	/**
+	 * Starts measuring the time to the first sample, e.g. before scanning. Otherwise connect()
+	 * starts the measurement.
+	 */
+	public void markConnectStart() {
+		mConnectStartedAt = SystemClock.elapsedRealtime();
+	}
+
+	/**Milliseconds from the start of the last connection attempt to its first sample, -1 if none.*/
+	public long getTimeToFirstSample() {
+		return mTimeToFirstSample;
+	}
+
+	/**Returns TRUE, if the GATT connection is established.*/
+	public boolean isConnected() {
+		return mConnectionState == Constants.State.CONNECTED;
+	}
+
+	/**Remembers the address of the device of the type, which has been connected successfully.*/
+	private void saveDeviceAddress(DeviceType deviceType, String address) {
+		if (address != null) {
+			getSharedPreferences(Constants.Devices.NAME, 0).edit()
+					.putString(deviceType.name(), address)
+					.apply();
 		}
+	}
 
+	/**Returns the address of the last device of the type connected successfully, or NULL.*/
+	public String getLastDeviceAddress(DeviceType deviceType) {
+		return getSharedPreferences(Constants.Devices.NAME, 0).getString(deviceType.name(), null);
+	}
+
+	/**
+	 * Connects to the last device of the type without scanning. Returns FALSE, if there is no
+	 * remembered device or the connection can't be initiated. The GATT connects, when the device
+	 * is in reach, so the caller should fall back to scanning after a timeout.
+	 */
+	public boolean reconnect(DeviceType deviceType) {
+		String address = getLastDeviceAddress(deviceType);
+		Log.v(TAG, "reconnect() " + deviceType + " " + address);
+		if (address == null) {
+			return false;
+		}
+		mReconnects.increment();
+		return connect(address, true);
 	}
 
 /**Returns actual device type or, if no actual device type exists, NULL.*/
  public DeviceType getDeviceType(){
-  return mDeviceFacade != null? mDeviceFacade.getDeviceType():null;
+  DeviceFacade deviceFacade = mDeviceFacade;
+  return deviceFacade != null? deviceFacade.getDeviceType():null;
  }
 
 	/** Call this to switch to another device. The new device will be initialized and mDeviceType will be set.*/
 	public void changeDevice(DeviceType deviceType, Context context) throws EghBluetoothNotSupported, EghBluetoothLeNotSupported {
+		if (mDeviceFacade != null) {
+			mDeviceFacade.scanDevice(false);
+		}
+		stopReadJob();
+		mStreaming = false;
+
      switch(deviceType){
 	     case DDO:
-           mDeviceFacade = new DDOFascade(context);
+           mDeviceFacade = new DDOFascade(context, mTracer);
 		     break;
 
 	     case MOCKBIKE:
-		     mDeviceFacade = new DDOFascade(context);
+		     mDeviceFacade = new MockbikeFacade(context, mTracer);
+		     //The simulator is always in reach: Connect and stream
+		     mDeviceFacade.scanDevice(true);
+		     mWorkerHandler.post(mRunnableResetKinematics);
+		     mWorkerHandler.post(mRunnableResetSequence);
+		     startValueReading();
 		     break;
      }
 	}
@@ -220,7 +598,20 @@ private DeviceFacade mDeviceFacade;
 	 * callback.
 	 */
 	public boolean connect(final String address) {
-		Log.v(TAG, "connect()");
+		return connect(address, false);
+	}
+
+	/**
+	 * Connects to the GATT server hosted on the Bluetooth LE device.
+	 *
+	 * @param address     The device address of the destination device.
+	 * @param autoConnect TRUE to let the stack connect as soon as the device is advertising, FALSE
+	 *                    for a direct connect to a device just found by a scan.
+	 */
+	private boolean connect(final String address, boolean autoConnect) {
+		Log.v(TAG, "connect() " + autoConnect);
+		mConnects.increment();
+		mConnectSpan = mTracer.begin();
 
 		if (mBluetoothAdapter == null || address == null) {
 			Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
@@ -233,6 +624,9 @@ private DeviceFacade mDeviceFacade;
 				&& mBluetoothGatt != null) {
 			Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
 			if (mBluetoothGatt.connect()) {
+				if (mConnectStartedAt < 0) {
+					mConnectStartedAt = SystemClock.elapsedRealtime();
+				}
 				mConnectionState = Constants.State.CONNECTING;
 				return true;
 			} else {
@@ -245,9 +639,10 @@ private DeviceFacade mDeviceFacade;
 			Log.w(TAG, "Device not found.  Unable to connect.");
 			return false;
 		}
-		// We want to directly connect to the device, so we are setting the autoConnect
-		// parameter to false.
-		mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
+		if (mConnectStartedAt < 0) {
+			mConnectStartedAt = SystemClock.elapsedRealtime();
+		}
+		mBluetoothGatt = device.connectGatt(this, autoConnect, mGattCallback);
 		Log.d(TAG, "Trying to create a new connection.");
 		mBluetoothDeviceAddress = address;
 		mConnectionState = Constants.State.CONNECTING;
@@ -255,47 +650,88 @@ private DeviceFacade mDeviceFacade;
 	}
 
 	/**
-	 * Request a read on a given {@code BluetoothGattCharacteristic}. The read result is reported
-	 * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
-	 * callback.
+	 * Enables or disables notification on a give characteristic. The notification will be
+	 * activated on the remote device by writing its client characteristic configuration
+	 * descriptor, the result is reported to mNotificationCallback.
 	 *
-	 * @param characteristic The characteristic to read from.
+	 * @param characteristic Characteristic to act on.
+	 * @param enabled        If true, enable notification.  False otherwise.
+	 * @return TRUE, if the descriptor write has been enqueued.
 	 */
-	private void readCharacteristic(BluetoothGattCharacteristic characteristic) {
+	private boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+	                                              boolean enabled) {
 		if (mBluetoothAdapter == null || mBluetoothGatt == null) {
 			Log.w(TAG, "BluetoothAdapter not initialized");
-			return;
+			return false;
 		}
-		mBluetoothGatt.readCharacteristic(characteristic);
+		if (!mBluetoothGatt.setCharacteristicNotification(characteristic, enabled)) {
+			return false;
+		}
+
+		BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
+				UUID.fromString(Constants.Address.Descriptor.CLIENT_CHARACTERISTIC_CONFIG));
+		if (descriptor == null) {
+			Log.w(TAG, "Characteristic has no notification descriptor.");
+			return false;
+		}
+		mGattOperationQueue.writeDescriptor(descriptor, enabled
+				? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+				: BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE, mNotificationCallback);
+		return true;
 	}
 
 	/**
-	 * Enables or disables notification on a give characteristic.
-	 *
-	 * @param characteristic Characteristic to act on.
-	 * @param enabled        If true, enable notification.  False otherwise.
+	 * Switches the streaming mode on or off. In streaming mode the device pushes every value by
+	 * itself, polling with sendValueReadNotification() is only needed as fallback, see
+	 * isStreaming(). Returns TRUE, if the streaming request has been initiated.
 	 */
-	private void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
-	                                           boolean enabled) {
-		if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-			Log.w(TAG, "BluetoothAdapter not initialized");
-			return;
+	public boolean setStreaming(boolean enable) {
+		Log.v(TAG, "setStreaming() " + enable);
+		mStreamingRequested = enable;
+
+		// Facade delivers the values by itself
+		if (mDeviceFacade != null && mDeviceFacade.setStreaming(enable, mValueListener)) {
+			mStreaming = enable;
+			return true;
 		}
-		mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
 
+		// GATT notification of the RFDUINO receive characteristic
+		mStreaming = false;
+		if (mBluetoothGatt == null) {
+			return false;
+		}
+		BluetoothGattService service = mBluetoothGatt.getService(UUID.fromString(Constants.Address.Rfduino.SERVICE));
+		if (service == null) {
+			Log.w(TAG, "RFDUINO service not available.");
+			return false;
+		}
+		BluetoothGattCharacteristic chara = service.getCharacteristic(
+				UUID.fromString(Constants.Address.Rfduino.Characteristic.RECEIVE));
+		return chara != null && setCharacteristicNotification(chara, enable);
+	}
+
+	/**
+	 * Returns TRUE, if values will be pushed by the device. Otherwise the values must be read with
+	 * sendValueReadNotification().
+	 */
+	public boolean isStreaming() {
+		return mStreaming;
 	}
 
 	/**
-	 * Sends a notification to the GATT Server for the RFDUINO read characteristic
+	 * Enqueues a read of the RFDUINO receive characteristic, the result is reported to
+	 * mReadCallback.
 	 */
 	public void sendValueReadNotification() {
 
 		BluetoothGattCharacteristic chara = mBluetoothGatt.getService(UUID.fromString(Constants.Address.Rfduino.SERVICE)).getCharacteristic(
 				UUID.fromString(Constants.Address.Rfduino.Characteristic.RECEIVE));
 
-		Log.v(TAG, "sendValueReadNotification " + chara.getUuid() + " " + chara.getValue());
+		Log.v(TAG, "sendValueReadNotification " + chara.getUuid() + ", GATT queue depth "
+				+ mGattOperationQueue.getDepth());
 
-		mBluetoothGatt.readCharacteristic(chara);
+		mReadSpan = mTracer.begin();
+		mGattOperationQueue.read(chara, mReadCallback);
 	}
 
 	/**
@@ -358,10 +794,245 @@ private DeviceFacade mDeviceFacade;
 		return mBinder;
 	}
 
+	/**
+	 * Appends the raw value to the capture on the worker thread, so the receiving threads never
+	 * wait for the file. Frames dropped by the queue are not captured. A failing capture is closed,
+	 * the ride goes on.
+	 */
+	private void recordFrame(long nanos, byte[] data, int length) {
+		FrameRecorder recorder = mFrameRecorder;
+		if (recorder == null) {
+			return;
+		}
+		try {
+			recorder.record(nanos, data, length);
+		} catch (IOException e) {
+			Log.e(TAG, "Can't capture frame, capture stopped.", e);
+			mFrameRecorder = null;
+			closeFrameRecorder(recorder);
+		}
+	}
+
+	/**
+	 * Starts a new capture for this run of the service and deletes the oldest captures.
+	 */
+	private void openFrameRecorder() {
+		File directory = getDebugDirectory(Constants.Journal.CAPTURES);
+		File[] captures = directory.listFiles();
+		if (captures != null && captures.length >= Constants.Journal.MAX_CAPTURES) {
+			Arrays.sort(captures);
+			for (int i = 0; i <= captures.length - Constants.Journal.MAX_CAPTURES; i++) {
+				if (!captures[i].delete()) {
+					Log.w(TAG, "Can't delete capture " + captures[i]);
+				}
+			}
+		}
+		mCaptureFile = new File(directory, "capture-" + System.currentTimeMillis() + FrameRecorder.SUFFIX);
+		try {
+			mFrameRecorder = new FrameRecorder(mCaptureFile);
+		} catch (IOException e) {
+			Log.e(TAG, "Can't start capture " + mCaptureFile, e);
+		}
+	}
+
+	private static void closeFrameRecorder(FrameRecorder recorder) {
+		try {
+			recorder.close();
+		} catch (IOException e) {
+			Log.e(TAG, "Can't close capture.", e);
+		}
+	}
+
+	/**
+	 * Directory for debug files in the external files dir, so they can be pulled from the device.
+	 * Falls back to the files dir.
+	 */
+	private File getDebugDirectory(String name) {
+		File base = getExternalFilesDir(null);
+		File directory = new File(base != null ? base : getFilesDir(), name);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			Log.w(TAG, "Can't create directory " + directory);
+		}
+		return directory;
+	}
+
 	@Override
 	public void onCreate() {
 		super.onCreate();
 		Log.v(TAG, "onCreate()");
+		mHandler = new Handler();
+		mWorkerThread = new HandlerThread("FrameWorker");
+		mWorkerThread.start();
+		mWorkerHandler = new Handler(mWorkerThread.getLooper());
+		mGattOperationQueue = new GattOperationQueue<BluetoothGattCharacteristic, BluetoothGattDescriptor>(
+				mGattOperations, new GattOperationQueue.Timer() {
+			@Override
+			public long now() {
+				return SystemClock.elapsedRealtime();
+			}
+
+			@Override
+			public void postDelayed(Runnable runnable, long delay) {
+				mHandler.postDelayed(runnable, delay);
+			}
+
+			@Override
+			public void remove(Runnable runnable) {
+				mHandler.removeCallbacks(runnable);
+			}
+		});
+		mSamplePipeline.setHandler(FrameDecoder.TYPE_VOLTAGE, new TelemetryHandler(mVoltageSeries,
+				TelemetryHandler.MIN_VOLTAGE, TelemetryHandler.MAX_VOLTAGE));
+		mSamplePipeline.setHandler(FrameDecoder.TYPE_TEMPERATURE, new TelemetryHandler(mTemperatureSeries,
+				TelemetryHandler.MIN_TEMPERATURE, TelemetryHandler.MAX_TEMPERATURE));
+
+		try {
+			mRideJournal = new RideJournal(new File(getFilesDir(), Constants.Journal.DIRECTORY));
+			mSamplePipeline.addSink(mRideJournal);
+		} catch (IOException e) {
+			Log.e(TAG, "Can't open ride journal.", e);
+		}
+
+		SharedPreferences odometer = getSharedPreferences(Constants.Odometer.NAME, 0);
+		mOdometerReconciler.restore(odometer.getLong(Constants.Odometer.BASE_OFFSET, 0),
+				odometer.getLong(Constants.Odometer.LAST_RAW, 0),
+				odometer.getLong(Constants.Odometer.LAST_AT, -1));
+
+		loadRollupStore();
+		registerReceiver(mTimeZoneReceiver, new IntentFilter(Intent.ACTION_TIMEZONE_CHANGED));
+		mWorkerHandler.postDelayed(mRunnableSaveRollupsPeriodically, Constants.Journal.ROLLUPS_SAVE_INTERVAL);
+		if (mRideJournal != null) {
+			maintainRideJournal(mRideJournal, mRollupStore);
+		} else {
+			mSamplePipeline.addSink(mRollupStore);
+		}
+
+		openFrameRecorder();
+	}
+
+	/**
+	 * Persists the state of the odometer reconciler. Called when the base offset changes, so a
+	 * reset or wrap is never counted twice, and on destroy.
+	 */
+	private void saveOdometer() {
+		getSharedPreferences(Constants.Odometer.NAME, 0).edit()
+				.putLong(Constants.Odometer.BASE_OFFSET, mOdometerReconciler.getBaseOffset())
+				.putLong(Constants.Odometer.LAST_RAW, mOdometerReconciler.getLastRaw())
+				.putLong(Constants.Odometer.LAST_AT, mOdometerReconciler.getLastTimestamp())
+				.apply();
+	}
+
+	/**
+	 * Loads the rollups. If they are missing, they will be rebuilt from the journal, see
+	 * maintainRideJournal().
+	 */
+	private void loadRollupStore() {
+		File file = new File(getFilesDir(), Constants.Journal.ROLLUPS);
+		try {
+			mRollupStore = RollupStore.load(file, TimeZone.getDefault());
+			mRollupsSavedTimestamp = mRollupStore.getLastTimestamp();
+		} catch (IOException e) {
+			Log.i(TAG, "No rollups, rebuilding from journal.");
+			mRollupStore = new RollupStore(TimeZone.getDefault());
+		}
+	}
+
+	/**
+	 * Saves the rollups if samples were added since the last save. Called on the worker thread
+	 * periodically, after a disconnect and when stopping, so a killed process loses little.
+	 */
+	private void saveRollups() {
+		long lastTimestamp = mRollupStore.getLastTimestamp();
+		if (lastTimestamp == mRollupsSavedTimestamp) {
+			return;
+		}
+		try {
+			mRollupStore.save(new File(getFilesDir(), Constants.Journal.ROLLUPS));
+			mRollupsSavedTimestamp = lastTimestamp;
+		} catch (IOException e) {
+			Log.e(TAG, "Can't save rollups.", e);
+		}
+	}
+
+	/** Returns the aggregates of all rides. */
+	public RollupStore getRollupStore() {
+		return mRollupStore;
+	}
+
+	/**
+	 * Adds the journal records since the last save to the rollups and compresses the sealed
+	 * segments of the journal afterwards, both in a background thread. The rollups are added as
+	 * sink on the worker thread after catching up with the records written meanwhile, so no
+	 * sample is missed or added twice.
+	 */
+	private void maintainRideJournal(final RideJournal journal, final RollupStore rollupStore) {
+		final File directory = journal.getDirectory();
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Log.v(TAG, "Rollup catch up: " + rollupStore.catchUp(directory));
+				} catch (IOException e) {
+					Log.e(TAG, "Can't read ride journal.", e);
+				}
+				mWorkerHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							rollupStore.catchUp(directory);
+						} catch (IOException e) {
+							Log.e(TAG, "Can't read ride journal.", e);
+						}
+						mSamplePipeline.addSink(rollupStore);
+					}
+				});
+				try {
+					Log.v(TAG, "Compacted journal segments: " + journal.compactSealedSegments());
+				} catch (IOException e) {
+					Log.e(TAG, "Can't compact ride journal.", e);
+				}
+			}
+		}, "JournalMaintenance").start();
+	}
+
+	@Override
+	public void onDestroy() {
+		Log.v(TAG, "onDestroy()");
+		// No more values for the worker: Stop polling, the facade and the GATT connection
+		stopReadJob();
+		DeviceFacade deviceFacade = mDeviceFacade;
+		if (deviceFacade != null) {
+			deviceFacade.scanDevice(false);
+		}
+		close();
+		// Let the worker finish the queued frames and save the rollups before closing the sinks
+		mWorkerHandler.removeCallbacks(mRunnableSaveRollupsPeriodically);
+		mWorkerHandler.post(mRunnableSaveRollups);
+		mWorkerThread.quitSafely();
+		try {
+			mWorkerThread.join(Constants.Worker.STOP_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Log.i(TAG, "Frame queue: " + mFrameQueue);
+		unregisterReceiver(mTimeZoneReceiver);
+		saveOdometer();
+		if (mRideJournal != null) {
+			mSamplePipeline.removeSink(mRideJournal);
+			try {
+				mRideJournal.close();
+			} catch (IOException e) {
+				Log.e(TAG, "Can't close ride journal.", e);
+			}
+			mRideJournal = null;
+		}
+		FrameRecorder recorder = mFrameRecorder;
+		if (recorder != null) {
+			mFrameRecorder = null;
+			Log.i(TAG, "Captured " + recorder.getFrameCount() + " frames into " + mCaptureFile);
+			closeFrameRecorder(recorder);
+		}
+		super.onDestroy();
 
 	}
 
@@ -374,6 +1045,7 @@ private DeviceFacade mDeviceFacade;
 		if (mBluetoothGatt == null) {
 			return;
 		}
+		mGattOperationQueue.clear();
 		mBluetoothGatt.close();
 		mBluetoothGatt = null;
 	}
@@ -396,15 +1068,12 @@ private DeviceFacade mDeviceFacade;
 		 * Attribute names for broadcast intent extra data
 		 */
 		public abstract class Broadcast {
-			public final static String DATA =
-					"de.egh.dynamodrivenodometer.Broadcast.DATA";
-
 			public final static String DEVICE =
 					"de.egh.dynamodrivenodometer.Broadcast.DEVICE";
 		}
 
 		/**
-		 * Definitions for all GATT actions
+		 * Definitions for all GATT actions. Samples and messages are delivered by the SampleChannel.
 		 */
 		public abstract class Actions {
 
@@ -414,14 +1083,104 @@ private DeviceFacade mDeviceFacade;
 					"de.egh.dynamodrivenodometer.ACTION_GATT_DISCONNECTED";
 			public final static String ACTION_GATT_SERVICES_DISCOVERED =
 					"de.egh.dynamodrivenodometer.ACTION_GATT_SERVICES_DISCOVERED";
-			public final static String ACTION_VALUE_AVAILABLE =
-					"de.egh.dynamodrivenodometer.ACTION_VALUE_AVAILABLE";
-			public final static String ACTION_MESSAGE_AVAILABLE =
-					"de.egh.dynamodrivenodometer.ACTION_MESSAGE_AVAILABLE";
 			public final static String ACTION_BLUETOOTH_NEEDED =
 					"de.egh.dynamodrivenodometer.ACTION_BLUETOOTH_NEEDED";
 		}
 
+		/**
+		 * Names of the metrics, see LocalBinder.getMetrics(). Latencies have their unit as suffix.
+		 */
+		public abstract class Metrics {
+			public static final String FRAMES_DISTANCE = "frames.distance";
+			public static final String FRAMES_MESSAGE = "frames.message";
+			/** Distance samples, several per batch frame */
+			public static final String SAMPLES = "frames.samples";
+			/** Frames of the registered FrameHandlers for voltage and temperature */
+			public static final String FRAMES_TELEMETRY = "frames.telemetry";
+			/** Frames with a type byte without FrameHandler */
+			public static final String FRAMES_UNKNOWN = "frames.unknown";
+			/** Frames the FrameDecoder or a FrameHandler can't parse */
+			public static final String FRAMES_INVALID = "frames.invalid";
+			/** Sequenced frames received again, dropped */
+			public static final String FRAMES_DUPLICATE = "frames.duplicate";
+			/** Sequenced frames never received, detected by the gaps in the sequence */
+			public static final String FRAMES_MISSING = "frames.missing";
+			/** Frames dropped because the worker thread fell behind */
+			public static final String BACKPRESSURE = "frames.backpressure";
+			public static final String CONNECTS = "gatt.connects";
+			public static final String RECONNECTS = "gatt.reconnects";
+			public static final String DISCONNECTS = "gatt.disconnects";
+			/** Reads without value, after timeout and retries */
+			public static final String READS_DROPPED = "reads.dropped";
+			/** From enqueueing a read to its value */
+			public static final String BLE_ROUND_TRIP = "ble.round_trip_ms";
+			/** Processing of a value by the SamplePipeline */
+			public static final String DECODE = "pipeline.decode_ns";
+			/** From receiving a value to its processing on the worker thread */
+			public static final String QUEUE = "pipeline.queue_ns";
+			/** From receiving a sample to its frame on the screen, recorded by the activity */
+			public static final String UI_DELIVERY = "ui.delivery_ms";
+		}
+
+		/** Worker thread */
+		private abstract class Worker {
+			/** Frames queued for the worker, the oldest are dropped beyond */
+			private static final int QUEUE_CAPACITY = 256;
+
+			/** Values kept per telemetry channel */
+			private static final int TELEMETRY_CAPACITY = 600;
+
+			/** Maximum wait for the worker to finish in onDestroy() in milliseconds */
+			private static final long STOP_TIMEOUT = 1000;
+		}
+
+		/** Names of the trace spans */
+		public abstract class Trace {
+			public static final String SCAN = "ble.scan";
+			public static final String CONNECT = "gatt.connect";
+			public static final String DISCOVERY = "gatt.discovery";
+			public static final String READ = "gatt.read";
+			public static final String NOTIFICATION = "gatt.notification";
+			public static final String PROCESS = "pipeline.process";
+			public static final String FRAME = "ui.frame";
+			public static final String MOCKBIKE_FRAME = "mockbike.frame";
+			public static final String DDO_SCAN = "ddo.scan";
+		}
+
+		/** Files */
+		private abstract class Journal {
+			/** Directory of the ride journal within the files dir */
+			private static final String DIRECTORY = "journal";
+
+			/** File of the rollups within the files dir */
+			private static final String ROLLUPS = "rollups.bin";
+
+			/** Time between two saves of the rollups in milliseconds */
+			private static final long ROLLUPS_SAVE_INTERVAL = 5 * 60 * 1000L;
+
+			/** Directory of exported traces within the external files dir */
+			private static final String TRACES = "traces";
+
+			/** Directory of the frame captures within the external files dir */
+			private static final String CAPTURES = "captures";
+
+			/** Number of frame captures kept, one per run of the service */
+			private static final int MAX_CAPTURES = 5;
+		}
+
+		/** Shared preferences of the odometer reconciler */
+		private abstract class Odometer {
+			private static final String NAME = "DOD_ODOMETER";
+			private static final String BASE_OFFSET = "BASE_OFFSET";
+			private static final String LAST_RAW = "LAST_RAW";
+			private static final String LAST_AT = "LAST_AT";
+		}
+
+		/** Shared preferences with the address of the last connected device per DeviceType */
+		private abstract class Devices {
+			private static final String NAME = "DOD_DEVICES";
+		}
+
 		/** State */
 		private abstract class State {
 			private static final int DISCONNECTED = 0;
@@ -438,6 +1197,10 @@ private DeviceFacade mDeviceFacade;
 					private static final String RECEIVE = "00002221-0000-1000-8000-00805f9b34fb";
 				}
 			}
+
+			private abstract class Descriptor {
+				private static final String CLIENT_CHARACTERISTIC_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
+			}
 	}
 
 
@@ -449,6 +1212,74 @@ private DeviceFacade mDeviceFacade;
 		DeviceService getService() {
 			return DeviceService.this;
 		}
+
+		/**
+		 * Registers for samples and messages. The listener is called on the thread delivering the
+		 * values.
+		 */
+		SampleChannel.Consumer subscribe(SampleChannel.Listener listener) {
+			return mSampleChannel.subscribe(listener);
+		}
+
+		void unsubscribe(SampleChannel.Consumer consumer) {
+			mSampleChannel.unsubscribe(consumer);
+		}
+
+		/** Registry for recording further metrics, see Constants.Metrics. */
+		MetricsRegistry getMetrics() {
+			return mMetrics;
+		}
+
+		/** Copy of all counters and histograms. */
+		MetricsRegistry.Snapshot getMetricsSnapshot() {
+			return mMetrics.snapshot();
+		}
+
+		/** Tracer shared by the service, the activity and the facades, see Constants.Trace. */
+		Tracer getTracer() {
+			return mTracer;
+		}
+
+		/**
+		 * Writes the recorded spans into a new trace event JSON file, which opens in Perfetto or
+		 * chrome://tracing. Does disk IO, so call it on a background thread.
+		 */
+		File exportTrace() throws IOException {
+			File directory = getDebugDirectory(Constants.Journal.TRACES);
+			File file = new File(directory, "trace-" + System.currentTimeMillis() + ".json");
+			Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+			try {
+				Log.i(TAG, "Exported " + mTracer.writeJson(out, getPackageName()) + " spans to " + file);
+			} finally {
+				out.close();
+			}
+			return file;
+		}
+
+		/**
+		 * Writes the buffered frames and returns the actual capture, e.g. to pull it from the
+		 * device for FrameReplayer. NULL if there is no capture.
+		 */
+		File flushCapture() throws IOException {
+			FrameRecorder recorder = mFrameRecorder;
+			if (recorder == null) {
+				return null;
+			}
+			recorder.flush();
+			return mCaptureFile;
+		}
+
+		/** Compact text of all metrics, one per line. */
+		String dumpMetrics() {
+			FrameRecorder recorder = mFrameRecorder;
+			return mMetrics.dump() + "gatt.queue " + mGattOperationQueue + "\n"
+					+ "time_to_first_sample_ms " + mTimeToFirstSample + "\n"
+					+ "frame.queue " + mFrameQueue + "\n"
+					+ "connection " + mSamplePipeline.getSequenceTracker() + " interpolated="
+					+ mSamplePipeline.getInterpolatedCount() + " stale=" + mSamplePipeline.getStaleCount() + "\n"
+					+ "telemetry " + mVoltageSeries + " " + mTemperatureSeries + "\n"
+					+ "capture " + (recorder != null ? recorder.getFrameCount() + " frames in " + mCaptureFile : "none") + "\n";
+		}
 	}
 
 
@@ -1,19 +1,63 @@
 package de.egh.dynamodrivenodometer;
 
 import android.content.Context;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by ChristianSchulzendor on 26.11.2014.
+ *
+ * Emulates a bike with a RideSimulator. While streaming, the frames of the simulator are
+ * delivered in real time with the notification rate. Sequenced frames can be lost or delivered
+ * twice on the way, to exercise the gap detection of the receiver. In batch mode the distance
+ * samples are buffered like on a device and drained in batch frames, several samples per frame.
  */
 public class MockbikeFacade implements DeviceFacade {
 
+	/**Default number of notifications per second*/
+	public static final int DEFAULT_RATE = 10;
+
+	private static final String TAG = MockbikeFacade.class.getSimpleName();
+
+	/**Maximum wait for the delivery of the last frame when streaming stops, in milliseconds*/
+	private static final long STOP_TIMEOUT = 500;
+
+	/**Samples buffered in batch mode, the oldest are dropped beyond*/
+	private static final int BATCH_CAPACITY = 1024;
+
 	private boolean mConnected = false;
 
 	/**Context is needed for Bluetooth and broadcasts*/
 	private Context mContext;
 
-	public MockbikeFacade(Context context){
+	/**Notifications per second while streaming*/
+	private int mRate = DEFAULT_RATE;
+
+	/**Configuration of the simulator, used with the next start of streaming*/
+	private int mProfile = RideSimulator.PROFILE_STOP_AND_GO;
+	private long mSeed = System.currentTimeMillis();
+	private double mMalformedRate;
+	private long mMessageInterval = 60 * 1000L;
+	private long mResetInterval;
+	private boolean mSequenced = true;
+	private double mLossRate;
+	private double mDuplicateRate;
+	private int mBatchSize;
+
+	/**Not NULL while streaming*/
+	private ScheduledExecutorService mExecutor;
+
+	/**Records a span for every delivered frame*/
+	private final Tracer mTracer;
+
+	public MockbikeFacade(Context context, Tracer tracer){
 		this.mContext = context;
+		this.mTracer = tracer;
 	}
 
 	@Override
@@ -24,5 +68,130 @@ public class MockbikeFacade implements DeviceFacade {
 	@Override
 	public void scanDevice(boolean enable) {
 		mConnected = enable;
+		if (!enable) {
+			setStreaming(false, null);
+		}
+	}
+
+	/**Sets the number of notifications per second, will be used with the next start of streaming.*/
+	public void setNotificationRate(int rate) {
+		if (rate < RideSimulator.MIN_RATE || rate > RideSimulator.MAX_RATE) {
+			throw new IllegalArgumentException("Rate must be in [" + RideSimulator.MIN_RATE + ", "
+					+ RideSimulator.MAX_RATE + "]: " + rate);
+		}
+		mRate = rate;
+	}
+
+	/**Sets the rider profile, one of the RideSimulator.PROFILE constants.*/
+	public void setProfile(int profile) {
+		mProfile = profile;
+	}
+
+	/**Sets the seed for a reproducible ride.*/
+	public void setSeed(long seed) {
+		mSeed = seed;
+	}
+
+	/**Sets the probability of malformed frames, see RideSimulator.setMalformedRate().*/
+	public void setMalformedRate(double malformedRate) {
+		mMalformedRate = malformedRate;
+	}
+
+	/**Sets the time between messages, 0 for none.*/
+	public void setMessageInterval(long messageInterval) {
+		mMessageInterval = messageInterval;
+	}
+
+	/**Sets the mean time between counter resets, 0 for none.*/
+	public void setResetInterval(long resetInterval) {
+		mResetInterval = resetInterval;
+	}
+
+	/**Sets whether the simulator sends sequenced distance frames, see RideSimulator.setSequenced().*/
+	public void setSequenced(boolean sequenced) {
+		mSequenced = sequenced;
+	}
+
+	/**Sets the probability of a frame getting lost on the way to the receiver.*/
+	public void setLossRate(double lossRate) {
+		mLossRate = lossRate;
+	}
+
+	/**Sets the probability of a frame being delivered twice.*/
+	public void setDuplicateRate(double duplicateRate) {
+		mDuplicateRate = duplicateRate;
+	}
+
+	/**
+	 * Sets the number of samples buffered before they are drained in batch frames, see
+	 * FrameDecoder.TYPE_BATCH. 0 or 1 sends a frame for every sample.
+	 */
+	public void setBatchSize(int batchSize) {
+		mBatchSize = batchSize;
+	}
+
+	@Override
+	public synchronized boolean setStreaming(boolean enable, final ValueListener listener) {
+		if (mExecutor != null) {
+			mExecutor.shutdownNow();
+			// No frame may arrive after stopping, e.g. at a worker already quit
+			try {
+				if (!mExecutor.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+					Log.w(TAG, "Simulator didn't stop in time.");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			mExecutor = null;
+		}
+
+		if (enable) {
+			final RideSimulator simulator = new RideSimulator(mProfile, mRate, mSeed,
+					System.currentTimeMillis());
+			simulator.setMalformedRate(mMalformedRate);
+			simulator.setMessageInterval(mMessageInterval);
+			simulator.setResetInterval(mResetInterval);
+			simulator.setSequenced(mSequenced);
+			final double lossRate = mLossRate;
+			final double duplicateRate = mDuplicateRate;
+			final Random random = new Random(mSeed);
+			final int batchSize = mBatchSize;
+			final BatchFrameEncoder encoder = new BatchFrameEncoder(BATCH_CAPACITY);
+			final byte[] buffer = new byte[FrameDecoder.FRAME_SIZE];
+
+			mExecutor = Executors.newSingleThreadScheduledExecutor();
+			long period = TimeUnit.SECONDS.toMicros(1) / mRate;
+			mExecutor.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					long span = mTracer.begin();
+					byte[] frame = simulator.nextFrame();
+					if (batchSize > 1 && frame.length > 0 && (frame[0] == FrameDecoder.TYPE_DISTANCE
+							|| frame[0] == FrameDecoder.TYPE_SEQUENCED_DISTANCE)) {
+						encoder.add(simulator.getTimestamp(), simulator.getRotations());
+						if (encoder.size() >= batchSize) {
+							while (!encoder.isEmpty()) {
+								int length = encoder.encode(simulator.getTimestamp(), buffer);
+								deliver(Arrays.copyOf(buffer, length));
+							}
+						}
+					} else {
+						deliver(frame);
+					}
+					mTracer.end(DeviceService.Constants.Trace.MOCKBIKE_FRAME, span, frame.length);
+				}
+
+				/**Sends the frame, unless it gets lost, and maybe twice*/
+				private void deliver(byte[] frame) {
+					if (random.nextDouble() >= lossRate) {
+						listener.onValueReceived(frame);
+						if (random.nextDouble() < duplicateRate) {
+							listener.onValueReceived(frame);
+						}
+					}
+				}
+			}, 0, period, TimeUnit.MICROSECONDS);
+		}
+		return true;
 	}
 }
@@ -1,6 +1,7 @@
 package de.egh.dynamodrivenodometer;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
@@ -22,8 +23,9 @@ import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
 
 import de.egh.dynamodrivenodometer.Exceptions.EghBluetoothLeNotSupported;
 import de.egh.dynamodrivenodometer.Exceptions.EghBluetoothNotSupported;
@@ -36,18 +38,30 @@ public class MyActivity extends Activity {
 
 	// This name must be set in the RFDuino
 	private static final String TAG = MyActivity.class.getSimpleName();
-	private static final SimpleDateFormat mSdf = new SimpleDateFormat("dd.MM HH:mm:ss");
-	//Last time a distance value has been received as timestamp
-	private long mDodLastUpdateAt;
-	//Distance in meters
-	private long mDistance;
-	//Messages from the device
-	private MessageBox mMessageBox;
+	//Applies samples and messages on the delivering thread, the UI renders its snapshots. NULL until
+	//the state is restored.
+	private SnapshotPublisher mSnapshotPublisher;
+	//Last snapshot persisted, only used on the delivering thread
+	private RideSnapshot mPersistedSnapshot;
+	//Number of samples of the last rendered snapshot
+	private long mRenderedSampleCount;
+	//Reads samples and messages from the service, NULL while not bound
+	private SampleChannel.Consumer mSampleConsumer;
+	//Updates the views at most once per display frame
+	private OdometerRenderer mRenderer;
+	//Latency from receiving a sample in the service to its frame, NULL while not bound
+	private MetricsRegistry.Histogram mUiDelivery;
 	private TextView mConnectedToView;
 	private TextView mCastUpdateAtView;
 	private TextView mMessageView;
 	private TextView mGattConnectedView;
 	private SharedPreferences mSettings;
+	//Persists distance, messages and switch state write-behind, NULL if it can't be opened
+	private volatile StateStore mStateStore;
+	//True after binding the service, it is bound when the state is restored
+	private boolean mServiceBound;
+	//True after onDestroy(), a state restored later is discarded
+	private boolean mDestroyed;
 	private Switch mConnectSwitch;
 	//For timer-driven actions: Scanning end and alive-check
 	private Handler mHandler;
@@ -66,14 +80,43 @@ public class MyActivity extends Activity {
 	private Runnable mRunnableStopScan;
 
 	/**
-	 * Restart the read
+	 * Starts the next scan after an unsuccessful one
 	 */
-	private Runnable mRunnableValueReadJob;
+	private final Runnable mRunnableStartScan = new Runnable() {
+		@Override
+		public void run() {
+			scanLeDevice(true);
+		}
+	};
+
+	/**
+	 * Falls back to scanning, if the remembered device doesn't connect in time
+	 */
+	private final Runnable mRunnableReconnectTimeout = new Runnable() {
+		@Override
+		public void run() {
+			if (mService != null && !mService.isConnected()) {
+				Log.v(TAG, "Reconnect timed out, scanning.");
+				scanLeDevice(true);
+			}
+		}
+	};
+
+	/**
+	 * Delays between unsuccessful scans
+	 */
+	private final ExponentialBackoff mScanBackoff = new ExponentialBackoff(
+			MyActivity.Constants.Bluetooth.SCAN_BACKOFF_INITIAL, MyActivity.Constants.Bluetooth.SCAN_BACKOFF_MAX);
 
 	/**
 	 * Is NULL when service is disconnected.
 	 */
 	private DeviceService mService;
+	private DeviceService.LocalBinder mServiceBinder;
+	/** Tracer of the service, NULL when service is disconnected */
+	private Tracer mTracer;
+	/** Start of the running scan span */
+	private long mScanSpan = Tracer.NOT_STARTED;
 
 	// Code to manage Service lifecycle.
 	private final ServiceConnection mServiceConnection = new ServiceConnection() {
@@ -81,14 +124,19 @@ public class MyActivity extends Activity {
 		@Override
 		public void onServiceConnected(ComponentName componentName, IBinder service) {
 			Log.v(TAG, "onServiceConnected()");
-			mService = ((DeviceService.LocalBinder) service).getService();
+			mServiceBinder = (DeviceService.LocalBinder) service;
+			mService = mServiceBinder.getService();
+			mSampleConsumer = mServiceBinder.subscribe(mSampleListener);
+			mUiDelivery = mServiceBinder.getMetrics().histogram(DeviceService.Constants.Metrics.UI_DELIVERY);
+			mTracer = mServiceBinder.getTracer();
+			mRenderer.setTracer(mTracer);
 			if (!mService.initialize()) {
 				Log.e(TAG, "Unable to initialize Bluetooth");
 				finish();
 			}
 
 			//Verschoben aus onResume()
-			scanLeDevice(true);
+			connectDevice();
 
 			updateUI();
 
@@ -97,35 +145,94 @@ public class MyActivity extends Activity {
 		@Override
 		public void onServiceDisconnected(ComponentName componentName) {
 			mService = null;
+			mServiceBinder = null;
+			mSampleConsumer = null;
+			mUiDelivery = null;
+			mRenderer.setTracer(null);
+			mTracer = null;
 		}
 	};
-	// Device scan callback.
+	/**
+	 * Called on the worker thread of the service delivering the values. Applies them to a new
+	 * snapshot, which is rendered with the next frame, so bursts of samples result in a single UI
+	 * update.
+	 */
+	private final SampleChannel.Listener mSampleListener = new SampleChannel.Listener() {
+		@Override
+		public void onAvailable(SampleChannel.Consumer consumer) {
+			RideSnapshot snapshot = mSnapshotPublisher.update(consumer);
+			if (snapshot != null) {
+				persistSnapshot(snapshot);
+				mRenderer.requestFrame();
+			}
+		}
+	};
+	/**
+	 * Hands the latest snapshot to the renderer at the start of a frame.
+	 */
+	private final OdometerRenderer.Source mRenderSource = new OdometerRenderer.Source() {
+		@Override
+		public void onFrame(OdometerRenderer renderer) {
+			if (mSnapshotPublisher == null) {
+				return;
+			}
+			RideSnapshot snapshot = mSnapshotPublisher.getSnapshot();
+			if (snapshot.getSampleCount() != mRenderedSampleCount && mUiDelivery != null) {
+				mUiDelivery.record(System.currentTimeMillis() - snapshot.getReceivedAt());
+			}
+			mRenderedSampleCount = snapshot.getSampleCount();
+			renderer.setSnapshot(snapshot);
+		}
+	};
+	/**
+	 * Collects the devices offering the RFDUINO service during a scan
+	 */
+	private final ScanAggregator mScanAggregator = new ScanAggregator(
+			UUID.fromString(MyActivity.Constants.Device.SERVICE));
+	// Device scan callback. Called on a binder thread, only the ranked result goes to the UI thread.
 	private BluetoothAdapter.LeScanCallback mLeScanCallback =
 			new BluetoothAdapter.LeScanCallback() {
 
 				@Override
 				public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-					runOnUiThread(new Runnable() {
-						@Override
-						public void run() {
-							Log.v(TAG, "LeScanCallback.onLeScan found " + device.toString());
-							//Connect to the RFDuino!
-							if (device.getName().equals(MyActivity.Constants.Device.NAME)) {
-
-								mDodDevice = device;
-								stopLeDeviceScan();
-								mConnectedToView.setText(getString(R.string.dodConnectedTrue));
-								// Automatically connects to the device upon successful start-up initialization.
-								if (mService != null) {
-									mService.connect(mDodDevice.getAddress());
-								} else {
-									Log.v(TAG, "Missing Service, can't connect device.");
-								}
-							}
-						}
-					});
+					switch (mScanAggregator.add(device.getAddress(), device.getName(), rssi, scanRecord)) {
+						//Collect other devices for the scan window
+						case ScanAggregator.RESULT_FIRST:
+							mHandler.postDelayed(mRunnableScanWindow, MyActivity.Constants.Bluetooth.SCAN_WINDOW);
+							break;
+						//No need to wait for others
+						case ScanAggregator.RESULT_REMEMBERED:
+							mHandler.removeCallbacks(mRunnableScanWindow);
+							mHandler.post(mRunnableScanWindow);
+							break;
+					}
 				}
 			};
+	/**
+	 * End of the scan window: Connects to the best device.
+	 */
+	private final Runnable mRunnableScanWindow = new Runnable() {
+		@Override
+		public void run() {
+			ScanAggregator.Candidate best = mScanAggregator.getBest();
+			if (!mScanning || best == null) {
+				return;
+			}
+			Log.v(TAG, "Scan found " + mScanAggregator.getRanked() + " in "
+					+ mScanAggregator.getAdvertisementCount() + " advertisements.");
+
+			//Connect to the RFDuino!
+			mDodDevice = mBluetoothAdapter.getRemoteDevice(best.getAddress());
+			stopLeDeviceScan();
+			mConnectedToView.setText(getString(R.string.dodConnectedTrue));
+			// Automatically connects to the device upon successful start-up initialization.
+			if (mService != null) {
+				mService.connect(mDodDevice.getAddress());
+			} else {
+				Log.v(TAG, "Missing Service, can't connect device.");
+			}
+		}
+	};
 	/**
 	 * TRUE, if Device can be used for reading value data
 	 */
@@ -142,6 +249,8 @@ public class MyActivity extends Activity {
 			// Status change to connected
 			if (DeviceService.Constants.Actions.ACTION_GATT_CONNECTED.equals(action)) {
 				Log.v(TAG, "GATT connected.");
+				mHandler.removeCallbacks(mRunnableReconnectTimeout);
+				mScanBackoff.reset();
 				updateConnectionState(getString(R.string.gattConnectedTrue));
 				invalidateOptionsMenu();
 			}
@@ -160,20 +269,13 @@ public class MyActivity extends Activity {
 				// Show all the supported services and characteristics on the user interface.
 //				Log.v(TAG, "Discovered Services: " + mService.getSupportedGattServices().size());
 
-				//It's time to start the periodically value read. Result will be received with
-				// ACTION_DATA_AVAILABLE
+				//It's time to start the periodically value read. Results will be received by the
+				// SampleChannel
 				// Unchecked precondition: Expected RFDUINO service is available
 				mGattAvailable = true;
 
-				//It's time for our first value reading
-				mService.sendValueReadNotification();
-			}
-
-			// Trigger: New data available
-			else if (DeviceService.Constants.Actions.ACTION_VALUE_AVAILABLE.equals(action)) {
-//				Log.v(TAG, "GATT data available.");
-				processMessage(intent.getStringExtra(DeviceService.Constants.Broadcast.DATA));
-				startJob(true);
+				//Prefer notifications. If they are not available, the service polls.
+				mService.startValueReading();
 			}
 
 			// Activity has to switch BT on
@@ -194,122 +296,54 @@ public class MyActivity extends Activity {
 		}
 	};
 	private TextView mDistanceValueView;
+	private TextView mSpeedValueView;
 
 	private static IntentFilter makeGattUpdateIntentFilter() {
 		final IntentFilter intentFilter = new IntentFilter();
 		intentFilter.addAction(DeviceService.Constants.Actions.ACTION_GATT_CONNECTED);
 		intentFilter.addAction(DeviceService.Constants.Actions.ACTION_GATT_DISCONNECTED);
 		intentFilter.addAction(DeviceService.Constants.Actions.ACTION_GATT_SERVICES_DISCOVERED);
-		intentFilter.addAction(DeviceService.Constants.Actions.ACTION_VALUE_AVAILABLE);
 		return intentFilter;
 	}
 
 	/**
-	 * When GATT is available,
+	 * Puts the changed values of the snapshot into the state store. Called on the delivering
+	 * thread, the store writes in the background. The messages are written on checkpoints only,
+	 * see onStateRestored().
 	 */
-	private void startJob(boolean start) {
-//		Log.v(TAG, "startJob");
-		if (start) {
-			mRunnableValueReadJob = new Runnable() {
-				@Override
-				public void run() {
-//					Log.v(TAG, "Job ended!");
-					if (mService != null && mGattAvailable == true) {
-						mService.sendValueReadNotification();
-					}
-				}
-			};
-			// Refresh every 1 Second
-			mHandler.postDelayed(mRunnableValueReadJob, 1000);
-		}
-	}
-
-	/**
-	 * Analyses the value and updates storage and UI.
-	 */
-	private void processMessage(String data) {
-
-		String message = null;
-
-		if (data != null && data.length() > 0) {
-//			Log.v(TAG, "Value >>>" + data + "<<<");
-
-			//First character holds the type.
-			char dataType = data.charAt(0);
-			String dataContent = data.substring(1);
-
-			//Distance value: Number of wheel rotation
-			if (dataType == 'D') {
-
-				long value;
-
-				//Expecting the wheel rotation number as long value
-				try {
-					value = Long.valueOf(dataContent);
-					mDistance = value;
-					mDodLastUpdateAt = System.currentTimeMillis();
-//					Log.v(TAG, "Value=" + mDistance);
-
-				} catch (Exception e) {
-					Log.v(TAG, "Caught exception: Not a long value >>>" + dataContent + "<<<");
-					message = "Not a number >>>" + dataContent + "<<<";
-				}
-			}
-			// Message
-			else if (dataType == 'M') {
-				Log.v(TAG, "Received message: " + dataContent);
-				message = dataContent;
-			}
-
-			//Unknown type
-			else {
-				Log.v(TAG, "Received value with unknown type: " + dataContent);
-				message = "Unknown value:" + dataContent;
+	private void persistSnapshot(RideSnapshot snapshot) {
+		StateStore stateStore = mStateStore;
+		if (stateStore != null) {
+			//Distance value: Lifetime number of wheel rotations, reconciled by the service
+			if (snapshot.getSampleCount() != mPersistedSnapshot.getSampleCount()) {
+				stateStore.putLong(MyActivity.Constants.SharedPrefs.DISTANCE, snapshot.getDistance());
+				stateStore.putLong(MyActivity.Constants.SharedPrefs.LAST_UPDATE_AT, snapshot.getLastUpdateAt());
 			}
 		}
-
-		// Invalid message
-		else {
-			Log.v(TAG, "Received invalid message >>>" + data + "<<<");
-			message = "Invalid message:" + data;
-		}
-
-		if (message != null) {
-			mMessageBox.add(message);
-		}
-
-		updateUI();
+		mPersistedSnapshot = snapshot;
 	}
 
 	/**
-	 * Brings the received data to the UI.
+	 * Brings the received data to the UI with the next frame.
 	 */
 	private void updateUI() {
 
 		if (mService != null) {
 			switch (mService.getDeviceType()) {
 				case DDO:
-					setTitle(R.string.deviceTypeDDO);
+					mRenderer.setTitle(R.string.deviceTypeDDO);
 					break;
 				case MOCKBIKE:
-					setTitle(R.string.deviceTypeMockbike);
+					mRenderer.setTitle(R.string.deviceTypeMockbike);
 					break;
 				default:
-					setTitle(R.string.app_name);
+					mRenderer.setTitle(R.string.app_name);
 			}
 		} else {
-			setTitle(R.string.app_name);
+			mRenderer.setTitle(R.string.app_name);
 		}
 
-
-		mDistanceValueView.setText(String.valueOf(mDistance));
-		mCastUpdateAtView.setText("" + mSdf.format(new Date(mDodLastUpdateAt)));
-
-		String all = "";
-		for (MessageBox.Msg msg : mMessageBox.getSorted()) {
-			all += mSdf.format(new Date(msg.getTimestamp())) + " " + msg.getText() + "\n";
-			mMessageView.setText(all);
-		}
+		mRenderer.requestFrame();
 	}
 
 	/**
@@ -333,11 +367,18 @@ public class MyActivity extends Activity {
 
 	@Override
 	protected void onStop() {
-		SharedPreferences.Editor editor = mSettings.edit();
-		editor.putString(MyActivity.Constants.SharedPrefs.MESSAGES, mMessageBox.asString());
-		editor.putBoolean(MyActivity.Constants.SharedPrefs.SWITCH_PERMANENT, mConnectSwitch.isChecked());
-
-		editor.commit();
+		//The state store has all values but the switch, it writes them in the background
+		if (mStateStore != null) {
+			mStateStore.putBoolean(MyActivity.Constants.SharedPrefs.SWITCH_PERMANENT, mConnectSwitch.isChecked());
+		} else if (mSnapshotPublisher != null) {
+			RideSnapshot snapshot = mSnapshotPublisher.getSnapshot();
+			SharedPreferences.Editor editor = mSettings.edit();
+			editor.putString(MyActivity.Constants.SharedPrefs.MESSAGES, mSnapshotPublisher.getMessages());
+			editor.putLong(MyActivity.Constants.SharedPrefs.DISTANCE, snapshot.getDistance());
+			editor.putLong(MyActivity.Constants.SharedPrefs.LAST_UPDATE_AT, snapshot.getLastUpdateAt());
+			editor.putBoolean(MyActivity.Constants.SharedPrefs.SWITCH_PERMANENT, mConnectSwitch.isChecked());
+			editor.apply();
+		}
 
 		super.onStop();
 	}
@@ -348,15 +389,13 @@ public class MyActivity extends Activity {
 
 		unregisterReceiver(mBroadcastReceiver);
 		scanLeDevice(false);
+		mHandler.removeCallbacks(mRunnableReconnectTimeout);
 
 		//Wieder löschen, wenn onDestroy aktiviert
 //		unbindService(mServiceConnection);
 //		mService = null;
 
-		//Wenn hier disconnected, muss man in onResume wieder connecten !?
-		if (mService != null) {
-			mService.close();
-		}
+		//The service keeps the GATT connection, so resuming needs no reconnect
 
 		//Store messages
 		//TODO
@@ -366,39 +405,101 @@ public class MyActivity extends Activity {
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
+		mDestroyed = true;
+
+		mRenderer.stop();
+		Log.v(TAG, "Rendered " + mRenderer.getFrameCount() + " frames for "
+				+ mRenderer.getSampleCount() + " samples.");
+		if (mService != null) {
+			Log.v(TAG, "Time to first sample " + mService.getTimeToFirstSample() + " ms.");
+		}
+
+		//Final flush and checkpoint in the background
+		if (mStateStore != null) {
+			mStateStore.close();
+			mStateStore = null;
+		}
+
+		if (mServiceBinder != null) {
+			mServiceBinder.unsubscribe(mSampleConsumer);
+			mServiceBinder = null;
+			mSampleConsumer = null;
+		}
 
 		//TEstweise nach onPause verschoben
-		unbindService(mServiceConnection);
+		if (mServiceBound) {
+			unbindService(mServiceConnection);
+			mServiceBound = false;
+		}
 		mService = null;
 	}
 
 	/**
-	 * Call this to start or stop the scan mode.
+	 * Connects the device, fastest path first: The device found by the last scan, then the
+	 * remembered device of the selected type, scanning only if there is neither.
+	 */
+	private void connectDevice() {
+		if (mService == null || mService.isConnected()) {
+			return;
+		}
+		mService.markConnectStart();
+
+		DeviceType deviceType = mService.getDeviceType();
+		if (mDodDevice != null && mService.connect(mDodDevice.getAddress())) {
+			Log.v(TAG, "Connecting the device of the last scan.");
+		} else if (deviceType != null && mService.reconnect(deviceType)) {
+			Log.v(TAG, "Reconnecting the remembered device.");
+		} else {
+			scanLeDevice(true);
+			return;
+		}
+		mHandler.removeCallbacks(mRunnableReconnectTimeout);
+		mHandler.postDelayed(mRunnableReconnectTimeout, MyActivity.Constants.Bluetooth.RECONNECT_TIMEOUT);
+	}
+
+	/**
+	 * Call this to start or stop the scan mode. An unsuccessful scan is repeated with exponential
+	 * backoff.
 	 */
 	private void scanLeDevice(final boolean enable) {
 		Log.v(TAG, "scanLeDevice() " + enable);
+		mHandler.removeCallbacks(mRunnableStartScan);
 
 		//Switching on
 		if (enable) {
+			if (mBluetoothAdapter == null) {
+				Log.w(TAG, "No Bluetooth adapter, can't scan.");
+				return;
+			}
 			if (mService != null) {
 				mService.close();
 			}
 			mRunnableStopScan = new Runnable() {
 				@Override
 				public void run() {
-					if (mScanning) {
-						Log.v(TAG, "End of scan period: Stopping scan.");
+					//A device found within the last scan window is taken now, not lost
+					if (mScanning && mScanAggregator.getBest() != null) {
+						mHandler.removeCallbacks(mRunnableScanWindow);
+						mRunnableScanWindow.run();
+					} else if (mScanning) {
 						mScanning = false;
 						mBluetoothAdapter.stopLeScan(mLeScanCallback);
+						endScanSpan();
 						mConnectedToView.setText(getString(R.string.dodConnectedFalse));
-						mConnectSwitch.setChecked(false);
+						long delay = mScanBackoff.next();
+						Log.v(TAG, "End of scan period: Stopping scan, next scan in " + delay + " ms.");
+						mHandler.postDelayed(mRunnableStartScan, delay);
 					}
 				}
 			};
 			// Stops scanning after a pre-defined scan period.
 			mHandler.postDelayed(mRunnableStopScan, MyActivity.Constants.Bluetooth.SCAN_PERIOD);
 
+			DeviceType deviceType = mService != null ? mService.getDeviceType() : null;
+			mScanAggregator.start(deviceType != null ? mService.getLastDeviceAddress(deviceType) : null);
+
 			mScanning = true;
+			mScanSpan = mTracer != null ? mTracer.begin() : Tracer.NOT_STARTED;
 			mConnectedToView.setText(getString(R.string.dodConnectedScanning));
 			mBluetoothAdapter.startLeScan(mLeScanCallback);
 
@@ -418,14 +519,26 @@ public class MyActivity extends Activity {
 		Log.v(TAG, "stopLeDeviceScan()");
 		if (mScanning) {
 			mHandler.removeCallbacks(mRunnableStopScan);
+			mHandler.removeCallbacks(mRunnableScanWindow);
 			mScanning = false;
 			mBluetoothAdapter.stopLeScan(mLeScanCallback);
+			endScanSpan();
 			//Update status in view only if not connected.
 			mConnectedToView.setText(getString(R.string.dodConnectedFalse));
 		}
 		invalidateOptionsMenu();
 	}
 
+	/**
+	 * Records the scan span with the number of advertisements seen.
+	 */
+	private void endScanSpan() {
+		if (mTracer != null) {
+			mTracer.end(DeviceService.Constants.Trace.SCAN, mScanSpan, mScanAggregator.getAdvertisementCount());
+		}
+		mScanSpan = Tracer.NOT_STARTED;
+	}
+
 	@Override
 	protected void onResume() {
 		super.onResume();
@@ -463,11 +576,7 @@ public class MyActivity extends Activity {
 //		bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
 
 		//Vielleicht geht'S ja so
-		if (mDodDevice == null) {
-			scanLeDevice(true);
-		} else {
-			mService.connect(mDodDevice.getAddress());
-		}
+		connectDevice();
 	}
 
 	/*
@@ -487,23 +596,22 @@ public class MyActivity extends Activity {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_my);
 		mDistanceValueView = (TextView) findViewById(R.id.distanceValue);
+		mSpeedValueView = (TextView) findViewById(R.id.speedValue);
 		mConnectedToView = (TextView) findViewById(R.id.connectedToValue);
 		mCastUpdateAtView = (TextView) findViewById(R.id.lastUpdateValue);
 		mMessageView = (TextView) findViewById(R.id.messageValue);
 		mGattConnectedView = (TextView) findViewById(R.id.gattConnectedValue);
 		mConnectSwitch = (Switch) findViewById(R.id.connectSwitch);
 
-		//Restore values from previous run
-		mDistance = getSharedPreferences(MyActivity.Constants.SharedPrefs.NAME, 0).getLong(MyActivity.Constants.SharedPrefs.DISTANCE, 0);
-		mDodLastUpdateAt = getSharedPreferences(MyActivity.Constants.SharedPrefs.NAME, 0).getLong(MyActivity.Constants.SharedPrefs.LAST_UPDATE_AT, 0);
-
 		// Restore preferences
 		mSettings = getSharedPreferences(MyActivity.Constants.SharedPrefs.NAME, 0);
+		restoreState(new File(getFilesDir(), MyActivity.Constants.STATE_DIRECTORY));
 
-		mMessageBox = new MessageBox(mSettings.getString(MyActivity.Constants.SharedPrefs.MESSAGES, null));
-		mConnectSwitch.setChecked(mSettings.getBoolean(MyActivity.Constants.SharedPrefs.SWITCH_PERMANENT, false));
+		mRenderer = new OdometerRenderer(this, mDistanceValueView, mSpeedValueView, mCastUpdateAtView,
+				mMessageView, mRenderSource);
 
 		mHandler = new Handler();
+		mBluetoothAdapter = ((BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE)).getAdapter();
 
 //		// Use this check to determine whether BLE is supported on the device.  Then you can
 //		// selectively disable BLE-related features.
@@ -525,19 +633,88 @@ public class MyActivity extends Activity {
 //			return;
 //		}
 
-		//Verschoben nach onResume()
-//		Log.v(TAG,"call bindService()....");
-		Intent gattServiceIntent = new Intent(this, DeviceService.class);
-//		Log.v(TAG, "... With result="+
-		bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
 
+	}
 
+	/**
+	 * Restores the values of the previous run in a background thread, opening the state store
+	 * reads its checkpoint and journal. The shared preferences are the values of former versions.
+	 */
+	private void restoreState(final File stateDirectory) {
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long distance = mSettings.getLong(MyActivity.Constants.SharedPrefs.DISTANCE, 0);
+				long lastUpdateAt = mSettings.getLong(MyActivity.Constants.SharedPrefs.LAST_UPDATE_AT, 0);
+				String messages = mSettings.getString(MyActivity.Constants.SharedPrefs.MESSAGES, null);
+				boolean switchPermanent = mSettings.getBoolean(MyActivity.Constants.SharedPrefs.SWITCH_PERMANENT, false);
+				StateStore stateStore = null;
+				try {
+					stateStore = new StateStore(stateDirectory);
+					distance = stateStore.getLong(MyActivity.Constants.SharedPrefs.DISTANCE, distance);
+					lastUpdateAt = stateStore.getLong(MyActivity.Constants.SharedPrefs.LAST_UPDATE_AT, lastUpdateAt);
+					messages = stateStore.getString(MyActivity.Constants.SharedPrefs.MESSAGES, messages);
+					switchPermanent = stateStore.getBoolean(MyActivity.Constants.SharedPrefs.SWITCH_PERMANENT, switchPermanent);
+					Log.v(TAG, "State restored, " + stateStore.getReplayedCount() + " journal records.");
+				} catch (IOException e) {
+					Log.e(TAG, "Can't open state store.", e);
+				}
+
+				//The message box is only changed by the publisher from now on
+				final SnapshotPublisher snapshotPublisher = new SnapshotPublisher(new MessageBox(messages),
+						MyActivity.Constants.MESSAGE_LINES, distance, lastUpdateAt);
+				final StateStore restoredStore = stateStore;
+				final boolean restoredSwitch = switchPermanent;
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						onStateRestored(restoredStore, snapshotPublisher, restoredSwitch);
+					}
+				});
+			}
+		}, "StateRestore").start();
+	}
+
+	/**
+	 * Applies the restored state on the UI thread and binds the service, so the delivered samples
+	 * continue the restored values.
+	 */
+	private void onStateRestored(StateStore stateStore, final SnapshotPublisher snapshotPublisher,
+	                             boolean switchPermanent) {
+		if (mDestroyed) {
+			if (stateStore != null) {
+				stateStore.close();
+			}
+			return;
+		}
+		if (stateStore != null) {
+			//Messages and invalid values: Serializing all of them is too expensive for every change
+			stateStore.setCheckpointSource(MyActivity.Constants.SharedPrefs.MESSAGES,
+					new StateStore.ValueSource() {
+						@Override
+						public String get() {
+							return snapshotPublisher.getMessages();
+						}
+					});
+		}
+		mStateStore = stateStore;
+		mSnapshotPublisher = snapshotPublisher;
+		mPersistedSnapshot = snapshotPublisher.getSnapshot();
+		mConnectSwitch.setChecked(switchPermanent);
+		mRenderer.setSnapshot(snapshotPublisher.getSnapshot());
+
+		Intent gattServiceIntent = new Intent(this, DeviceService.class);
+		bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
+		mServiceBound = true;
 	}
 
 	/**
 	 * Callback method for connect switch
 	 */
 	public void onClickConnectSwitch(View view) {
+		if (mStateStore != null) {
+			mStateStore.putBoolean(MyActivity.Constants.SharedPrefs.SWITCH_PERMANENT, mConnectSwitch.isChecked());
+		}
 		if (mConnectSwitch.isChecked()) {
 			Log.v(TAG, "ConnectSwitch checked");
 
@@ -584,6 +761,12 @@ public class MyActivity extends Activity {
 				case menuMockbike:
 					mService.changeDevice(DeviceType.MOCKBIKE, this);
 					break;
+				case R.id.menuMetrics:
+					showMetrics();
+					return true;
+				case R.id.menuTrace:
+					toggleTrace();
+					return true;
 
 			}
 		} catch (EghBluetoothNotSupported eghBluetoothNotSupported) {
@@ -595,8 +778,68 @@ public class MyActivity extends Activity {
 		return true;
 	}
 
+	/**
+	 * Debug view: Shows and logs the metrics of the service.
+	 */
+	private void showMetrics() {
+		if (mServiceBinder == null) {
+			return;
+		}
+		String metrics = mServiceBinder.dumpMetrics();
+		Log.i(TAG, "Metrics:\n" + metrics);
+		new AlertDialog.Builder(this)
+				.setTitle(R.string.menuMetrics)
+				.setMessage(metrics)
+				.setPositiveButton(android.R.string.ok, null)
+				.show();
+	}
+
+	/**
+	 * Debug view: Starts tracing, or stops it and saves the trace on a background thread.
+	 */
+	private void toggleTrace() {
+		final DeviceService.LocalBinder binder = mServiceBinder;
+		if (binder == null) {
+			return;
+		}
+		Tracer tracer = binder.getTracer();
+		if (!tracer.isEnabled()) {
+			tracer.clear();
+			tracer.setEnabled(true);
+			Toast.makeText(this, R.string.msgTraceStarted, Toast.LENGTH_SHORT).show();
+			return;
+		}
+
+		tracer.setEnabled(false);
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				String text;
+				try {
+					text = getString(R.string.msgTraceExported, binder.exportTrace().getPath());
+				} catch (IOException e) {
+					Log.e(TAG, "Can't export trace.", e);
+					text = getString(R.string.msgTraceFailed);
+				}
+				final String message = text;
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						Toast.makeText(MyActivity.this, message, Toast.LENGTH_LONG).show();
+					}
+				});
+			}
+		}, "TraceExport").start();
+	}
+
 	//Structure for all used Constants
 	private abstract class Constants {
+		//Number of messages shown
+		static final int MESSAGE_LINES = 3;
+
+		//Directory of the state store within the files dir
+		static final String STATE_DIRECTORY = "state";
+
 		abstract class SharedPrefs {
 			static final String NAME = "DOD";
 			static final String DISTANCE = "DISTANCE";
@@ -606,13 +849,24 @@ public class MyActivity extends Activity {
 		}
 
 		abstract class Device {
-			static final String NAME = "DDO";
+			//Service of the RFDuino, advertised by the DDO
+			static final String SERVICE = "00002220-0000-1000-8000-00805f9b34fb";
 		}
 
 		abstract class Bluetooth {
 			//Max. Duration im milliseconds to scan for the ddo device
 			static final long SCAN_PERIOD = 10000;
 
+			//Duration in milliseconds to collect further devices after the first one has been found
+			static final long SCAN_WINDOW = 1500;
+
+			//Delay before the first repeated scan, doubled for every further scan up to the max.
+			static final long SCAN_BACKOFF_INITIAL = 2000;
+			static final long SCAN_BACKOFF_MAX = 120000;
+
+			//Max. duration in milliseconds to wait for the remembered device before scanning
+			static final long RECONNECT_TIMEOUT = 5000;
+
 			//ID for BT switch on intent
 			static final int REQUEST_ENABLE_BT = 1;
 		}
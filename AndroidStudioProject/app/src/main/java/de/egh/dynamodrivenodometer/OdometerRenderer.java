@@ -0,0 +1,207 @@
+package de.egh.dynamodrivenodometer;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+import android.widget.TextView;
+
+import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Renders the odometer screen from immutable RideSnapshots. At most once per display frame the
+ * renderer lets its Source hand over the latest snapshot and then updates only the views whose
+ * text has changed. Numbers and timestamps are formatted into reused char buffers. Must be used on the UI
+ * thread, except requestFrame().
+ */
+public class OdometerRenderer implements Choreographer.FrameCallback {
+
+	/**
+	 * Called at the start of each frame to hand over pending values.
+	 */
+	public interface Source {
+		void onFrame(OdometerRenderer renderer);
+	}
+
+	private final Activity mActivity;
+	private final TextView mDistanceView;
+	private final TextView mSpeedView;
+	private final TextView mLastUpdateView;
+	private final TextView mMessageView;
+	private final Source mSource;
+
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final CharFormatter mFormatter = new CharFormatter();
+	private final char mDecimalSeparator = DecimalFormatSymbols.getInstance().getDecimalSeparator();
+
+	/** TRUE from requestFrame() until the frame starts */
+	private final AtomicBoolean mFrameRequested = new AtomicBoolean();
+	private final Runnable mRunnablePostFrame = new Runnable() {
+		@Override
+		public void run() {
+			Choreographer.getInstance().postFrameCallback(OdometerRenderer.this);
+		}
+	};
+
+	// State to render, title 0 is none
+	private int mTitle;
+	private RideSnapshot mSnapshot;
+
+	// Rendered state, initialized to values that never occur
+	private int mRenderedTitle;
+	private long mRenderedDistance = Long.MIN_VALUE;
+	private long mRenderedSpeedTenths = Long.MIN_VALUE;
+	private long mRenderedLastUpdateSecond = Long.MIN_VALUE;
+	private long mRenderedMessageVersion = Long.MIN_VALUE;
+
+	// One buffer per view, a TextView keeps a reference to the chars
+	private final char[] mDistanceChars = new char[CharFormatter.LONG_LENGTH];
+	private final char[] mSpeedChars = new char[CharFormatter.LONG_LENGTH + 2];
+	private final char[] mLastUpdateChars = new char[CharFormatter.TIMESTAMP_LENGTH];
+	private char[] mMessageChars = new char[256];
+
+	private volatile long mFrames;
+	/** Samples counted until the last frame, for the value of the frame span */
+	private long mFrameSamples;
+
+	/** Records a span per frame, NULL for none */
+	private Tracer mTracer;
+
+	public OdometerRenderer(Activity activity, TextView distanceView, TextView speedView,
+	                        TextView lastUpdateView, TextView messageView, Source source) {
+		mActivity = activity;
+		mDistanceView = distanceView;
+		mSpeedView = speedView;
+		mLastUpdateView = lastUpdateView;
+		mMessageView = messageView;
+		mSource = source;
+	}
+
+	/**
+	 * Schedules a frame, if none is pending. Can be called from any thread.
+	 */
+	public void requestFrame() {
+		if (mFrameRequested.compareAndSet(false, true)) {
+			if (Looper.myLooper() == Looper.getMainLooper()) {
+				Choreographer.getInstance().postFrameCallback(this);
+			} else {
+				mHandler.post(mRunnablePostFrame);
+			}
+		}
+	}
+
+	/** Cancels a pending frame, e.g. in onDestroy(). */
+	public void stop() {
+		mHandler.removeCallbacks(mRunnablePostFrame);
+		Choreographer.getInstance().removeFrameCallback(this);
+		mFrameRequested.set(false);
+	}
+
+	@Override
+	public void doFrame(long frameTimeNanos) {
+		// Values arriving from now on need another frame
+		mFrameRequested.set(false);
+		long span = mTracer != null ? mTracer.begin() : Tracer.NOT_STARTED;
+		if (mSource != null) {
+			mSource.onFrame(this);
+		}
+		render();
+		mFrames++;
+		if (mTracer != null) {
+			long samples = getSampleCount();
+			mTracer.end(DeviceService.Constants.Trace.FRAME, span, samples - mFrameSamples);
+			mFrameSamples = samples;
+		}
+	}
+
+	private void render() {
+		if (mTitle != mRenderedTitle) {
+			mActivity.setTitle(mTitle);
+			mRenderedTitle = mTitle;
+		}
+
+		RideSnapshot snapshot = mSnapshot;
+		if (snapshot == null) {
+			return;
+		}
+
+		long distance = snapshot.getDistance();
+		if (distance != mRenderedDistance) {
+			mDistanceView.setText(mDistanceChars, 0, CharFormatter.appendLong(mDistanceChars, 0, distance));
+			mRenderedDistance = distance;
+		}
+
+		long speedTenths = Math.round(snapshot.getSpeed() * 36.0);
+		if (speedTenths != mRenderedSpeedTenths) {
+			mSpeedView.setText(mSpeedChars, 0,
+					CharFormatter.appendTenths(mSpeedChars, 0, speedTenths, mDecimalSeparator));
+			mRenderedSpeedTenths = speedTenths;
+		}
+
+		long lastUpdateAt = snapshot.getLastUpdateAt();
+		long lastUpdateSecond = lastUpdateAt / 1000;
+		if (lastUpdateSecond != mRenderedLastUpdateSecond) {
+			mLastUpdateView.setText(mLastUpdateChars, 0,
+					mFormatter.appendTimestamp(mLastUpdateChars, 0, lastUpdateAt));
+			mRenderedLastUpdateSecond = lastUpdateSecond;
+		}
+
+		if (snapshot.getMessageVersion() != mRenderedMessageVersion) {
+			renderMessages(snapshot);
+			mRenderedMessageVersion = snapshot.getMessageVersion();
+		}
+	}
+
+	/** Shows the newest messages of the snapshot, one per line. */
+	private void renderMessages(RideSnapshot snapshot) {
+		int lines = snapshot.getMessageCount();
+
+		int length = 0;
+		for (int i = 0; i < lines; i++) {
+			length += CharFormatter.TIMESTAMP_LENGTH + snapshot.getMessageText(i).length() + 2;
+		}
+		if (length > mMessageChars.length) {
+			mMessageChars = Arrays.copyOf(mMessageChars, Math.max(length, mMessageChars.length * 2));
+		}
+
+		char[] chars = mMessageChars;
+		int position = 0;
+		for (int i = 0; i < lines; i++) {
+			position = mFormatter.appendTimestamp(chars, position, snapshot.getMessageTimestamp(i));
+			chars[position++] = ' ';
+			String text = snapshot.getMessageText(i);
+			text.getChars(0, text.length(), chars, position);
+			position += text.length();
+			chars[position++] = '\n';
+		}
+		mMessageView.setText(chars, 0, position);
+	}
+
+	/** Sets the tracer for a span per frame with the number of new samples, NULL for none. */
+	public void setTracer(Tracer tracer) {
+		mTracer = tracer;
+	}
+
+	/** Sets the title resource of the activity. */
+	public void setTitle(int title) {
+		mTitle = title;
+	}
+
+	/** Sets the state to render, the speed is rendered as km/h. */
+	public void setSnapshot(RideSnapshot snapshot) {
+		mSnapshot = snapshot;
+	}
+
+	/** Number of samples of the rendered snapshot. */
+	public long getSampleCount() {
+		RideSnapshot snapshot = mSnapshot;
+		return snapshot != null ? snapshot.getSampleCount() : 0;
+	}
+
+	/** Number of frames rendered, at most one per display frame. */
+	public long getFrameCount() {
+		return mFrames;
+	}
+}
@@ -0,0 +1,132 @@
+package de.egh.dynamodrivenodometer;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples per radio exchange: The same ride of an hour at 10 Hz as single distance frames and as
+ * batch frames, drained by the device after every batchSize samples. Every invocation processes
+ * the frame of one exchange with the SamplePipeline. The aux counters report exchanges/s and
+ * samples/s, their ratio is the number of samples per exchange. The ride is repeated as laps with
+ * later arrival times, so the timestamps keep increasing; the counter starts again with every lap
+ * like after a device reset. Every iteration starts with a new pipeline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchFrameBenchmark {
+
+	private static final int RATE = 10;
+	private static final int SAMPLES = 60 * 60 * RATE;
+	private static final long START = 1420070400000L;
+	/** Time from the start of a lap to the start of the next one */
+	private static final long LAP = SAMPLES * 1000L / RATE;
+
+	/** Counted per exchange */
+	@AuxCounters
+	@State(Scope.Thread)
+	public static class Exchanges {
+		public long exchanges;
+		public long samples;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			exchanges = 0;
+			samples = 0;
+		}
+	}
+
+	/** Samples buffered by the device before draining */
+	@Param({"10", "100"})
+	public int batchSize;
+
+	private byte[][] mSingleFrames;
+	private byte[][] mBatchFrames;
+	private long[] mBatchArrivals;
+	private SamplePipeline mPipeline;
+	private int mIndex;
+	private long mLapOffset;
+
+	@Setup
+	public void setUp() {
+		RideSimulator simulator = new RideSimulator(RideSimulator.PROFILE_STOP_AND_GO, RATE, 1,
+				START);
+		BatchFrameEncoder encoder = new BatchFrameEncoder(batchSize);
+		byte[] buffer = new byte[FrameDecoder.FRAME_SIZE];
+		List<byte[]> batchFrames = new ArrayList<byte[]>();
+		List<Long> arrivals = new ArrayList<Long>();
+		mSingleFrames = new byte[SAMPLES][];
+		for (int i = 0; i < SAMPLES; i++) {
+			mSingleFrames[i] = simulator.nextFrame();
+			encoder.add(simulator.getTimestamp(), simulator.getRotations());
+			if (encoder.size() == batchSize) {
+				while (!encoder.isEmpty()) {
+					encoder.encode(simulator.getTimestamp(), buffer);
+					batchFrames.add(buffer.clone());
+					arrivals.add(simulator.getTimestamp());
+				}
+			}
+		}
+		mBatchFrames = batchFrames.toArray(new byte[batchFrames.size()][]);
+		mBatchArrivals = new long[arrivals.size()];
+		for (int i = 0; i < mBatchArrivals.length; i++) {
+			mBatchArrivals[i] = arrivals.get(i);
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void newPipeline() {
+		mPipeline = new SamplePipeline(new OdometerReconciler(), new KinematicsEngine(),
+				new SampleChannel(), null);
+		mIndex = 0;
+		mLapOffset = 0;
+	}
+
+	@Benchmark
+	public int singleFrames(Exchanges exchanges) {
+		int index = nextIndex(SAMPLES);
+		mPipeline.process(mLapOffset + START + index * (1000 / RATE), mSingleFrames[index]);
+		return count(exchanges);
+	}
+
+	@Benchmark
+	public int batchFrames(Exchanges exchanges) {
+		int index = nextIndex(mBatchFrames.length);
+		mPipeline.process(mLapOffset + mBatchArrivals[index], mBatchFrames[index]);
+		return count(exchanges);
+	}
+
+	/** Index of the next frame, starts the next lap after the last one. */
+	private int nextIndex(int frames) {
+		if (mIndex == frames) {
+			mIndex = 0;
+			mLapOffset += LAP;
+		}
+		return mIndex++;
+	}
+
+	private int count(Exchanges exchanges) {
+		int samples = mPipeline.getDecoder().getSampleCount();
+		exchanges.exchanges++;
+		exchanges.samples += samples;
+		return samples;
+	}
+}
@@ -0,0 +1,96 @@
+package de.egh.dynamodrivenodometer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of received frames: The former characteristicValue() + substring() + Long.valueOf()
+ * parsing compared with the FrameDecoder, for distance and message frames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecodingBenchmark {
+
+	/** Power of two, the frames are used round robin */
+	private static final int FRAMES = 1024;
+
+	private final FrameDecoder mDecoder = new FrameDecoder();
+	private final byte[][] mDistanceFrames = new byte[FRAMES][];
+	private final byte[][] mMessageFrames = new byte[FRAMES][];
+	private int mIndex;
+
+	@Setup
+	public void setUp() {
+		for (int i = 0; i < FRAMES; i++) {
+			mDistanceFrames[i] = frame("D" + (1000000L + i * 7L));
+			mMessageFrames[i] = frame("MBattery " + (i % 100) + "%");
+		}
+	}
+
+	/** Frame as sent by the RFduino, padded with 0x00. */
+	private static byte[] frame(String s) {
+		byte[] frame = new byte[FrameDecoder.FRAME_SIZE];
+		for (int i = 0; i < s.length(); i++) {
+			frame[i] = (byte) s.charAt(i);
+		}
+		return frame;
+	}
+
+	/** Former DeviceService.characteristicValue(): All bytes except 0x00 as String. */
+	private static String characteristicValue(byte[] data) {
+		final StringBuilder sb = new StringBuilder(data.length);
+		for (byte byteChar : data) {
+			if (byteChar != 0x00) {
+				sb.append((char) (byteChar & 0xFF));
+			}
+		}
+		return sb.toString();
+	}
+
+	@Benchmark
+	public long distanceLegacy() {
+		String s = characteristicValue(mDistanceFrames[mIndex++ & (FRAMES - 1)]);
+		if (s.charAt(0) == 'D') {
+			try {
+				return Long.valueOf(s.substring(1));
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	@Benchmark
+	public long distanceFrameDecoder() {
+		if (mDecoder.decode(mDistanceFrames[mIndex++ & (FRAMES - 1)]) == FrameDecoder.OK) {
+			return mDecoder.getValue();
+		}
+		return -1;
+	}
+
+	@Benchmark
+	public String messageLegacy() {
+		String s = characteristicValue(mMessageFrames[mIndex++ & (FRAMES - 1)]);
+		return s.charAt(0) == 'M' ? s.substring(1) : s;
+	}
+
+	@Benchmark
+	public String messageFrameDecoder() {
+		mDecoder.decode(mMessageFrames[mIndex++ & (FRAMES - 1)]);
+		return mDecoder.getMessage();
+	}
+}
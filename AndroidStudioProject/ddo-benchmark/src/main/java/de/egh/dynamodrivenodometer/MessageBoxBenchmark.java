@@ -0,0 +1,94 @@
+package de.egh.dynamodrivenodometer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MessageBox operations on a full box: A realistic size of 20 distinct device messages and the
+ * default capacity.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBoxBenchmark {
+
+	/** Number of messages and capacity of the box */
+	@Param({"20", "2000"})
+	int size;
+
+	private MessageBox mBox;
+	/** Texts in the box */
+	private String[] mTexts;
+	/** Texts not in the box, each add evicts the eldest message */
+	private String[] mNewTexts;
+	private String mSerialized;
+	private int mIndex;
+
+	@Setup
+	public void setUp() {
+		mBox = new MessageBox(null, size);
+		mTexts = new String[size];
+		mNewTexts = new String[size * 4];
+		for (int i = 0; i < size; i++) {
+			mTexts[i] = "Message " + i;
+			mBox.add(mTexts[i]);
+		}
+		for (int i = 0; i < mNewTexts.length; i++) {
+			mNewTexts[i] = "New message " + i;
+		}
+		mSerialized = mBox.asString();
+	}
+
+	/** Repeated message, moves to the newest position. */
+	@Benchmark
+	public MessageBox addExisting() {
+		mBox.add(mTexts[mIndex++ % size]);
+		return mBox;
+	}
+
+	/** Message not in the box, evicts the eldest. */
+	@Benchmark
+	public MessageBox addNew() {
+		mBox.add(mNewTexts[mIndex++ % mNewTexts.length]);
+		return mBox;
+	}
+
+	/** Sorting after each change, like the UI after every received message. */
+	@Benchmark
+	public List<MessageBox.Msg> addAndGetSorted() {
+		mBox.add(mTexts[mIndex++ % size]);
+		return mBox.getSorted();
+	}
+
+	/** Cached sorted view without changes, like the UI between messages. */
+	@Benchmark
+	public List<MessageBox.Msg> getSortedCached() {
+		return mBox.getSorted();
+	}
+
+	@Benchmark
+	public String asString() {
+		return mBox.asString();
+	}
+
+	/** Restoring the box from the preferences. */
+	@Benchmark
+	public MessageBox parse() {
+		return new MessageBox(mSerialized, size);
+	}
+}
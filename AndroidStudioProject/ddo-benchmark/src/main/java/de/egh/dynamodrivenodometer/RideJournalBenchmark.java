@@ -0,0 +1,63 @@
+package de.egh.dynamodrivenodometer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sustained append rate of the RideJournal, including the roll over to new segment files and the
+ * batched syncs. Every iteration starts with an empty journal in a temporary directory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RideJournalBenchmark {
+
+	private File mDirectory;
+	private RideJournal mJournal;
+	private long mTimestamp;
+
+	@Setup(Level.Iteration)
+	public void setUp() throws IOException {
+		mDirectory = File.createTempFile("journalbench", "");
+		if (!mDirectory.delete() || !mDirectory.mkdirs()) {
+			throw new IOException("Can't create " + mDirectory);
+		}
+		mJournal = new RideJournal(mDirectory);
+		mTimestamp = 0;
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException {
+		mJournal.close();
+		File[] files = mDirectory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		mDirectory.delete();
+	}
+
+	@Benchmark
+	public void append() throws IOException {
+		mTimestamp++;
+		mJournal.append(mTimestamp, mTimestamp * 2);
+	}
+}
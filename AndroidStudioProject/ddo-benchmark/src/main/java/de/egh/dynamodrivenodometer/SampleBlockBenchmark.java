@@ -0,0 +1,75 @@
+package de.egh.dynamodrivenodometer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decode speed per sample of a compressed sample block compared with the fixed-width records of
+ * the RideJournal. The size of the blocks is checked by SampleBlockTest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SampleBlockBenchmark {
+
+	private static final int SAMPLES = 1000000;
+
+	private ByteBuffer mRaw;
+	private byte[] mBlock;
+
+	/** Ride with 1 s samples, some timing jitter and 0 to 6 rotations per sample */
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		mRaw = ByteBuffer.allocate(SAMPLES * RideJournal.RECORD_SIZE);
+		SampleBlockWriter writer = new SampleBlockWriter(SAMPLES);
+
+		long timestamp = 1417000000000L;
+		long rotations = 0;
+		for (int i = 0; i < SAMPLES; i++) {
+			timestamp += 1000 + random.nextInt(21) - 10;
+			rotations += random.nextInt(7);
+			mRaw.putLong(timestamp).putLong(rotations);
+			writer.add(timestamp, rotations);
+		}
+		mBlock = writer.toByteArray();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public long decodeRaw() {
+		long sum = 0;
+		for (int i = 0; i < SAMPLES; i++) {
+			sum += mRaw.getLong(i * RideJournal.RECORD_SIZE + 8);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public long decodeBlock() throws IOException {
+		long sum = 0;
+		SampleBlockReader reader = new SampleBlockReader(mBlock);
+		while (reader.next()) {
+			sum += reader.getRotations();
+		}
+		return sum;
+	}
+}
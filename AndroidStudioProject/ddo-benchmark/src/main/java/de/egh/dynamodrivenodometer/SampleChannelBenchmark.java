@@ -0,0 +1,77 @@
+package de.egh.dynamodrivenodometer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivery of one sample by the SampleChannel compared with the former broadcast path. The
+ * broadcast path is modelled in process: An Intent with a Bundle of extras (map, copied payload,
+ * boxed values) handed over by a message queue, like the main Looper does. The system IPC of a
+ * real broadcast comes on top. Publisher and consumer run on the benchmark thread, the allocation
+ * per sample is reported by the GC profiler of the jmh task.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SampleChannelBenchmark {
+
+	private static final byte[] VALUE = "D1234567\0\0\0\0\0\0\0\0\0\0\0\0".getBytes();
+
+	private SampleChannel mChannel;
+	private SampleChannel.Consumer mConsumer;
+	private final ArrayDeque<Map<String, Object>> mQueue = new ArrayDeque<Map<String, Object>>();
+	private int mIndex;
+
+	@Setup
+	public void setUp() {
+		mChannel = new SampleChannel();
+		mConsumer = mChannel.subscribe(null);
+	}
+
+	@Benchmark
+	public double channel() {
+		int i = mIndex++;
+		mChannel.publishSample(i, i, i % 30);
+		double checksum = 0;
+		while (mConsumer.next()) {
+			checksum += mConsumer.getDistance() + mConsumer.getSpeed();
+		}
+		return checksum;
+	}
+
+	/** Former path: new Intent with extras per sample, delivered by a queue. */
+	@Benchmark
+	public double broadcastModel() {
+		int i = mIndex++;
+		Map<String, Object> intent = new HashMap<String, Object>();
+		intent.put("ACTION", "de.egh.dynamodrivenodometer.ACTION_VALUE_AVAILABLE");
+		intent.put("DATA", VALUE.clone());
+		intent.put("SPEED", (float) (i % 30));
+		intent.put("TIMESTAMP", (long) i);
+		mQueue.add(intent);
+
+		double checksum = 0;
+		Map<String, Object> received;
+		while ((received = mQueue.poll()) != null) {
+			checksum += ((byte[]) received.get("DATA")).length + (Float) received.get("SPEED")
+					+ (Long) received.get("TIMESTAMP");
+		}
+		return checksum;
+	}
+}
@@ -0,0 +1,65 @@
+package de.egh.dynamodrivenodometer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The path of every received value from the frame to the state seen by the UI: Decoding,
+ * reconciliation, kinematics, rollups and the SampleChannel with one consumer. The frames come
+ * from a RideSimulator at 1 kHz with messages, malformed frames and counter resets; its cost
+ * alone is measured by simulatorOnly(). The journal is measured by RideJournalBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SamplePathBenchmark {
+
+	private RideSimulator mSimulator;
+	private final byte[] mFrame = new byte[FrameDecoder.FRAME_SIZE];
+	private SamplePipeline mPipeline;
+	private SampleChannel.Consumer mConsumer;
+
+	@Setup
+	public void setUp() {
+		mSimulator = new RideSimulator(RideSimulator.PROFILE_STOP_AND_GO, RideSimulator.MAX_RATE, 1,
+				1420070400000L);
+		mSimulator.setMalformedRate(0.001);
+		mSimulator.setMessageInterval(60 * 1000L);
+		mSimulator.setResetInterval(20 * 60 * 1000L);
+
+		SampleChannel channel = new SampleChannel();
+		mConsumer = channel.subscribe(null);
+		mPipeline = new SamplePipeline(new OdometerReconciler(), new KinematicsEngine(), channel, null);
+		mPipeline.addSink(new RollupStore(TimeZone.getTimeZone("UTC")));
+	}
+
+	@Benchmark
+	public int simulatorOnly() {
+		return mSimulator.nextFrame(mFrame);
+	}
+
+	@Benchmark
+	public long decodeToState() {
+		mSimulator.nextFrame(mFrame);
+		mPipeline.process(mSimulator.getTimestamp(), mFrame);
+		long distance = 0;
+		while (mConsumer.next()) {
+			distance = mConsumer.getDistance();
+		}
+		return distance;
+	}
+}
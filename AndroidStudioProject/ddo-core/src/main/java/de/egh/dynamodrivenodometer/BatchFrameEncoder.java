@@ -0,0 +1,134 @@
+package de.egh.dynamodrivenodometer;
+
+/**
+ * Buffers distance samples like a device while the receiver sleeps and packs them into batch
+ * frames, see FrameDecoder.TYPE_BATCH. One radio exchange then carries as many samples as fit into
+ * the frame instead of one. The samples are kept in a ring buffer of fixed capacity; adding and
+ * encoding don't allocate.
+ */
+public class BatchFrameEncoder {
+
+	/** The number of samples of a frame is stored in one byte */
+	public static final int MAX_SAMPLES = 255;
+
+	private final long[] mTimestamps;
+	private final long[] mRotations;
+	/** Index of the oldest sample */
+	private int mHead;
+	private int mSize;
+	private long mDropped;
+
+	/**
+	 * @param capacity Number of buffered samples, the oldest are dropped beyond.
+	 */
+	public BatchFrameEncoder(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		}
+		mTimestamps = new long[capacity];
+		mRotations = new long[capacity];
+	}
+
+	/** Buffers a sample. If the buffer is full, the oldest sample is dropped. */
+	public void add(long timestamp, long rotations) {
+		if (mSize == mTimestamps.length) {
+			mHead = (mHead + 1) % mTimestamps.length;
+			mSize--;
+			mDropped++;
+		}
+		int index = (mHead + mSize) % mTimestamps.length;
+		mTimestamps[index] = timestamp;
+		mRotations[index] = rotations;
+		mSize++;
+	}
+
+	/**
+	 * Writes a batch frame with as many of the oldest samples as fit into the buffer and removes
+	 * them. Unused bytes are set to 0x00. A frame ends before a counter reset, so the next frame
+	 * starts with the new counter. Samples older than FrameDecoder.MAX_BATCH_AGE are dropped, the
+	 * receiver would reject them. Returns the length of the frame, 0 if there are no samples.
+	 *
+	 * @param now Time of sending, the first sample's age refers to it.
+	 */
+	public int encode(long now, byte[] buffer) {
+		int capacity = mTimestamps.length;
+		while (mSize > 0 && now - mTimestamps[mHead] > FrameDecoder.MAX_BATCH_AGE) {
+			mHead = (mHead + 1) % capacity;
+			mSize--;
+			mDropped++;
+		}
+		if (mSize == 0) {
+			return 0;
+		}
+		long timestamp = mTimestamps[mHead];
+		long rotations = mRotations[mHead];
+
+		buffer[0] = FrameDecoder.TYPE_BATCH;
+		int position = 2;
+		long age = Math.max(0, now - timestamp);
+		if (position + varintLength(age) + varintLength(rotations) > buffer.length) {
+			throw new IllegalArgumentException("Frame of " + buffer.length + " bytes too small");
+		}
+		position = writeVarint(buffer, position, age);
+		position = writeVarint(buffer, position, rotations);
+
+		int count = 1;
+		while (count < mSize && count < MAX_SAMPLES) {
+			int index = (mHead + count) % capacity;
+			long deltaRotations = mRotations[index] - rotations;
+			long deltaMillis = mTimestamps[index] - timestamp;
+			if (deltaRotations < 0 || deltaMillis < 0 || deltaMillis > age
+					|| position + varintLength(deltaRotations) + varintLength(deltaMillis) > buffer.length) {
+				break;
+			}
+			position = writeVarint(buffer, position, deltaRotations);
+			position = writeVarint(buffer, position, deltaMillis);
+			rotations = mRotations[index];
+			timestamp = mTimestamps[index];
+			age -= deltaMillis;
+			count++;
+		}
+		buffer[1] = (byte) count;
+		mHead = (mHead + count) % capacity;
+		mSize -= count;
+
+		for (int i = position; i < buffer.length; i++) {
+			buffer[i] = 0x00;
+		}
+		return position;
+	}
+
+	/** Number of buffered samples. */
+	public int size() {
+		return mSize;
+	}
+
+	public boolean isEmpty() {
+		return mSize == 0;
+	}
+
+	/** Number of samples dropped because the buffer was full or they were too old. */
+	public long getDroppedCount() {
+		return mDropped;
+	}
+
+	/** Writes an unsigned varint, 7 bits per byte with the lowest group first. */
+	static int writeVarint(byte[] buffer, int position, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return position;
+	}
+
+	/** Number of bytes of the unsigned varint. */
+	static int varintLength(long value) {
+		int length = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			length++;
+		}
+		return length;
+	}
+}
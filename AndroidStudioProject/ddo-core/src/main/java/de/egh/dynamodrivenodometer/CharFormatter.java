@@ -0,0 +1,84 @@
+package de.egh.dynamodrivenodometer;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Formats numbers and timestamps into reused char buffers, so rendering a value doesn't allocate.
+ * Every append method writes at the given position and returns the position after the last
+ * written char. Not thread safe.
+ */
+public class CharFormatter {
+
+	/** Length of a timestamp in the format "dd.MM HH:mm:ss" */
+	public static final int TIMESTAMP_LENGTH = 14;
+
+	/** Maximum length of a long value */
+	public static final int LONG_LENGTH = 20;
+
+	private final Calendar mCalendar;
+
+	public CharFormatter() {
+		this(TimeZone.getDefault());
+	}
+
+	public CharFormatter(TimeZone timeZone) {
+		mCalendar = Calendar.getInstance(timeZone);
+	}
+
+	/** Appends the decimal value. */
+	public static int appendLong(char[] buffer, int position, long value) {
+		if (value == Long.MIN_VALUE) {
+			String s = String.valueOf(value);
+			s.getChars(0, s.length(), buffer, position);
+			return position + s.length();
+		}
+		if (value < 0) {
+			buffer[position++] = '-';
+			value = -value;
+		}
+
+		int digits = 1;
+		for (long v = value / 10; v > 0; v /= 10) {
+			digits++;
+		}
+		int end = position + digits;
+		for (int i = end - 1; i >= position; i--) {
+			buffer[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+		return end;
+	}
+
+	/** Appends a value given in tenths with one decimal place, e.g. 123 as "12.3". */
+	public static int appendTenths(char[] buffer, int position, long tenths, char separator) {
+		if (tenths < 0) {
+			buffer[position++] = '-';
+			tenths = -tenths;
+		}
+		position = appendLong(buffer, position, tenths / 10);
+		buffer[position++] = separator;
+		buffer[position++] = (char) ('0' + tenths % 10);
+		return position;
+	}
+
+	private static int appendTwoDigits(char[] buffer, int position, int value) {
+		buffer[position] = (char) ('0' + value / 10);
+		buffer[position + 1] = (char) ('0' + value % 10);
+		return position + 2;
+	}
+
+	/** Appends the local time of the timestamp as "dd.MM HH:mm:ss". */
+	public int appendTimestamp(char[] buffer, int position, long timestamp) {
+		mCalendar.setTimeInMillis(timestamp);
+		position = appendTwoDigits(buffer, position, mCalendar.get(Calendar.DAY_OF_MONTH));
+		buffer[position++] = '.';
+		position = appendTwoDigits(buffer, position, mCalendar.get(Calendar.MONTH) + 1);
+		buffer[position++] = ' ';
+		position = appendTwoDigits(buffer, position, mCalendar.get(Calendar.HOUR_OF_DAY));
+		buffer[position++] = ':';
+		position = appendTwoDigits(buffer, position, mCalendar.get(Calendar.MINUTE));
+		buffer[position++] = ':';
+		return appendTwoDigits(buffer, position, mCalendar.get(Calendar.SECOND));
+	}
+}
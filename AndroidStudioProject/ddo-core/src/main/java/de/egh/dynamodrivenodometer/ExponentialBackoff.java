@@ -0,0 +1,44 @@
+package de.egh.dynamodrivenodometer;
+
+/**
+ * Delays for repeated attempts, e.g. device scans: Starting with the initial delay, every attempt
+ * doubles the delay up to the maximum. A success resets the delay.
+ */
+public class ExponentialBackoff {
+
+	private final long mInitialDelay;
+	private final long mMaxDelay;
+
+	/** Delay of the next attempt */
+	private long mDelay;
+	private int mAttempts;
+
+	public ExponentialBackoff(long initialDelay, long maxDelay) {
+		if (initialDelay <= 0 || maxDelay < initialDelay) {
+			throw new IllegalArgumentException("Invalid backoff configuration: " + initialDelay + "/"
+					+ maxDelay);
+		}
+		mInitialDelay = initialDelay;
+		mMaxDelay = maxDelay;
+		mDelay = initialDelay;
+	}
+
+	/** Returns the delay in milliseconds before the next attempt and counts the attempt. */
+	public long next() {
+		long delay = mDelay;
+		mDelay = Math.min(mDelay * 2, mMaxDelay);
+		mAttempts++;
+		return delay;
+	}
+
+	/** Starts again with the initial delay. */
+	public void reset() {
+		mDelay = mInitialDelay;
+		mAttempts = 0;
+	}
+
+	/** Number of attempts since the last reset. */
+	public int getAttempts() {
+		return mAttempts;
+	}
+}
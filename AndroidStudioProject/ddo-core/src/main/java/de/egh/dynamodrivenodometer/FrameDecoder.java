@@ -0,0 +1,409 @@
+package de.egh.dynamodrivenodometer;
+
+/**
+ * Decodes a raw frame from the RFduino RECEIVE characteristic in place. The first byte holds the
+ * frame type, the rest is the payload, optionally terminated or padded with 0x00. Decoding a
+ * distance frame doesn't allocate and never throws, malformed frames are reported by an error
+ * code. One instance is meant to be reused for every frame of a single thread.
+ * <p/>
+ * The distance samples of a frame are read one by one with nextSample(), so a batch frame is
+ * decoded while it is consumed.
+ */
+public class FrameDecoder {
+
+	/** Maximum size of a frame, the payload limit of a BLE notification of the RFduino */
+	public static final int FRAME_SIZE = 20;
+
+	/** Frame type: Distance value as number of wheel rotations in ASCII decimal */
+	public static final byte TYPE_DISTANCE = 'D';
+
+	/**
+	 * Frame type: Distance value with sequence number, "S&lt;sequence&gt;:&lt;rotations&gt;" in ASCII
+	 * decimal. The sequence number counts the distance frames of the device modulo
+	 * SequenceTracker.MODULUS, so the receiver can detect duplicates and lost frames. It starts at 0
+	 * with a restart or counter reset of the device.
+	 */
+	public static final byte TYPE_SEQUENCED_DISTANCE = 'S';
+
+	/**
+	 * Frame type: Several distance samples buffered by the device, binary. Number of samples (one
+	 * byte), age of the first sample at sending in ms, rotations of the first sample, then for every
+	 * further sample the rotations and milliseconds since the previous one. All numbers are
+	 * unsigned varints with 7 bits per byte, lowest group first. See BatchFrameEncoder.
+	 */
+	public static final byte TYPE_BATCH = 'B';
+
+	/** Frame type: Text message from the device */
+	public static final byte TYPE_MESSAGE = 'M';
+
+	/** Frame type: Dynamo voltage in millivolts in ASCII decimal, see TelemetryHandler */
+	public static final byte TYPE_VOLTAGE = 'V';
+
+	/**
+	 * Frame type: Temperature in tenths of a degree Celsius in ASCII decimal, optionally negative,
+	 * see TelemetryHandler
+	 */
+	public static final byte TYPE_TEMPERATURE = 'T';
+
+	/** Frame has been decoded successfully */
+	public static final int OK = 0;
+
+	/** Frame is NULL or has no type byte */
+	public static final int ERROR_EMPTY = 1;
+
+	/** Distance frame contains no digits or a non-digit character */
+	public static final int ERROR_NOT_A_NUMBER = 2;
+
+	/** Distance frame value doesn't fit into a long */
+	public static final int ERROR_OVERFLOW = 3;
+
+	/**
+	 * First byte is not a frame type the decoder parses itself. The payload is available for a
+	 * FrameHandler, see SamplePipeline.setHandler().
+	 */
+	public static final int ERROR_UNKNOWN_TYPE = 4;
+
+	/** Batch frame has no samples or ends within a sample */
+	public static final int ERROR_TRUNCATED = 5;
+
+	/** Oldest sample of a batch frame in ms, older ones can't be placed in time reliably */
+	public static final long MAX_BATCH_AGE = 24 * 60 * 60 * 1000L;
+
+	/** Varints have at most 64 bits */
+	private static final int MAX_VARINT_SHIFT = 63;
+
+	/** Last decoded frame, payload getters refer to this array. */
+	private byte[] mData;
+	private byte mType;
+	private int mError;
+	private long mValue;
+	private long mSequence = -1;
+	private int mPayloadOffset;
+	private int mPayloadLength;
+
+	/** Samples of the last frame, read by nextSample() */
+	private int mSampleCount;
+	private int mSampleIndex;
+	private int mSamplePosition;
+	private long mSampleValue;
+	private long mSampleAge;
+	/** Result of readVarint() */
+	private long mVarint;
+
+	/** Returns a short english description for an error code. */
+	public static String errorText(int error) {
+		switch (error) {
+			case OK:
+				return "OK";
+			case ERROR_EMPTY:
+				return "Invalid message";
+			case ERROR_NOT_A_NUMBER:
+				return "Not a number";
+			case ERROR_OVERFLOW:
+				return "Number too large";
+			case ERROR_UNKNOWN_TYPE:
+				return "Unknown value";
+			case ERROR_TRUNCATED:
+				return "Truncated batch";
+			default:
+				return "Error " + error;
+		}
+	}
+
+	/**
+	 * Decodes the given frame and returns the error code, OK for a valid frame. The array will not
+	 * be copied, so it must not be changed until the next call.
+	 */
+	public int decode(byte[] data) {
+		return decode(data, 0, data == null ? 0 : data.length);
+	}
+
+	/** Decodes the frame in data[offset] ... data[offset + length - 1]. */
+	public int decode(byte[] data, int offset, int length) {
+		mData = data;
+		mType = 0;
+		mValue = 0;
+		mSequence = -1;
+		mPayloadOffset = offset;
+		mPayloadLength = 0;
+		mSampleCount = 0;
+		mSampleIndex = -1;
+
+		if (data == null || length <= 0 || data[offset] == 0x00) {
+			return mError = ERROR_EMPTY;
+		}
+
+		mType = data[offset];
+		int limit = offset + length;
+		if (mType == TYPE_BATCH) {
+			// Binary, 0x00 is a valid byte
+			return mError = parseBatch(data, offset + 1, limit);
+		}
+
+		// Payload ends at the first 0x00 or at the end of the frame
+		int start = offset + 1;
+		int end = start;
+		while (end < limit && data[end] != 0x00) {
+			end++;
+		}
+		mPayloadOffset = start;
+		mPayloadLength = end - start;
+
+		switch (mType) {
+			case TYPE_DISTANCE:
+				return mError = single(parseLong(data, start, end));
+			case TYPE_SEQUENCED_DISTANCE:
+				return mError = single(parseSequenced(data, start, end));
+			case TYPE_MESSAGE:
+				return mError = OK;
+			default:
+				return mError = ERROR_UNKNOWN_TYPE;
+		}
+	}
+
+	/** A valid distance frame has one sample with the decoded value. */
+	private int single(int error) {
+		if (error == OK) {
+			mSampleCount = 1;
+			mSampleValue = mValue;
+			mSampleAge = 0;
+		}
+		return error;
+	}
+
+	/**
+	 * Validates a batch frame and prepares nextSample() for its first sample. mValue is the
+	 * counter of the last sample. Bytes after the last sample are ignored, e.g. padding. The ages
+	 * must be in [0, MAX_BATCH_AGE], so no sample lies in the future or before the epoch.
+	 */
+	private int parseBatch(byte[] data, int start, int limit) {
+		if (start >= limit || data[start] == 0) {
+			return ERROR_TRUNCATED;
+		}
+		int count = data[start] & 0xFF;
+		int position = readVarint(data, start + 1, limit);
+		if (position < 0) {
+			return -position;
+		}
+		long age = mVarint;
+		if (age < 0 || age > MAX_BATCH_AGE) {
+			return ERROR_OVERFLOW;
+		}
+		position = readVarint(data, position, limit);
+		if (position < 0) {
+			return -position;
+		}
+		long first = mVarint;
+		long value = first;
+		int firstDelta = position;
+		long elapsed = 0;
+		for (int i = 1; i < count; i++) {
+			position = readVarint(data, position, limit);
+			if (position < 0) {
+				return -position;
+			}
+			if (mVarint < 0 || value > Long.MAX_VALUE - mVarint) {
+				return ERROR_OVERFLOW;
+			}
+			value += mVarint;
+			position = readVarint(data, position, limit);
+			if (position < 0) {
+				return -position;
+			}
+			// Later samples must not be younger than the arrival
+			if (mVarint < 0 || mVarint > age - elapsed) {
+				return ERROR_OVERFLOW;
+			}
+			elapsed += mVarint;
+		}
+
+		mPayloadLength = position - start;
+		mValue = value;
+		mSampleCount = count;
+		mSamplePosition = firstDelta;
+		mSampleAge = age;
+		mSampleValue = first;
+		return OK;
+	}
+
+	/**
+	 * Reads an unsigned varint into mVarint. Returns the position after it, -ERROR_TRUNCATED if the
+	 * frame ends within the varint or -ERROR_OVERFLOW if it has more than 64 bits.
+	 */
+	private int readVarint(byte[] data, int position, int limit) {
+		long value = 0;
+		for (int shift = 0; ; shift += 7) {
+			if (position >= limit) {
+				return -ERROR_TRUNCATED;
+			}
+			if (shift > MAX_VARINT_SHIFT) {
+				return -ERROR_OVERFLOW;
+			}
+			byte b = data[position++];
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				mVarint = value;
+				return position;
+			}
+		}
+	}
+
+	/** Parses unsigned ASCII decimal digits into mValue. */
+	private int parseLong(byte[] data, int start, int end) {
+		if (start == end) {
+			return ERROR_NOT_A_NUMBER;
+		}
+
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = data[i] - '0';
+			if (digit < 0 || digit > 9) {
+				return ERROR_NOT_A_NUMBER;
+			}
+			if (value > (Long.MAX_VALUE - digit) / 10) {
+				return ERROR_OVERFLOW;
+			}
+			value = value * 10 + digit;
+		}
+		mValue = value;
+		return OK;
+	}
+
+	/** Parses "sequence:rotations" into mSequence and mValue. */
+	private int parseSequenced(byte[] data, int start, int end) {
+		int separator = start;
+		while (separator < end && data[separator] != ':') {
+			separator++;
+		}
+		if (separator == end) {
+			return ERROR_NOT_A_NUMBER;
+		}
+		int error = parseLong(data, start, separator);
+		if (error != OK) {
+			return error;
+		}
+		if (mValue >= SequenceTracker.MODULUS) {
+			return ERROR_OVERFLOW;
+		}
+		long sequence = mValue;
+		mValue = 0;
+		error = parseLong(data, separator + 1, end);
+		if (error == OK) {
+			mSequence = sequence;
+		}
+		return error;
+	}
+
+	/** Error code of the last decoded frame. */
+	public int getError() {
+		return mError;
+	}
+
+	/** Type byte of the last decoded frame or 0, if the frame was empty. */
+	public byte getType() {
+		return mType;
+	}
+
+	/**
+	 * Distance value of the last decoded frame, the last sample of a batch. Only valid if
+	 * hasDistance().
+	 */
+	public long getValue() {
+		return mValue;
+	}
+
+	/** Returns TRUE, if the last frame was a valid distance frame with or without sequence. */
+	public boolean hasDistance() {
+		return mError == OK
+				&& (mType == TYPE_DISTANCE || mType == TYPE_SEQUENCED_DISTANCE || mType == TYPE_BATCH);
+	}
+
+	/** Number of distance samples of the last frame, 1 for a single distance frame. */
+	public int getSampleCount() {
+		return mSampleCount;
+	}
+
+	/**
+	 * Moves to the next distance sample of the last frame, oldest first. Returns FALSE, if there is
+	 * none left. Doesn't allocate.
+	 */
+	public boolean nextSample() {
+		if (mSampleIndex + 1 >= mSampleCount) {
+			return false;
+		}
+		mSampleIndex++;
+		if (mSampleIndex > 0) {
+			// Validated by parseBatch()
+			mSamplePosition = readVarint(mData, mSamplePosition, mData.length);
+			mSampleValue += mVarint;
+			mSamplePosition = readVarint(mData, mSamplePosition, mData.length);
+			mSampleAge -= mVarint;
+		}
+		return true;
+	}
+
+	/** Distance value of the actual sample, see nextSample(). */
+	public long getSampleValue() {
+		return mSampleValue;
+	}
+
+	/**
+	 * Milliseconds between the actual sample and the arrival of the frame, 0 for a single distance
+	 * frame. The sample has been taken at the arrival time minus the age.
+	 */
+	public long getSampleAge() {
+		return mSampleAge;
+	}
+
+	/** Sequence number of the last frame, -1 if it has none. */
+	public long getSequence() {
+		return mSequence;
+	}
+
+	/** Last decoded array, see getPayloadOffset(). */
+	public byte[] getData() {
+		return mData;
+	}
+
+	/** Position of the payload within the last decoded array. */
+	public int getPayloadOffset() {
+		return mPayloadOffset;
+	}
+
+	/** Number of payload bytes without type byte and 0x00 padding. */
+	public int getPayloadLength() {
+		return mPayloadLength;
+	}
+
+	/**
+	 * Returns the payload of the last frame as String. This allocates, so use it only for messages
+	 * and error reporting.
+	 */
+	public String getPayloadAsString() {
+		if (mData == null || mPayloadLength == 0) {
+			return "";
+		}
+		char[] chars = new char[mPayloadLength];
+		for (int i = 0; i < mPayloadLength; i++) {
+			chars[i] = (char) (mData[mPayloadOffset + i] & 0xFF);
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Returns the text for the MessageBox for the last frame or NULL, if there is nothing to
+	 * report. Allocates only for messages and malformed frames.
+	 */
+	public String getMessage() {
+		switch (mError) {
+			case OK:
+				return mType == TYPE_MESSAGE ? getPayloadAsString() : null;
+			case ERROR_EMPTY:
+				return errorText(mError);
+			case ERROR_UNKNOWN_TYPE:
+				return errorText(mError) + ":" + (char) (mType & 0xFF) + getPayloadAsString();
+			default:
+				return errorText(mError) + " >>>" + getPayloadAsString() + "<<<";
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package de.egh.dynamodrivenodometer;
+
+/**
+ * Handles the frames of one type, see SamplePipeline.setHandler(). Called on the processing thread
+ * after the FrameDecoder has read the frame: A handler for a type the decoder doesn't know parses
+ * the payload itself, see FrameDecoder.getPayloadOffset(). Must not allocate for valid frames.
+ */
+public interface FrameHandler {
+
+	/**
+	 * Handles the last frame of the decoder, received at the timestamp. Returns OK or an error
+	 * code of the FrameDecoder.
+	 */
+	int handle(long timestamp, FrameDecoder decoder);
+}
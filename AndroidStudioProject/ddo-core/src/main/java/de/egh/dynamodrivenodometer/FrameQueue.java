@@ -0,0 +1,201 @@
+package de.egh.dynamodrivenodometer;
+
+/**
+ * Bounded queue handing raw frames from the threads receiving them, e.g. GATT binder threads, to
+ * the one thread processing them. Frames are copied into preallocated slots; poll() swaps the slot
+ * buffer with the buffer of the caller, so neither side allocates for regular frames. When the
+ * queue is full, the policy decides: POLICY_DROP_OLDEST overwrites the oldest frame,
+ * POLICY_BLOCK lets the receiving thread wait for space up to a timeout and then drops the new
+ * frame. Both are counted as backpressure.
+ */
+public class FrameQueue {
+
+	/** When full, the oldest frame is overwritten. Receivers never wait. */
+	public static final int POLICY_DROP_OLDEST = 0;
+
+	/** When full, receivers wait for space up to the block timeout. */
+	public static final int POLICY_BLOCK = 1;
+
+	/** Default number of frames */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/** Default wait for space with POLICY_BLOCK in milliseconds */
+	public static final long DEFAULT_BLOCK_TIMEOUT = 50;
+
+	/**
+	 * Frame taken from the queue. The buffer is exchanged with every poll(), so don't keep a
+	 * reference to it.
+	 */
+	public static class Frame {
+		private byte[] mData;
+		private int mLength;
+		private long mNanos;
+
+		public Frame() {
+			this(FrameDecoder.FRAME_SIZE);
+		}
+
+		public Frame(int size) {
+			mData = new byte[size];
+		}
+
+		/** Buffer of the frame, see getLength(). */
+		public byte[] getData() {
+			return mData;
+		}
+
+		public int getLength() {
+			return mLength;
+		}
+
+		/** Monotonic time of arrival in nanoseconds, as given to offer(). */
+		public long getNanos() {
+			return mNanos;
+		}
+	}
+
+	private final int mPolicy;
+	private final long mBlockTimeout;
+	private final Frame[] mSlots;
+
+	/** Number of the next frame to take and to add, the difference is the depth */
+	private long mHead;
+	private long mTail;
+
+	private long mOfferedCount;
+	private long mDroppedCount;
+	private long mBlockedCount;
+	private int mMaxDepth;
+
+	public FrameQueue() {
+		this(DEFAULT_CAPACITY, POLICY_DROP_OLDEST, DEFAULT_BLOCK_TIMEOUT);
+	}
+
+	/**
+	 * @param policy       POLICY_DROP_OLDEST or POLICY_BLOCK.
+	 * @param blockTimeout Maximum wait for space with POLICY_BLOCK in milliseconds.
+	 */
+	public FrameQueue(int capacity, int policy, long blockTimeout) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Invalid capacity " + capacity);
+		}
+		if (policy != POLICY_DROP_OLDEST && policy != POLICY_BLOCK) {
+			throw new IllegalArgumentException("Invalid policy " + policy);
+		}
+		mPolicy = policy;
+		mBlockTimeout = blockTimeout;
+		mSlots = new Frame[capacity];
+		for (int i = 0; i < capacity; i++) {
+			mSlots[i] = new Frame();
+		}
+	}
+
+	/**
+	 * Copies the frame into the queue. Returns FALSE, if a frame was dropped for it: the oldest
+	 * one, or with POLICY_BLOCK this one after the timeout.
+	 *
+	 * @param nanos Monotonic time of arrival in nanoseconds.
+	 * @param frame Raw value, NULL is queued as empty frame.
+	 */
+	public synchronized boolean offer(long nanos, byte[] frame) throws InterruptedException {
+		mOfferedCount++;
+		boolean dropped = false;
+		if (mTail - mHead == mSlots.length) {
+			if (mPolicy == POLICY_BLOCK) {
+				mBlockedCount++;
+				long end = System.currentTimeMillis() + mBlockTimeout;
+				long wait = mBlockTimeout;
+				while (mTail - mHead == mSlots.length && wait > 0) {
+					wait(wait);
+					wait = end - System.currentTimeMillis();
+				}
+				if (mTail - mHead == mSlots.length) {
+					mDroppedCount++;
+					return false;
+				}
+			} else {
+				mHead++;
+				mDroppedCount++;
+				dropped = true;
+			}
+		}
+
+		Frame slot = mSlots[(int) (mTail % mSlots.length)];
+		int length = frame == null ? 0 : frame.length;
+		if (length > slot.mData.length) {
+			slot.mData = new byte[length];
+		}
+		if (length > 0) {
+			System.arraycopy(frame, 0, slot.mData, 0, length);
+		}
+		slot.mLength = length;
+		slot.mNanos = nanos;
+		mTail++;
+		mMaxDepth = Math.max(mMaxDepth, (int) (mTail - mHead));
+		return !dropped;
+	}
+
+	/**
+	 * Takes the oldest frame into the given frame, exchanging their buffers. Returns FALSE, if the
+	 * queue is empty.
+	 */
+	public synchronized boolean poll(Frame frame) {
+		if (mHead == mTail) {
+			return false;
+		}
+		Frame slot = mSlots[(int) (mHead % mSlots.length)];
+		byte[] data = frame.mData;
+		frame.mData = slot.mData;
+		frame.mLength = slot.mLength;
+		frame.mNanos = slot.mNanos;
+		slot.mData = data;
+		mHead++;
+		if (mPolicy == POLICY_BLOCK) {
+			notifyAll();
+		}
+		return true;
+	}
+
+	/** Forgets all queued frames, e.g. on disconnect. */
+	public synchronized void clear() {
+		mHead = mTail;
+		notifyAll();
+	}
+
+	public synchronized int getDepth() {
+		return (int) (mTail - mHead);
+	}
+
+	public synchronized int getMaxDepth() {
+		return mMaxDepth;
+	}
+
+	public int getCapacity() {
+		return mSlots.length;
+	}
+
+	public int getPolicy() {
+		return mPolicy;
+	}
+
+	/** Number of frames offered. */
+	public synchronized long getOfferedCount() {
+		return mOfferedCount;
+	}
+
+	/** Number of frames lost by backpressure. */
+	public synchronized long getDroppedCount() {
+		return mDroppedCount;
+	}
+
+	/** Number of offers that had to wait for space. */
+	public synchronized long getBlockedCount() {
+		return mBlockedCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "depth=" + getDepth() + " max=" + mMaxDepth + "/" + mSlots.length + " offered="
+				+ mOfferedCount + " dropped=" + mDroppedCount + " blocked=" + mBlockedCount;
+	}
+}
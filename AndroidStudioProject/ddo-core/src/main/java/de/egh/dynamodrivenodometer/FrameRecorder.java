@@ -0,0 +1,153 @@
+package de.egh.dynamodrivenodometer;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Captures raw frames as received from the device, so a ride can be replayed by FrameReplayer,
+ * e.g. to reproduce a field bug or as regression test. Frames are stored with the monotonic time
+ * of arrival as delta in microseconds. Capture layout:
+ * <pre>
+ * 'F' 'C' version startTime:8 bytes
+ * (timeDelta:varint length:varint frame:length bytes) *
+ * </pre>
+ * startTime is the wall clock time of the start in milliseconds, big-endian. At 10 frames per
+ * second, a frame takes 4 bytes above its length. The capture is flushed every FLUSH_FRAMES
+ * frames, so a crash loses at most these; the torn last frame is ignored by the replayer.
+ */
+public class FrameRecorder implements Closeable {
+
+	/** First bytes of every capture */
+	static final byte MAGIC_1 = 'F';
+	static final byte MAGIC_2 = 'C';
+
+	/** Actual format version */
+	static final byte VERSION = 1;
+
+	/** Bytes of the header */
+	static final int HEADER_SIZE = 11;
+
+	/** Frames between two flushes */
+	public static final int FLUSH_FRAMES = 64;
+
+	/** File name extension of captures */
+	public static final String SUFFIX = ".ddoc";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final OutputStream mOut;
+	/** Monotonic time of the start in nanoseconds, time deltas refer to it */
+	private final long mStartNanos;
+	private long mLastMicros;
+
+	/** Encoded time and length of the actual frame */
+	private final byte[] mRecordHeader = new byte[20];
+
+	private long mFrameCount;
+	private long mByteCount;
+	private int mUnflushed;
+
+	/** Starts a capture into the file, an existing file will be replaced. */
+	public FrameRecorder(File file) throws IOException {
+		this(new BufferedOutputStream(new FileOutputStream(file)), System.currentTimeMillis(),
+				System.nanoTime());
+	}
+
+	/**
+	 * Starts a capture. The stream should be buffered.
+	 *
+	 * @param startTime  Wall clock time of the start in milliseconds, used as timestamp of the
+	 *                   replayed frames.
+	 * @param startNanos Monotonic time of the start in nanoseconds, the time base of record().
+	 */
+	public FrameRecorder(OutputStream out, long startTime, long startNanos) throws IOException {
+		mOut = out;
+		mStartNanos = startNanos;
+
+		byte[] header = new byte[HEADER_SIZE];
+		header[0] = MAGIC_1;
+		header[1] = MAGIC_2;
+		header[2] = VERSION;
+		for (int i = 0; i < 8; i++) {
+			header[3 + i] = (byte) (startTime >>> (56 - 8 * i));
+		}
+		mOut.write(header);
+		mByteCount = HEADER_SIZE;
+	}
+
+	/**
+	 * Appends a frame. Times before the last frame are stored as time of the last frame.
+	 *
+	 * @param nanos Monotonic time of arrival in nanoseconds, e.g. System.nanoTime().
+	 * @param frame Raw value, NULL is stored as empty frame.
+	 */
+	public void record(long nanos, byte[] frame) throws IOException {
+		record(nanos, frame, frame == null ? 0 : frame.length);
+	}
+
+	/** Appends the frame in data[0] ... data[length - 1], e.g. in a reused buffer. */
+	public synchronized void record(long nanos, byte[] frame, int length) throws IOException {
+		long micros = Math.max(mLastMicros, (nanos - mStartNanos) / 1000);
+
+		int headerLength = putVarint(mRecordHeader, 0, micros - mLastMicros);
+		headerLength = putVarint(mRecordHeader, headerLength, length);
+		mOut.write(mRecordHeader, 0, headerLength);
+		if (length > 0) {
+			mOut.write(frame, 0, length);
+		}
+		mLastMicros = micros;
+		mFrameCount++;
+		mByteCount += headerLength + length;
+
+		if (++mUnflushed >= FLUSH_FRAMES) {
+			flush();
+		}
+	}
+
+	private static int putVarint(byte[] buffer, int position, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return position;
+	}
+
+	/** Writes the buffered frames. */
+	public synchronized void flush() throws IOException {
+		mOut.flush();
+		mUnflushed = 0;
+	}
+
+	/** Number of recorded frames. */
+	public synchronized long getFrameCount() {
+		return mFrameCount;
+	}
+
+	/** Size of the capture in bytes. */
+	public synchronized long getByteCount() {
+		return mByteCount;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		mOut.close();
+	}
+
+	/** Frame as hex for logging, e.g. "4401020a", "null" for NULL. */
+	public static String toHex(byte[] frame) {
+		if (frame == null) {
+			return "null";
+		}
+		char[] chars = new char[frame.length * 2];
+		for (int i = 0; i < frame.length; i++) {
+			chars[2 * i] = HEX[(frame[i] >> 4) & 0x0F];
+			chars[2 * i + 1] = HEX[frame[i] & 0x0F];
+		}
+		return new String(chars);
+	}
+}
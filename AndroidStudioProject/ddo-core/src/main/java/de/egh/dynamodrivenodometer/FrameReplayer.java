@@ -0,0 +1,213 @@
+package de.egh.dynamodrivenodometer;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a capture of FrameRecorder and feeds its frames through a SamplePipeline, in real time,
+ * accelerated or as fast as possible. Replayed frames get the wall clock time of the capture as
+ * timestamp, so the pipeline computes the same distances and speeds as during the ride. Reading
+ * reuses one frame buffer. A torn frame at the end of the capture, e.g. after a crash, ends the
+ * replay, see isTruncated().
+ */
+public class FrameReplayer implements Closeable {
+
+	/** Speed for replay() without pauses between the frames */
+	public static final double AS_FAST_AS_POSSIBLE = 0;
+
+	/** Speed for replay() in the timing of the capture */
+	public static final double REAL_TIME = 1;
+
+	/** Frames above are considered as corrupt capture */
+	public static final int MAX_FRAME_LENGTH = 4096;
+
+	private final InputStream mIn;
+	private final long mStartTime;
+
+	private byte[] mFrame = new byte[FrameDecoder.FRAME_SIZE];
+	private int mLength;
+	private long mMicros;
+	private boolean mTruncated;
+
+	private long mFrameCount;
+	private long mInvalidCount;
+
+	public FrameReplayer(File file) throws IOException {
+		this(new BufferedInputStream(new FileInputStream(file)));
+	}
+
+	/**
+	 * Reads the header of the capture. The stream should be buffered.
+	 *
+	 * @throws IOException If the stream is no capture.
+	 */
+	public FrameReplayer(InputStream in) throws IOException {
+		mIn = in;
+		byte[] header = new byte[FrameRecorder.HEADER_SIZE];
+		int read = 0;
+		while (read < header.length) {
+			int n = in.read(header, read, header.length - read);
+			if (n < 0) {
+				throw new IOException("Not a frame capture: Too short");
+			}
+			read += n;
+		}
+		if (header[0] != FrameRecorder.MAGIC_1 || header[1] != FrameRecorder.MAGIC_2) {
+			throw new IOException("Not a frame capture");
+		}
+		if (header[2] != FrameRecorder.VERSION) {
+			throw new IOException("Unsupported frame capture version " + header[2]);
+		}
+		long startTime = 0;
+		for (int i = 3; i < FrameRecorder.HEADER_SIZE; i++) {
+			startTime = (startTime << 8) | (header[i] & 0xFF);
+		}
+		mStartTime = startTime;
+	}
+
+	/**
+	 * Moves to the next frame. Returns FALSE at the end of the capture or at a torn frame.
+	 */
+	public boolean next() throws IOException {
+		if (mTruncated) {
+			return false;
+		}
+		int first = mIn.read();
+		if (first < 0) {
+			return false;
+		}
+		try {
+			long delta = readVarint(first);
+			long length = readVarint(mIn.read());
+			if (length > MAX_FRAME_LENGTH) {
+				throw new IOException("Corrupt frame capture: Frame length " + length);
+			}
+			if (length > mFrame.length) {
+				mFrame = new byte[(int) length];
+			}
+			int read = 0;
+			while (read < length) {
+				int n = mIn.read(mFrame, read, (int) length - read);
+				if (n < 0) {
+					throw new EOFException();
+				}
+				read += n;
+			}
+			mLength = (int) length;
+			mMicros += delta;
+			mFrameCount++;
+			return true;
+		} catch (EOFException e) {
+			mTruncated = true;
+			return false;
+		}
+	}
+
+	/** Decodes a varint, starting with the already read first byte. */
+	private long readVarint(int b) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (b < 0) {
+				throw new EOFException();
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+			b = mIn.read();
+		}
+		throw new IOException("Corrupt frame capture: Malformed varint");
+	}
+
+	/**
+	 * Feeds all remaining frames into the pipeline and returns their number.
+	 *
+	 * @param speed Factor of the capture timing, e.g. REAL_TIME or 10 for ten times faster, or
+	 *              AS_FAST_AS_POSSIBLE.
+	 */
+	public long replay(SamplePipeline pipeline, double speed) throws IOException, InterruptedException {
+		if (speed < 0) {
+			throw new IllegalArgumentException("Invalid speed " + speed);
+		}
+		long frames = 0;
+		long startNanos = nanoTime();
+		long startMicros = -1;
+		while (next()) {
+			if (speed > 0) {
+				if (startMicros < 0) {
+					startMicros = mMicros;
+				}
+				long due = startNanos + (long) ((mMicros - startMicros) * 1000 / speed);
+				long wait = due - nanoTime();
+				if (wait > 0) {
+					sleep(wait);
+				}
+			}
+			int result = pipeline.process(getTimestamp(), mFrame, 0, mLength);
+			if (result != FrameDecoder.OK && result != SamplePipeline.RESULT_DUPLICATE) {
+				mInvalidCount++;
+			}
+			frames++;
+		}
+		return frames;
+	}
+
+	/** Monotonic clock of the replay timing, replaceable for tests. */
+	long nanoTime() {
+		return System.nanoTime();
+	}
+
+	/** Waits for the next frame of a timed replay. */
+	void sleep(long nanos) throws InterruptedException {
+		Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+	}
+
+	/** Wall clock time of the start of the capture in milliseconds. */
+	public long getStartTime() {
+		return mStartTime;
+	}
+
+	/** Wall clock time of the actual frame in milliseconds. */
+	public long getTimestamp() {
+		return mStartTime + mMicros / 1000;
+	}
+
+	/** Monotonic time of the actual frame since the start of the capture in microseconds. */
+	public long getElapsedMicros() {
+		return mMicros;
+	}
+
+	/** Buffer of the actual frame, valid until the next call of next(). See getLength(). */
+	public byte[] getFrame() {
+		return mFrame;
+	}
+
+	public int getLength() {
+		return mLength;
+	}
+
+	/** TRUE, if the capture ended with a torn frame. */
+	public boolean isTruncated() {
+		return mTruncated;
+	}
+
+	/** Number of frames read. */
+	public long getFrameCount() {
+		return mFrameCount;
+	}
+
+	/** Number of frames replayed, that the decoder rejected. */
+	public long getInvalidCount() {
+		return mInvalidCount;
+	}
+
+	@Override
+	public void close() throws IOException {
+		mIn.close();
+	}
+}
@@ -0,0 +1,491 @@
+package de.egh.dynamodrivenodometer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs GATT operations strictly one after another, because the GATT stack accepts only one
+ * outstanding operation. The next operation is started from the callback of the previous one. An
+ * operation without callback times out and is retried, as is an operation the stack refuses to
+ * start. Each started attempt gets a generation number. As the stack reports in the order of the
+ * starts, the late callback of a timed out attempt is told apart from the callback of its retry
+ * and ignored. Thread safe: Operations can be enqueued from any thread, the GATT callbacks are
+ * forwarded from the binder threads.
+ *
+ * @param <C> Characteristic type
+ * @param <D> Descriptor type
+ */
+public class GattOperationQueue<C, D> {
+
+	/**
+	 * Starts the operations on the GATT connection. Returns FALSE, if the operation couldn't be
+	 * initiated. The result must be reported with the matching on...() method of the queue.
+	 */
+	public interface Gatt<C, D> {
+		boolean readCharacteristic(C characteristic);
+
+		boolean writeCharacteristic(C characteristic, byte[] value);
+
+		boolean writeDescriptor(D descriptor, byte[] value);
+
+		boolean discoverServices();
+	}
+
+	/**
+	 * Time source and timer for timeouts and retries.
+	 */
+	public interface Timer {
+		/** Monotonic time in milliseconds */
+		long now();
+
+		void postDelayed(Runnable runnable, long delay);
+
+		void remove(Runnable runnable);
+	}
+
+	/**
+	 * Result of an operation, called without holding the lock of the queue.
+	 */
+	public interface Callback {
+		void onComplete(Operation operation);
+	}
+
+	public static final int TYPE_READ = 0;
+	public static final int TYPE_WRITE = 1;
+	public static final int TYPE_WRITE_DESCRIPTOR = 2;
+	public static final int TYPE_DISCOVER_SERVICES = 3;
+	private static final int TYPES = 4;
+
+	/** Still queued or running */
+	public static final int STATUS_PENDING = 0;
+	public static final int STATUS_SUCCESS = 1;
+	/** The GATT callback reported an error status, see Operation.getGattStatus() */
+	public static final int STATUS_FAILED = 2;
+	/** No callback within the timeout, also after all retries */
+	public static final int STATUS_TIMEOUT = 3;
+	/** The stack refused to start the operation, also after all retries */
+	public static final int STATUS_REJECTED = 4;
+	/** Removed by clear() */
+	public static final int STATUS_CANCELLED = 5;
+
+	/** Status of a successful GATT callback, as BluetoothGatt.GATT_SUCCESS */
+	public static final int GATT_SUCCESS = 0;
+
+	public static final long DEFAULT_TIMEOUT = 2000;
+	/** Service discovery takes longer than reads and writes */
+	public static final long DEFAULT_DISCOVERY_TIMEOUT = 10000;
+	public static final int DEFAULT_MAX_RETRIES = 2;
+	/** Pause before starting a rejected operation again */
+	public static final long RETRY_DELAY = 100;
+
+	/**
+	 * A queued GATT operation.
+	 */
+	public static class Operation {
+		private final int mType;
+		private final Object mTarget;
+		private final byte[] mValue;
+		private final Callback mCallback;
+		private final long mEnqueuedAt;
+		private int mStatus = STATUS_PENDING;
+		private int mGattStatus = -1;
+		private byte[] mResult;
+		private int mAttempts;
+		/** Generation of the last started attempt */
+		private long mGeneration;
+		private long mCompletedAt;
+
+		private Operation(int type, Object target, byte[] value, Callback callback, long enqueuedAt) {
+			mType = type;
+			mTarget = target;
+			mValue = value;
+			mCallback = callback;
+			mEnqueuedAt = enqueuedAt;
+		}
+
+		/** One of the TYPE constants. */
+		public int getType() {
+			return mType;
+		}
+
+		/** Characteristic or descriptor, NULL for service discovery. */
+		public Object getTarget() {
+			return mTarget;
+		}
+
+		/** One of the STATUS constants. */
+		public int getStatus() {
+			return mStatus;
+		}
+
+		/** Status of the GATT callback, -1 without callback. */
+		public int getGattStatus() {
+			return mGattStatus;
+		}
+
+		/** Value read, NULL for other operations or without success. */
+		public byte[] getResult() {
+			return mResult;
+		}
+
+		/** Number of starts, 1 without retry. */
+		public int getAttempts() {
+			return mAttempts;
+		}
+
+		/** Milliseconds from enqueueing to completion, including the wait in the queue. */
+		public long getLatency() {
+			return mCompletedAt - mEnqueuedAt;
+		}
+	}
+
+	private final Gatt<C, D> mGatt;
+	private final Timer mTimer;
+	private final long[] mTimeouts = new long[TYPES];
+	private int mMaxRetries = DEFAULT_MAX_RETRIES;
+
+	private final ArrayDeque<Operation> mQueue = new ArrayDeque<Operation>();
+	/** Started operation waiting for its callback, NULL if idle */
+	private Operation mCurrent;
+	/** Generation of the next started attempt */
+	private long mNextGeneration = 1;
+	/**
+	 * Timed out attempt, whose callback may still arrive, NULL if none. Only the last one is kept,
+	 * older ones are regarded as lost.
+	 */
+	private Operation mStale;
+	/** Generation of the attempt running when the callback of the stale attempt arrived */
+	private long mStaleAnsweredIn;
+
+	// Metrics
+	private int mMaxDepth;
+	private long mCompletedCount;
+	private long mFailedCount;
+	private long mTimeoutCount;
+	private long mRetryCount;
+	private long mStrayCount;
+	private long mTotalLatency;
+	private long mMaxLatency;
+	private long mLastLatency;
+
+	private final Runnable mRunnableTimeout = new Runnable() {
+		@Override
+		public void run() {
+			onTimeout();
+		}
+	};
+
+	private final Runnable mRunnableRetry = new Runnable() {
+		@Override
+		public void run() {
+			Operation operation;
+			synchronized (GattOperationQueue.this) {
+				operation = mCurrent;
+			}
+			if (operation != null) {
+				start(operation);
+			}
+		}
+	};
+
+	public GattOperationQueue(Gatt<C, D> gatt, Timer timer) {
+		mGatt = gatt;
+		mTimer = timer;
+		mTimeouts[TYPE_READ] = DEFAULT_TIMEOUT;
+		mTimeouts[TYPE_WRITE] = DEFAULT_TIMEOUT;
+		mTimeouts[TYPE_WRITE_DESCRIPTOR] = DEFAULT_TIMEOUT;
+		mTimeouts[TYPE_DISCOVER_SERVICES] = DEFAULT_DISCOVERY_TIMEOUT;
+	}
+
+	/** Sets the time to wait for the callback of an operation type. */
+	public synchronized void setTimeout(int type, long timeout) {
+		mTimeouts[type] = timeout;
+	}
+
+	/** Sets how often a timed out or rejected operation is started again. */
+	public synchronized void setMaxRetries(int maxRetries) {
+		mMaxRetries = maxRetries;
+	}
+
+	/** Enqueues a characteristic read. The callback may be NULL. */
+	public Operation read(C characteristic, Callback callback) {
+		return enqueue(TYPE_READ, characteristic, null, callback);
+	}
+
+	public Operation write(C characteristic, byte[] value, Callback callback) {
+		return enqueue(TYPE_WRITE, characteristic, value, callback);
+	}
+
+	public Operation writeDescriptor(D descriptor, byte[] value, Callback callback) {
+		return enqueue(TYPE_WRITE_DESCRIPTOR, descriptor, value, callback);
+	}
+
+	public Operation discoverServices(Callback callback) {
+		return enqueue(TYPE_DISCOVER_SERVICES, null, null, callback);
+	}
+
+	private Operation enqueue(int type, Object target, byte[] value, Callback callback) {
+		Operation operation;
+		synchronized (this) {
+			operation = new Operation(type, target, value, callback, mTimer.now());
+			mQueue.add(operation);
+			mMaxDepth = Math.max(mMaxDepth, getDepth());
+		}
+		next();
+		return operation;
+	}
+
+	/** Starts the next operation, if idle. */
+	private void next() {
+		Operation operation;
+		synchronized (this) {
+			if (mCurrent != null || mQueue.isEmpty()) {
+				return;
+			}
+			operation = mQueue.poll();
+			mCurrent = operation;
+		}
+		start(operation);
+	}
+
+	/**
+	 * Starts the current operation. The GATT is called without the lock, it may report the result
+	 * before returning.
+	 */
+	private void start(Operation operation) {
+		synchronized (this) {
+			if (mCurrent != operation) {
+				return;
+			}
+			operation.mAttempts++;
+			operation.mGeneration = mNextGeneration++;
+			mTimer.postDelayed(mRunnableTimeout, mTimeouts[operation.mType]);
+		}
+
+		if (startGatt(operation)) {
+			return;
+		}
+
+		synchronized (this) {
+			if (mCurrent != operation) {
+				return;
+			}
+			mTimer.remove(mRunnableTimeout);
+			if (operation.mAttempts <= mMaxRetries) {
+				mRetryCount++;
+				mTimer.postDelayed(mRunnableRetry, RETRY_DELAY);
+				return;
+			}
+			mCurrent = null;
+		}
+		complete(operation, STATUS_REJECTED, -1, null);
+	}
+
+	@SuppressWarnings("unchecked")
+	private boolean startGatt(Operation operation) {
+		switch (operation.mType) {
+			case TYPE_READ:
+				return mGatt.readCharacteristic((C) operation.mTarget);
+			case TYPE_WRITE:
+				return mGatt.writeCharacteristic((C) operation.mTarget, operation.mValue);
+			case TYPE_WRITE_DESCRIPTOR:
+				return mGatt.writeDescriptor((D) operation.mTarget, operation.mValue);
+			default:
+				return mGatt.discoverServices();
+		}
+	}
+
+	private void onTimeout() {
+		Operation operation;
+		boolean retry;
+		synchronized (this) {
+			operation = mCurrent;
+			if (operation == null) {
+				return;
+			}
+			mTimeoutCount++;
+			// If a callback was taken for the late one of the stale attempt, it may have been the
+			// one of this attempt instead. Not expecting another callback keeps a lost callback
+			// from shifting the attribution of all following ones.
+			mStale = mStaleAnsweredIn == operation.mGeneration ? null : operation;
+			retry = operation.mAttempts <= mMaxRetries;
+			if (retry) {
+				mRetryCount++;
+			} else {
+				mCurrent = null;
+			}
+		}
+
+		if (retry) {
+			start(operation);
+		} else {
+			complete(operation, STATUS_TIMEOUT, -1, null);
+		}
+	}
+
+	/** Forward of BluetoothGattCallback.onCharacteristicRead(). */
+	public void onCharacteristicRead(C characteristic, int gattStatus, byte[] value) {
+		onResult(TYPE_READ, characteristic, gattStatus, value);
+	}
+
+	/** Forward of BluetoothGattCallback.onCharacteristicWrite(). */
+	public void onCharacteristicWrite(C characteristic, int gattStatus) {
+		onResult(TYPE_WRITE, characteristic, gattStatus, null);
+	}
+
+	/** Forward of BluetoothGattCallback.onDescriptorWrite(). */
+	public void onDescriptorWrite(D descriptor, int gattStatus) {
+		onResult(TYPE_WRITE_DESCRIPTOR, descriptor, gattStatus, null);
+	}
+
+	/** Forward of BluetoothGattCallback.onServicesDiscovered(). */
+	public void onServicesDiscovered(int gattStatus) {
+		onResult(TYPE_DISCOVER_SERVICES, null, gattStatus, null);
+	}
+
+	/**
+	 * Completes the current operation, if the callback belongs to it. The first callback matching
+	 * a timed out attempt is its late one and ignored, as are callbacks of operations completed by
+	 * timeout.
+	 */
+	private void onResult(int type, Object target, int gattStatus, byte[] value) {
+		Operation operation;
+		synchronized (this) {
+			if (mStale != null && matches(mStale, type, target)) {
+				mStale = null;
+				mStaleAnsweredIn = mCurrent != null ? mCurrent.mGeneration : 0;
+				mStrayCount++;
+				return;
+			}
+			operation = mCurrent;
+			if (operation == null || !matches(operation, type, target)) {
+				mStrayCount++;
+				return;
+			}
+			mCurrent = null;
+			mTimer.remove(mRunnableTimeout);
+			mTimer.remove(mRunnableRetry);
+		}
+
+		boolean success = gattStatus == GATT_SUCCESS;
+		complete(operation, success ? STATUS_SUCCESS : STATUS_FAILED, gattStatus,
+				success && type == TYPE_READ ? value : null);
+	}
+
+	private static boolean matches(Operation operation, int type, Object target) {
+		return operation.mType == type && (target == null || target.equals(operation.mTarget));
+	}
+
+	/**
+	 * Records the result of an operation, that is no longer current, calls its callback and starts
+	 * the next operation.
+	 */
+	private void complete(Operation operation, int status, int gattStatus, byte[] result) {
+		synchronized (this) {
+			operation.mStatus = status;
+			operation.mGattStatus = gattStatus;
+			operation.mResult = result;
+			operation.mCompletedAt = mTimer.now();
+
+			long latency = operation.getLatency();
+			mCompletedCount++;
+			if (status != STATUS_SUCCESS) {
+				mFailedCount++;
+			}
+			mTotalLatency += latency;
+			mMaxLatency = Math.max(mMaxLatency, latency);
+			mLastLatency = latency;
+		}
+
+		if (operation.mCallback != null) {
+			operation.mCallback.onComplete(operation);
+		}
+		next();
+	}
+
+	/**
+	 * Cancels the running and all queued operations, e.g. on disconnect. The callbacks are called
+	 * with STATUS_CANCELLED. A late GATT callback of the running operation is ignored.
+	 */
+	public void clear() {
+		List<Operation> cancelled = new ArrayList<Operation>();
+		synchronized (this) {
+			mTimer.remove(mRunnableTimeout);
+			mTimer.remove(mRunnableRetry);
+			mStale = null;
+			if (mCurrent != null) {
+				cancelled.add(mCurrent);
+				mCurrent = null;
+			}
+			cancelled.addAll(mQueue);
+			mQueue.clear();
+
+			long now = mTimer.now();
+			for (Operation operation : cancelled) {
+				operation.mStatus = STATUS_CANCELLED;
+				operation.mCompletedAt = now;
+			}
+		}
+
+		for (Operation operation : cancelled) {
+			if (operation.mCallback != null) {
+				operation.mCallback.onComplete(operation);
+			}
+		}
+	}
+
+	/** Number of queued operations including the running one. */
+	public synchronized int getDepth() {
+		return mQueue.size() + (mCurrent != null ? 1 : 0);
+	}
+
+	/** Highest depth so far. */
+	public synchronized int getMaxDepth() {
+		return mMaxDepth;
+	}
+
+	/** Number of completed operations, successful or not, without cancelled ones. */
+	public synchronized long getCompletedCount() {
+		return mCompletedCount;
+	}
+
+	/** Number of operations completed without success. */
+	public synchronized long getFailedCount() {
+		return mFailedCount;
+	}
+
+	/** Number of timeouts, also those followed by a successful retry. */
+	public synchronized long getTimeoutCount() {
+		return mTimeoutCount;
+	}
+
+	public synchronized long getRetryCount() {
+		return mRetryCount;
+	}
+
+	/** Number of callbacks not matching the running operation, including late ones. */
+	public synchronized long getStrayCount() {
+		return mStrayCount;
+	}
+
+	/** Latency of the last completed operation in milliseconds. */
+	public synchronized long getLastLatency() {
+		return mLastLatency;
+	}
+
+	public synchronized long getMaxLatency() {
+		return mMaxLatency;
+	}
+
+	public synchronized long getMeanLatency() {
+		return mCompletedCount == 0 ? 0 : mTotalLatency / mCompletedCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "depth " + getDepth() + " (max " + mMaxDepth + "), completed " + mCompletedCount
+				+ ", failed " + mFailedCount + ", timeouts " + mTimeoutCount + ", retries " + mRetryCount
+				+ ", latency mean " + getMeanLatency() + " max " + mMaxLatency + " ms";
+	}
+}
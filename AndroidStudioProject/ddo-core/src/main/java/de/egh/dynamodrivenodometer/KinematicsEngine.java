@@ -0,0 +1,227 @@
+package de.egh.dynamodrivenodometer;
+
+/**
+ * Calculates speed, smoothed speed, acceleration and the moving state from the wheel rotation
+ * counter. The counter only changes with whole rotations, so the instantaneous speed is measured
+ * between two counter changes. While the counter stands still, the speed is limited to one
+ * rotation since the last change, so it falls towards 0. The smoothed speed comes from an
+ * exponential moving average or a Kalman filter. The acceleration is the slope of the smoothed
+ * speed over a window of recent samples, kept in primitive ring buffers. Adding a sample doesn't
+ * allocate. Speeds are in meters per second, times in milliseconds.
+ */
+public class KinematicsEngine {
+
+	/** Smoothing by exponential moving average */
+	public static final int FILTER_EMA = 0;
+
+	/** Smoothing by a one-dimensional Kalman filter */
+	public static final int FILTER_KALMAN = 1;
+
+	/** Default wheel circumference in meters, 28 inch wheel */
+	public static final double DEFAULT_WHEEL_CIRCUMFERENCE = 2.105;
+
+	/** Default number of samples for the acceleration */
+	public static final int DEFAULT_WINDOW = 8;
+
+	/** Default time without rotation until the bike is stopped */
+	public static final long DEFAULT_STOP_TIMEOUT = 3000;
+
+	/** Default EMA weight of a new sample */
+	public static final double DEFAULT_EMA_ALPHA = 0.3;
+
+	private final double mWheelCircumference;
+	private final long mStopTimeout;
+
+	private int mFilter = FILTER_EMA;
+	private double mEmaAlpha = DEFAULT_EMA_ALPHA;
+	/** Kalman process noise per second and measurement noise, both as variance of m/s */
+	private double mProcessNoise;
+	private double mMeasurementNoise;
+	/** Kalman error variance of the smoothed speed */
+	private double mErrorVariance;
+
+	/** Ring buffers of the recent samples, mHead is the next position to write */
+	private final long[] mTimestamps;
+	private final double[] mSmoothedSpeeds;
+	private int mHead;
+	private int mSize;
+
+	/** Counter of the last sample */
+	private long mLastRotations;
+	/** Time and counter of the last counter change, mLastChangeAt < 0 if there was none */
+	private long mLastChangeAt = -1;
+	private long mLastChangeRotations;
+
+	private double mSpeed;
+	private double mSmoothedSpeed;
+	private double mAcceleration;
+	private boolean mMoving;
+	private long mSampleCount;
+
+	public KinematicsEngine() {
+		this(DEFAULT_WHEEL_CIRCUMFERENCE, DEFAULT_WINDOW, DEFAULT_STOP_TIMEOUT);
+	}
+
+	public KinematicsEngine(double wheelCircumference, int window, long stopTimeout) {
+		if (wheelCircumference <= 0 || window < 2 || stopTimeout <= 0) {
+			throw new IllegalArgumentException("Invalid kinematics configuration: "
+					+ wheelCircumference + "/" + window + "/" + stopTimeout);
+		}
+		mWheelCircumference = wheelCircumference;
+		mStopTimeout = stopTimeout;
+		mTimestamps = new long[window];
+		mSmoothedSpeeds = new double[window];
+	}
+
+	/** Smoothes with an exponential moving average, alpha is the weight of a new sample. */
+	public void useEma(double alpha) {
+		if (alpha <= 0 || alpha > 1) {
+			throw new IllegalArgumentException("Alpha must be in (0, 1]: " + alpha);
+		}
+		mFilter = FILTER_EMA;
+		mEmaAlpha = alpha;
+	}
+
+	/**
+	 * Smoothes with a Kalman filter for a constant speed model.
+	 *
+	 * @param processNoise     Expected change of the speed per second as variance.
+	 * @param measurementNoise Variance of the instantaneous speed.
+	 */
+	public void useKalman(double processNoise, double measurementNoise) {
+		if (processNoise <= 0 || measurementNoise <= 0) {
+			throw new IllegalArgumentException("Noise must be positive: " + processNoise + "/"
+					+ measurementNoise);
+		}
+		mFilter = FILTER_KALMAN;
+		mProcessNoise = processNoise;
+		mMeasurementNoise = measurementNoise;
+		mErrorVariance = measurementNoise;
+	}
+
+	/** Forgets all samples, e.g. after a reconnect. */
+	public void reset() {
+		mHead = 0;
+		mSize = 0;
+		mLastChangeAt = -1;
+		mSpeed = 0;
+		mSmoothedSpeed = 0;
+		mAcceleration = 0;
+		mMoving = false;
+		mErrorVariance = mMeasurementNoise;
+	}
+
+	/** Position of the i-th newest sample in the ring buffers, 0 is the newest. */
+	private int index(int i) {
+		int length = mTimestamps.length;
+		return (mHead - 1 - i + length) % length;
+	}
+
+	/**
+	 * Adds a sample. Samples with a timestamp not after the last one are ignored, a decreasing
+	 * counter restarts the calculation.
+	 */
+	public void add(long timestamp, long rotations) {
+		if (mSize > 0) {
+			long elapsed = timestamp - mTimestamps[index(0)];
+			if (elapsed <= 0) {
+				return;
+			}
+			if (rotations < mLastRotations) {
+				reset();
+			} else {
+				measure(timestamp, rotations);
+				smooth(elapsed);
+			}
+		}
+		if (mSize == 0) {
+			// First sample: Only the reference for the next change
+			mLastChangeAt = -1;
+			mLastChangeRotations = rotations;
+		}
+
+		mLastRotations = rotations;
+		mTimestamps[mHead] = timestamp;
+		mSmoothedSpeeds[mHead] = mSmoothedSpeed;
+		mHead = (mHead + 1) % mTimestamps.length;
+		if (mSize < mTimestamps.length) {
+			mSize++;
+		}
+		mSampleCount++;
+
+		updateState(timestamp);
+	}
+
+	/** Updates the instantaneous speed. */
+	private void measure(long timestamp, long rotations) {
+		if (rotations != mLastChangeRotations) {
+			// Speed since the previous change. The first change has no reference time.
+			if (mLastChangeAt >= 0) {
+				mSpeed = (rotations - mLastChangeRotations) * mWheelCircumference * 1000
+						/ (timestamp - mLastChangeAt);
+			}
+			mLastChangeAt = timestamp;
+			mLastChangeRotations = rotations;
+		} else if (mLastChangeAt >= 0) {
+			// Less than one rotation since the last change
+			double limit = mWheelCircumference * 1000 / (timestamp - mLastChangeAt);
+			if (mSpeed > limit) {
+				mSpeed = limit;
+			}
+		}
+	}
+
+	private void smooth(long elapsed) {
+		if (mFilter == FILTER_KALMAN) {
+			mErrorVariance += mProcessNoise * elapsed / 1000;
+			double gain = mErrorVariance / (mErrorVariance + mMeasurementNoise);
+			mSmoothedSpeed += gain * (mSpeed - mSmoothedSpeed);
+			mErrorVariance *= 1 - gain;
+		} else {
+			mSmoothedSpeed += mEmaAlpha * (mSpeed - mSmoothedSpeed);
+		}
+	}
+
+	/** Updates the acceleration and the moving state after a new sample. */
+	private void updateState(long timestamp) {
+		if (mSize >= 2) {
+			int newest = index(0);
+			int oldest = index(mSize - 1);
+			long span = mTimestamps[newest] - mTimestamps[oldest];
+			mAcceleration = span > 0
+					? (mSmoothedSpeeds[newest] - mSmoothedSpeeds[oldest]) * 1000 / span : 0;
+		}
+
+		mMoving = mLastChangeAt >= 0 && timestamp - mLastChangeAt < mStopTimeout;
+		if (!mMoving) {
+			mSpeed = 0;
+			mSmoothedSpeed = 0;
+			mAcceleration = 0;
+		}
+	}
+
+	/** Speed between the last two counter changes in m/s. */
+	public double getSpeed() {
+		return mSpeed;
+	}
+
+	/** Filtered speed in m/s. */
+	public double getSmoothedSpeed() {
+		return mSmoothedSpeed;
+	}
+
+	/** Change of the smoothed speed over the window in m/s^2. */
+	public double getAcceleration() {
+		return mAcceleration;
+	}
+
+	/** FALSE, if the wheel didn't turn for the stop timeout. */
+	public boolean isMoving() {
+		return mMoving;
+	}
+
+	/** Number of added samples. */
+	public long getSampleCount() {
+		return mSampleCount;
+	}
+}
@@ -0,0 +1,244 @@
+package de.egh.dynamodrivenodometer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Manage message in a closed buffer with a limited number of different messages. If a same
+ * message will be added a second time, just the timestamp will be updated. When the buffer is
+ * full, the least recently added message will be removed. Adding, updating and removing take
+ * constant time, the sorted view will be cached until the next change. Created by
+ * ChristianSchulzendor on 10.08.2014.
+ */
+public class MessageBox {
+
+	/** Number of different messages that can be stored by default. */
+	public static final int DEFAULT_CAPACITY = 2000;
+
+	private static final Comparator<Msg> TIMESTAMP_ASCENDING = new Comparator<Msg>() {
+		@Override
+		public int compare(Msg msg1, Msg msg2) {
+			if (msg1.timestamp == msg2.timestamp)
+				return 0;
+			return (msg1.timestamp < msg2.timestamp) ? -1 : 1;
+		}
+	};
+
+	public class Msg {
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public String getText() {
+			return text;
+		}
+
+		private long timestamp;
+		private String text;
+
+		private Msg(String text, long timestamp) {
+			this.text = text;
+			this.timestamp = timestamp;
+		}
+
+	}
+
+	// Number of different messages that can be stored.
+	private final int mCapacity;
+
+	// Messages by text, access ordered: The eldest entry is the least recently added message.
+	private final LinkedHashMap<String, Msg> map;
+
+	// Cached result of getSorted(), NULL after every change.
+	private List<Msg> mSorted;
+
+	// Initialize from Shared Preferences
+	public MessageBox(String asOneString) {
+		this(asOneString, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Initialize from a String created by asString(). Illegal entries will be ignored.
+	 */
+	public MessageBox(String asOneString, int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		}
+		mCapacity = capacity;
+		map = new LinkedHashMap<String, Msg>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Msg> eldest) {
+				return size() > mCapacity;
+			}
+		};
+
+		if (asOneString != null && asOneString.length() > 0) {
+			parse(asOneString);
+		}
+	}
+
+	/**
+	 * Reads entries in the format "timestamp length text\n" in one pass. Entries of the former
+	 * format "timestamp text\n" will be accepted as well.
+	 */
+	private void parse(String s) {
+		List<Msg> list = new ArrayList<Msg>();
+		boolean ascending = true;
+
+		int pos = 0;
+		int length = s.length();
+		while (pos < length) {
+			int lineEnd = s.indexOf('\n', pos);
+			if (lineEnd < 0) {
+				lineEnd = length;
+			}
+
+			// Timestamp
+			int end = digitsEnd(s, pos, lineEnd);
+			if (end == pos || end == lineEnd || s.charAt(end) != ' ') {
+				// Illegal messages will be ignored, e.g. empty message text
+				pos = lineEnd + 1;
+				continue;
+			}
+			long timestamp = parseLong(s, pos, end);
+
+			// Text length, if missing or not followed by the line end, it's the former format
+			String text;
+			int lenEnd = digitsEnd(s, end + 1, lineEnd);
+			long textEnd = lenEnd + 1 + parseLong(s, end + 1, lenEnd);
+			if (lenEnd > end + 1 && lenEnd < length && s.charAt(lenEnd) == ' '
+					&& (textEnd == length || textEnd < length && s.charAt((int) textEnd) == '\n')) {
+				text = s.substring(lenEnd + 1, (int) textEnd);
+				pos = (int) textEnd + 1;
+			} else {
+				text = s.substring(end + 1, lineEnd).trim();
+				pos = lineEnd + 1;
+			}
+
+			if (text.length() > 0) {
+				Msg msg = new Msg(text, timestamp);
+				if (!list.isEmpty() && list.get(list.size() - 1).timestamp > timestamp) {
+					ascending = false;
+				}
+				list.add(msg);
+			}
+		}
+
+		// The former format was stored newest first
+		if (!ascending) {
+			Collections.sort(list, TIMESTAMP_ASCENDING);
+		}
+		for (Msg msg : list) {
+			add(msg.text, msg.timestamp);
+		}
+	}
+
+	/** Returns the position after the decimal digits starting at from. */
+	private static int digitsEnd(String s, int from, int to) {
+		int i = from;
+		// Limits the number to 18 digits, so it can't overflow
+		while (i < to && i - from < 18 && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+			i++;
+		}
+		return i;
+	}
+
+	private static long parseLong(String s, int from, int to) {
+		long l = 0;
+		for (int i = from; i < to; i++) {
+			l = l * 10 + (s.charAt(i) - '0');
+		}
+		return l;
+	}
+
+	/**
+	 * Writes all message into a String, oldest first. The string can be used to initilize the Box
+	 * from a simple persistance.
+	 */
+	public String asString() {
+		StringBuilder sb = new StringBuilder(map.size() * 48);
+
+		for (Msg msg : map.values()) {
+			sb.append(msg.timestamp).append(' ')
+					.append(msg.text.length()).append(' ')
+					.append(msg.text).append('\n');
+		}
+
+		return sb.toString();
+	}
+
+	/** Returns all Messages as list, sorted by timestamp descending. The list must not be changed. */
+	public List<Msg> getSorted() {
+		if (mSorted == null) {
+			List<Msg> list = new ArrayList<Msg>(map.values());
+			Collections.sort(list, Collections.reverseOrder(TIMESTAMP_ASCENDING));
+			mSorted = Collections.unmodifiableList(list);
+		}
+		return mSorted;
+	}
+
+	/**
+	 * Returns the newest messages, sorted like getSorted(). Selects them in one pass without
+	 * sorting all messages.
+	 */
+	public List<Msg> getNewest(int count) {
+		Msg[] newest = new Msg[Math.min(count, map.size())];
+		int size = 0;
+		for (Msg msg : map.values()) {
+			if (size == newest.length && (size == 0 || msg.timestamp <= newest[size - 1].timestamp)) {
+				continue;
+			}
+			// Insertion sort, the oldest one drops out if full
+			int i = size < newest.length ? size++ : size - 1;
+			while (i > 0 && newest[i - 1].timestamp < msg.timestamp) {
+				newest[i] = newest[i - 1];
+				i--;
+			}
+			newest[i] = msg;
+		}
+		return Arrays.asList(newest);
+	}
+
+	/** Returns the number of stored messages. */
+	public int size() {
+		return map.size();
+	}
+
+	/** Returns the maximum number of stored messages. */
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * Method for testing, use add(text) instead. Creates a message for a timestamp and add this to
+	 * the log. If the log is full, the least recently added message will be deleted.
+	 */
+	void add(String text, long timestamp) {
+		mSorted = null;
+
+		// Lookup for the same message and just update timestamp. The lookup moves the message to
+		// the end of the eviction order.
+		Msg msg = map.get(text);
+		if (msg != null) {
+			msg.timestamp = timestamp;
+			return;
+		}
+
+		// Now new message can be added, the eldest one will be removed if the box is full
+		map.put(text, new Msg(text, timestamp));
+	}
+
+	/**
+	 * Creates a message with timestamp and add this to the log. If the log is full, the least
+	 * recently added message will be deleted.
+	 */
+	public void add(String text) {
+		if (text != null && text.length() > 0)
+			add(text, System.currentTimeMillis());
+	}
+}
@@ -0,0 +1,289 @@
+package de.egh.dynamodrivenodometer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Named counters and latency histograms of the sample path. Metrics are created once at setup;
+ * recording is lock-free and doesn't allocate, so it can be done on every frame. Reading is done
+ * with snapshot() or dump(), e.g. for a debug view.
+ */
+public class MetricsRegistry {
+
+	/**
+	 * Monotonic counter.
+	 */
+	public static class Counter {
+		private final String mName;
+		private final AtomicLong mValue = new AtomicLong();
+
+		private Counter(String name) {
+			mName = name;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public void increment() {
+			mValue.incrementAndGet();
+		}
+
+		public void add(long delta) {
+			mValue.addAndGet(delta);
+		}
+
+		public long get() {
+			return mValue.get();
+		}
+	}
+
+	/**
+	 * Histogram with log-linear buckets in fixed memory: Values below SUB_BUCKETS have a bucket of
+	 * their own, above every power of two is divided into SUB_BUCKETS linear buckets. So the
+	 * relative error is below 1/SUB_BUCKETS over the whole range. Larger values than resolved go into
+	 * the last bucket. The unit is up to the caller, e.g. nanoseconds.
+	 */
+	public static class Histogram {
+		/** Linear buckets per power of two, as bits */
+		public static final int SUB_BITS = 4;
+		public static final int SUB_BUCKETS = 1 << SUB_BITS;
+		/** Values below 2^(MAX_BITS + 1) are resolved */
+		public static final int MAX_BITS = 40;
+		/** Direct buckets and linear buckets of the powers of two from SUB_BITS to MAX_BITS */
+		public static final int BUCKETS = (MAX_BITS - SUB_BITS + 2) * SUB_BUCKETS;
+
+		private final String mName;
+		private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong mSum = new AtomicLong();
+		private final AtomicLong mMax = new AtomicLong();
+
+		private Histogram(String name) {
+			mName = name;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		/** Records a value, negative values are recorded as 0. */
+		public void record(long value) {
+			if (value < 0) {
+				value = 0;
+			}
+			mBuckets.incrementAndGet(bucketOf(value));
+			mSum.addAndGet(value);
+			long max = mMax.get();
+			while (value > max && !mMax.compareAndSet(max, value)) {
+				max = mMax.get();
+			}
+		}
+
+		/** Index of the bucket of a value. */
+		static int bucketOf(long value) {
+			if (value < SUB_BUCKETS) {
+				return (int) value;
+			}
+			int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+			if (shift > MAX_BITS - SUB_BITS) {
+				return BUCKETS - 1;
+			}
+			return (int) (shift * SUB_BUCKETS + (value >>> shift));
+		}
+
+		/** Highest value of a bucket. */
+		static long upperBound(int bucket) {
+			if (bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+			int shift = bucket / SUB_BUCKETS - 1;
+			long mantissa = bucket % SUB_BUCKETS + SUB_BUCKETS;
+			return ((mantissa + 1) << shift) - 1;
+		}
+
+		/** Copies the actual state. Concurrent recording may be partially included. */
+		public HistogramSnapshot snapshot() {
+			long[] buckets = new long[BUCKETS];
+			long count = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets[i] = mBuckets.get(i);
+				count += buckets[i];
+			}
+			return new HistogramSnapshot(mName, buckets, count, mSum.get(), mMax.get());
+		}
+	}
+
+	/**
+	 * Immutable copy of a histogram.
+	 */
+	public static class HistogramSnapshot {
+		private final String mName;
+		private final long[] mBuckets;
+		private final long mCount;
+		private final long mSum;
+		private final long mMax;
+
+		private HistogramSnapshot(String name, long[] buckets, long count, long sum, long max) {
+			mName = name;
+			mBuckets = buckets;
+			mCount = count;
+			mSum = sum;
+			mMax = max;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public long getCount() {
+			return mCount;
+		}
+
+		public long getMax() {
+			return mMax;
+		}
+
+		public long getMean() {
+			return mCount == 0 ? 0 : mSum / mCount;
+		}
+
+		/**
+		 * Returns the value below or at which the fraction of the values lies, e.g. 0.99, as upper
+		 * bound of its bucket, but not above the maximum.
+		 */
+		public long getPercentile(double fraction) {
+			if (mCount == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(fraction * mCount));
+			long seen = 0;
+			for (int i = 0; i < mBuckets.length; i++) {
+				seen += mBuckets[i];
+				if (seen >= rank) {
+					return Math.min(Histogram.upperBound(i), mMax);
+				}
+			}
+			return mMax;
+		}
+
+		@Override
+		public String toString() {
+			return mName + " n=" + mCount + " mean=" + getMean() + " p50=" + getPercentile(0.5)
+					+ " p90=" + getPercentile(0.9) + " p99=" + getPercentile(0.99) + " max=" + mMax;
+		}
+	}
+
+	/**
+	 * Immutable copy of all metrics, in the order of creation.
+	 */
+	public static class Snapshot {
+		private final long mTimestamp;
+		private final Map<String, Long> mCounters;
+		private final List<HistogramSnapshot> mHistograms;
+
+		private Snapshot(long timestamp, Map<String, Long> counters, List<HistogramSnapshot> histograms) {
+			mTimestamp = timestamp;
+			mCounters = Collections.unmodifiableMap(counters);
+			mHistograms = Collections.unmodifiableList(histograms);
+		}
+
+		/** Time of the snapshot in milliseconds. */
+		public long getTimestamp() {
+			return mTimestamp;
+		}
+
+		/** Value of a counter, 0 if it doesn't exist. */
+		public long getCounter(String name) {
+			Long value = mCounters.get(name);
+			return value != null ? value : 0;
+		}
+
+		public Map<String, Long> getCounters() {
+			return mCounters;
+		}
+
+		/** Histogram with the name, NULL if it doesn't exist. */
+		public HistogramSnapshot getHistogram(String name) {
+			for (HistogramSnapshot histogram : mHistograms) {
+				if (histogram.getName().equals(name)) {
+					return histogram;
+				}
+			}
+			return null;
+		}
+
+		public List<HistogramSnapshot> getHistograms() {
+			return mHistograms;
+		}
+
+		/** Compact text, one metric per line. */
+		@Override
+		public String toString() {
+			StringBuilder text = new StringBuilder();
+			for (Map.Entry<String, Long> counter : mCounters.entrySet()) {
+				text.append(counter.getKey()).append(' ').append(counter.getValue()).append('\n');
+			}
+			for (HistogramSnapshot histogram : mHistograms) {
+				text.append(histogram).append('\n');
+			}
+			return text.toString();
+		}
+	}
+
+	/** Replaced on every creation, so reading needs no lock */
+	private volatile Counter[] mCounters = new Counter[0];
+	private volatile Histogram[] mHistograms = new Histogram[0];
+
+	/** Returns the counter with the name, creates it if needed. Call at setup, not per sample. */
+	public synchronized Counter counter(String name) {
+		for (Counter counter : mCounters) {
+			if (counter.getName().equals(name)) {
+				return counter;
+			}
+		}
+		Counter counter = new Counter(name);
+		Counter[] counters = new Counter[mCounters.length + 1];
+		System.arraycopy(mCounters, 0, counters, 0, mCounters.length);
+		counters[mCounters.length] = counter;
+		mCounters = counters;
+		return counter;
+	}
+
+	/** Returns the histogram with the name, creates it if needed. Call at setup, not per sample. */
+	public synchronized Histogram histogram(String name) {
+		for (Histogram histogram : mHistograms) {
+			if (histogram.getName().equals(name)) {
+				return histogram;
+			}
+		}
+		Histogram histogram = new Histogram(name);
+		Histogram[] histograms = new Histogram[mHistograms.length + 1];
+		System.arraycopy(mHistograms, 0, histograms, 0, mHistograms.length);
+		histograms[mHistograms.length] = histogram;
+		mHistograms = histograms;
+		return histogram;
+	}
+
+	/** Copies all metrics. */
+	public Snapshot snapshot() {
+		Map<String, Long> counters = new LinkedHashMap<String, Long>();
+		for (Counter counter : mCounters) {
+			counters.put(counter.getName(), counter.get());
+		}
+		List<HistogramSnapshot> histograms = new ArrayList<HistogramSnapshot>();
+		for (Histogram histogram : mHistograms) {
+			histograms.add(histogram.snapshot());
+		}
+		return new Snapshot(System.currentTimeMillis(), counters, histograms);
+	}
+
+	/** Compact text of all metrics, one per line. */
+	public String dump() {
+		return snapshot().toString();
+	}
+}
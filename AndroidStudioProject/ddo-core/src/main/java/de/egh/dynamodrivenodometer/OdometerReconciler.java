@@ -0,0 +1,176 @@
+package de.egh.dynamodrivenodometer;
+
+/**
+ * Turns the raw rotation counter of the device into a monotonic lifetime total. The lifetime is the
+ * raw counter plus a base offset, which has to be persisted by the caller. Every sample will be
+ * checked against the last accepted one: A delta is plausible, if it could be reached at the
+ * maximum rotation rate within the elapsed time. Implausible samples are classified as
+ * <ul>
+ * <li>wrap: The counter overflowed its modulus, the base grows by the modulus.</li>
+ * <li>reset: The device restarted counting from 0, the base grows by the last raw value.</li>
+ * <li>jump: Any other value. A single outlier will be dropped. If the following samples continue
+ * consistently from the new value, the base will be moved, so the lifetime continues without
+ * the jump.</li>
+ * </ul>
+ * Each sample takes constant time.
+ */
+public class OdometerReconciler {
+
+	/** Default counter modulus, the device counts with 32 bit unsigned */
+	public static final long DEFAULT_WRAP = 1L << 32;
+
+	/** Default maximum rotations per second, about 180 km/h with a 28 inch wheel */
+	public static final double DEFAULT_MAX_RATE = 25;
+
+	/** Rotations always accepted regardless of the elapsed time */
+	public static final long DEFAULT_SLACK = 10;
+
+	/** Number of consistent samples that confirm a jump */
+	public static final int DEFAULT_CONFIRM = 3;
+
+	private final long mWrap;
+	private final double mMaxRate;
+	private final long mSlack;
+	private final int mConfirm;
+
+	private long mBaseOffset;
+	/** Last accepted sample, mLastTimestamp < 0 if there is none */
+	private long mLastRaw;
+	private long mLastTimestamp = -1;
+
+	/** Outlier candidate for a jump, mSuspectCount == 0 if there is none */
+	private long mSuspectRaw;
+	private long mSuspectFirstRaw;
+	private long mSuspectTimestamp;
+	private int mSuspectCount;
+
+	private int mResets;
+	private int mWraps;
+	private int mJumps;
+	private long mDropped;
+
+	public OdometerReconciler() {
+		this(DEFAULT_WRAP, DEFAULT_MAX_RATE, DEFAULT_SLACK, DEFAULT_CONFIRM);
+	}
+
+	public OdometerReconciler(long wrap, double maxRate, long slack, int confirm) {
+		if (wrap <= 0 || maxRate <= 0 || slack < 0 || confirm < 1) {
+			throw new IllegalArgumentException("Invalid reconciler configuration: " + wrap + "/"
+					+ maxRate + "/" + slack + "/" + confirm);
+		}
+		mWrap = wrap;
+		mMaxRate = maxRate;
+		mSlack = slack;
+		mConfirm = confirm;
+	}
+
+	/**
+	 * Restores the persisted state.
+	 *
+	 * @param lastTimestamp Timestamp of the last raw value or a negative value, if there is none.
+	 */
+	public void restore(long baseOffset, long lastRaw, long lastTimestamp) {
+		mBaseOffset = baseOffset;
+		mLastRaw = lastRaw;
+		mLastTimestamp = lastTimestamp;
+		mSuspectCount = 0;
+	}
+
+	/** Highest plausible counter delta after the given time. */
+	private long bound(long elapsed) {
+		return mSlack + (long) (mMaxRate * Math.max(elapsed, 0) / 1000);
+	}
+
+	/**
+	 * Adds a raw counter value and returns the lifetime total.
+	 */
+	public long add(long timestamp, long raw) {
+		if (mLastTimestamp < 0) {
+			accept(timestamp, raw);
+			return getLifetime();
+		}
+
+		long bound = bound(timestamp - mLastTimestamp);
+		long delta = raw - mLastRaw;
+
+		if (delta >= 0 && delta <= bound) {
+			accept(timestamp, raw);
+		} else if (delta < 0 && raw + mWrap - mLastRaw <= bound) {
+			mBaseOffset += mWrap;
+			mWraps++;
+			accept(timestamp, raw);
+		} else if (delta < 0 && raw <= bound) {
+			mBaseOffset += mLastRaw;
+			mResets++;
+			accept(timestamp, raw);
+		} else {
+			suspect(timestamp, raw);
+		}
+		return getLifetime();
+	}
+
+	private void accept(long timestamp, long raw) {
+		mLastRaw = raw;
+		mLastTimestamp = timestamp;
+		mSuspectCount = 0;
+	}
+
+	/** Drops the value, unless it confirms the previous outliers. */
+	private void suspect(long timestamp, long raw) {
+		long delta = raw - mSuspectRaw;
+		if (mSuspectCount > 0 && delta >= 0 && delta <= bound(timestamp - mSuspectTimestamp)) {
+			mSuspectCount++;
+		} else {
+			mSuspectCount = 1;
+			mSuspectFirstRaw = raw;
+		}
+		mSuspectRaw = raw;
+		mSuspectTimestamp = timestamp;
+
+		if (mSuspectCount >= mConfirm) {
+			// Lifetime continues at the first value of the new series
+			mBaseOffset = getLifetime() - mSuspectFirstRaw;
+			mJumps++;
+			accept(timestamp, raw);
+		} else {
+			mDropped++;
+		}
+	}
+
+	/** Monotonic total of rotations. */
+	public long getLifetime() {
+		return mBaseOffset + mLastRaw;
+	}
+
+	/** Offset to persist. */
+	public long getBaseOffset() {
+		return mBaseOffset;
+	}
+
+	/** Last accepted raw value to persist. */
+	public long getLastRaw() {
+		return mLastRaw;
+	}
+
+	/** Timestamp of the last accepted raw value to persist, negative if there is none. */
+	public long getLastTimestamp() {
+		return mLastTimestamp;
+	}
+
+	public int getResetCount() {
+		return mResets;
+	}
+
+	public int getWrapCount() {
+		return mWraps;
+	}
+
+	public int getJumpCount() {
+		return mJumps;
+	}
+
+	/** Number of dropped outliers. */
+	public long getDroppedCount() {
+		return mDropped;
+	}
+}
@@ -0,0 +1,523 @@
+package de.egh.dynamodrivenodometer;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Append-only journal of ride samples. Every sample is a fixed-width record of timestamp and wheel
+ * rotation counter, written into memory-mapped segment files of a fixed size. When a segment is
+ * full, the journal rolls over to a new one. Records are forced to disk in batches, after a crash
+ * the end of the journal will be found again by searching the last segment for the first empty
+ * record. Appending doesn't allocate. Sealed segments can be compacted into compressed sample
+ * blocks, see SampleBlockWriter.
+ */
+public class RideJournal implements Closeable, SampleSink {
+
+	/** Bytes per record: Timestamp and rotations as long */
+	public static final int RECORD_SIZE = 16;
+
+	/** Default number of records per segment, 1 MB per file */
+	public static final int DEFAULT_SEGMENT_RECORDS = 65536;
+
+	/** Default number of records between two syncs */
+	public static final int DEFAULT_SYNC_BATCH = 1024;
+
+	/** File name extension of segment files */
+	public static final String SEGMENT_SUFFIX = ".ride";
+
+	/** File name extension of compacted sealed segment files */
+	public static final String COMPRESSED_SUFFIX = ".ridez";
+
+	private static final FilenameFilter SEGMENT_FILTER = new FilenameFilter() {
+		@Override
+		public boolean accept(File dir, String name) {
+			return name.endsWith(SEGMENT_SUFFIX) || name.endsWith(COMPRESSED_SUFFIX);
+		}
+	};
+
+	private final File mDirectory;
+	private final int mSegmentRecords;
+	private final int mSyncBatch;
+
+	/** Number of the actual segment, used as file name */
+	private long mSegmentNumber;
+	private RandomAccessFile mSegmentFile;
+	private MappedByteBuffer mSegment;
+
+	/** Number of records in the actual segment */
+	private int mSegmentCount;
+
+	/** Number of records in all sealed segments */
+	private long mSealedCount;
+
+	/** Records not synced yet */
+	private int mUnsynced;
+
+	/** Last appended record, timestamp 0 if there is none */
+	private long mLastTimestamp;
+	private long mLastRotations;
+
+	public RideJournal(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_RECORDS, DEFAULT_SYNC_BATCH);
+	}
+
+	/**
+	 * Opens the journal in the given directory, an existing journal will be continued.
+	 *
+	 * @param segmentRecords Number of records per segment file.
+	 * @param syncBatch      Number of records after that the actual segment will be forced to disk.
+	 */
+	public RideJournal(File directory, int segmentRecords, int syncBatch) throws IOException {
+		if (segmentRecords <= 0 || syncBatch <= 0) {
+			throw new IllegalArgumentException("Invalid journal configuration: " + segmentRecords
+					+ "/" + syncBatch);
+		}
+		mDirectory = directory;
+		mSegmentRecords = segmentRecords;
+		mSyncBatch = syncBatch;
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can't create journal directory " + directory);
+		}
+
+		File[] segments = segments(directory);
+		if (segments.length == 0) {
+			openSegment(0);
+		} else {
+			for (int i = 0; i < segments.length - 1; i++) {
+				mSealedCount += recordCount(segments[i]);
+			}
+			File last = segments[segments.length - 1];
+			if (isCompressed(last)) {
+				mSealedCount += recordCount(last);
+				openSegment(segmentNumber(last) + 1);
+			} else {
+				openSegment(segmentNumber(last));
+				recover();
+			}
+		}
+	}
+
+	/**
+	 * Returns all segment files of the journal in the given directory, oldest first. If a segment
+	 * exists raw and compressed, only the compressed one is returned.
+	 */
+	public static File[] segments(File directory) {
+		File[] files = directory.listFiles(SEGMENT_FILTER);
+		if (files == null) {
+			return new File[0];
+		}
+		// Same number: The raw segment is sorted before the compressed one
+		Arrays.sort(files);
+		int count = 0;
+		for (int i = 0; i < files.length; i++) {
+			if (i + 1 < files.length && !isCompressed(files[i])
+					&& segmentNumber(files[i]) == segmentNumber(files[i + 1])) {
+				continue;
+			}
+			files[count++] = files[i];
+		}
+		return Arrays.copyOf(files, count);
+	}
+
+	private static boolean isCompressed(File segment) {
+		return segment.getName().endsWith(COMPRESSED_SUFFIX);
+	}
+
+	private static long segmentNumber(File segment) {
+		String name = segment.getName();
+		int suffix = isCompressed(segment) ? COMPRESSED_SUFFIX.length() : SEGMENT_SUFFIX.length();
+		return Long.parseLong(name.substring(0, name.length() - suffix));
+	}
+
+	/** Returns the file that replaces a raw segment when it is compacted. */
+	private static File compressedFile(File segment) {
+		String name = segment.getName();
+		return new File(segment.getParentFile(),
+				name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + COMPRESSED_SUFFIX);
+	}
+
+	/**
+	 * Timestamp of the first record of a segment file, Long.MAX_VALUE if the segment is empty. A
+	 * raw segment compacted in the meantime is read from the compressed file.
+	 */
+	private static long firstTimestamp(File segment) throws IOException {
+		if (!isCompressed(segment)) {
+			try {
+				RandomAccessFile file = new RandomAccessFile(segment, "r");
+				try {
+					long timestamp = file.length() >= RECORD_SIZE ? file.readLong() : 0;
+					return timestamp == 0 ? Long.MAX_VALUE : timestamp;
+				} finally {
+					file.close();
+				}
+			} catch (FileNotFoundException e) {
+				segment = compressedFile(segment);
+			}
+		}
+		SampleBlockReader reader = new SampleBlockReader(readFile(segment));
+		return reader.next() ? reader.getTimestamp() : Long.MAX_VALUE;
+	}
+
+	private File segmentFile(long number) {
+		return new File(mDirectory, String.format("%012d", number) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Returns the number of records in a segment file by searching the first empty record. Works
+	 * for sealed and unsealed segments.
+	 */
+	public static int recordCount(File segment) throws IOException {
+		if (isCompressed(segment)) {
+			return (int) SampleBlockReader.count(readFile(segment));
+		}
+		RandomAccessFile file = new RandomAccessFile(segment, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return firstEmpty(buffer, (int) (channel.size() / RECORD_SIZE));
+		} finally {
+			file.close();
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			byte[] data = new byte[(int) in.length()];
+			in.readFully(data);
+			return data;
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Encodes all records of a raw segment into a compressed block. */
+	private static void compress(File segment, OutputStream out) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segment, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			int count = firstEmpty(buffer, (int) (channel.size() / RECORD_SIZE));
+			SampleBlockWriter writer = new SampleBlockWriter(count);
+			for (int i = 0; i < count; i++) {
+				writer.add(buffer.getLong(i * RECORD_SIZE), buffer.getLong(i * RECORD_SIZE + 8));
+			}
+			writer.writeTo(out);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Replaces all sealed raw segments by compressed ones. The actual segment stays untouched, so
+	 * this can run in a background thread while appending. Returns the number of compacted
+	 * segments.
+	 */
+	public int compactSealedSegments() throws IOException {
+		long actual;
+		synchronized (this) {
+			actual = mSegmentNumber;
+		}
+
+		int compacted = 0;
+		for (File segment : segments(mDirectory)) {
+			if (isCompressed(segment) || segmentNumber(segment) >= actual) {
+				continue;
+			}
+			String name = segment.getName();
+			String baseName = name.substring(0, name.length() - SEGMENT_SUFFIX.length());
+			File temp = new File(mDirectory, baseName + COMPRESSED_SUFFIX + ".tmp");
+			File target = new File(mDirectory, baseName + COMPRESSED_SUFFIX);
+
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+			try {
+				compress(segment, out);
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(target)) {
+				throw new IOException("Can't rename " + temp);
+			}
+			if (!segment.delete()) {
+				throw new IOException("Can't delete " + segment);
+			}
+			compacted++;
+		}
+		return compacted;
+	}
+
+	/**
+	 * Writes all records of a journal directory as concatenated compressed blocks, one per segment.
+	 * Read the export with SampleBlockReader.
+	 */
+	public static void export(File directory, OutputStream out) throws IOException {
+		for (File segment : segments(directory)) {
+			if (isCompressed(segment)) {
+				out.write(readFile(segment));
+			} else {
+				compress(segment, out);
+			}
+		}
+	}
+
+	/**
+	 * Binary search for the first record with timestamp 0. Records are written without gaps, so all
+	 * records before are valid.
+	 */
+	private static int firstEmpty(MappedByteBuffer buffer, int capacity) {
+		int low = 0;
+		int high = capacity;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (buffer.getLong(mid * RECORD_SIZE) != 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private void openSegment(long number) throws IOException {
+		mSegmentNumber = number;
+		mSegmentFile = new RandomAccessFile(segmentFile(number), "rw");
+		long size = (long) mSegmentRecords * RECORD_SIZE;
+		if (mSegmentFile.length() < size) {
+			mSegmentFile.setLength(size);
+		}
+		mSegment = mSegmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		mSegmentCount = 0;
+	}
+
+	/** Finds the end of the last segment after opening. */
+	private void recover() {
+		mSegmentCount = firstEmpty(mSegment, mSegmentRecords);
+		if (mSegmentCount > 0) {
+			int position = (mSegmentCount - 1) * RECORD_SIZE;
+			mLastTimestamp = mSegment.getLong(position);
+			mLastRotations = mSegment.getLong(position + 8);
+		}
+	}
+
+	/** Same as append(), but reports an illegal timestamp as IOException, like a failed write. */
+	@Override
+	public void add(long timestamp, long distance) throws IOException {
+		try {
+			append(timestamp, distance);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Appends a sample. The timestamp must be greater than 0, because empty records are marked by a
+	 * timestamp of 0, and greater than the last one, the cursor relies on ascending timestamps.
+	 */
+	public synchronized void append(long timestamp, long rotations) throws IOException {
+		if (timestamp <= 0) {
+			throw new IllegalArgumentException("Timestamp must be positive: " + timestamp);
+		}
+		if (timestamp <= mLastTimestamp) {
+			throw new IllegalArgumentException("Timestamp " + timestamp + " not after "
+					+ mLastTimestamp);
+		}
+		if (mSegment == null) {
+			throw new IOException("Journal is closed");
+		}
+		if (mSegmentCount == mSegmentRecords) {
+			roll();
+		}
+
+		// Timestamp last, so a record is complete when its timestamp is set
+		int position = mSegmentCount * RECORD_SIZE;
+		mSegment.putLong(position + 8, rotations);
+		mSegment.putLong(position, timestamp);
+		mSegmentCount++;
+		mLastTimestamp = timestamp;
+		mLastRotations = rotations;
+
+		if (++mUnsynced >= mSyncBatch) {
+			sync();
+		}
+	}
+
+	/** Seals the full segment and continues with a new one. */
+	private void roll() throws IOException {
+		sync();
+		mSegmentFile.close();
+		mSealedCount += mSegmentCount;
+		openSegment(mSegmentNumber + 1);
+	}
+
+	/** Forces all appended records to disk. */
+	public synchronized void sync() {
+		if (mSegment != null && mUnsynced > 0) {
+			mSegment.force();
+			mUnsynced = 0;
+		}
+	}
+
+	/** Number of records in all segments. */
+	public synchronized long size() {
+		return mSealedCount + mSegmentCount;
+	}
+
+	/** Timestamp of the last record or 0, if the journal is empty. */
+	public synchronized long getLastTimestamp() {
+		return mLastTimestamp;
+	}
+
+	/** Rotations of the last record, only valid if the journal is not empty. */
+	public synchronized long getLastRotations() {
+		return mLastRotations;
+	}
+
+	/** Directory of the segment files. */
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (mSegment != null) {
+			sync();
+			mSegment = null;
+			mSegmentFile.close();
+		}
+	}
+
+	/**
+	 * Reads all records of a journal directory, oldest first. Records written after the cursor
+	 * has been opened are not guaranteed to be visible.
+	 */
+	public static Cursor cursor(File directory) {
+		return new Cursor(segments(directory), 0);
+	}
+
+	/**
+	 * Reads the records of a journal directory newer than the given timestamp, oldest first.
+	 * Timestamps are ascending, so a binary search over the first record of the segments skips
+	 * all segments with older records only, without reading them.
+	 */
+	public static Cursor cursor(File directory, long afterTimestamp) throws IOException {
+		File[] segments = segments(directory);
+		int low = 0;
+		int high = segments.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (firstTimestamp(segments[mid]) <= afterTimestamp) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		// The segment before the first newer one may end with newer records
+		return new Cursor(Arrays.copyOfRange(segments, Math.max(0, low - 1), segments.length),
+				afterTimestamp);
+	}
+
+	/**
+	 * Iterates over the records of segment files without allocation per record. A raw segment that
+	 * is compacted while the cursor is open is read from the compressed file.
+	 */
+	public static class Cursor implements Closeable {
+		private final File[] mSegments;
+		/** Records up to this timestamp are skipped */
+		private final long mAfterTimestamp;
+		private int mSegmentIndex = -1;
+		/** Reader of a compressed segment, otherwise NULL */
+		private SampleBlockReader mBlockReader;
+		private MappedByteBuffer mBuffer;
+		private int mCount;
+		private int mPosition;
+		private long mTimestamp;
+		private long mRotations;
+
+		private Cursor(File[] segments, long afterTimestamp) {
+			mSegments = segments;
+			mAfterTimestamp = afterTimestamp;
+		}
+
+		/** Moves to the next record. Returns FALSE, if there are no more records. */
+		public boolean next() throws IOException {
+			while (read()) {
+				if (mTimestamp > mAfterTimestamp) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean read() throws IOException {
+			while (mBuffer == null || mPosition == mCount) {
+				if (mBlockReader != null) {
+					if (mBlockReader.next()) {
+						mTimestamp = mBlockReader.getTimestamp();
+						mRotations = mBlockReader.getRotations();
+						return true;
+					}
+					mBlockReader = null;
+				}
+
+				if (++mSegmentIndex >= mSegments.length) {
+					mBuffer = null;
+					return false;
+				}
+				File segment = mSegments[mSegmentIndex];
+				RandomAccessFile file = null;
+				if (!isCompressed(segment)) {
+					try {
+						file = new RandomAccessFile(segment, "r");
+					} catch (FileNotFoundException e) {
+						segment = compressedFile(segment);
+					}
+				}
+				if (file == null) {
+					mBlockReader = new SampleBlockReader(readFile(segment));
+					mBuffer = null;
+					continue;
+				}
+				try {
+					FileChannel channel = file.getChannel();
+					mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				} finally {
+					file.close();
+				}
+				mCount = firstEmpty(mBuffer, mBuffer.capacity() / RECORD_SIZE);
+				mPosition = 0;
+			}
+
+			int offset = mPosition * RECORD_SIZE;
+			mTimestamp = mBuffer.getLong(offset);
+			mRotations = mBuffer.getLong(offset + 8);
+			mPosition++;
+			return true;
+		}
+
+		public long getTimestamp() {
+			return mTimestamp;
+		}
+
+		public long getRotations() {
+			return mRotations;
+		}
+
+		@Override
+		public void close() {
+			mBuffer = null;
+			mBlockReader = null;
+			mSegmentIndex = mSegments.length;
+		}
+	}
+}
@@ -0,0 +1,292 @@
+package de.egh.dynamodrivenodometer;
+
+import java.util.Random;
+
+/**
+ * Simulates the frame stream of a DDO device for a rider profile on a virtual clock. Every frame
+ * advances the clock by one sample period, so a ride of hours can be replayed in seconds. Noise,
+ * malformed frames, messages and counter resets come from a seeded random generator: The same
+ * configuration always produces the same frames. Runs without Android and Bluetooth.
+ */
+public class RideSimulator {
+
+	/** Constant speed */
+	public static final int PROFILE_CRUISE = 0;
+
+	/** Alternating fast and slow periods */
+	public static final int PROFILE_INTERVALS = 1;
+
+	/** Accelerating, riding, braking and waiting at a traffic light */
+	public static final int PROFILE_STOP_AND_GO = 2;
+
+	/** Frames per second */
+	public static final int MIN_RATE = 1;
+	public static final int MAX_RATE = 1000;
+
+	/** Default standard deviation of the speed noise in m/s */
+	public static final double DEFAULT_NOISE = 0.5;
+
+	private static final double CRUISE_SPEED = 25 / 3.6;
+	private static final double FAST_SPEED = 35 / 3.6;
+	private static final double SLOW_SPEED = 15 / 3.6;
+	private static final long FAST_PERIOD = 4 * 60 * 1000L;
+	private static final long SLOW_PERIOD = 2 * 60 * 1000L;
+	private static final double CITY_SPEED = 22 / 3.6;
+	private static final long ACCELERATE = 10 * 1000L;
+	private static final long RIDE = 40 * 1000L;
+	private static final long BRAKE = 10 * 1000L;
+	private static final long WAIT = 30 * 1000L;
+
+	/** Correlation of the noise between two samples per second */
+	private static final double NOISE_CORRELATION = 0.9;
+
+	private static final byte[][] MALFORMED = {
+			{},
+			{'D'},
+			{'D', '1', '2', 'x', '4'},
+			{'X', '4', '2'},
+			{'D', '9', '9', '9', '9', '9', '9', '9', '9', '9', '9', '9', '9', '9', '9', '9', '9', '9', '9', '9'},
+	};
+
+	private final int mProfile;
+	private final int mRate;
+	private final long mPeriodMicros;
+	private final double mWheelCircumference;
+	private final Random mRandom;
+
+	private double mNoise = DEFAULT_NOISE;
+	private double mMalformedRate;
+	private long mMessageInterval;
+	private long mResetInterval;
+	private boolean mSequenced;
+
+	/** Virtual clock */
+	private final long mStartTime;
+	private long mElapsedMicros;
+	private long mNextMessageAt;
+	private long mNextResetAt;
+
+	private double mNoiseValue;
+	private double mSpeed;
+	/** Exact wheel position in rotations since the start */
+	private double mPosition;
+	/** Position of the last counter reset */
+	private long mResetBase;
+	/** Sequence number of the next distance frame, restarts with the counter */
+	private long mSequence;
+
+	private long mFrames;
+	private long mMalformed;
+	private long mMessages;
+	private int mResets;
+
+	/**
+	 * @param startTime Timestamp of the virtual clock at the start.
+	 */
+	public RideSimulator(int profile, int rate, long seed, long startTime) {
+		this(profile, rate, seed, startTime, KinematicsEngine.DEFAULT_WHEEL_CIRCUMFERENCE);
+	}
+
+	public RideSimulator(int profile, int rate, long seed, long startTime, double wheelCircumference) {
+		if (profile < PROFILE_CRUISE || profile > PROFILE_STOP_AND_GO) {
+			throw new IllegalArgumentException("Unknown profile " + profile);
+		}
+		if (rate < MIN_RATE || rate > MAX_RATE) {
+			throw new IllegalArgumentException("Rate must be in [" + MIN_RATE + ", " + MAX_RATE + "]: " + rate);
+		}
+		mProfile = profile;
+		mRate = rate;
+		mPeriodMicros = 1000000L / rate;
+		mWheelCircumference = wheelCircumference;
+		mRandom = new Random(seed);
+		mStartTime = startTime;
+	}
+
+	/** Standard deviation of the speed noise in m/s, 0 for an exact profile. */
+	public void setNoise(double noise) {
+		mNoise = noise;
+	}
+
+	/** Probability of a malformed frame instead of a distance frame. */
+	public void setMalformedRate(double malformedRate) {
+		mMalformedRate = malformedRate;
+	}
+
+	/** Virtual time between two message frames, 0 for no messages. */
+	public void setMessageInterval(long messageInterval) {
+		mMessageInterval = messageInterval;
+		mNextMessageAt = messageInterval;
+	}
+
+	/** Mean virtual time between two counter resets, 0 for no resets. */
+	public void setResetInterval(long resetInterval) {
+		mResetInterval = resetInterval;
+		mNextResetAt = resetInterval > 0 ? nextInterval(resetInterval) : 0;
+	}
+
+	/**
+	 * TRUE to send distance frames with sequence number, see
+	 * FrameDecoder.TYPE_SEQUENCED_DISTANCE. Malformed frames use up a sequence number like a
+	 * distance frame corrupted on the way.
+	 */
+	public void setSequenced(boolean sequenced) {
+		mSequenced = sequenced;
+	}
+
+	/** Random time between half and one and a half of the mean. */
+	private long nextInterval(long mean) {
+		return mean / 2 + (long) (mRandom.nextDouble() * mean);
+	}
+
+	/** Speed of the profile without noise after the given time. */
+	private double profileSpeed(long elapsed) {
+		switch (mProfile) {
+			case PROFILE_INTERVALS:
+				return elapsed % (FAST_PERIOD + SLOW_PERIOD) < FAST_PERIOD ? FAST_SPEED : SLOW_SPEED;
+
+			case PROFILE_STOP_AND_GO:
+				long t = elapsed % (ACCELERATE + RIDE + BRAKE + WAIT);
+				if (t < ACCELERATE) {
+					return CITY_SPEED * t / ACCELERATE;
+				} else if (t < ACCELERATE + RIDE) {
+					return CITY_SPEED;
+				} else if (t < ACCELERATE + RIDE + BRAKE) {
+					return CITY_SPEED * (ACCELERATE + RIDE + BRAKE - t) / BRAKE;
+				}
+				return 0;
+
+			default:
+				return CRUISE_SPEED;
+		}
+	}
+
+	/**
+	 * Advances the virtual clock by one period and writes the next frame into the buffer, which
+	 * must hold FrameDecoder.FRAME_SIZE bytes. Unused bytes are set to 0x00. Returns the length of
+	 * the frame.
+	 */
+	public int nextFrame(byte[] buffer) {
+		mElapsedMicros += mPeriodMicros;
+		long elapsed = mElapsedMicros / 1000;
+		double seconds = mPeriodMicros / 1e6;
+
+		// Correlated noise, the wheel doesn't turn backwards and stands still while waiting
+		double correlation = Math.pow(NOISE_CORRELATION, seconds);
+		mNoiseValue = correlation * mNoiseValue
+				+ Math.sqrt(1 - correlation * correlation) * mNoise * mRandom.nextGaussian();
+		double speed = profileSpeed(elapsed);
+		mSpeed = speed > 0 ? Math.max(0, speed + mNoiseValue) : 0;
+		mPosition += mSpeed * seconds / mWheelCircumference;
+
+		if (mResetInterval > 0 && elapsed >= mNextResetAt) {
+			mResetBase = (long) mPosition;
+			mSequence = 0;
+			mResets++;
+			mNextResetAt = elapsed + nextInterval(mResetInterval);
+		}
+
+		mFrames++;
+		int length;
+		if (mMessageInterval > 0 && elapsed >= mNextMessageAt) {
+			mNextMessageAt += mMessageInterval;
+			mMessages++;
+			length = writeMessage(buffer);
+		} else if (mMalformedRate > 0 && mRandom.nextDouble() < mMalformedRate) {
+			byte[] malformed = MALFORMED[mRandom.nextInt(MALFORMED.length)];
+			System.arraycopy(malformed, 0, buffer, 0, malformed.length);
+			mMalformed++;
+			length = malformed.length;
+			if (mSequenced) {
+				mSequence = (mSequence + 1) % SequenceTracker.MODULUS;
+			}
+		} else if (mSequenced) {
+			buffer[0] = FrameDecoder.TYPE_SEQUENCED_DISTANCE;
+			int position = writeDecimal(buffer, 1, mSequence);
+			buffer[position++] = ':';
+			length = writeDecimal(buffer, position, getRotations());
+			mSequence = (mSequence + 1) % SequenceTracker.MODULUS;
+		} else {
+			buffer[0] = FrameDecoder.TYPE_DISTANCE;
+			length = writeDecimal(buffer, 1, getRotations());
+		}
+
+		for (int i = length; i < FrameDecoder.FRAME_SIZE; i++) {
+			buffer[i] = 0x00;
+		}
+		return length;
+	}
+
+	/** Allocates a new frame, see nextFrame(byte[]). */
+	public byte[] nextFrame() {
+		byte[] buffer = new byte[FrameDecoder.FRAME_SIZE];
+		int length = nextFrame(buffer);
+		byte[] frame = new byte[length];
+		System.arraycopy(buffer, 0, frame, 0, length);
+		return frame;
+	}
+
+	private static int writeDecimal(byte[] buffer, int position, long value) {
+		int digits = 1;
+		for (long v = value / 10; v > 0; v /= 10) {
+			digits++;
+		}
+		int end = position + digits;
+		for (int i = end - 1; i >= position; i--) {
+			buffer[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		return end;
+	}
+
+	/** Writes a status message like the device, e.g. "MUptime 1234s". */
+	private int writeMessage(byte[] buffer) {
+		buffer[0] = FrameDecoder.TYPE_MESSAGE;
+		String text = "Uptime ";
+		for (int i = 0; i < text.length(); i++) {
+			buffer[1 + i] = (byte) text.charAt(i);
+		}
+		int position = writeDecimal(buffer, 1 + text.length(), mElapsedMicros / 1000000);
+		buffer[position++] = 's';
+		return position;
+	}
+
+	/** Virtual timestamp of the last frame. */
+	public long getTimestamp() {
+		return mStartTime + mElapsedMicros / 1000;
+	}
+
+	/** Counter value of the device, restarts at 0 after a reset. */
+	public long getRotations() {
+		return (long) mPosition - mResetBase;
+	}
+
+	/** Rotations since the start, regardless of resets. */
+	public long getLifetimeRotations() {
+		return (long) mPosition;
+	}
+
+	/** Actual speed in m/s. */
+	public double getSpeed() {
+		return mSpeed;
+	}
+
+	public int getRate() {
+		return mRate;
+	}
+
+	public long getFrameCount() {
+		return mFrames;
+	}
+
+	public long getMalformedCount() {
+		return mMalformed;
+	}
+
+	public long getMessageCount() {
+		return mMessages;
+	}
+
+	public int getResetCount() {
+		return mResets;
+	}
+}
@@ -0,0 +1,94 @@
+package de.egh.dynamodrivenodometer;
+
+/**
+ * Immutable state of the odometer screen, published by SnapshotPublisher. Readers on any thread
+ * get a consistent state without locking.
+ */
+public final class RideSnapshot {
+
+	private final long mDistance;
+	private final float mSpeed;
+	private final long mLastUpdateAt;
+	private final long mReceivedAt;
+	private final long mSampleCount;
+	private final long mMessageVersion;
+	private final long[] mMessageTimestamps;
+	private final String[] mMessageTexts;
+
+	/**
+	 * The arrays are taken over and must not be changed afterwards.
+	 *
+	 * @param receivedAt        Arrival time of the frame of the last sample.
+	 * @param messageVersion    Changes with every change of the messages.
+	 * @param messageTimestamps Newest messages first.
+	 */
+	public RideSnapshot(long distance, float speed, long lastUpdateAt, long receivedAt,
+	                    long sampleCount, long messageVersion, long[] messageTimestamps, String[] messageTexts) {
+		if (messageTimestamps.length != messageTexts.length) {
+			throw new IllegalArgumentException("Different number of timestamps and texts");
+		}
+		mDistance = distance;
+		mSpeed = speed;
+		mLastUpdateAt = lastUpdateAt;
+		mReceivedAt = receivedAt;
+		mSampleCount = sampleCount;
+		mMessageVersion = messageVersion;
+		mMessageTimestamps = messageTimestamps;
+		mMessageTexts = messageTexts;
+	}
+
+	/** Copy with another sample, sharing the messages. */
+	public RideSnapshot withSample(long distance, float speed, long lastUpdateAt, long receivedAt,
+	                               long sampleCount) {
+		return new RideSnapshot(distance, speed, lastUpdateAt, receivedAt, sampleCount, mMessageVersion,
+				mMessageTimestamps, mMessageTexts);
+	}
+
+	/** Lifetime number of wheel rotations. */
+	public long getDistance() {
+		return mDistance;
+	}
+
+	/** Smoothed speed in m/s. */
+	public float getSpeed() {
+		return mSpeed;
+	}
+
+	/** Timestamp of the last sample, 0 if none. */
+	public long getLastUpdateAt() {
+		return mLastUpdateAt;
+	}
+
+	/**
+	 * Arrival time of the frame of the last sample, 0 if none. Unlike getLastUpdateAt() it doesn't
+	 * include the time a sample was buffered by the device.
+	 */
+	public long getReceivedAt() {
+		return mReceivedAt;
+	}
+
+	/** Number of samples applied since the publisher was created. */
+	public long getSampleCount() {
+		return mSampleCount;
+	}
+
+	/** Changes with every change of the messages, so readers can skip unchanged messages. */
+	public long getMessageVersion() {
+		return mMessageVersion;
+	}
+
+	/** Number of newest messages in the snapshot. */
+	public int getMessageCount() {
+		return mMessageTexts.length;
+	}
+
+	/** Timestamp of the message, 0 is the newest. */
+	public long getMessageTimestamp(int index) {
+		return mMessageTimestamps[index];
+	}
+
+	/** Text of the message, 0 is the newest. */
+	public String getMessageText(int index) {
+		return mMessageTexts[index];
+	}
+}
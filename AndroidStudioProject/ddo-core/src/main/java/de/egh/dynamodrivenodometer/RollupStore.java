@@ -0,0 +1,344 @@
+package de.egh.dynamodrivenodometer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/**
+ * Aggregates ride samples per minute, hour and day: Distance and moving time as sums, the speed as
+ * maximum. Distance is counted in wheel rotations, speed in rotations per second. Samples are
+ * added incrementally in time order. A range query combines the coarsest buckets fitting into the
+ * range with finer buckets at its edges, so it takes O(log n + buckets) without touching the raw
+ * samples. The resolution of a range is one minute. Hours and days are local to a time zone, its
+ * offset is taken at the time of every sample, so daylight saving time and changes of the zone
+ * only affect later samples.
+ */
+public class RollupStore implements SampleSink {
+
+	/** Resolution index for getBuckets() */
+	public static final int MINUTE = 0;
+	public static final int HOUR = 1;
+	public static final int DAY = 2;
+
+	private static final long[] BUCKET_SIZES = {60 * 1000L, 60 * 60 * 1000L, 24 * 60 * 60 * 1000L};
+
+	/**
+	 * Longest time between two samples counted as moving time. After longer gaps, e.g. while the
+	 * app was not running, only this time will be counted.
+	 */
+	public static final long MAX_MOVING_GAP = 10 * 1000L;
+
+	private static final int FILE_MAGIC = 0x44444f52; // "DDOR"
+	/** Version 1 had a fixed UTC offset, version 2 has no time zone */
+	private static final int FILE_VERSION = 2;
+
+	/** Aggregated values of a range */
+	public static class Totals {
+		public long distance;
+		public long movingTime;
+		public float maxSpeed;
+
+		public void clear() {
+			distance = 0;
+			movingTime = 0;
+			maxSpeed = 0;
+		}
+	}
+
+	/** Buckets of one resolution in primitive arrays, ascending by start. */
+	private static class Level {
+		private final long mSize;
+		private long[] mStart = new long[16];
+		private long[] mDistance = new long[16];
+		private long[] mMovingTime = new long[16];
+		private float[] mMaxSpeed = new float[16];
+		private int mCount;
+
+		private Level(long size) {
+			mSize = size;
+		}
+
+		/**
+		 * Adds values to the bucket of the local time. Older times go to the last bucket, e.g. the
+		 * repeated hour at the end of daylight saving time.
+		 */
+		private void add(long localTime, long distance, long movingTime, float speed) {
+			long start = localTime - floorMod(localTime, mSize);
+			if (mCount == 0 || mStart[mCount - 1] < start) {
+				if (mCount == mStart.length) {
+					int capacity = mCount * 2;
+					mStart = Arrays.copyOf(mStart, capacity);
+					mDistance = Arrays.copyOf(mDistance, capacity);
+					mMovingTime = Arrays.copyOf(mMovingTime, capacity);
+					mMaxSpeed = Arrays.copyOf(mMaxSpeed, capacity);
+				}
+				mStart[mCount] = start;
+				mDistance[mCount] = 0;
+				mMovingTime[mCount] = 0;
+				mMaxSpeed[mCount] = 0;
+				mCount++;
+			}
+			int i = mCount - 1;
+			mDistance[i] += distance;
+			mMovingTime[i] += movingTime;
+			if (speed > mMaxSpeed[i]) {
+				mMaxSpeed[i] = speed;
+			}
+		}
+
+		/** Index of the first bucket starting at or after the given local time. */
+		private int indexOf(long localTime) {
+			int low = 0;
+			int high = mCount;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (mStart[mid] < localTime) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		/** Adds all buckets starting in [from, to) to the totals. */
+		private void sum(long from, long to, Totals totals) {
+			for (int i = indexOf(from); i < mCount && mStart[i] < to; i++) {
+				totals.distance += mDistance[i];
+				totals.movingTime += mMovingTime[i];
+				if (mMaxSpeed[i] > totals.maxSpeed) {
+					totals.maxSpeed = mMaxSpeed[i];
+				}
+			}
+		}
+
+		private void write(DataOutputStream out) throws IOException {
+			out.writeInt(mCount);
+			for (int i = 0; i < mCount; i++) {
+				out.writeLong(mStart[i]);
+				out.writeLong(mDistance[i]);
+				out.writeLong(mMovingTime[i]);
+				out.writeFloat(mMaxSpeed[i]);
+			}
+		}
+
+		private void read(DataInputStream in) throws IOException {
+			int count = in.readInt();
+			int capacity = Math.max(16, Integer.highestOneBit(Math.max(1, count)) * 2);
+			mStart = new long[capacity];
+			mDistance = new long[capacity];
+			mMovingTime = new long[capacity];
+			mMaxSpeed = new float[capacity];
+			for (int i = 0; i < count; i++) {
+				mStart[i] = in.readLong();
+				mDistance[i] = in.readLong();
+				mMovingTime[i] = in.readLong();
+				mMaxSpeed[i] = in.readFloat();
+			}
+			mCount = count;
+		}
+	}
+
+	private static long floorMod(long x, long y) {
+		long mod = x % y;
+		return mod < 0 ? mod + y : mod;
+	}
+
+	/** Zone of the local time, days start at local midnight */
+	private TimeZone mTimeZone;
+
+	private final Level[] mLevels = new Level[BUCKET_SIZES.length];
+
+	/** Last added sample, timestamp 0 if there is none */
+	private long mLastTimestamp;
+	private long mLastRotations;
+
+	/**
+	 * @param timeZone Local time zone, used for hour and day boundaries.
+	 */
+	public RollupStore(TimeZone timeZone) {
+		mTimeZone = timeZone;
+		for (int i = 0; i < mLevels.length; i++) {
+			mLevels[i] = new Level(BUCKET_SIZES[i]);
+		}
+	}
+
+	/**
+	 * Adds a sample. Samples not newer than the last one are ignored. A decreasing counter starts
+	 * a new series without distance.
+	 */
+	@Override
+	public synchronized void add(long timestamp, long rotations) {
+		if (timestamp <= mLastTimestamp) {
+			return;
+		}
+
+		if (mLastTimestamp > 0 && rotations > mLastRotations) {
+			long distance = rotations - mLastRotations;
+			long elapsed = timestamp - mLastTimestamp;
+			long movingTime = Math.min(elapsed, MAX_MOVING_GAP);
+			float speed = elapsed <= MAX_MOVING_GAP ? distance * 1000f / elapsed : 0;
+
+			long localTime = toLocal(timestamp);
+			for (Level level : mLevels) {
+				level.add(localTime, distance, movingTime, speed);
+			}
+		}
+
+		mLastTimestamp = timestamp;
+		mLastRotations = rotations;
+	}
+
+	/** Changes the time zone, e.g. after the user changed it. Only later samples are affected. */
+	public synchronized void setTimeZone(TimeZone timeZone) {
+		mTimeZone = timeZone;
+	}
+
+	public synchronized TimeZone getTimeZone() {
+		return mTimeZone;
+	}
+
+	private long toLocal(long timestamp) {
+		return timestamp + mTimeZone.getOffset(timestamp);
+	}
+
+	/** Inverse of toLocal(), ambiguous local times of a time change map to one of the instants. */
+	private long toUtc(long localTime) {
+		long guess = localTime - mTimeZone.getOffset(localTime - mTimeZone.getRawOffset());
+		return localTime - mTimeZone.getOffset(guess);
+	}
+
+	/** Timestamp of the last added sample or 0. */
+	public synchronized long getLastTimestamp() {
+		return mLastTimestamp;
+	}
+
+	/**
+	 * Calculates the totals for the time range [from, to). Uses day buckets for whole days, hour
+	 * buckets for whole hours and minute buckets for the rest.
+	 */
+	public synchronized void query(long from, long to, Totals totals) {
+		totals.clear();
+		if (from < to) {
+			sum(mLevels.length - 1, toLocal(from), toLocal(to), totals);
+		}
+	}
+
+	private void sum(int level, long from, long to, Totals totals) {
+		if (from >= to) {
+			return;
+		}
+		if (level == MINUTE) {
+			mLevels[MINUTE].sum(from, to, totals);
+			return;
+		}
+
+		long size = BUCKET_SIZES[level];
+		long alignedFrom = from + floorMod(size - floorMod(from, size), size);
+		long alignedTo = to - floorMod(to, size);
+		if (alignedFrom >= alignedTo) {
+			sum(level - 1, from, to, totals);
+		} else {
+			sum(level - 1, from, alignedFrom, totals);
+			mLevels[level].sum(alignedFrom, alignedTo, totals);
+			sum(level - 1, alignedTo, to, totals);
+		}
+	}
+
+	/**
+	 * Copies the buckets of a resolution starting in [from, to) into the arrays, e.g. per-day
+	 * totals. Bucket starts are returned as UTC timestamps. Returns the number of copied buckets,
+	 * limited by the length of the arrays.
+	 */
+	public synchronized int getBuckets(int resolution, long from, long to, long[] starts,
+	                                   long[] distances, long[] movingTimes, float[] maxSpeeds) {
+		Level level = mLevels[resolution];
+		int count = 0;
+		long localTo = toLocal(to);
+		for (int i = level.indexOf(toLocal(from)); i < level.mCount
+				&& level.mStart[i] < localTo && count < starts.length; i++) {
+			starts[count] = toUtc(level.mStart[i]);
+			distances[count] = level.mDistance[i];
+			movingTimes[count] = level.mMovingTime[i];
+			maxSpeeds[count] = level.mMaxSpeed[i];
+			count++;
+		}
+		return count;
+	}
+
+	/** Writes all buckets into a file, replacing it atomically. */
+	public synchronized void save(File file) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeLong(mLastTimestamp);
+			out.writeLong(mLastRotations);
+			for (Level level : mLevels) {
+				level.write(out);
+			}
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			throw new IOException("Can't rename " + temp);
+		}
+	}
+
+	/**
+	 * Reads a store written by save(), later samples are aggregated in the given time zone. Throws
+	 * an IOException, if the file is missing or broken; the store can be rebuilt from the
+	 * RideJournal then.
+	 */
+	public static RollupStore load(File file, TimeZone timeZone) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != FILE_MAGIC) {
+				throw new IOException("Not a rollup file: " + file);
+			}
+			int version = in.readInt();
+			if (version == 1) {
+				// The fixed offset of the buckets so far is dropped
+				in.readLong();
+			} else if (version != FILE_VERSION) {
+				throw new IOException("Unknown rollup file version " + version + ": " + file);
+			}
+			RollupStore store = new RollupStore(timeZone);
+			store.mLastTimestamp = in.readLong();
+			store.mLastRotations = in.readLong();
+			for (Level level : store.mLevels) {
+				level.read(in);
+			}
+			return store;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Adds all journal records newer than the last added sample, e.g. after loading the store or
+	 * after a crash. Only the journal segments since the last added sample are read. Returns the
+	 * number of added records.
+	 */
+	public long catchUp(File journalDirectory) throws IOException {
+		long added = 0;
+		RideJournal.Cursor cursor = RideJournal.cursor(journalDirectory, getLastTimestamp());
+		try {
+			while (cursor.next()) {
+				add(cursor.getTimestamp(), cursor.getRotations());
+				added++;
+			}
+		} finally {
+			cursor.close();
+		}
+		return added;
+	}
+}
@@ -0,0 +1,105 @@
+package de.egh.dynamodrivenodometer;
+
+import java.io.IOException;
+
+/**
+ * Streams the samples of one or more concatenated blocks written by SampleBlockWriter. Decoding
+ * works in place and doesn't allocate per sample.
+ */
+public class SampleBlockReader {
+
+	private final byte[] mData;
+	private final int mEnd;
+	private int mPosition;
+
+	/** Samples left in the actual block */
+	private long mRemaining;
+
+	/** TRUE, if the next sample is the first one of a block */
+	private boolean mFirst;
+
+	private long mTimestamp;
+	private long mRotations;
+	private long mTimestampDelta;
+
+	public SampleBlockReader(byte[] data) {
+		this(data, 0, data.length);
+	}
+
+	public SampleBlockReader(byte[] data, int offset, int length) {
+		mData = data;
+		mPosition = offset;
+		mEnd = offset + length;
+	}
+
+	/** Moves to the next sample. Returns FALSE, if there are no more samples. */
+	public boolean next() throws IOException {
+		while (mRemaining == 0) {
+			if (mPosition == mEnd) {
+				return false;
+			}
+			readHeader();
+		}
+
+		if (mFirst) {
+			mTimestamp = SampleBlockWriter.unZigZag(readVarint());
+			mRotations = SampleBlockWriter.unZigZag(readVarint());
+			mTimestampDelta = 0;
+			mFirst = false;
+		} else {
+			mTimestampDelta += SampleBlockWriter.unZigZag(readVarint());
+			mTimestamp += mTimestampDelta;
+			mRotations += SampleBlockWriter.unZigZag(readVarint());
+		}
+		mRemaining--;
+		return true;
+	}
+
+	private void readHeader() throws IOException {
+		if (mEnd - mPosition < 4 || mData[mPosition] != SampleBlockWriter.MAGIC_1
+				|| mData[mPosition + 1] != SampleBlockWriter.MAGIC_2) {
+			throw new IOException("Not a sample block at " + mPosition);
+		}
+		if (mData[mPosition + 2] != SampleBlockWriter.VERSION) {
+			throw new IOException("Unsupported sample block version " + mData[mPosition + 2]);
+		}
+		mPosition += 3;
+		mRemaining = readVarint();
+		mFirst = true;
+	}
+
+	private long readVarint() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (mPosition == mEnd) {
+				throw new IOException("Truncated sample block");
+			}
+			byte b = mData[mPosition++];
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint at " + mPosition);
+	}
+
+	public long getTimestamp() {
+		return mTimestamp;
+	}
+
+	public long getRotations() {
+		return mRotations;
+	}
+
+	/**
+	 * Returns the number of samples in the first block of the data without decoding the samples.
+	 */
+	public static long count(byte[] data) throws IOException {
+		SampleBlockReader reader = new SampleBlockReader(data);
+		if (data.length == 0) {
+			return 0;
+		}
+		reader.readHeader();
+		return reader.mRemaining;
+	}
+}
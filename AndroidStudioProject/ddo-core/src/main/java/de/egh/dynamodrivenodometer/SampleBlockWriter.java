@@ -0,0 +1,132 @@
+package de.egh.dynamodrivenodometer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Compresses a series of ride samples into a block. Timestamps are stored as delta-of-delta,
+ * rotations as delta, both as zig-zag varint. Regular samples with small rotation steps take about
+ * 2 bytes instead of 16 bytes of a RideJournal record. Block layout:
+ * <pre>
+ * 'R' 'Z' version count:varint timestamp:zigzag rotations:zigzag
+ * (timestampDeltaOfDelta:zigzag rotationsDelta:zigzag) * (count - 1)
+ * </pre>
+ * Blocks are self-delimiting, so they can be concatenated. Use SampleBlockReader to decode.
+ */
+public class SampleBlockWriter {
+
+	/** First bytes of every block */
+	static final byte MAGIC_1 = 'R';
+	static final byte MAGIC_2 = 'Z';
+
+	/** Actual format version */
+	static final byte VERSION = 1;
+
+	/** Encoded samples without header */
+	private byte[] mBody;
+	private int mLength;
+
+	private int mCount;
+	private long mFirstTimestamp;
+	private long mFirstRotations;
+	private long mLastTimestamp;
+	private long mLastRotations;
+	private long mLastTimestampDelta;
+
+	public SampleBlockWriter() {
+		this(1024);
+	}
+
+	/** Creates a writer with space for the expected number of samples. */
+	public SampleBlockWriter(int expectedSamples) {
+		mBody = new byte[Math.max(16, expectedSamples * 2)];
+	}
+
+	/** Encodes a signed value so small negative values stay small. */
+	static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/** Adds the next sample. */
+	public void add(long timestamp, long rotations) {
+		if (mCount == 0) {
+			mFirstTimestamp = timestamp;
+			mFirstRotations = rotations;
+		} else {
+			long delta = timestamp - mLastTimestamp;
+			writeVarint(zigZag(delta - mLastTimestampDelta));
+			writeVarint(zigZag(rotations - mLastRotations));
+			mLastTimestampDelta = delta;
+		}
+		mLastTimestamp = timestamp;
+		mLastRotations = rotations;
+		mCount++;
+	}
+
+	private void writeVarint(long value) {
+		if (mLength + 10 > mBody.length) {
+			mBody = Arrays.copyOf(mBody, mBody.length * 2);
+		}
+		while ((value & ~0x7FL) != 0) {
+			mBody[mLength++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		mBody[mLength++] = (byte) value;
+	}
+
+	/** Number of added samples. */
+	public int getCount() {
+		return mCount;
+	}
+
+	/** Removes all samples, the buffer will be reused. */
+	public void reset() {
+		mCount = 0;
+		mLength = 0;
+		mLastTimestampDelta = 0;
+	}
+
+	/** Writes the block with header. */
+	public void writeTo(OutputStream out) throws IOException {
+		byte[] header = header();
+		out.write(header);
+		out.write(mBody, 0, mLength);
+	}
+
+	/** Returns the block with header. */
+	public byte[] toByteArray() {
+		byte[] header = header();
+		byte[] block = new byte[header.length + mLength];
+		System.arraycopy(header, 0, block, 0, header.length);
+		System.arraycopy(mBody, 0, block, header.length, mLength);
+		return block;
+	}
+
+	private byte[] header() {
+		byte[] header = new byte[3 + 3 * 10];
+		int length = 0;
+		header[length++] = MAGIC_1;
+		header[length++] = MAGIC_2;
+		header[length++] = VERSION;
+		length = putVarint(header, length, mCount);
+		if (mCount > 0) {
+			length = putVarint(header, length, zigZag(mFirstTimestamp));
+			length = putVarint(header, length, zigZag(mFirstRotations));
+		}
+		return Arrays.copyOf(header, length);
+	}
+
+	private static int putVarint(byte[] buffer, int position, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return position;
+	}
+}
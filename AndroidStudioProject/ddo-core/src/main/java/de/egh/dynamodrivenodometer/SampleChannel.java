@@ -0,0 +1,252 @@
+package de.egh.dynamodrivenodometer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers samples and messages from the DeviceService to in-process consumers without system
+ * broadcasts. A single producer thread publishes into a ring buffer of primitive arrays, every
+ * consumer reads with its own sequence. The producer never waits for a consumer: If a consumer
+ * falls behind by the capacity, its oldest entries are skipped and counted as overrun. After each
+ * publish, the listeners are called on the producer thread and should hand over to their own
+ * thread, e.g. by posting to a Handler. Publishing and reading a sample doesn't allocate.
+ */
+public class SampleChannel {
+
+	/** Entry with distance and speed */
+	public static final int TYPE_SAMPLE = 0;
+
+	/** Entry with a message text */
+	public static final int TYPE_MESSAGE = 1;
+
+	/** Default number of entries a consumer may fall behind */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * Notification about new entries.
+	 */
+	public interface Listener {
+		/** Called on the producer thread after an entry has been published. */
+		void onAvailable(Consumer consumer);
+	}
+
+	/**
+	 * Reads the entries of the channel in publishing order. A consumer must only be read by one
+	 * thread. The getters return the values of the last entry read by next().
+	 */
+	public static class Consumer {
+		private final SampleChannel mChannel;
+		private final Listener mListener;
+
+		/** Next sequence to read, moved forward by the producer on overrun */
+		private final AtomicLong mSequence;
+		/** Only written by the producer */
+		private volatile long mOverruns;
+
+		private int mType;
+		private long mTimestamp;
+		private long mReceivedAt;
+		private long mDistance;
+		private float mSpeed;
+		private String mMessage;
+
+		private Consumer(SampleChannel channel, Listener listener, long sequence) {
+			mChannel = channel;
+			mListener = listener;
+			mSequence = new AtomicLong(sequence);
+		}
+
+		/** Moves to the next entry. Returns FALSE, if there is no unread entry. */
+		public boolean next() {
+			SampleChannel channel = mChannel;
+			while (true) {
+				long sequence = mSequence.get();
+				if (sequence >= channel.mPublished) {
+					return false;
+				}
+				int i = (int) sequence & channel.mMask;
+				mType = channel.mTypes[i];
+				mTimestamp = channel.mTimestamps[i];
+				mReceivedAt = channel.mReceivedAts[i];
+				mDistance = channel.mDistances[i];
+				mSpeed = channel.mSpeeds[i];
+				mMessage = channel.mMessages[i];
+
+				// Fails, if the producer skipped this entry for overwriting while it was read
+				if (mSequence.compareAndSet(sequence, sequence + 1)) {
+					return true;
+				}
+			}
+		}
+
+		/** Number of unread entries. */
+		public long available() {
+			return mChannel.mPublished - mSequence.get();
+		}
+
+		/** Number of entries skipped because the consumer fell behind. */
+		public long getOverrunCount() {
+			return mOverruns;
+		}
+
+		/** TYPE_SAMPLE or TYPE_MESSAGE */
+		public int getType() {
+			return mType;
+		}
+
+		public long getTimestamp() {
+			return mTimestamp;
+		}
+
+		/**
+		 * Arrival time of the frame of the sample, only for TYPE_SAMPLE. Later than the timestamp
+		 * for the samples buffered by the device, see FrameDecoder.TYPE_BATCH.
+		 */
+		public long getReceivedAt() {
+			return mReceivedAt;
+		}
+
+		/** Lifetime distance in wheel rotations, only for TYPE_SAMPLE. */
+		public long getDistance() {
+			return mDistance;
+		}
+
+		/** Smoothed speed in m/s, only for TYPE_SAMPLE. */
+		public float getSpeed() {
+			return mSpeed;
+		}
+
+		/** Text for TYPE_MESSAGE, otherwise NULL. */
+		public String getMessage() {
+			return mMessage;
+		}
+	}
+
+	private static final Consumer[] NO_CONSUMERS = new Consumer[0];
+
+	private final int mMask;
+	private final int[] mTypes;
+	private final long[] mTimestamps;
+	private final long[] mReceivedAts;
+	private final long[] mDistances;
+	private final float[] mSpeeds;
+	private final String[] mMessages;
+
+	/** Number of published entries, only written by the producer */
+	private volatile long mPublished;
+
+	/** Replaced on every change, so the producer iterates without locking */
+	private volatile Consumer[] mConsumers = NO_CONSUMERS;
+
+	public SampleChannel() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity Power of two.
+	 */
+	public SampleChannel(int capacity) {
+		if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+		}
+		mMask = capacity - 1;
+		mTypes = new int[capacity];
+		mTimestamps = new long[capacity];
+		mReceivedAts = new long[capacity];
+		mDistances = new long[capacity];
+		mSpeeds = new float[capacity];
+		mMessages = new String[capacity];
+	}
+
+	/**
+	 * Registers a consumer, which reads all entries published from now on.
+	 *
+	 * @param listener Notified after every publish, may be NULL for polling consumers.
+	 */
+	public synchronized Consumer subscribe(Listener listener) {
+		Consumer consumer = new Consumer(this, listener, mPublished);
+		Consumer[] consumers = new Consumer[mConsumers.length + 1];
+		System.arraycopy(mConsumers, 0, consumers, 0, mConsumers.length);
+		consumers[consumers.length - 1] = consumer;
+		mConsumers = consumers;
+		return consumer;
+	}
+
+	/** Removes a consumer, does nothing if it isn't registered. */
+	public synchronized void unsubscribe(Consumer consumer) {
+		Consumer[] consumers = mConsumers;
+		for (int i = 0; i < consumers.length; i++) {
+			if (consumers[i] == consumer) {
+				Consumer[] remaining = new Consumer[consumers.length - 1];
+				System.arraycopy(consumers, 0, remaining, 0, i);
+				System.arraycopy(consumers, i + 1, remaining, i, remaining.length - i);
+				mConsumers = remaining;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Publishes a distance sample received at its timestamp. Must only be called by the producer
+	 * thread.
+	 */
+	public void publishSample(long timestamp, long distance, float speed) {
+		publish(TYPE_SAMPLE, timestamp, timestamp, distance, speed, null);
+	}
+
+	/**
+	 * Publishes a distance sample. Must only be called by the producer thread.
+	 *
+	 * @param receivedAt Arrival time of the frame, the timestamp may be older.
+	 */
+	public void publishSample(long timestamp, long receivedAt, long distance, float speed) {
+		publish(TYPE_SAMPLE, timestamp, receivedAt, distance, speed, null);
+	}
+
+	/** Publishes a message. Must only be called by the producer thread. */
+	public void publishMessage(long timestamp, String message) {
+		publish(TYPE_MESSAGE, timestamp, timestamp, 0, 0, message);
+	}
+
+	private void publish(int type, long timestamp, long receivedAt, long distance, float speed,
+	                     String message) {
+		long sequence = mPublished;
+		Consumer[] consumers = mConsumers;
+
+		// Skip the entry to overwrite for consumers, which haven't read it yet
+		for (Consumer consumer : consumers) {
+			long read = consumer.mSequence.get();
+			while (sequence - read > mMask) {
+				if (consumer.mSequence.compareAndSet(read, read + 1)) {
+					consumer.mOverruns++;
+					break;
+				}
+				read = consumer.mSequence.get();
+			}
+		}
+
+		int i = (int) sequence & mMask;
+		mTypes[i] = type;
+		mTimestamps[i] = timestamp;
+		mReceivedAts[i] = receivedAt;
+		mDistances[i] = distance;
+		mSpeeds[i] = speed;
+		mMessages[i] = message;
+		mPublished = sequence + 1;
+
+		for (Consumer consumer : consumers) {
+			if (consumer.mListener != null) {
+				consumer.mListener.onAvailable(consumer);
+			}
+		}
+	}
+
+	/** Number of entries published since creation. */
+	public long getPublishedCount() {
+		return mPublished;
+	}
+
+	/** Number of entries a consumer may fall behind. */
+	public int getCapacity() {
+		return mMask + 1;
+	}
+}
@@ -0,0 +1,277 @@
+package de.egh.dynamodrivenodometer;
+
+import java.io.IOException;
+
+/**
+ * Processes the raw values of a device: Decodes the frame, reconciles the counter into the lifetime
+ * distance, updates the kinematics, hands the sample to the sinks and publishes it on the
+ * SampleChannel. Messages and invalid frames are published as message. Every frame is dispatched
+ * by its type byte to a FrameHandler in a table of 256 entries; further types like telemetry can
+ * be added with setHandler(), frames of types without handler are only counted. Sequenced
+ * distance frames are checked by a SequenceTracker: Duplicates are dropped, and the samples of
+ * lost frames are interpolated into the sinks and the kinematics. Every sample of a batch frame is
+ * processed at its own time, the arrival minus its age. Samples not newer than the last one are
+ * dropped, so the sinks get increasing timestamps, e.g. a batch overlapping a former frame. Must
+ * only be called by one thread at a time, in the order the values arrive.
+ */
+public class SamplePipeline {
+
+	/** Result of process() for a sequenced frame that has already been processed */
+	public static final int RESULT_DUPLICATE = 100;
+
+	/** Gaps up to this number of lost frames are interpolated */
+	public static final int MAX_INTERPOLATED = 100;
+
+	/**
+	 * Events of the pipeline, called on the processing thread.
+	 */
+	public interface Listener {
+		/** The base offset of the reconciler has changed and should be persisted. */
+		void onBaseOffsetChanged(OdometerReconciler reconciler);
+
+		/** A sink failed, the sample is lost for this sink. */
+		void onSinkError(SampleSink sink, IOException e);
+	}
+
+	private static final SampleSink[] NO_SINKS = new SampleSink[0];
+
+	/** One handler per value of the type byte */
+	private static final int TYPES = 256;
+
+	/** Reused for every value */
+	private final FrameDecoder mDecoder = new FrameDecoder();
+	private final OdometerReconciler mReconciler;
+	private final KinematicsEngine mKinematics;
+	private final SampleChannel mChannel;
+	private final Listener mListener;
+	private final SequenceTracker mSequenceTracker = new SequenceTracker();
+
+	/** Last distance sample, for interpolation */
+	private boolean mHasLast;
+	private long mLastTimestamp;
+	private long mLastLifetime;
+	private long mInterpolatedCount;
+	private long mStaleCount;
+
+	/** Replaced on every change, so processing iterates without locking */
+	private volatile SampleSink[] mSinks = NO_SINKS;
+
+	/** Indexed by the unsigned type byte, replaced on every change like mSinks */
+	private volatile FrameHandler[] mHandlers = new FrameHandler[TYPES];
+	private volatile long mUnknownCount;
+
+	/** Distance frames of all formats */
+	private final FrameHandler mDistanceHandler = new FrameHandler() {
+		@Override
+		public int handle(long timestamp, FrameDecoder decoder) {
+			if (!decoder.hasDistance()) {
+				mChannel.publishMessage(timestamp, decoder.getMessage());
+				return decoder.getError();
+			}
+
+			int sequenceResult = SequenceTracker.RESULT_NEXT;
+			if (decoder.getSequence() >= 0) {
+				sequenceResult = mSequenceTracker.accept(decoder.getSequence(), decoder.getValue());
+				if (sequenceResult == SequenceTracker.RESULT_DUPLICATE) {
+					return RESULT_DUPLICATE;
+				}
+			}
+
+			boolean gap = sequenceResult == SequenceTracker.RESULT_GAP;
+			while (decoder.nextSample()) {
+				processDistance(timestamp - decoder.getSampleAge(), timestamp, decoder.getSampleValue(),
+						gap);
+				gap = false;
+			}
+			return FrameDecoder.OK;
+		}
+	};
+
+	private final FrameHandler mMessageHandler = new FrameHandler() {
+		@Override
+		public int handle(long timestamp, FrameDecoder decoder) {
+			mChannel.publishMessage(timestamp, decoder.getMessage());
+			return decoder.getError();
+		}
+	};
+
+	/**
+	 * @param listener May be NULL.
+	 */
+	public SamplePipeline(OdometerReconciler reconciler, KinematicsEngine kinematics,
+	                      SampleChannel channel, Listener listener) {
+		mReconciler = reconciler;
+		mKinematics = kinematics;
+		mChannel = channel;
+		mListener = listener;
+		FrameHandler[] handlers = mHandlers;
+		handlers[FrameDecoder.TYPE_DISTANCE] = mDistanceHandler;
+		handlers[FrameDecoder.TYPE_SEQUENCED_DISTANCE] = mDistanceHandler;
+		handlers[FrameDecoder.TYPE_BATCH] = mDistanceHandler;
+		handlers[FrameDecoder.TYPE_MESSAGE] = mMessageHandler;
+	}
+
+	/**
+	 * Sets the handler for the frames of the type, replacing the former one. NULL removes the
+	 * handler, so the frames of the type are only counted, see getUnknownCount().
+	 */
+	public synchronized void setHandler(byte type, FrameHandler handler) {
+		FrameHandler[] handlers = mHandlers.clone();
+		handlers[type & 0xFF] = handler;
+		mHandlers = handlers;
+	}
+
+	/** Handler for the frames of the type, NULL if there is none. */
+	public FrameHandler getHandler(byte type) {
+		return mHandlers[type & 0xFF];
+	}
+
+	public synchronized void addSink(SampleSink sink) {
+		SampleSink[] sinks = new SampleSink[mSinks.length + 1];
+		System.arraycopy(mSinks, 0, sinks, 0, mSinks.length);
+		sinks[sinks.length - 1] = sink;
+		mSinks = sinks;
+	}
+
+	/** Removes the sink, does nothing if it isn't added. */
+	public synchronized void removeSink(SampleSink sink) {
+		SampleSink[] sinks = mSinks;
+		for (int i = 0; i < sinks.length; i++) {
+			if (sinks[i] == sink) {
+				SampleSink[] remaining = new SampleSink[sinks.length - 1];
+				System.arraycopy(sinks, 0, remaining, 0, i);
+				System.arraycopy(sinks, i + 1, remaining, i, remaining.length - i);
+				mSinks = remaining;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Processes a raw value received at the timestamp. Returns the result of the FrameHandler,
+	 * ERROR_UNKNOWN_TYPE for a type without handler or RESULT_DUPLICATE.
+	 * <p/>
+	 * The state of the decoder can be read with getDecoder() afterwards.
+	 */
+	public int process(long timestamp, byte[] value) {
+		return process(timestamp, value, 0, value == null ? 0 : value.length);
+	}
+
+	/**
+	 * Processes the raw value in data[offset] ... data[offset + length - 1], e.g. in a reused
+	 * buffer. The buffer must not change until the next value, the decoder refers to it.
+	 */
+	public int process(long timestamp, byte[] data, int offset, int length) {
+		int result = mDecoder.decode(data, offset, length);
+		if (result == FrameDecoder.ERROR_EMPTY) {
+			mChannel.publishMessage(timestamp, mDecoder.getMessage());
+			return result;
+		}
+
+		FrameHandler handler = mHandlers[mDecoder.getType() & 0xFF];
+		if (handler == null) {
+			mUnknownCount++;
+			return FrameDecoder.ERROR_UNKNOWN_TYPE;
+		}
+		return handler.handle(timestamp, mDecoder);
+	}
+
+	/**
+	 * Reconciles a distance sample and publishes it.
+	 *
+	 * @param receivedAt Arrival time of the frame.
+	 * @param gap        TRUE to interpolate the lost frames before, see SequenceTracker.getLastGap().
+	 */
+	private void processDistance(long timestamp, long receivedAt, long value, boolean gap) {
+		if (mHasLast && timestamp <= mLastTimestamp) {
+			mStaleCount++;
+			return;
+		}
+		long baseOffset = mReconciler.getBaseOffset();
+		long lifetime = mReconciler.add(timestamp, value);
+		if (mReconciler.getBaseOffset() != baseOffset && mListener != null) {
+			mListener.onBaseOffsetChanged(mReconciler);
+		}
+
+		if (gap) {
+			interpolate(mSequenceTracker.getLastGap(), timestamp, lifetime);
+		}
+		addSample(timestamp, lifetime);
+		mChannel.publishSample(timestamp, receivedAt, lifetime, (float) mKinematics.getSmoothedSpeed());
+		mHasLast = true;
+		mLastTimestamp = timestamp;
+		mLastLifetime = lifetime;
+	}
+
+	/**
+	 * Adds the samples of the lost frames between the last sample and this one, evenly spread in
+	 * time and distance. Nothing is added across a counter reset or for large gaps.
+	 */
+	private void interpolate(long missing, long timestamp, long lifetime) {
+		if (!mHasLast || missing > MAX_INTERPOLATED || lifetime < mLastLifetime
+				|| timestamp <= mLastTimestamp) {
+			return;
+		}
+		for (long i = 1; i <= missing; i++) {
+			addSample(mLastTimestamp + (timestamp - mLastTimestamp) * i / (missing + 1),
+					mLastLifetime + (lifetime - mLastLifetime) * i / (missing + 1));
+			mInterpolatedCount++;
+		}
+	}
+
+	/** Hands the sample to the sinks and the kinematics. */
+	private void addSample(long timestamp, long lifetime) {
+		for (SampleSink sink : mSinks) {
+			try {
+				sink.add(timestamp, lifetime);
+			} catch (IOException e) {
+				if (mListener != null) {
+					mListener.onSinkError(sink, e);
+				}
+			}
+		}
+		mKinematics.add(timestamp, lifetime);
+	}
+
+	/** Starts a new connection for the sequence check, see SequenceTracker.reset(). */
+	public void resetSequence() {
+		mSequenceTracker.reset();
+	}
+
+	/** Sequence counters of the actual connection. */
+	public SequenceTracker getSequenceTracker() {
+		return mSequenceTracker;
+	}
+
+	/** Number of frames of types without handler. */
+	public long getUnknownCount() {
+		return mUnknownCount;
+	}
+
+	/** Number of samples interpolated for lost frames. */
+	public long getInterpolatedCount() {
+		return mInterpolatedCount;
+	}
+
+	/** Number of samples dropped because they were not newer than the last sample. */
+	public long getStaleCount() {
+		return mStaleCount;
+	}
+
+	/** Decoder with the state of the last processed value. */
+	public FrameDecoder getDecoder() {
+		return mDecoder;
+	}
+
+	public OdometerReconciler getReconciler() {
+		return mReconciler;
+	}
+
+	public KinematicsEngine getKinematics() {
+		return mKinematics;
+	}
+
+	public SampleChannel getChannel() {
+		return mChannel;
+	}
+}
@@ -0,0 +1,92 @@
+package de.egh.dynamodrivenodometer;
+
+/**
+ * Calculates the interval until the next value read from the wheel rotation rate. While moving,
+ * the interval aims at a fixed number of rotations per sample, limited by the minimum interval.
+ * When the counter stops changing, the interval will be doubled with every sample up to the
+ * maximum interval. Time is passed in by the caller, so the scheduler can run on a virtual clock.
+ */
+public class SampleScheduler {
+
+	/** Default shortest interval in milliseconds */
+	public static final long DEFAULT_MIN_INTERVAL = 250;
+
+	/** Default longest interval in milliseconds, used while parking */
+	public static final long DEFAULT_MAX_INTERVAL = 8000;
+
+	/** Default number of wheel rotations between two samples while moving */
+	public static final double DEFAULT_ROTATIONS_PER_SAMPLE = 2.0;
+
+	private final long mMinInterval;
+	private final long mMaxInterval;
+	private final double mRotationsPerSample;
+
+	/** Interval for the next read */
+	private long mInterval;
+
+	/** Values of the last sample, mLastTimestamp < 0 if there is none */
+	private long mLastTimestamp = -1;
+	private long mLastRotations;
+
+	public SampleScheduler() {
+		this(DEFAULT_MIN_INTERVAL, DEFAULT_MAX_INTERVAL, DEFAULT_ROTATIONS_PER_SAMPLE);
+	}
+
+	public SampleScheduler(long minInterval, long maxInterval, double rotationsPerSample) {
+		if (minInterval <= 0 || maxInterval < minInterval || rotationsPerSample <= 0) {
+			throw new IllegalArgumentException("Invalid scheduler configuration: " + minInterval + "/"
+					+ maxInterval + "/" + rotationsPerSample);
+		}
+		mMinInterval = minInterval;
+		mMaxInterval = maxInterval;
+		mRotationsPerSample = rotationsPerSample;
+		mInterval = minInterval;
+	}
+
+	/**
+	 * Forgets the history, e.g. after a reconnect. The next interval is the minimum interval.
+	 */
+	public void reset() {
+		mLastTimestamp = -1;
+		mInterval = mMinInterval;
+	}
+
+	/**
+	 * Takes a new sample and returns the interval in milliseconds until the next sample should be
+	 * taken.
+	 *
+	 * @param timestamp Time of the sample in milliseconds, must not decrease.
+	 * @param rotations Wheel rotation counter of the sample.
+	 */
+	public long onSample(long timestamp, long rotations) {
+		if (mLastTimestamp >= 0) {
+			long delta = rotations - mLastRotations;
+			long elapsed = timestamp - mLastTimestamp;
+
+			// Standing still (or counter reset): Back off
+			if (delta <= 0) {
+				mInterval = Math.min(mInterval * 2, mMaxInterval);
+			}
+
+			// Moving: Interval for the wanted number of rotations at the actual rate
+			else if (elapsed > 0) {
+				long interval = (long) (mRotationsPerSample * elapsed / delta);
+				mInterval = Math.max(mMinInterval, Math.min(interval, mMaxInterval));
+			}
+
+			// Several samples at the same time while moving
+			else {
+				mInterval = mMinInterval;
+			}
+		}
+
+		mLastTimestamp = timestamp;
+		mLastRotations = rotations;
+		return mInterval;
+	}
+
+	/** Returns the interval calculated with the last sample. */
+	public long getInterval() {
+		return mInterval;
+	}
+}
@@ -0,0 +1,16 @@
+package de.egh.dynamodrivenodometer;
+
+import java.io.IOException;
+
+/**
+ * Receives the reconciled distance samples of the SamplePipeline, e.g. for storage or statistics.
+ */
+public interface SampleSink {
+
+	/**
+	 * Adds a sample. Will be called by one thread at a time with increasing timestamps.
+	 *
+	 * @param distance Lifetime distance in wheel rotations.
+	 */
+	public void add(long timestamp, long distance) throws IOException;
+}
@@ -0,0 +1,245 @@
+package de.egh.dynamodrivenodometer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Collects the advertisements of a scan and ranks the devices offering the service. The remembered
+ * device comes first, the others are ranked by their mean RSSI. Advertisements are added on the
+ * scan callback thread, the ranking is read when the scan window ends. Thread safe.
+ */
+public class ScanAggregator {
+
+	/** Advertisement without the service */
+	public static final int RESULT_IGNORED = 0;
+	/** Further advertisement of a device offering the service */
+	public static final int RESULT_ADDED = 1;
+	/** First device offering the service: The scan window starts */
+	public static final int RESULT_FIRST = 2;
+	/** First advertisement of the remembered device: No need to wait for others */
+	public static final int RESULT_REMEMBERED = 3;
+
+	// Advertising data types with service UUIDs
+	private static final int AD_UUID16_INCOMPLETE = 0x02;
+	private static final int AD_UUID16_COMPLETE = 0x03;
+	private static final int AD_UUID32_INCOMPLETE = 0x04;
+	private static final int AD_UUID32_COMPLETE = 0x05;
+	private static final int AD_UUID128_INCOMPLETE = 0x06;
+	private static final int AD_UUID128_COMPLETE = 0x07;
+
+	/** Bluetooth base UUID 00000000-0000-1000-8000-00805F9B34FB */
+	private static final long BASE_UUID_MSB = 0x0000000000001000L;
+	private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+	/**
+	 * A device offering the service.
+	 */
+	public static class Candidate {
+		private final String mAddress;
+		private String mName;
+		private int mSightings;
+		private long mRssiSum;
+		private boolean mRemembered;
+
+		private Candidate(String address) {
+			mAddress = address;
+		}
+
+		public String getAddress() {
+			return mAddress;
+		}
+
+		/** Name of the device, NULL if it has none. */
+		public String getName() {
+			return mName;
+		}
+
+		/** Number of advertisements received. */
+		public int getSightings() {
+			return mSightings;
+		}
+
+		/** Mean RSSI of all advertisements in dBm. */
+		public double getMeanRssi() {
+			return (double) mRssiSum / mSightings;
+		}
+
+		/** TRUE, if this is the remembered device. */
+		public boolean isRemembered() {
+			return mRemembered;
+		}
+
+		@Override
+		public String toString() {
+			return mAddress + " " + mName + " " + Math.round(getMeanRssi()) + " dBm/" + mSightings;
+		}
+	}
+
+	/** Remembered device first, then the stronger signal, then more sightings */
+	private static final Comparator<Candidate> RANKING = new Comparator<Candidate>() {
+		@Override
+		public int compare(Candidate a, Candidate b) {
+			if (a.mRemembered != b.mRemembered) {
+				return a.mRemembered ? -1 : 1;
+			}
+			int rssi = Double.compare(b.getMeanRssi(), a.getMeanRssi());
+			return rssi != 0 ? rssi : b.mSightings - a.mSightings;
+		}
+	};
+
+	private final UUID mService;
+	private final Map<String, Candidate> mCandidates = new HashMap<String, Candidate>();
+	private String mRememberedAddress;
+	private long mAdvertisements;
+	private long mIgnored;
+
+	/**
+	 * @param service Service the devices must advertise.
+	 */
+	public ScanAggregator(UUID service) {
+		mService = service;
+	}
+
+	/**
+	 * Forgets all candidates for a new scan.
+	 *
+	 * @param rememberedAddress Address of the preferred device, may be NULL.
+	 */
+	public synchronized void start(String rememberedAddress) {
+		mCandidates.clear();
+		mRememberedAddress = rememberedAddress;
+		mAdvertisements = 0;
+		mIgnored = 0;
+	}
+
+	/**
+	 * Adds an advertisement, returns one of the RESULT constants.
+	 *
+	 * @param name       May be NULL.
+	 * @param scanRecord Advertising data of the device.
+	 */
+	public synchronized int add(String address, String name, int rssi, byte[] scanRecord) {
+		mAdvertisements++;
+		Candidate candidate = mCandidates.get(address);
+		if (candidate == null) {
+			// Once a device offers the service, its record isn't parsed again
+			if (!hasService(scanRecord, mService)) {
+				mIgnored++;
+				return RESULT_IGNORED;
+			}
+			candidate = new Candidate(address);
+			candidate.mRemembered = address.equals(mRememberedAddress);
+			mCandidates.put(address, candidate);
+		}
+
+		if (name != null) {
+			candidate.mName = name;
+		}
+		candidate.mSightings++;
+		candidate.mRssiSum += rssi;
+
+		if (candidate.mSightings > 1) {
+			return RESULT_ADDED;
+		}
+		if (candidate.mRemembered) {
+			return RESULT_REMEMBERED;
+		}
+		return mCandidates.size() == 1 ? RESULT_FIRST : RESULT_ADDED;
+	}
+
+	/** Returns all candidates, best first. */
+	public synchronized List<Candidate> getRanked() {
+		List<Candidate> ranked = new ArrayList<Candidate>(mCandidates.values());
+		Collections.sort(ranked, RANKING);
+		return ranked;
+	}
+
+	/** Returns the best candidate, NULL if there is none. */
+	public synchronized Candidate getBest() {
+		Candidate best = null;
+		for (Candidate candidate : mCandidates.values()) {
+			if (best == null || RANKING.compare(candidate, best) < 0) {
+				best = candidate;
+			}
+		}
+		return best;
+	}
+
+	/** Number of advertisements since start(). */
+	public synchronized long getAdvertisementCount() {
+		return mAdvertisements;
+	}
+
+	/** Number of advertisements without the service since start(). */
+	public synchronized long getIgnoredCount() {
+		return mIgnored;
+	}
+
+	/**
+	 * Returns TRUE, if the advertising data lists the service UUID, in 16, 32 or 128 bit form.
+	 */
+	public static boolean hasService(byte[] scanRecord, UUID service) {
+		if (scanRecord == null) {
+			return false;
+		}
+
+		// Short form of UUIDs based on the Bluetooth base UUID
+		boolean based = service.getLeastSignificantBits() == BASE_UUID_LSB
+				&& (service.getMostSignificantBits() & 0xFFFFFFFFL) == BASE_UUID_MSB;
+		long shortUuid = based ? service.getMostSignificantBits() >>> 32 : -1;
+
+		int position = 0;
+		while (position < scanRecord.length) {
+			int length = scanRecord[position] & 0xFF;
+			if (length == 0 || position + length >= scanRecord.length) {
+				break;
+			}
+			int type = scanRecord[position + 1] & 0xFF;
+			int start = position + 2;
+			int end = position + 1 + length;
+
+			switch (type) {
+				case AD_UUID16_INCOMPLETE:
+				case AD_UUID16_COMPLETE:
+					for (int i = start; i + 2 <= end; i += 2) {
+						if (littleEndian(scanRecord, i, 2) == shortUuid) {
+							return true;
+						}
+					}
+					break;
+				case AD_UUID32_INCOMPLETE:
+				case AD_UUID32_COMPLETE:
+					for (int i = start; i + 4 <= end; i += 4) {
+						if (littleEndian(scanRecord, i, 4) == shortUuid) {
+							return true;
+						}
+					}
+					break;
+				case AD_UUID128_INCOMPLETE:
+				case AD_UUID128_COMPLETE:
+					for (int i = start; i + 16 <= end; i += 16) {
+						if (littleEndian(scanRecord, i, 8) == service.getLeastSignificantBits()
+								&& littleEndian(scanRecord, i + 8, 8) == service.getMostSignificantBits()) {
+							return true;
+						}
+					}
+					break;
+			}
+			position = end;
+		}
+		return false;
+	}
+
+	private static long littleEndian(byte[] bytes, int offset, int length) {
+		long value = 0;
+		for (int i = length - 1; i >= 0; i--) {
+			value = (value << 8) | (bytes[offset + i] & 0xFF);
+		}
+		return value;
+	}
+}
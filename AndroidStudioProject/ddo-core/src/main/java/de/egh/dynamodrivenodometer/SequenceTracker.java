@@ -0,0 +1,166 @@
+package de.egh.dynamodrivenodometer;
+
+import java.util.Arrays;
+
+/**
+ * Classifies the sequence numbers of sequenced distance frames in constant time: A repeated or
+ * older number is a duplicate, e.g. the same value read twice by polling. A jump ahead means lost
+ * frames, e.g. missed notifications. The device restarts its sequence at 0 with a restart or
+ * counter reset. A number within the window behind is only a duplicate if the same number has
+ * been received with the same counter, otherwise it is a restart. Farther away a counter going
+ * down, a 0 that isn't a wrap or a jump beyond half the range are a restart. Counters are kept per
+ * connection, see reset(); they are written by the processing
+ * thread only and can be read by any thread.
+ */
+public class SequenceTracker {
+
+	/** Sequence numbers run from 0 to MODULUS - 1 and wrap */
+	public static final long MODULUS = 65536;
+
+	/** Numbers up to this far behind the last one are duplicates, farther ones a restart */
+	public static final long WINDOW = 64;
+
+	/** First frame after reset() */
+	public static final int RESULT_FIRST = 0;
+
+	/** Next frame in sequence */
+	public static final int RESULT_NEXT = 1;
+
+	/** New frame after lost frames, see getLastGap() */
+	public static final int RESULT_GAP = 2;
+
+	/** Frame already received or older than the last one, to be dropped */
+	public static final int RESULT_DUPLICATE = 3;
+
+	/** Device has restarted its sequence */
+	public static final int RESULT_RESTART = 4;
+
+	/** Last accepted sequence number, -1 after reset() */
+	private long mLast = -1;
+	/** Counter of the last accepted frame */
+	private long mLastValue;
+	/** Last WINDOW accepted numbers and their counters, indexed by number modulo WINDOW */
+	private final long[] mWindowSequences = new long[(int) WINDOW];
+	private final long[] mWindowValues = new long[(int) WINDOW];
+	private long mLastGap;
+
+	private volatile long mAccepted;
+	private volatile long mDuplicates;
+	private volatile long mMissing;
+	private volatile long mGaps;
+	private volatile long mRestarts;
+
+	public SequenceTracker() {
+		reset();
+	}
+
+	/** Starts a new connection: Forgets the last number and the counters. */
+	public void reset() {
+		Arrays.fill(mWindowSequences, -1);
+		mLast = -1;
+		mLastValue = 0;
+		mLastGap = 0;
+		mAccepted = 0;
+		mDuplicates = 0;
+		mMissing = 0;
+		mGaps = 0;
+		mRestarts = 0;
+	}
+
+	/**
+	 * Classifies the sequence number of a frame, returns one of the RESULT constants.
+	 *
+	 * @param value Counter of the frame, the number of wheel rotations.
+	 */
+	public int accept(long sequence, long value) {
+		if (sequence < 0 || sequence >= MODULUS) {
+			throw new IllegalArgumentException("Invalid sequence " + sequence);
+		}
+		mLastGap = 0;
+		if (mLast < 0) {
+			remember(sequence, value);
+			return RESULT_FIRST;
+		}
+
+		long ahead = (sequence - mLast + MODULUS) % MODULUS;
+		long behind = MODULUS - ahead;
+		if (ahead == 0 || behind <= WINDOW) {
+			int index = (int) (sequence % WINDOW);
+			if (mWindowSequences[index] == sequence && mWindowValues[index] == value) {
+				mDuplicates++;
+				return RESULT_DUPLICATE;
+			}
+			return restart(sequence, value);
+		}
+		// A jump ahead beyond half the range is rather a restart than a loss
+		if (value < mLastValue || (sequence == 0 && ahead > WINDOW) || ahead >= MODULUS / 2) {
+			return restart(sequence, value);
+		}
+
+		remember(sequence, value);
+		if (ahead == 1) {
+			return RESULT_NEXT;
+		}
+		mLastGap = ahead - 1;
+		mMissing += mLastGap;
+		mGaps++;
+		return RESULT_GAP;
+	}
+
+	private int restart(long sequence, long value) {
+		// Numbers of the former sequence aren't duplicates of the new one
+		Arrays.fill(mWindowSequences, -1);
+		remember(sequence, value);
+		mRestarts++;
+		return RESULT_RESTART;
+	}
+
+	private void remember(long sequence, long value) {
+		mLast = sequence;
+		mLastValue = value;
+		mWindowSequences[(int) (sequence % WINDOW)] = sequence;
+		mWindowValues[(int) (sequence % WINDOW)] = value;
+		mAccepted++;
+	}
+
+	/** Number of frames lost before the last frame with RESULT_GAP, otherwise 0. */
+	public long getLastGap() {
+		return mLastGap;
+	}
+
+	/** Frames accepted since reset(). */
+	public long getAcceptedCount() {
+		return mAccepted;
+	}
+
+	public long getDuplicateCount() {
+		return mDuplicates;
+	}
+
+	/** Frames lost in all gaps. */
+	public long getMissingCount() {
+		return mMissing;
+	}
+
+	/** Number of gaps, each of one or more lost frames. */
+	public long getGapCount() {
+		return mGaps;
+	}
+
+	public long getRestartCount() {
+		return mRestarts;
+	}
+
+	/** Fraction of the frames sent by the device that have been lost, 0 without frames. */
+	public double getLossRate() {
+		long missing = mMissing;
+		long sent = mAccepted + missing;
+		return sent == 0 ? 0 : (double) missing / sent;
+	}
+
+	@Override
+	public String toString() {
+		return "accepted=" + mAccepted + " duplicates=" + mDuplicates + " missing=" + mMissing
+				+ " gaps=" + mGaps + " restarts=" + mRestarts + " loss=" + String.format("%.4f", getLossRate());
+	}
+}
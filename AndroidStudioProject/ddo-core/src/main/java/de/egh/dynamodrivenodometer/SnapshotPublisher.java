@@ -0,0 +1,103 @@
+package de.egh.dynamodrivenodometer;
+
+import java.util.List;
+
+/**
+ * Applies the samples and messages of a SampleChannel consumer to the screen state and publishes
+ * it as immutable RideSnapshot. update() must only be called by one thread, which owns the
+ * MessageBox from then on; getSnapshot() can be called by any thread, e.g. the UI thread only
+ * rendering the latest snapshot. The snapshots only contain the newest messages, getMessages()
+ * serializes all of them for persisting.
+ */
+public class SnapshotPublisher {
+
+	private final MessageBox mMessageBox;
+	private final int mMessageLines;
+
+	private volatile RideSnapshot mSnapshot;
+
+	/**
+	 * @param messageBox   Messages restored so far, only changed by update() afterwards.
+	 * @param messageLines Number of newest messages in the snapshots.
+	 * @param distance     Restored distance, shown until the first sample.
+	 * @param lastUpdateAt Restored time of the last sample.
+	 */
+	public SnapshotPublisher(MessageBox messageBox, int messageLines, long distance, long lastUpdateAt) {
+		mMessageBox = messageBox;
+		mMessageLines = messageLines;
+		mSnapshot = createSnapshot(distance, 0, lastUpdateAt, 0, 0, 0);
+	}
+
+	/**
+	 * Takes all pending samples and messages of the consumer. Returns the new snapshot, NULL if
+	 * there was nothing pending.
+	 */
+	public RideSnapshot update(SampleChannel.Consumer consumer) {
+		RideSnapshot last = mSnapshot;
+		long distance = last.getDistance();
+		float speed = last.getSpeed();
+		long lastUpdateAt = last.getLastUpdateAt();
+		long receivedAt = last.getReceivedAt();
+		long samples = last.getSampleCount();
+		boolean messagesChanged = false;
+		boolean changed = false;
+
+		while (consumer.next()) {
+			changed = true;
+			if (consumer.getType() == SampleChannel.TYPE_SAMPLE) {
+				distance = consumer.getDistance();
+				speed = consumer.getSpeed();
+				lastUpdateAt = consumer.getTimestamp();
+				receivedAt = consumer.getReceivedAt();
+				samples++;
+			} else {
+				synchronized (mMessageBox) {
+					mMessageBox.add(consumer.getMessage(), consumer.getTimestamp());
+				}
+				messagesChanged = true;
+			}
+		}
+		if (!changed) {
+			return null;
+		}
+
+		RideSnapshot snapshot;
+		if (messagesChanged) {
+			snapshot = createSnapshot(distance, speed, lastUpdateAt, receivedAt, samples,
+					last.getMessageVersion() + 1);
+		} else {
+			snapshot = last.withSample(distance, speed, lastUpdateAt, receivedAt, samples);
+		}
+		mSnapshot = snapshot;
+		return snapshot;
+	}
+
+	private RideSnapshot createSnapshot(long distance, float speed, long lastUpdateAt,
+	                                    long receivedAt, long samples, long messageVersion) {
+		List<MessageBox.Msg> messages = mMessageBox.getNewest(mMessageLines);
+		int lines = messages.size();
+		long[] timestamps = new long[lines];
+		String[] texts = new String[lines];
+		for (int i = 0; i < lines; i++) {
+			timestamps[i] = messages.get(i).getTimestamp();
+			texts[i] = messages.get(i).getText();
+		}
+		return new RideSnapshot(distance, speed, lastUpdateAt, receivedAt, samples, messageVersion,
+				timestamps, texts);
+	}
+
+	/**
+	 * All messages as one string, see MessageBox.asString(). Callable from any thread, but reads
+	 * all messages, so call it only for persisting.
+	 */
+	public String getMessages() {
+		synchronized (mMessageBox) {
+			return mMessageBox.asString();
+		}
+	}
+
+	/** Latest snapshot, callable from any thread. */
+	public RideSnapshot getSnapshot() {
+		return mSnapshot;
+	}
+}
@@ -0,0 +1,515 @@
+package de.egh.dynamodrivenodometer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-behind store for small state values, e.g. the odometer screen. Puts only change the values
+ * in memory and never touch the disk. A background thread appends the changed values to a journal
+ * once per flush interval, so a crash loses at most the changes of one interval. When the journal
+ * grows beyond a limit, all values are written to a checkpoint and the journal starts again. On
+ * open, the checkpoint and the journal are replayed; a torn record at the end of the journal is
+ * cut off. Big values changing often can be written on checkpoints only, see
+ * setCheckpointSource(). Thread safe.
+ */
+public class StateStore implements Closeable {
+
+	/** Default time between flushes in milliseconds, the maximum loss on a crash */
+	public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+	/** Default journal size triggering a checkpoint */
+	public static final int DEFAULT_CHECKPOINT_BYTES = 64 * 1024;
+
+	/** File names within the directory */
+	public static final String CHECKPOINT = "state.chk";
+	public static final String JOURNAL = "state.jnl";
+
+	private static final int CHECKPOINT_MAGIC = 0x44445353;
+	private static final int CHECKPOINT_VERSION = 1;
+
+	private static final byte TYPE_LONG = 0;
+	private static final byte TYPE_STRING = 1;
+
+	/** Supplies a value written on checkpoints only */
+	public interface ValueSource {
+		/** Called on the background thread. Returns the actual value, NULL to keep the stored one. */
+		String get();
+	}
+
+	/** Value of a key, changed in place */
+	private static class Entry {
+		final String key;
+		byte type;
+		long longValue;
+		String stringValue;
+		/** Changed since the last flush */
+		boolean dirty;
+
+		Entry(String key) {
+			this.key = key;
+		}
+	}
+
+	private final File mDirectory;
+	private final File mJournalFile;
+	private final File mCheckpointFile;
+	private final int mCheckpointBytes;
+
+	/** Guards the values, held only for in-memory work */
+	private final Object mLock = new Object();
+	private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+	private final Map<String, ValueSource> mSources = new HashMap<String, ValueSource>();
+	private boolean mDirty;
+
+	/** Only used by the flushing thread, or after it has stopped */
+	private FileOutputStream mJournal;
+	/** Buffers the records of a flush in front of mJournal */
+	private DataOutputStream mJournalOut;
+	private long mJournalSize;
+	private final CRC32 mCrc = new CRC32();
+	private final ByteArrayOutputStream mRecordBytes = new ByteArrayOutputStream();
+	private final DataOutputStream mRecord = new DataOutputStream(mRecordBytes);
+
+	private final ScheduledExecutorService mExecutor;
+
+	// Statistics
+	private final int mReplayed;
+	private volatile long mFlushes;
+	private volatile long mCheckpoints;
+	private volatile IOException mLastError;
+
+	public StateStore(File directory) throws IOException {
+		this(directory, DEFAULT_FLUSH_INTERVAL, DEFAULT_CHECKPOINT_BYTES);
+	}
+
+	/**
+	 * Opens the store and replays checkpoint and journal. This is the only disk access on the
+	 * calling thread, so open the store on a background thread.
+	 *
+	 * @param flushInterval   Milliseconds between two flushes, 0 to flush only on flush() and
+	 *                        close().
+	 * @param checkpointBytes Journal size triggering a checkpoint.
+	 */
+	public StateStore(File directory, long flushInterval, int checkpointBytes) throws IOException {
+		if (flushInterval < 0 || checkpointBytes <= 0) {
+			throw new IllegalArgumentException("Invalid state store configuration: " + flushInterval
+					+ "/" + checkpointBytes);
+		}
+		mDirectory = directory;
+		mJournalFile = new File(directory, JOURNAL);
+		mCheckpointFile = new File(directory, CHECKPOINT);
+		mCheckpointBytes = checkpointBytes;
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can't create state directory " + directory);
+		}
+
+		readCheckpoint();
+		mReplayed = replayJournal();
+		openJournal(true);
+
+		mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "StateStore");
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		if (flushInterval > 0) {
+			mExecutor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						flush();
+					} catch (IOException e) {
+						mLastError = e;
+					}
+				}
+			}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public long getLong(String key, long defaultValue) {
+		synchronized (mLock) {
+			Entry entry = mEntries.get(key);
+			return entry != null && entry.type == TYPE_LONG ? entry.longValue : defaultValue;
+		}
+	}
+
+	public boolean getBoolean(String key, boolean defaultValue) {
+		return getLong(key, defaultValue ? 1 : 0) != 0;
+	}
+
+	public String getString(String key, String defaultValue) {
+		synchronized (mLock) {
+			Entry entry = mEntries.get(key);
+			return entry != null && entry.type == TYPE_STRING ? entry.stringValue : defaultValue;
+		}
+	}
+
+	/** Returns TRUE, if the store has a value for the key. */
+	public boolean contains(String key) {
+		synchronized (mLock) {
+			return mEntries.containsKey(key);
+		}
+	}
+
+	/** Sets the value, doesn't allocate for an existing key. */
+	public void putLong(String key, long value) {
+		synchronized (mLock) {
+			Entry entry = entry(key);
+			if (entry.type != TYPE_LONG || entry.longValue != value) {
+				entry.type = TYPE_LONG;
+				entry.longValue = value;
+				entry.stringValue = null;
+				markDirty(entry);
+			}
+		}
+	}
+
+	public void putBoolean(String key, boolean value) {
+		putLong(key, value ? 1 : 0);
+	}
+
+	public void putString(String key, String value) {
+		if (value == null) {
+			throw new IllegalArgumentException("Value of " + key + " is NULL");
+		}
+		synchronized (mLock) {
+			Entry entry = entry(key);
+			if (entry.type != TYPE_STRING || !value.equals(entry.stringValue)) {
+				entry.type = TYPE_STRING;
+				entry.stringValue = value;
+				markDirty(entry);
+			}
+		}
+	}
+
+	/**
+	 * Registers the source of a string value that is never journaled, but read and written on
+	 * every checkpoint, e.g. on close(). Changes since the last checkpoint are lost on a crash.
+	 * getString() returns the value stored so far.
+	 */
+	public void setCheckpointSource(String key, ValueSource source) {
+		synchronized (mLock) {
+			mSources.put(key, source);
+		}
+	}
+
+	private Entry entry(String key) {
+		Entry entry = mEntries.get(key);
+		if (entry == null) {
+			entry = new Entry(key);
+			entry.type = -1;
+			mEntries.put(key, entry);
+		}
+		return entry;
+	}
+
+	private void markDirty(Entry entry) {
+		entry.dirty = true;
+		mDirty = true;
+	}
+
+	/**
+	 * Appends the values changed since the last flush to the journal and syncs it, checkpoints if
+	 * the journal is too big. Called by the background thread, may be called directly e.g. in tests.
+	 */
+	public synchronized void flush() throws IOException {
+		// Copy the changes, so the disk is written without holding the lock of the values
+		List<Entry> changes;
+		synchronized (mLock) {
+			if (!mDirty) {
+				return;
+			}
+			changes = new ArrayList<Entry>();
+			for (Entry entry : mEntries.values()) {
+				if (entry.dirty) {
+					Entry change = new Entry(entry.key);
+					change.type = entry.type;
+					change.longValue = entry.longValue;
+					change.stringValue = entry.stringValue;
+					changes.add(change);
+					entry.dirty = false;
+				}
+			}
+			mDirty = false;
+		}
+
+		try {
+			for (Entry change : changes) {
+				appendRecord(change);
+			}
+			mJournalOut.flush();
+			mJournal.getFD().sync();
+		} catch (IOException e) {
+			// Keep the changes for the next flush
+			synchronized (mLock) {
+				for (Entry change : changes) {
+					Entry entry = mEntries.get(change.key);
+					entry.dirty = true;
+				}
+				mDirty = true;
+			}
+			throw e;
+		}
+		mFlushes++;
+
+		if (mJournalSize >= mCheckpointBytes) {
+			checkpoint();
+		}
+	}
+
+	/** Record: Length and CRC of the payload, payload with type, key and value */
+	private void appendRecord(Entry entry) throws IOException {
+		mRecordBytes.reset();
+		writeEntry(mRecord, entry);
+		byte[] payload = mRecordBytes.toByteArray();
+		mCrc.reset();
+		mCrc.update(payload, 0, payload.length);
+
+		mJournalOut.writeInt(payload.length);
+		mJournalOut.writeInt((int) mCrc.getValue());
+		mJournalOut.write(payload);
+		mJournalSize += 8 + payload.length;
+	}
+
+	private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+		out.writeByte(entry.type);
+		out.writeUTF(entry.key);
+		if (entry.type == TYPE_LONG) {
+			out.writeLong(entry.longValue);
+		} else {
+			writeString(out, entry.stringValue);
+		}
+	}
+
+	/** Strings may be longer than writeUTF() allows, e.g. the messages */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private void readEntry(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		Entry entry = entry(in.readUTF());
+		entry.type = type;
+		if (type == TYPE_LONG) {
+			entry.longValue = in.readLong();
+			entry.stringValue = null;
+		} else if (type == TYPE_STRING) {
+			entry.stringValue = readString(in);
+		} else {
+			throw new IOException("Unknown state type " + type);
+		}
+	}
+
+	/**
+	 * Writes all values into the checkpoint, replacing it atomically, and empties the journal.
+	 * A crash in between only replays values already in the checkpoint.
+	 */
+	public synchronized void checkpoint() throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		Map<String, ValueSource> sources;
+		synchronized (mLock) {
+			for (Entry entry : mEntries.values()) {
+				Entry copy = new Entry(entry.key);
+				copy.type = entry.type;
+				copy.longValue = entry.longValue;
+				copy.stringValue = entry.stringValue;
+				entries.add(copy);
+			}
+			sources = new HashMap<String, ValueSource>(mSources);
+		}
+		// The sources are read without holding the lock of the values
+		for (Map.Entry<String, ValueSource> source : sources.entrySet()) {
+			String value = source.getValue().get();
+			if (value != null) {
+				entries.add(checkpointEntry(entries, source.getKey(), value));
+			}
+		}
+
+		File temp = new File(mDirectory, CHECKPOINT + ".tmp");
+		FileOutputStream file = new FileOutputStream(temp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+			out.writeInt(CHECKPOINT_MAGIC);
+			out.writeInt(CHECKPOINT_VERSION);
+			out.writeInt(entries.size());
+			for (Entry entry : entries) {
+				writeEntry(out, entry);
+			}
+			out.flush();
+			file.getFD().sync();
+		} finally {
+			file.close();
+		}
+		if (!temp.renameTo(mCheckpointFile)) {
+			throw new IOException("Can't rename " + temp);
+		}
+
+		mJournalOut.close();
+		openJournal(false);
+		mJournalSize = 0;
+		mCheckpoints++;
+	}
+
+	/** Removes the entry of the key from the list and returns it with the new value. */
+	private static Entry checkpointEntry(List<Entry> entries, String key, String value) {
+		Entry entry = null;
+		for (int i = 0; i < entries.size(); i++) {
+			if (entries.get(i).key.equals(key)) {
+				entry = entries.remove(i);
+				break;
+			}
+		}
+		if (entry == null) {
+			entry = new Entry(key);
+		}
+		entry.type = TYPE_STRING;
+		entry.longValue = 0;
+		entry.stringValue = value;
+		return entry;
+	}
+
+	private void openJournal(boolean append) throws IOException {
+		mJournal = new FileOutputStream(mJournalFile, append);
+		mJournalOut = new DataOutputStream(new BufferedOutputStream(mJournal));
+	}
+
+	private void readCheckpoint() throws IOException {
+		if (!mCheckpointFile.exists()) {
+			return;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mCheckpointFile)));
+		try {
+			if (in.readInt() != CHECKPOINT_MAGIC || in.readInt() != CHECKPOINT_VERSION) {
+				throw new IOException("Not a state checkpoint: " + mCheckpointFile);
+			}
+			for (int i = in.readInt(); i > 0; i--) {
+				readEntry(in);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Applies all valid records of the journal and cuts off a torn or corrupt end, so new records
+	 * are appended behind the last valid one. Returns the number of applied records.
+	 */
+	private int replayJournal() throws IOException {
+		if (!mJournalFile.exists()) {
+			return 0;
+		}
+		int records = 0;
+		long valid = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalFile)));
+		try {
+			while (true) {
+				int length = in.readInt();
+				int crc = in.readInt();
+				if (length <= 0 || length > mJournalFile.length()) {
+					break;
+				}
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+				mCrc.reset();
+				mCrc.update(payload, 0, length);
+				if ((int) mCrc.getValue() != crc) {
+					break;
+				}
+				readEntry(new DataInputStream(new ByteArrayInputStream(payload)));
+				valid += 8 + length;
+				records++;
+			}
+		} catch (EOFException e) {
+			// Torn record at the end
+		} finally {
+			in.close();
+		}
+
+		if (valid < mJournalFile.length()) {
+			RandomAccessFile file = new RandomAccessFile(mJournalFile, "rw");
+			try {
+				file.setLength(valid);
+			} finally {
+				file.close();
+			}
+		}
+		mJournalSize = valid;
+		return records;
+	}
+
+	/**
+	 * Flushes and checkpoints on the background thread, then stops it. Doesn't wait for the disk,
+	 * see awaitClosed().
+	 */
+	@Override
+	public void close() {
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+					checkpoint();
+					mJournalOut.close();
+				} catch (IOException e) {
+					mLastError = e;
+				}
+			}
+		});
+		mExecutor.shutdown();
+	}
+
+	/** Waits until close() has written everything, returns FALSE on timeout. */
+	public boolean awaitClosed(long timeout) throws InterruptedException {
+		return mExecutor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/** Number of journal records replayed on open. */
+	public int getReplayedCount() {
+		return mReplayed;
+	}
+
+	public long getFlushCount() {
+		return mFlushes;
+	}
+
+	public long getCheckpointCount() {
+		return mCheckpoints;
+	}
+
+	/** Last error of the background thread, NULL if there was none. */
+	public IOException getLastError() {
+		return mLastError;
+	}
+}
@@ -0,0 +1,77 @@
+package de.egh.dynamodrivenodometer;
+
+/**
+ * Handles telemetry frames with a single ASCII decimal value, optionally negative, and writes the
+ * values into a TelemetrySeries. Values out of the range of the channel are rejected. See
+ * FrameDecoder.TYPE_VOLTAGE and FrameDecoder.TYPE_TEMPERATURE.
+ */
+public class TelemetryHandler implements FrameHandler {
+
+	/** Dynamo voltage in millivolts */
+	public static final long MIN_VOLTAGE = 0;
+	public static final long MAX_VOLTAGE = 100000;
+
+	/** Temperature in tenths of a degree Celsius */
+	public static final long MIN_TEMPERATURE = -400;
+	public static final long MAX_TEMPERATURE = 1250;
+
+	private final TelemetrySeries mSeries;
+	private final long mMin;
+	private final long mMax;
+	private long mRejected;
+
+	public TelemetryHandler(TelemetrySeries series, long min, long max) {
+		mSeries = series;
+		mMin = min;
+		mMax = max;
+	}
+
+	@Override
+	public int handle(long timestamp, FrameDecoder decoder) {
+		byte[] data = decoder.getData();
+		int position = decoder.getPayloadOffset();
+		int end = position + decoder.getPayloadLength();
+		boolean negative = position < end && data[position] == '-';
+		if (negative) {
+			position++;
+		}
+		if (position == end) {
+			mRejected++;
+			return FrameDecoder.ERROR_NOT_A_NUMBER;
+		}
+
+		// Stops beyond the range, so the value can't overflow
+		long value = 0;
+		long limit = Math.max(Math.abs(mMin), Math.abs(mMax));
+		for (; position < end; position++) {
+			int digit = data[position] - '0';
+			if (digit < 0 || digit > 9) {
+				mRejected++;
+				return FrameDecoder.ERROR_NOT_A_NUMBER;
+			}
+			value = value * 10 + digit;
+			if (value > limit) {
+				mRejected++;
+				return FrameDecoder.ERROR_OVERFLOW;
+			}
+		}
+		if (negative) {
+			value = -value;
+		}
+		if (value < mMin || value > mMax) {
+			mRejected++;
+			return FrameDecoder.ERROR_OVERFLOW;
+		}
+		mSeries.add(timestamp, value);
+		return FrameDecoder.OK;
+	}
+
+	public TelemetrySeries getSeries() {
+		return mSeries;
+	}
+
+	/** Number of frames with a malformed value or out of range. */
+	public long getRejectedCount() {
+		return mRejected;
+	}
+}
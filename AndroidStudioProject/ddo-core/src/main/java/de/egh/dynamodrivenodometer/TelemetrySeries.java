@@ -0,0 +1,86 @@
+package de.egh.dynamodrivenodometer;
+
+/**
+ * Time series of the last values of a telemetry channel, e.g. the dynamo voltage. Kept in a ring
+ * buffer of fixed capacity, the oldest values are overwritten. Adding doesn't allocate. Written by
+ * the processing thread, the last value can be read by any thread.
+ */
+public class TelemetrySeries {
+
+	private final String mName;
+	private final long[] mTimestamps;
+	private final long[] mValues;
+	/** Index of the next value */
+	private int mNext;
+	private int mSize;
+	private long mCount;
+
+	/** Last value and its time for other threads */
+	private volatile long mLastTimestamp;
+	private volatile long mLastValue;
+
+	public TelemetrySeries(String name, int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		}
+		mName = name;
+		mTimestamps = new long[capacity];
+		mValues = new long[capacity];
+	}
+
+	public void add(long timestamp, long value) {
+		mTimestamps[mNext] = timestamp;
+		mValues[mNext] = value;
+		mNext = (mNext + 1) % mTimestamps.length;
+		mSize = Math.min(mSize + 1, mTimestamps.length);
+		mCount++;
+		mLastValue = value;
+		mLastTimestamp = timestamp;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	/** Number of values kept, at most the capacity. */
+	public int size() {
+		return mSize;
+	}
+
+	/** Number of values added. */
+	public long getCount() {
+		return mCount;
+	}
+
+	/** Timestamp of the value, 0 is the oldest kept. */
+	public long getTimestamp(int index) {
+		return mTimestamps[position(index)];
+	}
+
+	/** Value at the index, 0 is the oldest kept. */
+	public long getValue(int index) {
+		return mValues[position(index)];
+	}
+
+	private int position(int index) {
+		if (index < 0 || index >= mSize) {
+			throw new IndexOutOfBoundsException("Index " + index + ", size " + mSize);
+		}
+		return (mNext - mSize + index + mTimestamps.length) % mTimestamps.length;
+	}
+
+	/** Timestamp of the last value, 0 if there is none. */
+	public long getLastTimestamp() {
+		return mLastTimestamp;
+	}
+
+	/** Last value, 0 if there is none. */
+	public long getLastValue() {
+		return mLastValue;
+	}
+
+	@Override
+	public String toString() {
+		return mName + "=" + (mCount == 0 ? "none" : mLastValue + "@" + mLastTimestamp) + " count=" + mCount;
+	}
+}
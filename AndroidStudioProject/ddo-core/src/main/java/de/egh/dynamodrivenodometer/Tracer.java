@@ -0,0 +1,232 @@
+package de.egh.dynamodrivenodometer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records trace spans into a preallocated ring buffer and exports them as trace event JSON, which
+ * opens in Perfetto and chrome://tracing. A span is started with begin(), which returns its start
+ * time, and recorded with end(), which may be called on another thread, e.g. for a connection
+ * started by the UI and completed by a GATT callback. While disabled, begin() and end() only read
+ * a volatile flag. Recording is lock-free and doesn't allocate; when the buffer is full, the
+ * oldest spans are overwritten.
+ */
+public class Tracer {
+
+	/** Default number of spans kept */
+	public static final int DEFAULT_CAPACITY = 8192;
+
+	/** Start time returned by begin() while disabled, end() ignores it */
+	public static final long NOT_STARTED = Long.MIN_VALUE;
+
+	/** Duration of instant events */
+	private static final long INSTANT = -1;
+
+	private final int mMask;
+	private final String[] mNames;
+	private final long[] mStarts;
+	private final long[] mDurations;
+	private final long[] mThreads;
+	private final long[] mValues;
+	/** Number of the span in the slot, written after the span, -1 while empty */
+	private final AtomicLongArray mSequences;
+	/** Number of the next span */
+	private final AtomicLong mNext = new AtomicLong();
+	/** Time 0 of the export in nanoseconds */
+	private final long mOrigin = System.nanoTime();
+
+	private volatile boolean mEnabled;
+
+	public Tracer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity Number of spans kept, rounded up to a power of two.
+	 */
+	public Tracer(int capacity) {
+		if (capacity <= 0 || capacity > 1 << 24) {
+			throw new IllegalArgumentException("Invalid capacity " + capacity);
+		}
+		int size = Integer.highestOneBit(capacity - 1) << 1;
+		if (size == 0) {
+			size = 1;
+		}
+		mMask = size - 1;
+		mNames = new String[size];
+		mStarts = new long[size];
+		mDurations = new long[size];
+		mThreads = new long[size];
+		mValues = new long[size];
+		mSequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			mSequences.set(i, -1);
+		}
+	}
+
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	/** Returns the start time of a span for end(), NOT_STARTED while disabled. */
+	public long begin() {
+		return mEnabled ? System.nanoTime() : NOT_STARTED;
+	}
+
+	/**
+	 * Records the span from begin() until now on the current thread.
+	 *
+	 * @param name Name of the span, should be a constant.
+	 */
+	public void end(String name, long start) {
+		end(name, start, 0);
+	}
+
+	/**
+	 * Records the span with a value shown as argument, e.g. a frame length.
+	 */
+	public void end(String name, long start, long value) {
+		if (start != NOT_STARTED && mEnabled) {
+			record(name, start, System.nanoTime() - start, value);
+		}
+	}
+
+	/** Records an event without duration. */
+	public void instant(String name) {
+		if (mEnabled) {
+			record(name, System.nanoTime(), INSTANT, 0);
+		}
+	}
+
+	private void record(String name, long start, long duration, long value) {
+		long sequence = mNext.getAndIncrement();
+		int slot = (int) (sequence & mMask);
+		// Invalid while written
+		mSequences.set(slot, -1);
+		mNames[slot] = name;
+		mStarts[slot] = start;
+		mDurations[slot] = duration;
+		mThreads[slot] = Thread.currentThread().getId();
+		mValues[slot] = value;
+		mSequences.lazySet(slot, sequence);
+	}
+
+	/** Number of spans recorded, including the overwritten ones. */
+	public long getRecordedCount() {
+		return mNext.get();
+	}
+
+	public int getCapacity() {
+		return mMask + 1;
+	}
+
+	/** Forgets all spans. Spans recorded meanwhile may be lost. */
+	public void clear() {
+		for (int i = 0; i <= mMask; i++) {
+			mSequences.set(i, -1);
+		}
+	}
+
+	/**
+	 * Writes the spans in the buffer as trace event JSON, oldest first. Spans written concurrently
+	 * may be missing. Returns the number of written spans.
+	 *
+	 * @param processName Shown as name of the process.
+	 */
+	public int writeJson(Writer out, String processName) throws IOException {
+		long next = mNext.get();
+		long first = Math.max(0, next - mMask - 1);
+
+		out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+		out.write("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":1,\"tid\":0,\"args\":{\"name\":");
+		writeString(out, processName);
+		out.write("}}");
+
+		int written = 0;
+		StringBuilder event = new StringBuilder(160);
+		for (long sequence = first; sequence < next; sequence++) {
+			int slot = (int) (sequence & mMask);
+			if (mSequences.get(slot) != sequence) {
+				continue;
+			}
+			String name = mNames[slot];
+			long start = mStarts[slot];
+			long duration = mDurations[slot];
+			long thread = mThreads[slot];
+			long value = mValues[slot];
+			// Overwritten while reading
+			if (mSequences.get(slot) != sequence) {
+				continue;
+			}
+
+			event.setLength(0);
+			event.append(",\n{\"name\":");
+			appendString(event, name);
+			if (duration == INSTANT) {
+				event.append(",\"ph\":\"i\",\"s\":\"t\"");
+			} else {
+				event.append(",\"ph\":\"X\",\"dur\":");
+				appendMicros(event, duration);
+			}
+			event.append(",\"ts\":");
+			appendMicros(event, start - mOrigin);
+			event.append(",\"pid\":1,\"tid\":").append(thread);
+			if (value != 0) {
+				event.append(",\"args\":{\"value\":").append(value).append('}');
+			}
+			event.append('}');
+			out.append(event);
+			written++;
+		}
+		out.write("\n]}\n");
+		out.flush();
+		return written;
+	}
+
+	/** Nanoseconds as microseconds with three decimals */
+	private static void appendMicros(StringBuilder out, long nanos) {
+		if (nanos < 0) {
+			out.append('-');
+			nanos = -nanos;
+		}
+		out.append(nanos / 1000).append('.');
+		long fraction = nanos % 1000;
+		if (fraction < 100) {
+			out.append('0');
+		}
+		if (fraction < 10) {
+			out.append('0');
+		}
+		out.append(fraction);
+	}
+
+	private static void writeString(Writer out, String value) throws IOException {
+		StringBuilder string = new StringBuilder();
+		appendString(string, value);
+		out.append(string);
+	}
+
+	private static void appendString(StringBuilder out, String value) {
+		out.append('"');
+		if (value == null) {
+			value = "null";
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				out.append('\\').append(c);
+			} else if (c < 0x20) {
+				out.append(String.format("\\u%04x", (int) c));
+			} else {
+				out.append(c);
+			}
+		}
+		out.append('"');
+	}
+}
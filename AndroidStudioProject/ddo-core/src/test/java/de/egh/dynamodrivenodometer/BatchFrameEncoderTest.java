@@ -0,0 +1,98 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+public class BatchFrameEncoderTest extends TestCase {
+
+	private final byte[] mFrame = new byte[FrameDecoder.FRAME_SIZE];
+	private final FrameDecoder mDecoder = new FrameDecoder();
+
+	public void testEmpty() {
+		BatchFrameEncoder encoder = new BatchFrameEncoder(8);
+		assertTrue(encoder.isEmpty());
+		assertEquals(0, encoder.encode(1000, mFrame));
+	}
+
+	public void testRoundTrip() {
+		BatchFrameEncoder encoder = new BatchFrameEncoder(64);
+		for (int i = 0; i < 40; i++) {
+			encoder.add(10000 + 100 * i, 2000000 + 3 * i);
+		}
+
+		// Drained in a burst, oldest first
+		long now = 20000;
+		int frames = 0;
+		int samples = 0;
+		while (!encoder.isEmpty()) {
+			int length = encoder.encode(now, mFrame);
+			assertTrue(length <= FrameDecoder.FRAME_SIZE);
+			assertEquals(FrameDecoder.OK, mDecoder.decode(mFrame));
+			while (mDecoder.nextSample()) {
+				assertEquals(2000000 + 3 * samples, mDecoder.getSampleValue());
+				assertEquals(now - (10000 + 100 * samples), mDecoder.getSampleAge());
+				samples++;
+			}
+			frames++;
+		}
+		assertEquals(40, samples);
+		// Several samples per frame: 7 header bytes and 2 bytes per further sample
+		assertTrue(frames + " frames", frames <= 6);
+	}
+
+	public void testCounterResetStartsNewFrame() {
+		BatchFrameEncoder encoder = new BatchFrameEncoder(8);
+		encoder.add(1000, 500);
+		encoder.add(1100, 501);
+		encoder.add(1200, 2);
+		encoder.add(1300, 4);
+
+		encoder.encode(1300, mFrame);
+		mDecoder.decode(mFrame);
+		assertEquals(2, mDecoder.getSampleCount());
+		assertEquals(501, mDecoder.getValue());
+
+		encoder.encode(1300, mFrame);
+		mDecoder.decode(mFrame);
+		assertEquals(2, mDecoder.getSampleCount());
+		assertTrue(mDecoder.nextSample());
+		assertEquals(2, mDecoder.getSampleValue());
+		assertEquals(100, mDecoder.getSampleAge());
+		assertTrue(encoder.isEmpty());
+	}
+
+	public void testFullBufferDropsOldest() {
+		BatchFrameEncoder encoder = new BatchFrameEncoder(4);
+		for (int i = 0; i < 6; i++) {
+			encoder.add(1000 + i, i);
+		}
+		assertEquals(4, encoder.size());
+		assertEquals(2, encoder.getDroppedCount());
+
+		encoder.encode(2000, mFrame);
+		mDecoder.decode(mFrame);
+		assertTrue(mDecoder.nextSample());
+		assertEquals(2, mDecoder.getSampleValue());
+	}
+
+	public void testTooOldSamplesAreDropped() {
+		BatchFrameEncoder encoder = new BatchFrameEncoder(8);
+		encoder.add(1000, 5);
+		encoder.add(2000, 6);
+		encoder.encode(1500 + FrameDecoder.MAX_BATCH_AGE, mFrame);
+		assertEquals(1, encoder.getDroppedCount());
+		assertEquals(FrameDecoder.OK, mDecoder.decode(mFrame));
+		assertEquals(1, mDecoder.getSampleCount());
+		assertEquals(6, mDecoder.getValue());
+	}
+
+	public void testVarint() {
+		long[] values = {0, 1, 127, 128, 16383, 16384, Long.MAX_VALUE, -1};
+		byte[] buffer = new byte[10];
+		for (long value : values) {
+			int length = BatchFrameEncoder.writeVarint(buffer, 0, value);
+			assertEquals(BatchFrameEncoder.varintLength(value), length);
+		}
+		assertEquals(10, BatchFrameEncoder.varintLength(-1));
+		assertEquals(2, BatchFrameEncoder.varintLength(128));
+	}
+}
@@ -0,0 +1,51 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+public class CharFormatterTest extends TestCase {
+
+	private final char[] mBuffer = new char[64];
+
+	private String appendLong(long value) {
+		return new String(mBuffer, 0, CharFormatter.appendLong(mBuffer, 0, value));
+	}
+
+	public void testLong() {
+		long[] values = {0, 7, 10, 99, 1234567890L, -1, -305, Long.MAX_VALUE, Long.MIN_VALUE};
+		for (long value : values) {
+			assertEquals(String.valueOf(value), appendLong(value));
+		}
+	}
+
+	public void testAppendAtPosition() {
+		mBuffer[0] = 'D';
+		int end = CharFormatter.appendLong(mBuffer, 1, 42);
+		assertEquals("D42", new String(mBuffer, 0, end));
+	}
+
+	public void testTenths() {
+		assertEquals("0.0", new String(mBuffer, 0, CharFormatter.appendTenths(mBuffer, 0, 0, '.')));
+		assertEquals("0,5", new String(mBuffer, 0, CharFormatter.appendTenths(mBuffer, 0, 5, ',')));
+		assertEquals("27.3", new String(mBuffer, 0, CharFormatter.appendTenths(mBuffer, 0, 273, '.')));
+		assertEquals("-1.2", new String(mBuffer, 0, CharFormatter.appendTenths(mBuffer, 0, -12, '.')));
+	}
+
+	public void testTimestampLikeSimpleDateFormat() {
+		TimeZone timeZone = TimeZone.getTimeZone("Europe/Berlin");
+		CharFormatter formatter = new CharFormatter(timeZone);
+		SimpleDateFormat sdf = new SimpleDateFormat("dd.MM HH:mm:ss");
+		sdf.setTimeZone(timeZone);
+
+		// Winter, summer time and a day change
+		long[] timestamps = {0, 1419033599000L, 1435000000123L, 1445734800000L, 1445738400000L};
+		for (long timestamp : timestamps) {
+			int end = formatter.appendTimestamp(mBuffer, 0, timestamp);
+			assertEquals(CharFormatter.TIMESTAMP_LENGTH, end);
+			assertEquals(sdf.format(new Date(timestamp)), new String(mBuffer, 0, end));
+		}
+	}
+}
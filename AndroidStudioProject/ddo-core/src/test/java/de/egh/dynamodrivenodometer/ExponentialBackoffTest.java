@@ -0,0 +1,34 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+public class ExponentialBackoffTest extends TestCase {
+
+	public void testDoublesUpToMax() {
+		ExponentialBackoff backoff = new ExponentialBackoff(1000, 5000);
+		assertEquals(1000, backoff.next());
+		assertEquals(2000, backoff.next());
+		assertEquals(4000, backoff.next());
+		assertEquals(5000, backoff.next());
+		assertEquals(5000, backoff.next());
+		assertEquals(5, backoff.getAttempts());
+	}
+
+	public void testReset() {
+		ExponentialBackoff backoff = new ExponentialBackoff(1000, 5000);
+		backoff.next();
+		backoff.next();
+		backoff.reset();
+		assertEquals(0, backoff.getAttempts());
+		assertEquals(1000, backoff.next());
+	}
+
+	public void testInvalid() {
+		try {
+			new ExponentialBackoff(1000, 500);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+}
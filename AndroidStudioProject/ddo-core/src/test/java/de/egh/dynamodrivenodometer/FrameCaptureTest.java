@@ -0,0 +1,209 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class FrameCaptureTest extends TestCase {
+
+	private static final long START = 1417000000000L;
+	private static final long START_NANOS = 123456789L;
+
+	/** Records all samples and messages of a pipeline as text */
+	private static class Recording implements SampleSink {
+		final List<String> events = new ArrayList<String>();
+		final SamplePipeline pipeline;
+		final SampleChannel.Consumer consumer;
+
+		Recording() {
+			SampleChannel channel = new SampleChannel(65536);
+			consumer = channel.subscribe(null);
+			pipeline = new SamplePipeline(new OdometerReconciler(), new KinematicsEngine(), channel, null);
+			pipeline.addSink(this);
+		}
+
+		@Override
+		public void add(long timestamp, long distance) {
+			events.add(timestamp + " " + distance);
+		}
+
+		/** Samples and messages of the channel, including the speeds */
+		List<String> drain() {
+			List<String> published = new ArrayList<String>();
+			while (consumer.next()) {
+				published.add(consumer.getType() == SampleChannel.TYPE_SAMPLE
+						? consumer.getTimestamp() + " " + consumer.getDistance() + " " + consumer.getSpeed()
+						: consumer.getTimestamp() + " " + consumer.getMessage());
+			}
+			return published;
+		}
+	}
+
+	/**
+	 * Captures a Mockbike ride at 10 Hz, processing it like the service, and returns the capture.
+	 */
+	private static byte[] capture(int frames, Recording live) throws IOException {
+		RideSimulator simulator = new RideSimulator(RideSimulator.PROFILE_STOP_AND_GO, 10, 11, START);
+		simulator.setMalformedRate(0.02);
+		simulator.setMessageInterval(5000);
+		simulator.setResetInterval(30000);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FrameRecorder recorder = new FrameRecorder(out, START, START_NANOS);
+		for (int i = 0; i < frames; i++) {
+			byte[] frame = simulator.nextFrame();
+			long timestamp = simulator.getTimestamp();
+			recorder.record(START_NANOS + (timestamp - START) * 1000000, frame);
+			if (live != null) {
+				live.pipeline.process(timestamp, frame);
+			}
+		}
+		assertEquals(frames, recorder.getFrameCount());
+		recorder.close();
+		assertEquals(out.size(), recorder.getByteCount());
+		return out.toByteArray();
+	}
+
+	public void testReplayMatchesLiveProcessing() throws Exception {
+		Recording live = new Recording();
+		byte[] capture = capture(3000, live);
+
+		Recording replayed = new Recording();
+		FrameReplayer replayer = new FrameReplayer(new ByteArrayInputStream(capture));
+		assertEquals(START, replayer.getStartTime());
+		assertEquals(3000, replayer.replay(replayed.pipeline, FrameReplayer.AS_FAST_AS_POSSIBLE));
+		assertFalse(replayer.isTruncated());
+		assertTrue(replayer.getInvalidCount() > 0);
+
+		assertTrue(live.events.size() > 2000);
+		assertEquals(live.events, replayed.events);
+		assertEquals(live.drain(), replayed.drain());
+		assertEquals(live.pipeline.getReconciler().getLifetime(), replayed.pipeline.getReconciler().getLifetime());
+	}
+
+	public void testFramesAndTimes() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FrameRecorder recorder = new FrameRecorder(out, START, START_NANOS);
+		recorder.record(START_NANOS + 1500000, new byte[]{'D', '4', '2'});
+		recorder.record(START_NANOS + 101500000, null);
+		// Clock went backwards: Stored with the time of the last frame
+		recorder.record(START_NANOS, new byte[300]);
+		recorder.close();
+
+		FrameReplayer replayer = new FrameReplayer(new ByteArrayInputStream(out.toByteArray()));
+		assertTrue(replayer.next());
+		assertEquals(1500, replayer.getElapsedMicros());
+		assertEquals(START + 1, replayer.getTimestamp());
+		assertEquals("D42", new String(replayer.getFrame(), 0, replayer.getLength(), "US-ASCII"));
+		assertTrue(replayer.next());
+		assertEquals(0, replayer.getLength());
+		assertEquals(START + 101, replayer.getTimestamp());
+		assertTrue(replayer.next());
+		assertEquals(101500, replayer.getElapsedMicros());
+		assertEquals(300, replayer.getLength());
+		assertFalse(replayer.next());
+		assertEquals(3, replayer.getFrameCount());
+	}
+
+	public void testCompact() throws Exception {
+		byte[] capture = capture(1000, null);
+		// 20 bytes per frame, 4 bytes above at 10 Hz
+		assertTrue(capture.length <= FrameRecorder.HEADER_SIZE + 1000 * (FrameDecoder.FRAME_SIZE + 4));
+	}
+
+	public void testTornFrameEndsReplay() throws Exception {
+		byte[] capture = capture(100, null);
+		byte[] torn = Arrays.copyOf(capture, capture.length - 5);
+
+		FrameReplayer replayer = new FrameReplayer(new ByteArrayInputStream(torn));
+		assertEquals(99, replayer.replay(new Recording().pipeline, FrameReplayer.AS_FAST_AS_POSSIBLE));
+		assertTrue(replayer.isTruncated());
+	}
+
+	public void testNoCapture() throws Exception {
+		try {
+			new FrameReplayer(new ByteArrayInputStream("RZ\u0001".getBytes("US-ASCII")));
+			fail();
+		} catch (IOException e) {
+			// Expected
+		}
+		try {
+			new FrameReplayer(new ByteArrayInputStream(new byte[]{'R', 'Z', 1, 0, 0, 0, 0, 0, 0, 0, 0}));
+			fail();
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	/** Replayer on a virtual clock, which records its waits */
+	private static class VirtualClockReplayer extends FrameReplayer {
+		final List<Long> waits = new ArrayList<Long>();
+		long now = 1000;
+
+		VirtualClockReplayer(byte[] capture) throws IOException {
+			super(new ByteArrayInputStream(capture));
+		}
+
+		@Override
+		long nanoTime() {
+			return now;
+		}
+
+		@Override
+		void sleep(long nanos) {
+			waits.add(nanos);
+			now += nanos;
+		}
+	}
+
+	/** 2 seconds of ride at 20 times the speed */
+	public void testAcceleratedReplay() throws Exception {
+		VirtualClockReplayer replayer = new VirtualClockReplayer(capture(21, null));
+		assertEquals(21, replayer.replay(new Recording().pipeline, 20));
+		// 100 ms frame period at 20 times the speed
+		assertEquals(20, replayer.waits.size());
+		for (long wait : replayer.waits) {
+			assertEquals(5000000L, wait);
+		}
+		assertEquals(1000 + 100000000L, replayer.now);
+	}
+
+	/** Frames already due aren't delayed */
+	public void testReplayCatchesUp() throws Exception {
+		VirtualClockReplayer replayer = new VirtualClockReplayer(capture(21, null)) {
+			@Override
+			long nanoTime() {
+				// Processing takes 7.5 ms per frame
+				now += 7500000;
+				return now;
+			}
+		};
+		replayer.replay(new Recording().pipeline, 20);
+		assertTrue(replayer.waits.isEmpty());
+	}
+
+	/** Part of a reused buffer is stored like a frame of its own */
+	public void testRecordBuffer() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FrameRecorder recorder = new FrameRecorder(out, START, START_NANOS);
+		recorder.record(START_NANOS, new byte[]{'D', '4', '2', 0, 0}, 3);
+		recorder.close();
+
+		FrameReplayer replayer = new FrameReplayer(new ByteArrayInputStream(out.toByteArray()));
+		assertTrue(replayer.next());
+		assertEquals(3, replayer.getLength());
+		assertEquals('2', replayer.getFrame()[2]);
+		assertFalse(replayer.next());
+	}
+
+	public void testHex() {
+		assertEquals("null", FrameRecorder.toHex(null));
+		assertEquals("", FrameRecorder.toHex(new byte[0]));
+		assertEquals("44ff000a", FrameRecorder.toHex(new byte[]{'D', (byte) 0xFF, 0, 10}));
+	}
+}
@@ -0,0 +1,170 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+/**
+ * Plain JUnit tests for the FrameDecoder, no device needed.
+ */
+public class FrameDecoderTest extends TestCase {
+
+	private FrameDecoder mDecoder;
+
+	private static byte[] bytes(String s) {
+		byte[] data = new byte[s.length()];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) s.charAt(i);
+		}
+		return data;
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mDecoder = new FrameDecoder();
+	}
+
+	public void testDistance() {
+		assertEquals(FrameDecoder.OK, mDecoder.decode(bytes("D12345")));
+		assertEquals(FrameDecoder.TYPE_DISTANCE, mDecoder.getType());
+		assertEquals(12345L, mDecoder.getValue());
+		assertNull(mDecoder.getMessage());
+	}
+
+	public void testDistanceWithPadding() {
+		assertEquals(FrameDecoder.OK, mDecoder.decode(bytes("D42\0\0\0")));
+		assertEquals(42L, mDecoder.getValue());
+		assertEquals(2, mDecoder.getPayloadLength());
+	}
+
+	public void testDistanceMaxValue() {
+		assertEquals(FrameDecoder.OK, mDecoder.decode(bytes("D" + Long.MAX_VALUE)));
+		assertEquals(Long.MAX_VALUE, mDecoder.getValue());
+	}
+
+	public void testDistanceOverflow() {
+		assertEquals(FrameDecoder.ERROR_OVERFLOW, mDecoder.decode(bytes("D9223372036854775808")));
+	}
+
+	public void testNotANumber() {
+		assertEquals(FrameDecoder.ERROR_NOT_A_NUMBER, mDecoder.decode(bytes("D12a4")));
+		assertEquals("Not a number >>>12a4<<<", mDecoder.getMessage());
+		assertEquals(FrameDecoder.ERROR_NOT_A_NUMBER, mDecoder.decode(bytes("D")));
+		assertEquals(FrameDecoder.ERROR_NOT_A_NUMBER, mDecoder.decode(bytes("D-1")));
+	}
+
+	public void testSequencedDistance() {
+		assertEquals(FrameDecoder.OK, mDecoder.decode(bytes("S65535:42\0\0")));
+		assertEquals(FrameDecoder.TYPE_SEQUENCED_DISTANCE, mDecoder.getType());
+		assertTrue(mDecoder.hasDistance());
+		assertEquals(65535, mDecoder.getSequence());
+		assertEquals(42L, mDecoder.getValue());
+		assertNull(mDecoder.getMessage());
+
+		// Plain distance frames have no sequence
+		assertEquals(FrameDecoder.OK, mDecoder.decode(bytes("D42")));
+		assertTrue(mDecoder.hasDistance());
+		assertEquals(-1, mDecoder.getSequence());
+	}
+
+	public void testSequencedDistanceMalformed() {
+		assertEquals(FrameDecoder.ERROR_NOT_A_NUMBER, mDecoder.decode(bytes("S12")));
+		assertEquals(-1, mDecoder.getSequence());
+		assertEquals(FrameDecoder.ERROR_NOT_A_NUMBER, mDecoder.decode(bytes("S:12")));
+		assertEquals(FrameDecoder.ERROR_NOT_A_NUMBER, mDecoder.decode(bytes("S12:")));
+		assertFalse(mDecoder.hasDistance());
+		assertEquals(-1, mDecoder.getSequence());
+		assertEquals(FrameDecoder.ERROR_OVERFLOW, mDecoder.decode(bytes("S65536:12")));
+	}
+
+	/** Three samples: 1000 rotations 300 ms ago, +2 after 100 ms, +0 after 200 ms */
+	private static final byte[] BATCH = {'B', 3, (byte) 0xAC, 0x02, (byte) 0xE8, 0x07, 2, 100, 0,
+			(byte) 0xC8, 0x01, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+	public void testBatch() {
+		assertEquals(FrameDecoder.OK, mDecoder.decode(BATCH));
+		assertEquals(FrameDecoder.TYPE_BATCH, mDecoder.getType());
+		assertTrue(mDecoder.hasDistance());
+		assertEquals(3, mDecoder.getSampleCount());
+		assertEquals(1002L, mDecoder.getValue());
+		assertEquals(10, mDecoder.getPayloadLength());
+		assertNull(mDecoder.getMessage());
+
+		long[] expected = {1000, 300, 1002, 200, 1002, 0};
+		for (int i = 0; i < expected.length; i += 2) {
+			assertTrue(mDecoder.nextSample());
+			assertEquals(expected[i], mDecoder.getSampleValue());
+			assertEquals(expected[i + 1], mDecoder.getSampleAge());
+		}
+		assertFalse(mDecoder.nextSample());
+	}
+
+	public void testBatchMalformed() {
+		// Ends within the last sample
+		assertEquals(FrameDecoder.ERROR_TRUNCATED, mDecoder.decode(BATCH, 0, 10));
+		assertFalse(mDecoder.hasDistance());
+		assertFalse(mDecoder.nextSample());
+		// No samples
+		assertEquals(FrameDecoder.ERROR_TRUNCATED, mDecoder.decode(new byte[]{'B', 0, 1, 1}));
+		assertEquals(FrameDecoder.ERROR_TRUNCATED, mDecoder.decode(new byte[]{'B'}));
+		// Varint of more than 64 bits
+		byte[] overflow = new byte[20];
+		overflow[0] = 'B';
+		overflow[1] = 1;
+		for (int i = 2; i < 20; i++) {
+			overflow[i] = (byte) 0x80;
+		}
+		assertEquals(FrameDecoder.ERROR_OVERFLOW, mDecoder.decode(overflow));
+	}
+
+	public void testBatchAges() {
+		// Age of 2^32 ms
+		assertEquals(FrameDecoder.ERROR_OVERFLOW, mDecoder.decode(new byte[]{'B', 2, (byte) 0xFF,
+				(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F, 5, 1, 1}));
+		assertFalse(mDecoder.hasDistance());
+		// Second sample 200 ms after the first, which is only 100 ms old
+		assertEquals(FrameDecoder.ERROR_OVERFLOW, mDecoder.decode(new byte[]{'B', 2, 100, 5, 1,
+				(byte) 0xC8, 0x01}));
+		assertFalse(mDecoder.nextSample());
+		// Youngest sample at the arrival
+		assertEquals(FrameDecoder.OK, mDecoder.decode(new byte[]{'B', 2, 100, 5, 1, 100}));
+		assertTrue(mDecoder.nextSample());
+		assertTrue(mDecoder.nextSample());
+		assertEquals(0, mDecoder.getSampleAge());
+	}
+
+	public void testSingleDistanceSample() {
+		mDecoder.decode(bytes("D42"));
+		assertEquals(1, mDecoder.getSampleCount());
+		assertTrue(mDecoder.nextSample());
+		assertEquals(42L, mDecoder.getSampleValue());
+		assertEquals(0L, mDecoder.getSampleAge());
+		assertFalse(mDecoder.nextSample());
+
+		mDecoder.decode(bytes("MHello"));
+		assertFalse(mDecoder.nextSample());
+	}
+
+	public void testMessage() {
+		assertEquals(FrameDecoder.OK, mDecoder.decode(bytes("MLow battery\0")));
+		assertEquals(FrameDecoder.TYPE_MESSAGE, mDecoder.getType());
+		assertEquals("Low battery", mDecoder.getMessage());
+	}
+
+	public void testEmpty() {
+		assertEquals(FrameDecoder.ERROR_EMPTY, mDecoder.decode(null));
+		assertEquals(FrameDecoder.ERROR_EMPTY, mDecoder.decode(new byte[0]));
+		assertEquals(FrameDecoder.ERROR_EMPTY, mDecoder.decode(new byte[]{0, 0}));
+		assertNotNull(mDecoder.getMessage());
+	}
+
+	public void testUnknownType() {
+		assertEquals(FrameDecoder.ERROR_UNKNOWN_TYPE, mDecoder.decode(bytes("X17")));
+		assertEquals("Unknown value:X17", mDecoder.getMessage());
+	}
+
+	public void testOffset() {
+		byte[] data = bytes("xxD77yy");
+		assertEquals(FrameDecoder.OK, mDecoder.decode(data, 2, 3));
+		assertEquals(77L, mDecoder.getValue());
+	}
+}
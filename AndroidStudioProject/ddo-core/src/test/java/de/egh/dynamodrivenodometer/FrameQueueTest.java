@@ -0,0 +1,109 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class FrameQueueTest extends TestCase {
+
+	private static byte[] frame(int value) {
+		return new byte[]{'D', (byte) value};
+	}
+
+	public void testOrderAndBufferExchange() throws Exception {
+		FrameQueue queue = new FrameQueue(4, FrameQueue.POLICY_DROP_OLDEST, 0);
+		FrameQueue.Frame frame = new FrameQueue.Frame();
+		assertFalse(queue.poll(frame));
+
+		assertTrue(queue.offer(10, frame(1)));
+		assertTrue(queue.offer(20, null));
+		assertTrue(queue.offer(30, new byte[100]));
+		assertEquals(3, queue.getDepth());
+
+		byte[] buffer = frame.getData();
+		assertTrue(queue.poll(frame));
+		assertNotSame(buffer, frame.getData());
+		assertEquals(10, frame.getNanos());
+		assertEquals(2, frame.getLength());
+		assertEquals(1, frame.getData()[1]);
+		assertTrue(queue.poll(frame));
+		assertEquals(0, frame.getLength());
+		assertTrue(queue.poll(frame));
+		assertEquals(100, frame.getLength());
+		assertFalse(queue.poll(frame));
+		assertEquals(0, queue.getDroppedCount());
+		assertEquals(3, queue.getMaxDepth());
+	}
+
+	public void testDropOldest() throws Exception {
+		FrameQueue queue = new FrameQueue(4, FrameQueue.POLICY_DROP_OLDEST, 0);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i < 4, queue.offer(i, frame(i)));
+		}
+		assertEquals(4, queue.getDepth());
+		assertEquals(6, queue.getDroppedCount());
+		assertEquals(10, queue.getOfferedCount());
+
+		// Newest frames are kept
+		FrameQueue.Frame frame = new FrameQueue.Frame();
+		for (int i = 6; i < 10; i++) {
+			assertTrue(queue.poll(frame));
+			assertEquals(i, frame.getData()[1]);
+		}
+		assertFalse(queue.poll(frame));
+	}
+
+	public void testBlockTimesOut() throws Exception {
+		FrameQueue queue = new FrameQueue(2, FrameQueue.POLICY_BLOCK, 20);
+		assertTrue(queue.offer(1, frame(1)));
+		assertTrue(queue.offer(2, frame(2)));
+
+		long start = System.currentTimeMillis();
+		assertFalse(queue.offer(3, frame(3)));
+		assertTrue(System.currentTimeMillis() - start >= 15);
+		assertEquals(1, queue.getBlockedCount());
+		assertEquals(1, queue.getDroppedCount());
+
+		// Oldest frames are kept
+		FrameQueue.Frame frame = new FrameQueue.Frame();
+		assertTrue(queue.poll(frame));
+		assertEquals(1, frame.getData()[1]);
+	}
+
+	/** A slow worker makes the receiver wait, nothing is lost */
+	public void testBlockWaitsForWorker() throws Exception {
+		final FrameQueue queue = new FrameQueue(8, FrameQueue.POLICY_BLOCK, 5000);
+		final AtomicLong sum = new AtomicLong();
+		Thread worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				FrameQueue.Frame frame = new FrameQueue.Frame();
+				int received = 0;
+				while (received < 1000) {
+					if (queue.poll(frame)) {
+						sum.addAndGet(frame.getNanos());
+						received++;
+					} else {
+						Thread.yield();
+					}
+				}
+			}
+		});
+		worker.start();
+		for (int i = 1; i <= 1000; i++) {
+			assertTrue(queue.offer(i, frame(i)));
+		}
+		worker.join(10000);
+		assertEquals(500500, sum.get());
+		assertEquals(0, queue.getDroppedCount());
+		assertTrue(queue.getMaxDepth() <= 8);
+	}
+
+	public void testClear() throws Exception {
+		FrameQueue queue = new FrameQueue(4, FrameQueue.POLICY_DROP_OLDEST, 0);
+		queue.offer(1, frame(1));
+		queue.clear();
+		assertEquals(0, queue.getDepth());
+		assertFalse(queue.poll(new FrameQueue.Frame()));
+	}
+}
@@ -0,0 +1,312 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class GattOperationQueueTest extends TestCase {
+
+	/**
+	 * Records the started operations like a GATT stack with one outstanding operation. The result
+	 * is reported by the test.
+	 */
+	private static class FakeGatt implements GattOperationQueue.Gatt<String, String> {
+		final List<String> started = new ArrayList<String>();
+		/** Number of the next starts to refuse */
+		int refuse;
+		/** Starts while another operation was outstanding */
+		int overlaps;
+		boolean busy;
+
+		private boolean start(String operation) {
+			if (refuse > 0) {
+				refuse--;
+				return false;
+			}
+			if (busy) {
+				overlaps++;
+			}
+			busy = true;
+			started.add(operation);
+			return true;
+		}
+
+		@Override
+		public boolean readCharacteristic(String characteristic) {
+			return start("read " + characteristic);
+		}
+
+		@Override
+		public boolean writeCharacteristic(String characteristic, byte[] value) {
+			return start("write " + characteristic + " " + value.length);
+		}
+
+		@Override
+		public boolean writeDescriptor(String descriptor, byte[] value) {
+			return start("descriptor " + descriptor);
+		}
+
+		@Override
+		public boolean discoverServices() {
+			return start("discover");
+		}
+	}
+
+	/** Virtual time, runnables run on advance() */
+	private static class ManualTimer implements GattOperationQueue.Timer {
+		private static class Task {
+			final Runnable runnable;
+			final long at;
+
+			Task(Runnable runnable, long at) {
+				this.runnable = runnable;
+				this.at = at;
+			}
+		}
+
+		private final List<Task> mTasks = new ArrayList<Task>();
+		long now;
+
+		@Override
+		public long now() {
+			return now;
+		}
+
+		@Override
+		public void postDelayed(Runnable runnable, long delay) {
+			mTasks.add(new Task(runnable, now + delay));
+		}
+
+		@Override
+		public void remove(Runnable runnable) {
+			for (Iterator<Task> i = mTasks.iterator(); i.hasNext(); ) {
+				if (i.next().runnable == runnable) {
+					i.remove();
+				}
+			}
+		}
+
+		void advance(long millis) {
+			long end = now + millis;
+			while (true) {
+				Task next = null;
+				for (Task task : mTasks) {
+					if (task.at <= end && (next == null || task.at < next.at)) {
+						next = task;
+					}
+				}
+				if (next == null) {
+					break;
+				}
+				mTasks.remove(next);
+				now = next.at;
+				next.runnable.run();
+			}
+			now = end;
+		}
+	}
+
+	private final List<GattOperationQueue.Operation> mCompleted = new ArrayList<GattOperationQueue.Operation>();
+	private final GattOperationQueue.Callback mCallback = new GattOperationQueue.Callback() {
+		@Override
+		public void onComplete(GattOperationQueue.Operation operation) {
+			mCompleted.add(operation);
+		}
+	};
+
+	private FakeGatt mGatt;
+	private ManualTimer mTimer;
+	private GattOperationQueue<String, String> mQueue;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mGatt = new FakeGatt();
+		mTimer = new ManualTimer();
+		mQueue = new GattOperationQueue<String, String>(mGatt, mTimer);
+	}
+
+	public void testStrictOrder() {
+		mQueue.discoverServices(mCallback);
+		mQueue.writeDescriptor("cccd", new byte[]{1, 0}, mCallback);
+		mQueue.read("receive", mCallback);
+		mQueue.write("send", new byte[3], mCallback);
+
+		// Only the first operation is outstanding
+		assertEquals(1, mGatt.started.size());
+		assertEquals(4, mQueue.getDepth());
+
+		mTimer.advance(300);
+		mGatt.busy = false;
+		mQueue.onServicesDiscovered(GattOperationQueue.GATT_SUCCESS);
+		mGatt.busy = false;
+		mQueue.onDescriptorWrite("cccd", GattOperationQueue.GATT_SUCCESS);
+		mTimer.advance(50);
+		mGatt.busy = false;
+		mQueue.onCharacteristicRead("receive", GattOperationQueue.GATT_SUCCESS, new byte[]{'D', '1'});
+		mGatt.busy = false;
+		mQueue.onCharacteristicWrite("send", GattOperationQueue.GATT_SUCCESS);
+
+		assertEquals(0, mGatt.overlaps);
+		assertEquals("[discover, descriptor cccd, read receive, write send 3]", mGatt.started.toString());
+		assertEquals(4, mCompleted.size());
+		for (GattOperationQueue.Operation operation : mCompleted) {
+			assertEquals(GattOperationQueue.STATUS_SUCCESS, operation.getStatus());
+			assertEquals(1, operation.getAttempts());
+		}
+		assertEquals('D', mCompleted.get(2).getResult()[0]);
+		assertNull(mCompleted.get(3).getResult());
+
+		assertEquals(0, mQueue.getDepth());
+		assertEquals(4, mQueue.getMaxDepth());
+		assertEquals(4, mQueue.getCompletedCount());
+		assertEquals(0, mQueue.getFailedCount());
+		assertEquals(350, mQueue.getMaxLatency());
+		assertEquals(300, mCompleted.get(0).getLatency());
+	}
+
+	public void testTimeoutRetries() {
+		mQueue.read("receive", mCallback);
+		mQueue.read("other", mCallback);
+
+		// Callback lost, the read is retried
+		mTimer.advance(GattOperationQueue.DEFAULT_TIMEOUT);
+		assertEquals(2, mGatt.started.size());
+		assertEquals("read receive", mGatt.started.get(1));
+		assertTrue(mCompleted.isEmpty());
+
+		// Taken for the late callback of the first attempt
+		mQueue.onCharacteristicRead("receive", GattOperationQueue.GATT_SUCCESS, new byte[1]);
+		assertTrue(mCompleted.isEmpty());
+
+		// The first callback was lost after all, the next attempt completes
+		mTimer.advance(GattOperationQueue.DEFAULT_TIMEOUT);
+		mQueue.onCharacteristicRead("receive", GattOperationQueue.GATT_SUCCESS, new byte[1]);
+		assertEquals(1, mCompleted.size());
+		assertEquals(3, mCompleted.get(0).getAttempts());
+		assertEquals(2, mQueue.getTimeoutCount());
+		assertEquals(2, mQueue.getRetryCount());
+		assertEquals("read other", mGatt.started.get(3));
+	}
+
+	public void testLateCallbackAfterTimeout() {
+		mQueue.read("receive", mCallback);
+		mQueue.read("receive", mCallback);
+
+		mTimer.advance(GattOperationQueue.DEFAULT_TIMEOUT);
+		assertEquals(2, mGatt.started.size());
+
+		// The late callback of the first attempt doesn't complete the retry
+		mQueue.onCharacteristicRead("receive", GattOperationQueue.GATT_SUCCESS, new byte[]{1});
+		assertTrue(mCompleted.isEmpty());
+		assertEquals(1, mQueue.getStrayCount());
+		assertEquals(2, mGatt.started.size());
+
+		mQueue.onCharacteristicRead("receive", GattOperationQueue.GATT_SUCCESS, new byte[]{2});
+		assertEquals(1, mCompleted.size());
+		assertEquals(2, mCompleted.get(0).getAttempts());
+		assertEquals(2, mCompleted.get(0).getResult()[0]);
+
+		// The second read isn't completed by a callback of the first one
+		assertEquals(3, mGatt.started.size());
+		assertEquals(1, mQueue.getDepth());
+		mQueue.onCharacteristicRead("receive", GattOperationQueue.GATT_SUCCESS, new byte[]{3});
+		assertEquals(2, mCompleted.size());
+		assertEquals(1, mCompleted.get(1).getAttempts());
+		assertEquals(3, mCompleted.get(1).getResult()[0]);
+		assertEquals(1, mQueue.getTimeoutCount());
+	}
+
+	public void testTimeoutGivesUpAndContinues() {
+		mQueue.setMaxRetries(1);
+		mQueue.read("receive", mCallback);
+		mQueue.read("other", mCallback);
+
+		mTimer.advance(2 * GattOperationQueue.DEFAULT_TIMEOUT);
+		assertEquals(1, mCompleted.size());
+		assertEquals(GattOperationQueue.STATUS_TIMEOUT, mCompleted.get(0).getStatus());
+		assertEquals(2, mQueue.getTimeoutCount());
+		assertEquals(1, mQueue.getFailedCount());
+
+		// The queue doesn't stall
+		assertEquals("read other", mGatt.started.get(mGatt.started.size() - 1));
+
+		// Late callback of the given up read
+		mQueue.onCharacteristicRead("receive", GattOperationQueue.GATT_SUCCESS, new byte[1]);
+		assertEquals(1, mQueue.getStrayCount());
+		assertEquals(1, mQueue.getDepth());
+	}
+
+	public void testRejectedStartIsRetried() {
+		mGatt.refuse = 1;
+		mQueue.read("receive", mCallback);
+		assertTrue(mGatt.started.isEmpty());
+
+		mTimer.advance(GattOperationQueue.RETRY_DELAY);
+		assertEquals(1, mGatt.started.size());
+		mQueue.onCharacteristicRead("receive", GattOperationQueue.GATT_SUCCESS, new byte[1]);
+		assertEquals(GattOperationQueue.STATUS_SUCCESS, mCompleted.get(0).getStatus());
+
+		mGatt.refuse = 10;
+		mQueue.read("receive", mCallback);
+		mTimer.advance(10 * GattOperationQueue.RETRY_DELAY);
+		assertEquals(2, mCompleted.size());
+		assertEquals(GattOperationQueue.STATUS_REJECTED, mCompleted.get(1).getStatus());
+		assertEquals(GattOperationQueue.DEFAULT_MAX_RETRIES + 1, mCompleted.get(1).getAttempts());
+	}
+
+	public void testGattError() {
+		mQueue.writeDescriptor("cccd", new byte[2], mCallback);
+		mQueue.onDescriptorWrite("cccd", 133);
+		assertEquals(GattOperationQueue.STATUS_FAILED, mCompleted.get(0).getStatus());
+		assertEquals(133, mCompleted.get(0).getGattStatus());
+		assertEquals(1, mQueue.getFailedCount());
+	}
+
+	public void testSynchronousCallback() {
+		// A GATT reporting before returning from the start
+		final AtomicReference<GattOperationQueue<String, String>> queue =
+				new AtomicReference<GattOperationQueue<String, String>>();
+		queue.set(new GattOperationQueue<String, String>(new FakeGatt() {
+			@Override
+			public boolean readCharacteristic(String characteristic) {
+				queue.get().onCharacteristicRead(characteristic, GattOperationQueue.GATT_SUCCESS, new byte[1]);
+				return true;
+			}
+		}, mTimer));
+
+		for (int i = 0; i < 3; i++) {
+			queue.get().read("receive", mCallback);
+		}
+		assertEquals(3, mCompleted.size());
+		assertEquals(0, queue.get().getDepth());
+
+		// No timeout left behind
+		mTimer.advance(GattOperationQueue.DEFAULT_DISCOVERY_TIMEOUT);
+		assertEquals(0, queue.get().getTimeoutCount());
+	}
+
+	public void testClear() {
+		mQueue.discoverServices(mCallback);
+		mQueue.read("receive", mCallback);
+		mQueue.clear();
+
+		assertEquals(2, mCompleted.size());
+		assertEquals(GattOperationQueue.STATUS_CANCELLED, mCompleted.get(0).getStatus());
+		assertEquals(GattOperationQueue.STATUS_CANCELLED, mCompleted.get(1).getStatus());
+		assertEquals(0, mQueue.getDepth());
+
+		// Neither a timeout nor the late callback affect the next connection
+		mTimer.advance(GattOperationQueue.DEFAULT_DISCOVERY_TIMEOUT);
+		mQueue.onServicesDiscovered(GattOperationQueue.GATT_SUCCESS);
+		assertEquals(0, mQueue.getTimeoutCount());
+		assertEquals(0, mQueue.getCompletedCount());
+
+		mGatt.busy = false;
+		mQueue.read("receive", mCallback);
+		assertEquals("read receive", mGatt.started.get(1));
+	}
+}
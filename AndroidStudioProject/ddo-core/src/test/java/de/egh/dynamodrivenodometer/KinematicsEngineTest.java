@@ -0,0 +1,104 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+/**
+ * Deterministic JUnit tests for the KinematicsEngine driven by synthetic rotation series.
+ */
+public class KinematicsEngineTest extends TestCase {
+
+	/** Wheel of 2 m for easy numbers */
+	private static final double WHEEL = 2.0;
+
+	private KinematicsEngine mEngine;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mEngine = new KinematicsEngine(WHEEL, 8, 3000);
+	}
+
+	/**
+	 * Feeds samples at the given rate for a constant speed, starting with the given time and
+	 * counter. Returns the time after the last sample.
+	 */
+	private long feed(long start, double startRotations, double speed, int rate, long duration) {
+		long period = 1000 / rate;
+		double rotations = startRotations;
+		long t = start;
+		for (; t < start + duration; t += period) {
+			mEngine.add(t, (long) rotations);
+			rotations += speed / WHEEL * period / 1000;
+		}
+		return t;
+	}
+
+	public void testConstantSpeedAtLowRate() {
+		// 10 m/s, 5 rotations per second, one sample per second
+		feed(1000, 0, 10, 1, 20000);
+		assertTrue(mEngine.isMoving());
+		assertEquals(10.0, mEngine.getSpeed(), 0.001);
+		assertEquals(10.0, mEngine.getSmoothedSpeed(), 0.1);
+		assertEquals(0.0, mEngine.getAcceleration(), 0.05);
+	}
+
+	public void testConstantSpeedAtHighRate() {
+		// 5 m/s, 2.5 rotations per second, 50 samples per second: Most samples without change
+		feed(1000, 0, 5, 50, 20000);
+		assertTrue(mEngine.isMoving());
+		assertEquals(5.0, mEngine.getSmoothedSpeed(), 0.5);
+	}
+
+	public void testAcceleration() {
+		// Speed from 2 to 10 m/s within 8 s, 10 samples per second
+		double rotations = 0;
+		long t = 0;
+		for (int i = 0; i <= 80; i++) {
+			double speed = 2 + i * 0.1;
+			mEngine.add(t, (long) rotations);
+			rotations += speed / WHEEL / 10;
+			t += 100;
+		}
+		assertTrue("Acceleration " + mEngine.getAcceleration(), mEngine.getAcceleration() > 0.3);
+		assertTrue(mEngine.getSmoothedSpeed() > 7);
+	}
+
+	public void testStop() {
+		long t = feed(1000, 0, 10, 10, 10000);
+		assertTrue(mEngine.isMoving());
+
+		// Standing: Speed falls, after the stop timeout it is 0
+		long rotations = (long) (10000 / 1000 * 10 / WHEEL);
+		mEngine.add(t + 1000, rotations);
+		assertTrue(mEngine.isMoving());
+		assertTrue(mEngine.getSpeed() < 10);
+		mEngine.add(t + 4000, rotations);
+		assertFalse(mEngine.isMoving());
+		assertEquals(0.0, mEngine.getSpeed(), 0);
+		assertEquals(0.0, mEngine.getSmoothedSpeed(), 0);
+	}
+
+	public void testKalman() {
+		mEngine.useKalman(0.5, 1.0);
+		feed(1000, 0, 8, 10, 30000);
+		assertEquals(8.0, mEngine.getSmoothedSpeed(), 0.5);
+	}
+
+	public void testCounterReset() {
+		long t = feed(1000, 1000, 10, 10, 5000);
+		mEngine.add(t, 0);
+		assertFalse(mEngine.isMoving());
+		assertEquals(0.0, mEngine.getSpeed(), 0);
+
+		feed(t + 100, 0, 10, 10, 5000);
+		assertEquals(10.0, mEngine.getSpeed(), 2);
+	}
+
+	public void testIgnoresOldSamples() {
+		mEngine.add(1000, 0);
+		mEngine.add(2000, 5);
+		mEngine.add(2000, 50);
+		mEngine.add(1500, 50);
+		assertEquals(2, mEngine.getSampleCount());
+	}
+}
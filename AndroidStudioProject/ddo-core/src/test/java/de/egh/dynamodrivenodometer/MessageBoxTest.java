@@ -0,0 +1,111 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * Plain JUnit tests for the MessageBox.
+ */
+public class MessageBoxTest extends TestCase {
+
+	public void testDeduplication() {
+		MessageBox box = new MessageBox(null, 3);
+		box.add("A", 1);
+		box.add("B", 2);
+		box.add("A", 3);
+
+		assertEquals(2, box.size());
+		List<MessageBox.Msg> sorted = box.getSorted();
+		assertEquals("A", sorted.get(0).getText());
+		assertEquals(3, sorted.get(0).getTimestamp());
+		assertEquals("B", sorted.get(1).getText());
+	}
+
+	public void testCapacity() {
+		MessageBox box = new MessageBox(null, 3);
+		box.add("A", 1);
+		box.add("B", 2);
+		box.add("C", 3);
+		box.add("A", 4);
+		box.add("D", 5);
+
+		// B is the least recently added one
+		assertEquals(3, box.size());
+		List<MessageBox.Msg> sorted = box.getSorted();
+		assertEquals("D", sorted.get(0).getText());
+		assertEquals("A", sorted.get(1).getText());
+		assertEquals("C", sorted.get(2).getText());
+	}
+
+	public void testSortedViewIsCached() {
+		MessageBox box = new MessageBox(null, 10);
+		box.add("A", 1);
+		List<MessageBox.Msg> sorted = box.getSorted();
+		assertSame(sorted, box.getSorted());
+
+		box.add("B", 2);
+		assertEquals(2, box.getSorted().size());
+	}
+
+	public void testNewestMatchesSorted() {
+		MessageBox box = new MessageBox(null, 50);
+		for (int i = 0; i < 100; i++) {
+			// Unordered timestamps with duplicates
+			box.add("Message " + i, (i * 37) % 20);
+		}
+		List<MessageBox.Msg> sorted = box.getSorted();
+		for (int count = 0; count <= 60; count += 3) {
+			List<MessageBox.Msg> newest = box.getNewest(count);
+			assertEquals(Math.min(count, 50), newest.size());
+			for (int i = 0; i < newest.size(); i++) {
+				assertSame(sorted.get(i), newest.get(i));
+			}
+		}
+	}
+
+	public void testRoundTrip() {
+		MessageBox box = new MessageBox(null, 10);
+		box.add("Low battery", 1000);
+		box.add("Line\nbreak", 2000);
+		box.add("42 is a number", 3000);
+
+		MessageBox copy = new MessageBox(box.asString(), 10);
+		assertEquals(box.asString(), copy.asString());
+
+		List<MessageBox.Msg> sorted = copy.getSorted();
+		assertEquals(3, sorted.size());
+		assertEquals("42 is a number", sorted.get(0).getText());
+		assertEquals("Line\nbreak", sorted.get(1).getText());
+		assertEquals(1000, sorted.get(2).getTimestamp());
+	}
+
+	public void testFormerFormat() {
+		MessageBox box = new MessageBox("3000 Newest\n2000 5 apples\n1000 Oldest\n", 10);
+
+		List<MessageBox.Msg> sorted = box.getSorted();
+		assertEquals(3, sorted.size());
+		assertEquals("Newest", sorted.get(0).getText());
+		assertEquals("5 apples", sorted.get(1).getText());
+		assertEquals("Oldest", sorted.get(2).getText());
+	}
+
+	public void testIllegalEntriesIgnored() {
+		MessageBox box = new MessageBox("abc\n\n1000 \n2000 2 ok\n", 10);
+
+		assertEquals(1, box.size());
+		assertEquals("ok", box.getSorted().get(0).getText());
+	}
+
+	public void testLoadKeepsNewestOnOverflow() {
+		MessageBox box = new MessageBox(null, 100);
+		for (int i = 0; i < 100; i++) {
+			box.add("Message " + i, i);
+		}
+
+		MessageBox small = new MessageBox(box.asString(), 10);
+		assertEquals(10, small.size());
+		assertEquals("Message 99", small.getSorted().get(0).getText());
+		assertEquals("Message 90", small.getSorted().get(9).getText());
+	}
+}
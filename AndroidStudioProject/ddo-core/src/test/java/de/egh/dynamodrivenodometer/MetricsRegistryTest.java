@@ -0,0 +1,89 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+public class MetricsRegistryTest extends TestCase {
+
+	public void testCounters() {
+		MetricsRegistry registry = new MetricsRegistry();
+		MetricsRegistry.Counter frames = registry.counter("frames.distance");
+		assertSame(frames, registry.counter("frames.distance"));
+		frames.increment();
+		frames.add(2);
+		registry.counter("reads.dropped");
+
+		MetricsRegistry.Snapshot snapshot = registry.snapshot();
+		assertEquals(3, snapshot.getCounter("frames.distance"));
+		assertEquals(0, snapshot.getCounter("reads.dropped"));
+		assertEquals(0, snapshot.getCounter("missing"));
+
+		// The snapshot doesn't change
+		frames.increment();
+		assertEquals(3, snapshot.getCounter("frames.distance"));
+		assertEquals("frames.distance 4\nreads.dropped 0\n", registry.dump());
+	}
+
+	public void testBuckets() {
+		int last = -1;
+		for (long value = 0; value < 100000; value++) {
+			int bucket = MetricsRegistry.Histogram.bucketOf(value);
+			// Buckets are contiguous and contain their values
+			assertTrue(bucket == last || bucket == last + 1);
+			assertTrue(value <= MetricsRegistry.Histogram.upperBound(bucket));
+			assertTrue(value > (bucket == 0 ? -1 : MetricsRegistry.Histogram.upperBound(bucket - 1)));
+			// Relative error
+			assertTrue(MetricsRegistry.Histogram.upperBound(bucket) - value
+					<= value / MetricsRegistry.Histogram.SUB_BUCKETS + 1);
+			last = bucket;
+		}
+		assertEquals(MetricsRegistry.Histogram.BUCKETS - 1, MetricsRegistry.Histogram.bucketOf(Long.MAX_VALUE));
+		assertEquals(MetricsRegistry.Histogram.BUCKETS - 1,
+				MetricsRegistry.Histogram.bucketOf((1L << (MetricsRegistry.Histogram.MAX_BITS + 1)) - 1));
+	}
+
+	public void testPercentiles() {
+		MetricsRegistry registry = new MetricsRegistry();
+		MetricsRegistry.Histogram histogram = registry.histogram("decode_ns");
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000);
+		}
+		histogram.record(-5);
+
+		MetricsRegistry.HistogramSnapshot snapshot = registry.snapshot().getHistogram("decode_ns");
+		assertEquals(1001, snapshot.getCount());
+		assertEquals(1000000, snapshot.getMax());
+		assertEquals(500000, snapshot.getMean(), 1000);
+		assertEquals(500000, snapshot.getPercentile(0.5), 500000 / MetricsRegistry.Histogram.SUB_BUCKETS);
+		assertEquals(990000, snapshot.getPercentile(0.99), 990000 / MetricsRegistry.Histogram.SUB_BUCKETS);
+		assertEquals(1000000, snapshot.getPercentile(1.0));
+		assertEquals(0, snapshot.getPercentile(0.0));
+		assertTrue(snapshot.toString().startsWith("decode_ns n=1001 "));
+
+		assertEquals(0, registry.histogram("empty").snapshot().getPercentile(0.5));
+	}
+
+	public void testConcurrentRecording() throws Exception {
+		final MetricsRegistry registry = new MetricsRegistry();
+		final MetricsRegistry.Histogram histogram = registry.histogram("rtt");
+		final MetricsRegistry.Counter counter = registry.counter("count");
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 10000; i++) {
+						histogram.record(i);
+						counter.increment();
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(40000, counter.get());
+		assertEquals(40000, histogram.snapshot().getCount());
+		assertEquals(9999, histogram.snapshot().getMax());
+	}
+}
@@ -0,0 +1,120 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+/**
+ * Replays raw counter series with typical failure patterns through the OdometerReconciler.
+ */
+public class OdometerReconcilerTest extends TestCase {
+
+	/** Sample interval of the replays */
+	private static final long PERIOD = 1000;
+
+	private OdometerReconciler mReconciler;
+	private long mTime;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mReconciler = new OdometerReconciler();
+		mTime = 1000;
+	}
+
+	/** Feeds the raw values one per second and returns the lifetime totals. */
+	private long[] replay(OdometerReconciler reconciler, long... raws) {
+		long[] lifetimes = new long[raws.length];
+		for (int i = 0; i < raws.length; i++) {
+			lifetimes[i] = reconciler.add(mTime, raws[i]);
+			mTime += PERIOD;
+		}
+		return lifetimes;
+	}
+
+	private static void assertMonotonic(long[] lifetimes) {
+		for (int i = 1; i < lifetimes.length; i++) {
+			assertTrue("Decreasing at " + i, lifetimes[i] >= lifetimes[i - 1]);
+		}
+	}
+
+	public void testNormalSeries() {
+		long[] lifetimes = replay(mReconciler, 500, 503, 506, 506, 510);
+		assertEquals(510, lifetimes[4]);
+		assertEquals(0, mReconciler.getBaseOffset());
+	}
+
+	public void testReset() {
+		long[] lifetimes = replay(mReconciler, 5000, 5003, 5006, 0, 2, 5);
+		assertMonotonic(lifetimes);
+		assertEquals(5006 + 5, lifetimes[5]);
+		assertEquals(1, mReconciler.getResetCount());
+	}
+
+	public void testResetWithRotationsBeforeFirstSample() {
+		// Device reboots and counts 4 rotations before the first read
+		long[] lifetimes = replay(mReconciler, 5000, 5003, 4, 7);
+		assertEquals(5003 + 7, lifetimes[3]);
+	}
+
+	public void testWrap() {
+		OdometerReconciler reconciler = new OdometerReconciler(1000, 25, 10, 3);
+		long[] lifetimes = replay(reconciler, 990, 995, 999, 3, 8);
+		assertMonotonic(lifetimes);
+		assertEquals(1008, lifetimes[4]);
+		assertEquals(1, reconciler.getWrapCount());
+		assertEquals(0, reconciler.getResetCount());
+	}
+
+	public void testSingleGlitchIsDropped() {
+		long[] lifetimes = replay(mReconciler, 5000, 5003, 987654321, 5009, 5012);
+		assertMonotonic(lifetimes);
+		assertEquals(5003, lifetimes[2]);
+		assertEquals(5012, lifetimes[4]);
+		assertEquals(1, mReconciler.getDroppedCount());
+		assertEquals(0, mReconciler.getJumpCount());
+	}
+
+	public void testDuplicateOutOfOrderIsDropped() {
+		long[] lifetimes = replay(mReconciler, 5000, 5003, 5002, 5006);
+		assertMonotonic(lifetimes);
+		assertEquals(5006, lifetimes[3]);
+	}
+
+	public void testConfirmedJump() {
+		// Counter continues at a completely different value, e.g. after a firmware update
+		long[] lifetimes = replay(mReconciler, 5000, 5003, 900000, 900004, 900008, 900012);
+		assertMonotonic(lifetimes);
+		assertEquals(1, mReconciler.getJumpCount());
+		// Rotations since the first value of the new series are counted
+		assertEquals(5003 + 8, lifetimes[4]);
+		assertEquals(5003 + 12, lifetimes[5]);
+	}
+
+	public void testDownwardJumpIsNoReset() {
+		long[] lifetimes = replay(mReconciler, 900000, 900004, 5000, 5003, 5006, 5010);
+		assertMonotonic(lifetimes);
+		assertEquals(0, mReconciler.getResetCount());
+		assertEquals(1, mReconciler.getJumpCount());
+		assertEquals(900004 + 6, lifetimes[4]);
+	}
+
+	public void testLongGapAllowsLargeDelta() {
+		replay(mReconciler, 5000);
+		// One hour later, 10000 rotations
+		mTime += 3600 * 1000;
+		assertEquals(15000, mReconciler.add(mTime, 15000));
+		assertEquals(0, mReconciler.getDroppedCount());
+	}
+
+	public void testResetAcrossRestart() {
+		OdometerReconciler first = new OdometerReconciler();
+		replay(first, 7000, 7004, 7008);
+
+		// Persist and restore, device rebooted meanwhile
+		OdometerReconciler restored = new OdometerReconciler();
+		restored.restore(first.getBaseOffset(), first.getLastRaw(), first.getLastTimestamp());
+		mTime += 60 * 1000;
+		long[] lifetimes = replay(restored, 3, 6);
+		assertEquals(7008 + 6, lifetimes[1]);
+		assertEquals(1, restored.getResetCount());
+	}
+}
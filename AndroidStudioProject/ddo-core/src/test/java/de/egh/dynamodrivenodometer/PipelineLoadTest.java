@@ -0,0 +1,81 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.TimeZone;
+
+/**
+ * Replays one hour of a simulated ride at 1 kHz through the SamplePipeline with journal and
+ * rollups, like DeviceService does for every value, on the virtual clock of the RideSimulator.
+ * Checks that journal, reconciler and rollups agree with the simulated ride; the speed of this
+ * path is measured by SamplePathBenchmark.
+ */
+public class PipelineLoadTest extends TestCase {
+
+	private static final int RATE = 1000;
+	private static final int SECONDS = 3600;
+
+	private File mDirectory;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mDirectory = RideJournalTest.createTempDirectory("pipeline");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		RideJournalTest.deleteDirectory(mDirectory);
+		super.tearDown();
+	}
+
+	public void testSimulatedHour() throws IOException {
+		RideSimulator simulator = new RideSimulator(RideSimulator.PROFILE_STOP_AND_GO, RATE, 11,
+				1420070400000L);
+		simulator.setMalformedRate(0.001);
+		simulator.setMessageInterval(60000);
+		simulator.setResetInterval(1200000);
+
+		OdometerReconciler reconciler = new OdometerReconciler();
+		RollupStore rollups = new RollupStore(TimeZone.getTimeZone("UTC"));
+		RideJournal journal = new RideJournal(mDirectory);
+		SamplePipeline pipeline = new SamplePipeline(reconciler, new KinematicsEngine(),
+				new SampleChannel(), null);
+		pipeline.addSink(journal);
+		pipeline.addSink(rollups);
+		byte[] frame = new byte[FrameDecoder.FRAME_SIZE];
+		long samples = 0;
+
+		try {
+			for (int i = 0; i < RATE * SECONDS; i++) {
+				simulator.nextFrame(frame);
+				if (pipeline.process(simulator.getTimestamp(), frame) == FrameDecoder.OK
+						&& pipeline.getDecoder().getType() == FrameDecoder.TYPE_DISTANCE) {
+					samples++;
+				}
+			}
+		} finally {
+			journal.close();
+		}
+		assertEquals(samples, journal.size());
+		assertEquals(simulator.getResetCount(), reconciler.getResetCount());
+		assertEquals(simulator.getLifetimeRotations(), reconciler.getLifetime(),
+				simulator.getResetCount() + 1);
+
+		RollupStore.Totals totals = new RollupStore.Totals();
+		rollups.query(0, Long.MAX_VALUE / 2, totals);
+		assertEquals(reconciler.getLifetime() - journalFirstRotations(), totals.distance);
+	}
+
+	private long journalFirstRotations() throws IOException {
+		RideJournal.Cursor cursor = RideJournal.cursor(mDirectory);
+		try {
+			assertTrue(cursor.next());
+			return cursor.getRotations();
+		} finally {
+			cursor.close();
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Plain JUnit tests for the RideJournal, working in a temporary directory.
+ */
+public class RideJournalTest extends TestCase {
+
+	private File mDirectory;
+
+	static File createTempDirectory(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		if (!dir.delete() || !dir.mkdirs()) {
+			throw new IOException("Can't create " + dir);
+		}
+		return dir;
+	}
+
+	static void deleteDirectory(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()) {
+					deleteDirectory(file);
+				} else {
+					file.delete();
+				}
+			}
+		}
+		dir.delete();
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mDirectory = createTempDirectory("journal");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		deleteDirectory(mDirectory);
+		super.tearDown();
+	}
+
+	private void assertRecords(long count) throws IOException {
+		RideJournal.Cursor cursor = RideJournal.cursor(mDirectory);
+		long i = 0;
+		while (cursor.next()) {
+			assertEquals(1000 + i, cursor.getTimestamp());
+			assertEquals(i * 3, cursor.getRotations());
+			i++;
+		}
+		assertEquals(count, i);
+	}
+
+	public void testAppendAndRead() throws IOException {
+		RideJournal journal = new RideJournal(mDirectory, 100, 10);
+		for (int i = 0; i < 50; i++) {
+			journal.append(1000 + i, i * 3);
+		}
+		assertEquals(50, journal.size());
+		journal.close();
+
+		assertRecords(50);
+	}
+
+	public void testRollOver() throws IOException {
+		RideJournal journal = new RideJournal(mDirectory, 100, 10);
+		for (int i = 0; i < 250; i++) {
+			journal.append(1000 + i, i * 3);
+		}
+		journal.close();
+
+		assertEquals(3, RideJournal.segments(mDirectory).length);
+		assertRecords(250);
+	}
+
+	public void testCursorAfterTimestamp() throws IOException {
+		RideJournal journal = new RideJournal(mDirectory, 100, 10);
+		for (int i = 0; i < 250; i++) {
+			journal.append(1000 + i, i * 3);
+		}
+		journal.compactSealedSegments();
+
+		for (long after : new long[]{0, 1000, 1099, 1100, 1149, 1249, 2000}) {
+			RideJournal.Cursor cursor = RideJournal.cursor(mDirectory, after);
+			long expected = Math.min(Math.max(1000, after + 1), 1250);
+			while (cursor.next()) {
+				assertEquals(expected, cursor.getTimestamp());
+				assertEquals((expected - 1000) * 3, cursor.getRotations());
+				expected++;
+			}
+			assertEquals(1250, expected);
+		}
+		journal.close();
+	}
+
+	public void testCursorReadsSegmentCompactedMeanwhile() throws IOException {
+		RideJournal journal = new RideJournal(mDirectory, 100, 10);
+		for (int i = 0; i < 250; i++) {
+			journal.append(1000 + i, i * 3);
+		}
+		RideJournal.Cursor cursor = RideJournal.cursor(mDirectory);
+		assertTrue(cursor.next());
+		// The second segment isn't opened by the cursor yet
+		assertEquals(2, journal.compactSealedSegments());
+		long i = 1;
+		while (cursor.next()) {
+			assertEquals(1000 + i, cursor.getTimestamp());
+			i++;
+		}
+		assertEquals(250, i);
+		journal.close();
+	}
+
+	public void testContinueAfterReopen() throws IOException {
+		RideJournal journal = new RideJournal(mDirectory, 100, 10);
+		for (int i = 0; i < 150; i++) {
+			journal.append(1000 + i, i * 3);
+		}
+		journal.close();
+
+		journal = new RideJournal(mDirectory, 100, 10);
+		assertEquals(150, journal.size());
+		assertEquals(1149, journal.getLastTimestamp());
+		assertEquals(149 * 3, journal.getLastRotations());
+		for (int i = 150; i < 300; i++) {
+			journal.append(1000 + i, i * 3);
+		}
+		journal.close();
+
+		assertRecords(300);
+	}
+
+	public void testRecoverAfterCrash() throws IOException {
+		RideJournal journal = new RideJournal(mDirectory, 100, 1000);
+		for (int i = 0; i < 42; i++) {
+			journal.append(1000 + i, i * 3);
+		}
+		// No close: Simulates a killed process, the mapped pages survive
+		journal.sync();
+
+		// Torn record: Rotations written, timestamp not
+		File[] segments = RideJournal.segments(mDirectory);
+		RandomAccessFile file = new RandomAccessFile(segments[0], "rw");
+		file.seek(42 * RideJournal.RECORD_SIZE + 8);
+		file.writeLong(999);
+		file.close();
+
+		journal = new RideJournal(mDirectory, 100, 1000);
+		assertEquals(42, journal.size());
+		journal.close();
+		assertRecords(42);
+	}
+
+	public void testIllegalTimestamp() throws IOException {
+		RideJournal journal = new RideJournal(mDirectory, 100, 10);
+		try {
+			journal.append(0, 1);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		journal.append(1000, 1);
+		try {
+			journal.append(1000, 2);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			journal.add(999, 2);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(1, journal.size());
+		journal.close();
+	}
+}
@@ -0,0 +1,180 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class RideSimulatorTest extends TestCase {
+
+	private static final long START = 1420070400000L;
+
+	private final byte[] mFrame = new byte[FrameDecoder.FRAME_SIZE];
+	private final FrameDecoder mDecoder = new FrameDecoder();
+
+	public void testInvalidConfiguration() {
+		try {
+			new RideSimulator(RideSimulator.PROFILE_CRUISE, 0, 1, START);
+			fail("Rate 0");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		try {
+			new RideSimulator(RideSimulator.PROFILE_CRUISE, 1001, 1, START);
+			fail("Rate 1001");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		try {
+			new RideSimulator(7, 10, 1, START);
+			fail("Profile 7");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	public void testDeterministic() {
+		RideSimulator first = newNoisySimulator(RideSimulator.PROFILE_STOP_AND_GO, 100, 42);
+		RideSimulator second = newNoisySimulator(RideSimulator.PROFILE_STOP_AND_GO, 100, 42);
+		byte[] other = new byte[FrameDecoder.FRAME_SIZE];
+		for (int i = 0; i < 100000; i++) {
+			int length = first.nextFrame(mFrame);
+			assertEquals(length, second.nextFrame(other));
+			assertTrue("Frame " + i, Arrays.equals(mFrame, other));
+		}
+		assertEquals(first.getResetCount(), second.getResetCount());
+
+		// Another seed gives another ride
+		RideSimulator third = newNoisySimulator(RideSimulator.PROFILE_STOP_AND_GO, 100, 43);
+		for (int i = 0; i < 100000; i++) {
+			third.nextFrame(mFrame);
+		}
+		assertFalse(first.getLifetimeRotations() == third.getLifetimeRotations());
+	}
+
+	private static RideSimulator newNoisySimulator(int profile, int rate, long seed) {
+		RideSimulator simulator = new RideSimulator(profile, rate, seed, START);
+		simulator.setMalformedRate(0.01);
+		simulator.setMessageInterval(10000);
+		simulator.setResetInterval(300000);
+		return simulator;
+	}
+
+	public void testVirtualClock() {
+		RideSimulator simulator = new RideSimulator(RideSimulator.PROFILE_CRUISE, 1000, 1, START);
+		for (int i = 0; i < 3600 * 1000; i++) {
+			simulator.nextFrame(mFrame);
+		}
+		assertEquals(START + 3600 * 1000L, simulator.getTimestamp());
+		assertEquals(3600 * 1000L, simulator.getFrameCount());
+	}
+
+	public void testDistanceFrames() {
+		RideSimulator simulator = new RideSimulator(RideSimulator.PROFILE_CRUISE, 10, 1, START);
+		simulator.setNoise(0);
+		long last = -1;
+		for (int i = 0; i < 600; i++) {
+			int length = simulator.nextFrame(mFrame);
+			assertEquals(FrameDecoder.OK, mDecoder.decode(mFrame));
+			assertEquals(FrameDecoder.TYPE_DISTANCE, mDecoder.getType());
+			assertEquals(simulator.getRotations(), mDecoder.getValue());
+			assertTrue(mDecoder.getValue() >= last);
+			last = mDecoder.getValue();
+			for (int j = length; j < mFrame.length; j++) {
+				assertEquals(0, mFrame[j]);
+			}
+		}
+		// 60 s at 25 km/h
+		assertEquals((long) (60 * 25 / 3.6 / KinematicsEngine.DEFAULT_WHEEL_CIRCUMFERENCE), last);
+	}
+
+	public void testSequencedFrames() {
+		RideSimulator simulator = new RideSimulator(RideSimulator.PROFILE_CRUISE, 10, 1, START);
+		simulator.setSequenced(true);
+		simulator.setMalformedRate(0.1);
+		long expected = 0;
+		int valid = 0;
+		for (int i = 0; i < 600; i++) {
+			simulator.nextFrame(mFrame);
+			if (mDecoder.decode(mFrame) == FrameDecoder.OK) {
+				assertEquals(FrameDecoder.TYPE_SEQUENCED_DISTANCE, mDecoder.getType());
+				assertTrue(mDecoder.getSequence() >= expected);
+				assertEquals(simulator.getRotations(), mDecoder.getValue());
+				expected = mDecoder.getSequence() + 1;
+				valid++;
+			}
+		}
+		// Malformed frames leave gaps
+		assertEquals(600, expected);
+		assertEquals(600 - simulator.getMalformedCount(), valid);
+	}
+
+	/** Average speed of one hour of a profile in km/h. */
+	private double averageSpeed(int profile) {
+		RideSimulator simulator = new RideSimulator(profile, 10, 5, START);
+		for (int i = 0; i < 36000; i++) {
+			simulator.nextFrame(mFrame);
+		}
+		return simulator.getLifetimeRotations() * KinematicsEngine.DEFAULT_WHEEL_CIRCUMFERENCE / 1000;
+	}
+
+	public void testProfiles() {
+		assertEquals(25, averageSpeed(RideSimulator.PROFILE_CRUISE), 0.5);
+		// 4 min at 35 and 2 min at 15 km/h
+		assertEquals(28.3, averageSpeed(RideSimulator.PROFILE_INTERVALS), 0.5);
+		// 50 of 90 s at 22 km/h, 20 s at half the speed
+		assertEquals(22 * 50 / 90.0, averageSpeed(RideSimulator.PROFILE_STOP_AND_GO), 0.5);
+	}
+
+	public void testStopAndGoStands() {
+		RideSimulator simulator = new RideSimulator(RideSimulator.PROFILE_STOP_AND_GO, 10, 1, START);
+		// Traffic light from 60 to 90 s
+		for (int i = 0; i < 650; i++) {
+			simulator.nextFrame(mFrame);
+		}
+		long rotations = simulator.getRotations();
+		for (int i = 0; i < 240; i++) {
+			simulator.nextFrame(mFrame);
+			assertEquals(0.0, simulator.getSpeed());
+		}
+		assertEquals(rotations, simulator.getRotations());
+	}
+
+	public void testMalformedFramesAndMessages() {
+		RideSimulator simulator = new RideSimulator(RideSimulator.PROFILE_CRUISE, 100, 3, START);
+		simulator.setMalformedRate(0.05);
+		simulator.setMessageInterval(1000);
+		int errors = 0;
+		int messages = 0;
+		for (int i = 0; i < 100000; i++) {
+			simulator.nextFrame(mFrame);
+			if (mDecoder.decode(mFrame) != FrameDecoder.OK) {
+				errors++;
+			} else if (mDecoder.getType() == FrameDecoder.TYPE_MESSAGE) {
+				assertTrue(mDecoder.getMessage().startsWith("Uptime "));
+				messages++;
+			}
+		}
+		assertEquals(simulator.getMalformedCount(), errors);
+		assertEquals(simulator.getMessageCount(), messages);
+		assertEquals(1000, messages);
+		assertEquals(0.05, errors / 100000.0, 0.005);
+	}
+
+	/** The reconciled counter must follow the simulated wheel across all resets. */
+	public void testResetsAreReconciled() {
+		RideSimulator simulator = new RideSimulator(RideSimulator.PROFILE_INTERVALS, 50, 9, START);
+		simulator.setResetInterval(600000);
+		OdometerReconciler reconciler = new OdometerReconciler();
+		long lifetime = 0;
+		for (int i = 0; i < 50 * 7200; i++) {
+			simulator.nextFrame(mFrame);
+			if (mDecoder.decode(mFrame) == FrameDecoder.OK) {
+				lifetime = reconciler.add(simulator.getTimestamp(), mDecoder.getValue());
+			}
+		}
+		assertTrue(simulator.getResetCount() >= 6);
+		assertEquals(simulator.getResetCount(), reconciler.getResetCount());
+		// Rotations between the last frame and a reset are lost
+		assertEquals(simulator.getLifetimeRotations(), lifetime, simulator.getResetCount());
+	}
+}
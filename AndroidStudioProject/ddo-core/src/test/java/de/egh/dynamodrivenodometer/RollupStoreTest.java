@@ -0,0 +1,171 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.TimeZone;
+
+/**
+ * Plain JUnit tests for the RollupStore.
+ */
+public class RollupStoreTest extends TestCase {
+
+	private static final long SECOND = 1000;
+	private static final long MINUTE = 60 * SECOND;
+	private static final long HOUR = 60 * MINUTE;
+	private static final long DAY = 24 * HOUR;
+
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	/** 2014-12-01 00:00 UTC */
+	private static final long START = 1417392000000L;
+
+	private RollupStore mStore;
+	private RollupStore.Totals mTotals;
+
+	/** Ride with one sample per second and 2 rotations per second. */
+	private long ride(RollupStore store, long from, long duration, long rotations) {
+		for (long t = from; t <= from + duration; t += SECOND) {
+			store.add(t, rotations);
+			rotations += 2;
+		}
+		return rotations - 2;
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mStore = new RollupStore(UTC);
+		mTotals = new RollupStore.Totals();
+
+		// Day 1: 08:00 - 08:30, day 2: 17:00 - 18:30. 100 rotations while the app was not running.
+		long rotations = ride(mStore, START + 8 * HOUR, 30 * MINUTE, 0);
+		ride(mStore, START + DAY + 17 * HOUR, 90 * MINUTE, rotations + 100);
+	}
+
+	public void testWholeRange() {
+		mStore.query(START, START + 2 * DAY, mTotals);
+		// 1800 + 5400 seconds with 2 rotations each and the gap
+		assertEquals((1800 + 5400) * 2 + 100, mTotals.distance);
+		assertEquals(2.0f, mTotals.maxSpeed, 0.001);
+	}
+
+	public void testPartialRange() {
+		// 08:10 - 08:20: Minute buckets only
+		mStore.query(START + 8 * HOUR + 10 * MINUTE, START + 8 * HOUR + 20 * MINUTE, mTotals);
+		assertEquals(10 * 60 * 2, mTotals.distance);
+		assertEquals(10 * MINUTE, mTotals.movingTime);
+
+		// Day 1 10:00 to day 2 17:30: Hours, a day boundary and minutes. Samples from 17:00:00 to
+		// 17:29:59, the first one with the gap.
+		mStore.query(START + 10 * HOUR, START + DAY + 17 * HOUR + 30 * MINUTE, mTotals);
+		assertEquals(100 + 1799 * 2, mTotals.distance);
+	}
+
+	public void testGapIsNotMovingTime() {
+		mStore.query(START, START + 2 * DAY, mTotals);
+		// The gap between both rides counts only MAX_MOVING_GAP
+		assertEquals((1800 + 5400) * SECOND + RollupStore.MAX_MOVING_GAP, mTotals.movingTime);
+	}
+
+	public void testDayBuckets() {
+		long[] starts = new long[10];
+		long[] distances = new long[10];
+		long[] movingTimes = new long[10];
+		float[] maxSpeeds = new float[10];
+
+		int count = mStore.getBuckets(RollupStore.DAY, START, START + 10 * DAY, starts, distances,
+				movingTimes, maxSpeeds);
+		assertEquals(2, count);
+		assertEquals(START, starts[0]);
+		assertEquals(1800 * 2, distances[0]);
+		assertEquals(START + DAY, starts[1]);
+	}
+
+	public void testTimeZoneOffset() {
+		// UTC+1: The ride of day 2 17:00 UTC starts 18:00 local, the day buckets are shifted
+		RollupStore store = new RollupStore(TimeZone.getTimeZone("GMT+01:00"));
+		ride(store, START + DAY - 30 * MINUTE, 60 * MINUTE, 0);
+
+		long[] starts = new long[10];
+		int count = store.getBuckets(RollupStore.DAY, START - DAY, START + 10 * DAY, starts,
+				new long[10], new long[10], new float[10]);
+		assertEquals(1, count);
+		assertEquals(START + DAY - HOUR, starts[0]);
+	}
+
+	public void testDaylightSavingTime() {
+		// Noon UTC in winter (UTC+1) and summer (UTC+2): Both days start at local midnight
+		long winter = 1421323200000L; // 2015-01-15 12:00 UTC
+		long summer = 1436961600000L; // 2015-07-15 12:00 UTC
+		RollupStore store = new RollupStore(TimeZone.getTimeZone("Europe/Berlin"));
+		ride(store, winter, 10 * MINUTE, 0);
+		ride(store, summer, 10 * MINUTE, 0);
+
+		long[] starts = new long[10];
+		int count = store.getBuckets(RollupStore.DAY, winter - DAY, summer + DAY, starts,
+				new long[10], new long[10], new float[10]);
+		assertEquals(2, count);
+		assertEquals(winter - 12 * HOUR - HOUR, starts[0]);
+		assertEquals(summer - 12 * HOUR - 2 * HOUR, starts[1]);
+
+		// A whole local summer day is answered from its day bucket
+		store.query(starts[1], starts[1] + DAY, mTotals);
+		assertEquals(600 * 2, mTotals.distance);
+	}
+
+	public void testTimeZoneChange() {
+		RollupStore store = new RollupStore(UTC);
+		ride(store, START + 10 * HOUR, 10 * MINUTE, 0);
+		// Travelled to UTC+9: 20:00 UTC is the next local day
+		store.setTimeZone(TimeZone.getTimeZone("GMT+09:00"));
+		ride(store, START + 20 * HOUR, 10 * MINUTE, 10000);
+
+		long[] starts = new long[10];
+		int count = store.getBuckets(RollupStore.DAY, START - DAY, START + 10 * DAY, starts,
+				new long[10], new long[10], new float[10]);
+		assertEquals(2, count);
+		assertEquals(START + DAY - 9 * HOUR, starts[1]);
+	}
+
+	public void testCounterReset() {
+		RollupStore store = new RollupStore(UTC);
+		store.add(START, 100);
+		store.add(START + SECOND, 102);
+		store.add(START + 2 * SECOND, 0);
+		store.add(START + 3 * SECOND, 2);
+		store.query(START, START + DAY, mTotals);
+		assertEquals(4, mTotals.distance);
+	}
+
+	public void testSaveLoadAndCatchUp() throws IOException {
+		File dir = RideJournalTest.createTempDirectory("rollup");
+		try {
+			RideJournal journal = new RideJournal(new File(dir, "journal"), 1000, 100);
+			RollupStore store = new RollupStore(UTC);
+			long rotations = 0;
+			for (long t = START; t < START + 10 * MINUTE; t += SECOND) {
+				journal.append(t, rotations);
+				store.add(t, rotations);
+				rotations += 2;
+			}
+			File file = new File(dir, "rollups.bin");
+			store.save(file);
+
+			// Samples after the save, e.g. before a crash
+			for (long t = START + 10 * MINUTE; t < START + 20 * MINUTE; t += SECOND) {
+				journal.append(t, rotations);
+				rotations += 2;
+			}
+			journal.close();
+
+			RollupStore loaded = RollupStore.load(file, UTC);
+			assertEquals(600, loaded.catchUp(new File(dir, "journal")));
+			loaded.query(START, START + DAY, mTotals);
+			assertEquals(1199 * 2, mTotals.distance);
+		} finally {
+			RideJournalTest.deleteDirectory(dir);
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Plain JUnit tests for SampleBlockWriter, SampleBlockReader and compacted journal segments.
+ */
+public class SampleBlockTest extends TestCase {
+
+	private static final long[] TIMESTAMPS = {1417000000000L, 1417000001000L, 1417000002003L,
+			1417000002990L, 1417000010000L, 1417000010000L, 1417000011000L};
+	private static final long[] ROTATIONS = {123456, 123458, 123461, 123461, 0, 5, Long.MAX_VALUE};
+
+	private static byte[] encode(long[] timestamps, long[] rotations) {
+		SampleBlockWriter writer = new SampleBlockWriter();
+		for (int i = 0; i < timestamps.length; i++) {
+			writer.add(timestamps[i], rotations[i]);
+		}
+		return writer.toByteArray();
+	}
+
+	private static void assertSamples(SampleBlockReader reader, long[] timestamps, long[] rotations)
+			throws IOException {
+		for (int i = 0; i < timestamps.length; i++) {
+			assertTrue(reader.next());
+			assertEquals(timestamps[i], reader.getTimestamp());
+			assertEquals(rotations[i], reader.getRotations());
+		}
+	}
+
+	public void testRoundTrip() throws IOException {
+		byte[] block = encode(TIMESTAMPS, ROTATIONS);
+		SampleBlockReader reader = new SampleBlockReader(block);
+		assertSamples(reader, TIMESTAMPS, ROTATIONS);
+		assertFalse(reader.next());
+		assertEquals(TIMESTAMPS.length, SampleBlockReader.count(block));
+	}
+
+	public void testEmptyBlock() throws IOException {
+		byte[] block = new SampleBlockWriter().toByteArray();
+		assertFalse(new SampleBlockReader(block).next());
+		assertEquals(0, SampleBlockReader.count(block));
+	}
+
+	public void testConcatenatedBlocks() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		SampleBlockWriter writer = new SampleBlockWriter();
+		for (int i = 0; i < TIMESTAMPS.length; i++) {
+			writer.add(TIMESTAMPS[i], ROTATIONS[i]);
+		}
+		writer.writeTo(out);
+		new SampleBlockWriter().writeTo(out);
+		writer.writeTo(out);
+
+		SampleBlockReader reader = new SampleBlockReader(out.toByteArray());
+		assertSamples(reader, TIMESTAMPS, ROTATIONS);
+		assertSamples(reader, TIMESTAMPS, ROTATIONS);
+		assertFalse(reader.next());
+	}
+
+	public void testRegularSamplesTakeTwoBytes() {
+		SampleBlockWriter writer = new SampleBlockWriter();
+		for (int i = 0; i < 1000; i++) {
+			writer.add(1417000000000L + i * 1000L, 5000 + i * 3L);
+		}
+		byte[] block = writer.toByteArray();
+		assertTrue("Block size " + block.length, block.length <= 2 * 1000 + 20);
+	}
+
+	/** Ride with 1 s samples, some timing jitter and 0 to 6 rotations per sample */
+	public void testJitteredSamplesSize() {
+		Random random = new Random(42);
+		SampleBlockWriter writer = new SampleBlockWriter();
+		long timestamp = 1417000000000L;
+		long rotations = 0;
+		for (int i = 0; i < 100000; i++) {
+			timestamp += 1000 + random.nextInt(21) - 10;
+			rotations += random.nextInt(7);
+			writer.add(timestamp, rotations);
+		}
+		byte[] block = writer.toByteArray();
+		assertTrue("Block size " + block.length, block.length <= 2.2 * 100000);
+	}
+
+	public void testCorruptBlock() {
+		byte[] block = encode(TIMESTAMPS, ROTATIONS);
+		try {
+			SampleBlockReader reader = new SampleBlockReader(block, 0, block.length - 1);
+			while (reader.next()) {
+				// read to end
+			}
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			new SampleBlockReader(new byte[]{'X', 'Y', 1, 0}).next();
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testCompactedJournal() throws IOException {
+		File dir = RideJournalTest.createTempDirectory("compact");
+		try {
+			RideJournal journal = new RideJournal(dir, 100, 10);
+			for (int i = 0; i < 250; i++) {
+				journal.append(1000 + i, i * 3);
+			}
+			assertEquals(2, journal.compactSealedSegments());
+			assertEquals(0, journal.compactSealedSegments());
+			journal.close();
+
+			File[] segments = RideJournal.segments(dir);
+			assertEquals(3, segments.length);
+			assertTrue(segments[0].getName().endsWith(RideJournal.COMPRESSED_SUFFIX));
+			assertTrue(segments[2].getName().endsWith(RideJournal.SEGMENT_SUFFIX));
+
+			// Reopen and continue behind compacted segments
+			journal = new RideJournal(dir, 100, 10);
+			assertEquals(250, journal.size());
+			journal.append(1250, 750);
+			journal.close();
+
+			RideJournal.Cursor cursor = RideJournal.cursor(dir);
+			int i = 0;
+			while (cursor.next()) {
+				assertEquals(1000 + i, cursor.getTimestamp());
+				assertEquals(i * 3, cursor.getRotations());
+				i++;
+			}
+			assertEquals(251, i);
+
+			// Export
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			RideJournal.export(dir, out);
+			SampleBlockReader reader = new SampleBlockReader(out.toByteArray());
+			i = 0;
+			while (reader.next()) {
+				assertEquals(1000 + i, reader.getTimestamp());
+				i++;
+			}
+			assertEquals(251, i);
+		} finally {
+			RideJournalTest.deleteDirectory(dir);
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SampleChannelTest extends TestCase {
+
+	private SampleChannel mChannel;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mChannel = new SampleChannel(8);
+	}
+
+	public void testInvalidCapacity() {
+		try {
+			new SampleChannel(6);
+			fail("Capacity must be a power of two");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	public void testSamplesAndMessagesInOrder() {
+		SampleChannel.Consumer consumer = mChannel.subscribe(null);
+		mChannel.publishSample(1000, 42, 5.5f);
+		mChannel.publishMessage(1001, "Hello");
+		mChannel.publishSample(1002, 43, 6f);
+		assertEquals(3, consumer.available());
+
+		assertTrue(consumer.next());
+		assertEquals(SampleChannel.TYPE_SAMPLE, consumer.getType());
+		assertEquals(1000, consumer.getTimestamp());
+		assertEquals(42, consumer.getDistance());
+		assertEquals(5.5f, consumer.getSpeed());
+		assertNull(consumer.getMessage());
+
+		assertTrue(consumer.next());
+		assertEquals(SampleChannel.TYPE_MESSAGE, consumer.getType());
+		assertEquals("Hello", consumer.getMessage());
+
+		assertTrue(consumer.next());
+		assertEquals(43, consumer.getDistance());
+		assertFalse(consumer.next());
+		assertEquals(0, consumer.available());
+	}
+
+	public void testConsumerStartsAtSubscription() {
+		mChannel.publishSample(1000, 1, 0);
+		SampleChannel.Consumer consumer = mChannel.subscribe(null);
+		assertFalse(consumer.next());
+		mChannel.publishSample(1001, 2, 0);
+		assertTrue(consumer.next());
+		assertEquals(2, consumer.getDistance());
+	}
+
+	public void testConsumersAreIndependent() {
+		SampleChannel.Consumer first = mChannel.subscribe(null);
+		SampleChannel.Consumer second = mChannel.subscribe(null);
+		for (int i = 0; i < 5; i++) {
+			mChannel.publishSample(1000 + i, i, 0);
+		}
+		int count = 0;
+		while (first.next()) {
+			count++;
+		}
+		assertEquals(5, count);
+		assertEquals(5, second.available());
+		assertTrue(second.next());
+		assertEquals(0, second.getDistance());
+	}
+
+	public void testOverrunSkipsOldest() {
+		SampleChannel.Consumer consumer = mChannel.subscribe(null);
+		for (int i = 0; i < 20; i++) {
+			mChannel.publishSample(1000 + i, i, 0);
+		}
+		assertEquals(8, consumer.available());
+		assertEquals(12, consumer.getOverrunCount());
+		for (int i = 12; i < 20; i++) {
+			assertTrue(consumer.next());
+			assertEquals(i, consumer.getDistance());
+		}
+		assertFalse(consumer.next());
+	}
+
+	public void testListenerAndUnsubscribe() {
+		final AtomicInteger calls = new AtomicInteger();
+		SampleChannel.Consumer consumer = mChannel.subscribe(new SampleChannel.Listener() {
+			@Override
+			public void onAvailable(SampleChannel.Consumer consumer) {
+				calls.incrementAndGet();
+			}
+		});
+		mChannel.publishSample(1000, 1, 0);
+		mChannel.publishMessage(1001, "M");
+		assertEquals(2, calls.get());
+
+		mChannel.unsubscribe(consumer);
+		mChannel.publishSample(1002, 2, 0);
+		assertEquals(2, calls.get());
+		// Unknown consumers are ignored
+		mChannel.unsubscribe(consumer);
+	}
+
+	/**
+	 * Publishes on one thread while two consumers read concurrently. Every entry read must be
+	 * consistent and in order, skipped entries must be counted as overrun.
+	 */
+	public void testConcurrentConsumers() throws Exception {
+		final int count = 500000;
+		final SampleChannel.Consumer[] consumers = {mChannel.subscribe(null), mChannel.subscribe(null)};
+		final long[] read = new long[consumers.length];
+		final String[] errors = new String[consumers.length];
+		Thread[] threads = new Thread[consumers.length];
+
+		for (int c = 0; c < consumers.length; c++) {
+			final int index = c;
+			threads[c] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					SampleChannel.Consumer consumer = consumers[index];
+					long last = -1;
+					while (last < count - 1) {
+						if (!consumer.next()) {
+							Thread.yield();
+							continue;
+						}
+						long distance = consumer.getDistance();
+						if (distance <= last || consumer.getTimestamp() != distance * 2
+								|| consumer.getSpeed() != distance % 1000) {
+							errors[index] = "Inconsistent entry " + distance + " after " + last;
+							return;
+						}
+						last = distance;
+						read[index]++;
+					}
+				}
+			});
+			threads[c].start();
+		}
+
+		for (int i = 0; i < count; i++) {
+			mChannel.publishSample(i * 2L, i, i % 1000);
+		}
+		for (Thread thread : threads) {
+			thread.join(30000);
+		}
+
+		for (int c = 0; c < consumers.length; c++) {
+			assertNull(errors[c], errors[c]);
+			assertEquals(count, read[c] + consumers[c].getOverrunCount());
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SamplePipelineTest extends TestCase {
+
+	/** Records all samples */
+	private static class RecordingSink implements SampleSink {
+		final List<Long> distances = new ArrayList<Long>();
+
+		@Override
+		public void add(long timestamp, long distance) {
+			distances.add(distance);
+		}
+	}
+
+	private final List<String> mEvents = new ArrayList<String>();
+	private SamplePipeline mPipeline;
+	private SampleChannel.Consumer mConsumer;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		SampleChannel channel = new SampleChannel();
+		mConsumer = channel.subscribe(null);
+		mPipeline = new SamplePipeline(new OdometerReconciler(), new KinematicsEngine(), channel,
+				new SamplePipeline.Listener() {
+					@Override
+					public void onBaseOffsetChanged(OdometerReconciler reconciler) {
+						mEvents.add("base " + reconciler.getBaseOffset());
+					}
+
+					@Override
+					public void onSinkError(SampleSink sink, IOException e) {
+						mEvents.add("error " + e.getMessage());
+					}
+				});
+	}
+
+	private static byte[] frame(String s) {
+		byte[] frame = new byte[FrameDecoder.FRAME_SIZE];
+		for (int i = 0; i < s.length(); i++) {
+			frame[i] = (byte) s.charAt(i);
+		}
+		return frame;
+	}
+
+	public void testSinksGetLifetime() {
+		RecordingSink sink = new RecordingSink();
+		mPipeline.addSink(sink);
+		mPipeline.process(1000, frame("D500"));
+		mPipeline.process(2000, frame("D505"));
+		// Device restarted
+		mPipeline.process(3000, frame("D3"));
+
+		assertEquals(3, sink.distances.size());
+		assertEquals(508, (long) sink.distances.get(2));
+		assertEquals(1, mEvents.size());
+		assertEquals("base 505", mEvents.get(0));
+
+		mPipeline.removeSink(sink);
+		mPipeline.process(4000, frame("D6"));
+		assertEquals(3, sink.distances.size());
+	}
+
+	public void testChannel() {
+		assertEquals(FrameDecoder.OK, mPipeline.process(1000, frame("D500")));
+		assertEquals(FrameDecoder.OK, mPipeline.process(1500, frame("MHello")));
+		assertEquals(FrameDecoder.ERROR_NOT_A_NUMBER, mPipeline.process(2000, frame("D5x")));
+
+		assertTrue(mConsumer.next());
+		assertEquals(SampleChannel.TYPE_SAMPLE, mConsumer.getType());
+		assertEquals(500, mConsumer.getDistance());
+		assertTrue(mConsumer.next());
+		assertEquals("Hello", mConsumer.getMessage());
+		assertTrue(mConsumer.next());
+		assertEquals(SampleChannel.TYPE_MESSAGE, mConsumer.getType());
+		assertFalse(mConsumer.next());
+	}
+
+	public void testUnknownTypesAreCounted() {
+		assertEquals(FrameDecoder.ERROR_UNKNOWN_TYPE, mPipeline.process(1000, frame("X42")));
+		assertEquals(FrameDecoder.ERROR_UNKNOWN_TYPE, mPipeline.process(1100, frame("V3700")));
+		assertEquals(2, mPipeline.getUnknownCount());
+		// Not a message for the MessageBox
+		assertFalse(mConsumer.next());
+	}
+
+	public void testHandlers() {
+		TelemetrySeries voltage = new TelemetrySeries("voltage", 8);
+		mPipeline.setHandler(FrameDecoder.TYPE_VOLTAGE, new TelemetryHandler(voltage,
+				TelemetryHandler.MIN_VOLTAGE, TelemetryHandler.MAX_VOLTAGE));
+		assertEquals(FrameDecoder.OK, mPipeline.process(1000, frame("V3700")));
+		assertEquals(FrameDecoder.OK, mPipeline.process(1100, frame("D500")));
+		assertEquals(3700, voltage.getLastValue());
+		assertEquals(1000, voltage.getLastTimestamp());
+		assertEquals(0, mPipeline.getUnknownCount());
+
+		// Built-in types can be replaced, too
+		mPipeline.setHandler(FrameDecoder.TYPE_MESSAGE, null);
+		assertNull(mPipeline.getHandler(FrameDecoder.TYPE_MESSAGE));
+		assertEquals(FrameDecoder.ERROR_UNKNOWN_TYPE, mPipeline.process(1200, frame("MHello")));
+		assertEquals(1, mPipeline.getUnknownCount());
+
+		assertTrue(mConsumer.next());
+		assertEquals(500, mConsumer.getDistance());
+		assertFalse(mConsumer.next());
+	}
+
+	public void testSequencedDuplicatesAreDropped() {
+		RecordingSink sink = new RecordingSink();
+		mPipeline.addSink(sink);
+		assertEquals(FrameDecoder.OK, mPipeline.process(1000, frame("S7:500")));
+		// Same value read twice by polling
+		assertEquals(SamplePipeline.RESULT_DUPLICATE, mPipeline.process(1100, frame("S7:500")));
+		assertEquals(FrameDecoder.OK, mPipeline.process(1200, frame("S8:501")));
+		assertEquals(SamplePipeline.RESULT_DUPLICATE, mPipeline.process(1300, frame("S7:500")));
+
+		assertEquals(2, sink.distances.size());
+		assertEquals(2, mPipeline.getSequenceTracker().getDuplicateCount());
+		assertEquals(2, mPipeline.getChannel().getPublishedCount());
+	}
+
+	/** The simulator restarts its sequence with every counter reset */
+	public void testSequenceRestartsWithCounterResets() {
+		RideSimulator simulator = new RideSimulator(RideSimulator.PROFILE_CRUISE, 10, 4, 1000);
+		simulator.setSequenced(true);
+		simulator.setMessageInterval(0);
+		simulator.setResetInterval(30 * 1000L);
+		RecordingSink sink = new RecordingSink();
+		mPipeline.addSink(sink);
+		byte[] frame = new byte[FrameDecoder.FRAME_SIZE];
+		for (int i = 0; i < 20000; i++) {
+			simulator.nextFrame(frame);
+			assertEquals(FrameDecoder.OK, mPipeline.process(simulator.getTimestamp(), frame));
+		}
+
+		SequenceTracker tracker = mPipeline.getSequenceTracker();
+		assertTrue(simulator.getResetCount() > 10);
+		assertEquals(simulator.getResetCount(), tracker.getRestartCount());
+		assertEquals(0, tracker.getDuplicateCount());
+		assertEquals(0, tracker.getMissingCount());
+		assertEquals(20000, sink.distances.size());
+	}
+
+	public void testLostFramesAreInterpolated() {
+		RecordingSink sink = new RecordingSink();
+		mPipeline.addSink(sink);
+		mPipeline.process(1000, frame("S10:500"));
+		// Frames 11 to 13 lost
+		mPipeline.process(1400, frame("S14:520"));
+
+		assertEquals(Arrays.asList(500L, 505L, 510L, 515L, 520L), sink.distances);
+		assertEquals(3, mPipeline.getInterpolatedCount());
+		SequenceTracker tracker = mPipeline.getSequenceTracker();
+		assertEquals(3, tracker.getMissingCount());
+		assertEquals(1, tracker.getGapCount());
+		assertEquals(0.6, tracker.getLossRate(), 1e-9);
+		// Only received samples are published
+		assertEquals(2, mPipeline.getChannel().getPublishedCount());
+
+		// A new connection starts without reference
+		mPipeline.resetSequence();
+		mPipeline.process(2000, frame("S20:530"));
+		assertEquals(6, sink.distances.size());
+		assertEquals(0, mPipeline.getSequenceTracker().getMissingCount());
+	}
+
+	public void testBatchSamplesAtTheirOwnTime() {
+		BatchFrameEncoder encoder = new BatchFrameEncoder(16);
+		encoder.add(1000, 500);
+		encoder.add(1100, 502);
+		encoder.add(1200, 505);
+		byte[] frame = new byte[FrameDecoder.FRAME_SIZE];
+		encoder.encode(1250, frame);
+
+		RecordingSink sink = new RecordingSink();
+		mPipeline.addSink(sink);
+		// Received 50 ms later than sent
+		assertEquals(FrameDecoder.OK, mPipeline.process(1300, frame));
+		assertEquals(Arrays.asList(500L, 502L, 505L), sink.distances);
+
+		long[] timestamps = {1050, 1150, 1250};
+		for (long timestamp : timestamps) {
+			assertTrue(mConsumer.next());
+			assertEquals(timestamp, mConsumer.getTimestamp());
+			assertEquals(1300, mConsumer.getReceivedAt());
+		}
+		assertEquals(505, mConsumer.getDistance());
+		assertFalse(mConsumer.next());
+	}
+
+	public void testStaleBatchSamplesAreDropped() throws IOException {
+		final List<Long> timestamps = new ArrayList<Long>();
+		mPipeline.addSink(new SampleSink() {
+			@Override
+			public void add(long timestamp, long distance) {
+				timestamps.add(timestamp);
+			}
+		});
+		File dir = RideJournalTest.createTempDirectory("stale");
+		try {
+			RideJournal journal = new RideJournal(dir, 100, 10);
+			mPipeline.addSink(journal);
+			assertEquals(FrameDecoder.OK, mPipeline.process(1200, frame("D503")));
+
+			// Drained after the single frame: The first samples are older
+			BatchFrameEncoder encoder = new BatchFrameEncoder(16);
+			encoder.add(1000, 500);
+			encoder.add(1100, 502);
+			encoder.add(1200, 503);
+			encoder.add(1300, 506);
+			byte[] frame = new byte[FrameDecoder.FRAME_SIZE];
+			encoder.encode(1300, frame);
+			assertEquals(FrameDecoder.OK, mPipeline.process(1300, frame));
+			journal.close();
+
+			assertEquals(Arrays.asList(1200L, 1300L), timestamps);
+			assertEquals(3, mPipeline.getStaleCount());
+			assertTrue(mEvents.isEmpty());
+			RideJournal.Cursor cursor = RideJournal.cursor(dir);
+			long last = 0;
+			int records = 0;
+			while (cursor.next()) {
+				assertTrue(cursor.getTimestamp() > last);
+				last = cursor.getTimestamp();
+				records++;
+			}
+			assertEquals(2, records);
+		} finally {
+			RideJournalTest.deleteDirectory(dir);
+		}
+	}
+
+	public void testBatchWithInvalidAgeIsRejected() {
+		RecordingSink sink = new RecordingSink();
+		mPipeline.addSink(sink);
+		byte[] frame = {'B', 2, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F, 5, 1, 1};
+		assertEquals(FrameDecoder.ERROR_OVERFLOW, mPipeline.process(1000, frame));
+		assertTrue(sink.distances.isEmpty());
+	}
+
+	public void testSinkErrorDoesNotStopOtherSinks() {
+		mPipeline.addSink(new SampleSink() {
+			@Override
+			public void add(long timestamp, long distance) throws IOException {
+				throw new IOException("disk full");
+			}
+		});
+		RecordingSink sink = new RecordingSink();
+		mPipeline.addSink(sink);
+		mPipeline.process(1000, frame("D500"));
+
+		assertEquals(1, sink.distances.size());
+		assertEquals("error disk full", mEvents.get(0));
+		assertTrue(mConsumer.next());
+	}
+}
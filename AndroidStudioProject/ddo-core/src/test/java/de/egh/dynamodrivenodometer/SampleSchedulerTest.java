@@ -0,0 +1,140 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+/**
+ * Replays a recorded rotation series on a virtual clock and compares the reads of the
+ * SampleScheduler with the former fixed 1 second polling.
+ */
+public class SampleSchedulerTest extends TestCase {
+
+	/** Resolution of the recorded series in milliseconds */
+	private static final long TICK = 100;
+
+	/** Interval of the former read job */
+	private static final long FIXED_INTERVAL = 1000;
+
+	/**
+	 * Recorded ride as pairs of duration in seconds and wheel rotations per second: Parking, riding,
+	 * traffic light, fast riding, slow uphill, parking.
+	 */
+	private static final double[] RIDE = {
+			1800, 0,
+			600, 4,
+			60, 0,
+			300, 6,
+			120, 1,
+			1800, 0};
+
+	/** Rotation counter for every tick of the ride */
+	private long[] mSeries;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		int ticks = 0;
+		for (int i = 0; i < RIDE.length; i += 2) {
+			ticks += (int) (RIDE[i] * 1000 / TICK);
+		}
+		mSeries = new long[ticks];
+
+		double rotations = 0;
+		int tick = 0;
+		for (int i = 0; i < RIDE.length; i += 2) {
+			for (int t = 0; t < RIDE[i] * 1000 / TICK; t++) {
+				rotations += RIDE[i + 1] * TICK / 1000;
+				mSeries[tick++] = (long) rotations;
+			}
+		}
+	}
+
+	/** Returns the counter at the given virtual time. */
+	private long rotationsAt(long time) {
+		return mSeries[(int) Math.min(time / TICK, mSeries.length - 1)];
+	}
+
+	private long duration() {
+		return mSeries.length * TICK;
+	}
+
+	/**
+	 * Runs the scheduler over the series and returns the number of reads. If from >= 0, counts only
+	 * the reads in [from, to).
+	 */
+	private int replay(SampleScheduler scheduler, long from, long to) {
+		int reads = 0;
+		long time = 0;
+		while (time < duration()) {
+			if (from < 0 || (time >= from && time < to)) {
+				reads++;
+			}
+			long interval = scheduler == null ? FIXED_INTERVAL : scheduler.onSample(time, rotationsAt(time));
+			time += interval;
+		}
+		return reads;
+	}
+
+	public void testFewerReadsThanFixedRate() {
+		int fixed = replay(null, -1, 0);
+		int adaptive = replay(new SampleScheduler(), -1, 0);
+
+		assertEquals(duration() / FIXED_INTERVAL, fixed);
+		assertTrue("Adaptive reads " + adaptive + " not below " + fixed, adaptive < fixed);
+	}
+
+	public void testFewerReadsWhileParking() {
+		// Last parking starts after 2880 s
+		long from = 2880 * 1000;
+		int fixed = replay(null, from, duration());
+		int adaptive = replay(new SampleScheduler(), from, duration());
+
+		assertTrue("Adaptive reads " + adaptive + " not below " + fixed / 5, adaptive < fixed / 5);
+	}
+
+	public void testMoreReadsWhileRidingFast() {
+		// Fast segment starts after 2460 s and lasts 300 s. Skip the first seconds for ramping up.
+		long from = 2470 * 1000;
+		long to = 2760 * 1000;
+		int fixed = replay(null, from, to);
+		int adaptive = replay(new SampleScheduler(), from, to);
+
+		assertTrue("Adaptive reads " + adaptive + " not above " + fixed, adaptive > fixed);
+	}
+
+	public void testBackoffWhileParking() {
+		SampleScheduler scheduler = new SampleScheduler(250, 8000, 2);
+		long time = 0;
+		assertEquals(250, scheduler.onSample(time, 100));
+
+		long expected = 250;
+		while (expected < 8000) {
+			time += scheduler.getInterval();
+			expected *= 2;
+			assertEquals(Math.min(expected, 8000), scheduler.onSample(time, 100));
+		}
+		time += scheduler.getInterval();
+		assertEquals(8000, scheduler.onSample(time, 100));
+	}
+
+	public void testMinimumWhileMoving() {
+		SampleScheduler scheduler = new SampleScheduler(250, 8000, 2);
+		scheduler.onSample(0, 0);
+		// 4 rotations per second: 2 rotations in 500 ms
+		assertEquals(500, scheduler.onSample(1000, 4));
+		// 40 rotations per second: Limited by the minimum
+		assertEquals(250, scheduler.onSample(1500, 24));
+		// Same time: Minimum
+		assertEquals(250, scheduler.onSample(1500, 25));
+	}
+
+	public void testReset() {
+		SampleScheduler scheduler = new SampleScheduler(250, 8000, 2);
+		scheduler.onSample(0, 5);
+		scheduler.onSample(250, 5);
+		assertEquals(500, scheduler.getInterval());
+		scheduler.reset();
+		assertEquals(250, scheduler.getInterval());
+		// No history after reset
+		assertEquals(250, scheduler.onSample(1000, 0));
+	}
+}
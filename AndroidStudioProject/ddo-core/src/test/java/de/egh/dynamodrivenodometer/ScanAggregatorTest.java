@@ -0,0 +1,98 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.UUID;
+
+public class ScanAggregatorTest extends TestCase {
+
+	private static final UUID RFDUINO = UUID.fromString("00002220-0000-1000-8000-00805f9b34fb");
+
+	/** Flags, complete list of 16 bit UUIDs with 0x180F and 0x2220, name "DDO" */
+	private static final byte[] RECORD_16 = {
+			2, 0x01, 0x06,
+			5, 0x03, 0x0F, 0x18, 0x20, 0x22,
+			4, 0x09, 'D', 'D', 'O',
+			0, 0, 0};
+
+	/** 128 bit form of the RFduino service, little endian */
+	private static final byte[] RECORD_128 = {
+			17, 0x07,
+			(byte) 0xFB, 0x34, (byte) 0x9B, 0x5F, (byte) 0x80, 0x00, 0x00, (byte) 0x80,
+			0x00, 0x10, 0x00, 0x00, 0x20, 0x22, 0x00, 0x00};
+
+	/** Heart rate only */
+	private static final byte[] RECORD_OTHER = {3, 0x03, 0x0D, 0x18};
+
+	private ScanAggregator mAggregator;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mAggregator = new ScanAggregator(RFDUINO);
+		mAggregator.start(null);
+	}
+
+	public void testHasService() {
+		assertTrue(ScanAggregator.hasService(RECORD_16, RFDUINO));
+		assertTrue(ScanAggregator.hasService(RECORD_128, RFDUINO));
+		assertFalse(ScanAggregator.hasService(RECORD_OTHER, RFDUINO));
+		assertFalse(ScanAggregator.hasService(null, RFDUINO));
+		assertFalse(ScanAggregator.hasService(new byte[0], RFDUINO));
+		// Length beyond the record
+		assertFalse(ScanAggregator.hasService(new byte[]{9, 0x03, 0x20, 0x22}, RFDUINO));
+		assertTrue(ScanAggregator.hasService(RECORD_128,
+				UUID.fromString("00002220-0000-1000-8000-00805f9b34fb")));
+		assertFalse(ScanAggregator.hasService(RECORD_128,
+				UUID.fromString("00002221-0000-1000-8000-00805f9b34fb")));
+	}
+
+	public void testFilterAndUnnamed() {
+		assertEquals(ScanAggregator.RESULT_IGNORED, mAggregator.add("AA", null, -50, RECORD_OTHER));
+		// Unnamed devices are fine
+		assertEquals(ScanAggregator.RESULT_FIRST, mAggregator.add("BB", null, -70, RECORD_16));
+		assertEquals(ScanAggregator.RESULT_ADDED, mAggregator.add("BB", "DDO", -70, RECORD_16));
+		assertEquals(ScanAggregator.RESULT_ADDED, mAggregator.add("CC", null, -70, RECORD_128));
+
+		assertEquals(4, mAggregator.getAdvertisementCount());
+		assertEquals(1, mAggregator.getIgnoredCount());
+		assertEquals(2, mAggregator.getRanked().size());
+		assertEquals("DDO", mAggregator.getRanked().get(0).getName());
+	}
+
+	public void testRankedByMeanRssi() {
+		// A single strong advertisement doesn't beat a device that is constantly closer
+		mAggregator.add("NEAR", "DDO", -60, RECORD_16);
+		mAggregator.add("NEAR", "DDO", -62, RECORD_16);
+		mAggregator.add("NEAR", "DDO", -58, RECORD_16);
+		mAggregator.add("FAR", "DDO", -45, RECORD_16);
+		mAggregator.add("FAR", "DDO", -90, RECORD_16);
+		mAggregator.add("FAR", "DDO", -92, RECORD_16);
+
+		List<ScanAggregator.Candidate> ranked = mAggregator.getRanked();
+		assertEquals("NEAR", ranked.get(0).getAddress());
+		assertEquals(-60.0, ranked.get(0).getMeanRssi(), 1e-9);
+		assertEquals(3, ranked.get(0).getSightings());
+		assertEquals("FAR", ranked.get(1).getAddress());
+		assertEquals("NEAR", mAggregator.getBest().getAddress());
+	}
+
+	public void testRememberedFirst() {
+		mAggregator.start("MINE");
+		assertNull(mAggregator.getBest());
+
+		assertEquals(ScanAggregator.RESULT_FIRST, mAggregator.add("OTHER", "DDO", -40, RECORD_16));
+		assertEquals(ScanAggregator.RESULT_REMEMBERED, mAggregator.add("MINE", "DDO", -85, RECORD_16));
+		assertEquals(ScanAggregator.RESULT_ADDED, mAggregator.add("MINE", "DDO", -85, RECORD_16));
+
+		assertTrue(mAggregator.getBest().isRemembered());
+		assertEquals("MINE", mAggregator.getRanked().get(0).getAddress());
+
+		// A new scan forgets the candidates
+		mAggregator.start(null);
+		assertEquals(0, mAggregator.getRanked().size());
+		assertEquals(ScanAggregator.RESULT_FIRST, mAggregator.add("MINE", "DDO", -85, RECORD_16));
+		assertFalse(mAggregator.getBest().isRemembered());
+	}
+}
@@ -0,0 +1,121 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+public class SequenceTrackerTest extends TestCase {
+
+	private final SequenceTracker mTracker = new SequenceTracker();
+
+	public void testInSequence() {
+		assertEquals(SequenceTracker.RESULT_FIRST, mTracker.accept(100, 500));
+		for (int i = 101; i < 200; i++) {
+			assertEquals(SequenceTracker.RESULT_NEXT, mTracker.accept(i, 400 + i));
+		}
+		assertEquals(100, mTracker.getAcceptedCount());
+		assertEquals(0.0, mTracker.getLossRate());
+	}
+
+	public void testDuplicates() {
+		mTracker.accept(5, 50);
+		assertEquals(SequenceTracker.RESULT_DUPLICATE, mTracker.accept(5, 50));
+		assertEquals(SequenceTracker.RESULT_NEXT, mTracker.accept(6, 52));
+		// Late frame within the window
+		assertEquals(SequenceTracker.RESULT_DUPLICATE, mTracker.accept(5, 50));
+		assertEquals(2, mTracker.getDuplicateCount());
+		assertEquals(2, mTracker.getAcceptedCount());
+	}
+
+	public void testGaps() {
+		mTracker.accept(10, 100);
+		assertEquals(SequenceTracker.RESULT_GAP, mTracker.accept(13, 103));
+		assertEquals(2, mTracker.getLastGap());
+		assertEquals(SequenceTracker.RESULT_NEXT, mTracker.accept(14, 104));
+		assertEquals(0, mTracker.getLastGap());
+		assertEquals(SequenceTracker.RESULT_GAP, mTracker.accept(20, 110));
+		assertEquals(5, mTracker.getLastGap());
+
+		assertEquals(7, mTracker.getMissingCount());
+		assertEquals(2, mTracker.getGapCount());
+		// 4 received, 7 lost
+		assertEquals(7.0 / 11, mTracker.getLossRate(), 1e-9);
+	}
+
+	public void testWrap() {
+		mTracker.accept(SequenceTracker.MODULUS - 2, 1000);
+		assertEquals(SequenceTracker.RESULT_NEXT, mTracker.accept(SequenceTracker.MODULUS - 1, 1001));
+		assertEquals(SequenceTracker.RESULT_NEXT, mTracker.accept(0, 1002));
+		assertEquals(SequenceTracker.RESULT_GAP, mTracker.accept(2, 1004));
+		assertEquals(1, mTracker.getLastGap());
+		assertEquals(SequenceTracker.RESULT_DUPLICATE, mTracker.accept(SequenceTracker.MODULUS - 1, 1001));
+
+		// Wrap after lost frames
+		mTracker.reset();
+		mTracker.accept(SequenceTracker.MODULUS - 3, 1000);
+		assertEquals(SequenceTracker.RESULT_GAP, mTracker.accept(0, 1003));
+		assertEquals(2, mTracker.getLastGap());
+	}
+
+	public void testRestart() {
+		mTracker.accept(5000, 5000);
+		assertEquals(SequenceTracker.RESULT_RESTART, mTracker.accept(40000, 5100));
+		assertEquals(SequenceTracker.RESULT_NEXT, mTracker.accept(40001, 5101));
+		assertEquals(1, mTracker.getRestartCount());
+		assertEquals(0, mTracker.getMissingCount());
+	}
+
+	/** Counter reset after a long ride, the sequence restarts at 0 */
+	public void testRestartFarAhead() {
+		for (int i = 0; i <= 40000; i++) {
+			mTracker.accept(i, 10000 + i);
+		}
+		assertEquals(SequenceTracker.RESULT_RESTART, mTracker.accept(0, 0));
+		assertEquals(SequenceTracker.RESULT_NEXT, mTracker.accept(1, 1));
+		assertEquals(0, mTracker.getMissingCount());
+		assertEquals(0.0, mTracker.getLossRate());
+
+		// Explicit marker, even if the counter has been kept
+		for (int i = 2; i <= 40000; i++) {
+			mTracker.accept(i, i);
+		}
+		assertEquals(SequenceTracker.RESULT_RESTART, mTracker.accept(0, 40001));
+		assertEquals(0, mTracker.getMissingCount());
+		assertEquals(2, mTracker.getRestartCount());
+	}
+
+	/** Counter reset shortly after the start, the new numbers are within the duplicate window */
+	public void testRestartWithinWindow() {
+		for (int i = 0; i <= 30; i++) {
+			mTracker.accept(i, 100 + i);
+		}
+		assertEquals(SequenceTracker.RESULT_RESTART, mTracker.accept(0, 0));
+		for (int i = 1; i <= 30; i++) {
+			assertEquals(SequenceTracker.RESULT_NEXT, mTracker.accept(i, i));
+		}
+		assertEquals(0, mTracker.getDuplicateCount());
+		assertEquals(62, mTracker.getAcceptedCount());
+
+		// Counter kept, but going up: Can't be a repeated frame
+		mTracker.accept(31, 31);
+		assertEquals(SequenceTracker.RESULT_RESTART, mTracker.accept(0, 40));
+		assertEquals(SequenceTracker.RESULT_NEXT, mTracker.accept(1, 41));
+		assertEquals(0, mTracker.getDuplicateCount());
+	}
+
+	public void testReset() {
+		mTracker.accept(5, 5);
+		mTracker.accept(9, 9);
+		mTracker.reset();
+		assertEquals(0, mTracker.getMissingCount());
+		assertEquals(0, mTracker.getAcceptedCount());
+		assertEquals(SequenceTracker.RESULT_FIRST, mTracker.accept(2, 0));
+	}
+
+	public void testInvalid() {
+		try {
+			mTracker.accept(SequenceTracker.MODULUS, 0);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+}
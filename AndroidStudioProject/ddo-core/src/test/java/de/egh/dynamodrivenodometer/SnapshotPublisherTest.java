@@ -0,0 +1,96 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class SnapshotPublisherTest extends TestCase {
+
+	private SampleChannel mChannel;
+	private SampleChannel.Consumer mConsumer;
+	private SnapshotPublisher mPublisher;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mChannel = new SampleChannel();
+		mConsumer = mChannel.subscribe(null);
+		MessageBox messageBox = new MessageBox("");
+		messageBox.add("Restored", 500);
+		mPublisher = new SnapshotPublisher(messageBox, 2, 42, 900);
+	}
+
+	public void testRestoredState() {
+		RideSnapshot snapshot = mPublisher.getSnapshot();
+		assertEquals(42, snapshot.getDistance());
+		assertEquals(900, snapshot.getLastUpdateAt());
+		assertEquals(0, snapshot.getSampleCount());
+		assertEquals(1, snapshot.getMessageCount());
+		assertEquals("Restored", snapshot.getMessageText(0));
+		assertNull(mPublisher.update(mConsumer));
+	}
+
+	public void testSamplesShareMessages() {
+		RideSnapshot first = mPublisher.getSnapshot();
+		mChannel.publishSample(1000, 50, 3.5f);
+		mChannel.publishSample(1100, 51, 4.0f);
+
+		RideSnapshot snapshot = mPublisher.update(mConsumer);
+		assertSame(snapshot, mPublisher.getSnapshot());
+		assertEquals(51, snapshot.getDistance());
+		assertEquals(4.0f, snapshot.getSpeed());
+		assertEquals(1100, snapshot.getLastUpdateAt());
+		assertEquals(1100, snapshot.getReceivedAt());
+		assertEquals(2, snapshot.getSampleCount());
+		assertEquals(first.getMessageVersion(), snapshot.getMessageVersion());
+		assertEquals(first.getMessageText(0), snapshot.getMessageText(0));
+
+		// The old snapshot is unchanged
+		assertEquals(42, first.getDistance());
+	}
+
+	public void testMessages() {
+		mChannel.publishMessage(1000, "Hello");
+		mChannel.publishMessage(2000, "World");
+		mChannel.publishMessage(3000, "Hello");
+
+		RideSnapshot snapshot = mPublisher.update(mConsumer);
+		assertEquals(1, snapshot.getMessageVersion());
+		// Newest first, limited to the message lines
+		assertEquals(2, snapshot.getMessageCount());
+		assertEquals("Hello", snapshot.getMessageText(0));
+		assertEquals(3000, snapshot.getMessageTimestamp(0));
+		assertEquals("World", snapshot.getMessageText(1));
+		assertEquals(42, snapshot.getDistance());
+
+		// Persisted messages restore the box
+		assertEquals(3, new MessageBox(mPublisher.getMessages()).size());
+	}
+
+	/** Readers on other threads see complete snapshots only */
+	public void testConcurrentReader() throws Exception {
+		final boolean[] consistent = {true};
+		final AtomicBoolean running = new AtomicBoolean(true);
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (running.get()) {
+					RideSnapshot snapshot = mPublisher.getSnapshot();
+					// Every sample has distance = 10 * timestamp
+					if (snapshot.getSampleCount() > 0 && snapshot.getDistance() != 10 * snapshot.getLastUpdateAt()) {
+						consistent[0] = false;
+					}
+				}
+			}
+		});
+		reader.start();
+		for (int i = 1; i <= 20000; i++) {
+			mChannel.publishSample(i, 10L * i, 1.0f);
+			mPublisher.update(mConsumer);
+		}
+		running.set(false);
+		reader.join();
+		assertTrue(consistent[0]);
+		assertEquals(20000, mPublisher.getSnapshot().getSampleCount());
+	}
+}
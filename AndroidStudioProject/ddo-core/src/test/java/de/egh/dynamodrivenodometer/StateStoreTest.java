@@ -0,0 +1,210 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class StateStoreTest extends TestCase {
+
+	private File mDirectory;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mDirectory = new File(System.getProperty("java.io.tmpdir"), "StateStoreTest" + System.nanoTime());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = mDirectory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		mDirectory.delete();
+		super.tearDown();
+	}
+
+	/** Store without background flushes, the test flushes */
+	private StateStore open() throws IOException {
+		return new StateStore(mDirectory, 0, StateStore.DEFAULT_CHECKPOINT_BYTES);
+	}
+
+	public void testValues() throws Exception {
+		StateStore store = open();
+		assertEquals(7, store.getLong("distance", 7));
+		assertFalse(store.contains("distance"));
+
+		store.putLong("distance", 1234);
+		store.putBoolean("switch", true);
+		store.putString("messages", "Hello");
+		assertEquals(1234, store.getLong("distance", 0));
+		assertTrue(store.getBoolean("switch", false));
+		assertEquals("Hello", store.getString("messages", null));
+		// Wrong type
+		assertEquals("x", store.getString("distance", "x"));
+		store.close();
+		assertTrue(store.awaitClosed(5000));
+	}
+
+	public void testJournalReplayWithoutCheckpoint() throws Exception {
+		StateStore store = open();
+		store.putLong("distance", 100);
+		store.flush();
+		store.putLong("distance", 200);
+		store.putString("messages", "a\nb");
+		store.flush();
+		// Crash: No close, no checkpoint
+
+		StateStore reopened = open();
+		assertEquals(3, reopened.getReplayedCount());
+		assertEquals(200, reopened.getLong("distance", 0));
+		assertEquals("a\nb", reopened.getString("messages", null));
+		reopened.close();
+		assertTrue(reopened.awaitClosed(5000));
+	}
+
+	public void testUnflushedChangesAreLost() throws Exception {
+		StateStore store = open();
+		store.putLong("distance", 100);
+		store.flush();
+		store.putLong("distance", 200);
+
+		assertEquals(100, open().getLong("distance", 0));
+	}
+
+	public void testOnlyChangesAreJournaled() throws Exception {
+		StateStore store = open();
+		store.putLong("distance", 100);
+		store.putLong("speed", 5);
+		store.flush();
+		long size = new File(mDirectory, StateStore.JOURNAL).length();
+
+		// Same value and no change at all
+		store.putLong("speed", 5);
+		store.flush();
+		assertEquals(size, new File(mDirectory, StateStore.JOURNAL).length());
+		assertEquals(1, store.getFlushCount());
+
+		// Many puts in one interval result in one record
+		for (int i = 0; i < 1000; i++) {
+			store.putLong("distance", 101 + i);
+		}
+		store.flush();
+		assertEquals(2, store.getFlushCount());
+		StateStore reopened = open();
+		assertEquals(3, reopened.getReplayedCount());
+		assertEquals(1100, reopened.getLong("distance", 0));
+	}
+
+	public void testTornRecordIsCutOff() throws Exception {
+		StateStore store = open();
+		store.putLong("distance", 100);
+		store.flush();
+		long valid = new File(mDirectory, StateStore.JOURNAL).length();
+		store.putString("messages", "A long message that is torn by the crash");
+		store.flush();
+
+		// Crash while writing the second record
+		RandomAccessFile journal = new RandomAccessFile(new File(mDirectory, StateStore.JOURNAL), "rw");
+		journal.setLength(journal.length() - 5);
+		journal.close();
+
+		StateStore reopened = open();
+		assertEquals(1, reopened.getReplayedCount());
+		assertEquals(100, reopened.getLong("distance", 0));
+		assertFalse(reopened.contains("messages"));
+		assertEquals(valid, new File(mDirectory, StateStore.JOURNAL).length());
+
+		// Appending continues behind the valid record
+		reopened.putLong("distance", 300);
+		reopened.flush();
+		assertEquals(300, open().getLong("distance", 0));
+	}
+
+	public void testCorruptRecordIsCutOff() throws Exception {
+		StateStore store = open();
+		store.putLong("distance", 100);
+		store.flush();
+		store.putLong("distance", 200);
+		store.flush();
+
+		// Flip a bit in the value of the second record
+		RandomAccessFile journal = new RandomAccessFile(new File(mDirectory, StateStore.JOURNAL), "rw");
+		journal.seek(journal.length() - 1);
+		int last = journal.read();
+		journal.seek(journal.length() - 1);
+		journal.write(last ^ 1);
+		journal.close();
+
+		assertEquals(100, open().getLong("distance", 0));
+	}
+
+	public void testCheckpoint() throws Exception {
+		StateStore store = new StateStore(mDirectory, 0, 100);
+		for (int i = 1; i <= 20; i++) {
+			store.putLong("distance", i);
+			store.putString("messages", "Message " + i);
+			store.flush();
+		}
+		assertTrue(store.getCheckpointCount() > 0);
+		assertTrue(new File(mDirectory, StateStore.JOURNAL).length() < 100);
+
+		StateStore reopened = open();
+		assertEquals(20, reopened.getLong("distance", 0));
+		assertEquals("Message 20", reopened.getString("messages", null));
+
+		// Close checkpoints, the journal is empty
+		reopened.putLong("distance", 21);
+		reopened.close();
+		assertTrue(reopened.awaitClosed(5000));
+		assertNull(reopened.getLastError());
+		assertEquals(0, new File(mDirectory, StateStore.JOURNAL).length());
+		assertEquals(21, open().getLong("distance", 0));
+	}
+
+	public void testCheckpointSourceIsNotJournaled() throws Exception {
+		StateStore store = open();
+		store.putString("messages", "Restored");
+		store.flush();
+		long journalSize = new File(mDirectory, StateStore.JOURNAL).length();
+
+		final int[] reads = {0};
+		store.setCheckpointSource("messages", new StateStore.ValueSource() {
+			@Override
+			public String get() {
+				reads[0]++;
+				return "Messages " + reads[0];
+			}
+		});
+		store.putLong("distance", 1);
+		store.flush();
+		assertEquals(0, reads[0]);
+		assertTrue(new File(mDirectory, StateStore.JOURNAL).length() > journalSize);
+		assertEquals("Restored", open().getString("messages", null));
+
+		store.close();
+		assertTrue(store.awaitClosed(5000));
+		assertEquals(1, reads[0]);
+		StateStore reopened = open();
+		assertEquals("Messages 1", reopened.getString("messages", null));
+		assertEquals(1, reopened.getLong("distance", 0));
+	}
+
+	public void testBackgroundFlush() throws Exception {
+		StateStore store = new StateStore(mDirectory, 20, StateStore.DEFAULT_CHECKPOINT_BYTES);
+		store.putLong("distance", 42);
+
+		// Loss is bounded by the flush interval
+		long end = System.currentTimeMillis() + 5000;
+		while (store.getFlushCount() == 0 && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(42, open().getLong("distance", 0));
+		store.close();
+		assertTrue(store.awaitClosed(5000));
+	}
+}
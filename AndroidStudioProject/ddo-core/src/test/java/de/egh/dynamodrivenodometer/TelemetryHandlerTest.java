@@ -0,0 +1,66 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+public class TelemetryHandlerTest extends TestCase {
+
+	private final FrameDecoder mDecoder = new FrameDecoder();
+	private TelemetrySeries mSeries;
+	private TelemetryHandler mHandler;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mSeries = new TelemetrySeries("temperature", 3);
+		mHandler = new TelemetryHandler(mSeries, TelemetryHandler.MIN_TEMPERATURE,
+				TelemetryHandler.MAX_TEMPERATURE);
+	}
+
+	private int handle(long timestamp, String s) {
+		byte[] frame = new byte[FrameDecoder.FRAME_SIZE];
+		for (int i = 0; i < s.length(); i++) {
+			frame[i] = (byte) s.charAt(i);
+		}
+		mDecoder.decode(frame);
+		return mHandler.handle(timestamp, mDecoder);
+	}
+
+	public void testValues() {
+		assertEquals(FrameDecoder.OK, handle(1000, "T215"));
+		assertEquals(FrameDecoder.OK, handle(2000, "T-45"));
+		assertEquals(FrameDecoder.OK, handle(3000, "T0"));
+		assertEquals(3, mSeries.size());
+		assertEquals(215, mSeries.getValue(0));
+		assertEquals(-45, mSeries.getValue(1));
+		assertEquals(3000, mSeries.getTimestamp(2));
+		assertEquals(0, mSeries.getLastValue());
+	}
+
+	public void testRejected() {
+		assertEquals(FrameDecoder.ERROR_NOT_A_NUMBER, handle(1000, "T"));
+		assertEquals(FrameDecoder.ERROR_NOT_A_NUMBER, handle(1000, "T-"));
+		assertEquals(FrameDecoder.ERROR_NOT_A_NUMBER, handle(1000, "T2x"));
+		assertEquals(FrameDecoder.ERROR_OVERFLOW, handle(1000, "T1251"));
+		assertEquals(FrameDecoder.ERROR_OVERFLOW, handle(1000, "T-401"));
+		assertEquals(FrameDecoder.ERROR_OVERFLOW, handle(1000, "T9999999999999999999"));
+		assertEquals(6, mHandler.getRejectedCount());
+		assertEquals(0, mSeries.getCount());
+	}
+
+	public void testSeriesKeepsNewest() {
+		for (int i = 0; i < 5; i++) {
+			handle(1000 * i, "T" + i);
+		}
+		assertEquals(5, mSeries.getCount());
+		assertEquals(3, mSeries.size());
+		assertEquals(2, mSeries.getValue(0));
+		assertEquals(4, mSeries.getValue(2));
+		assertEquals(4000, mSeries.getLastTimestamp());
+		try {
+			mSeries.getValue(3);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+			// Expected
+		}
+	}
+}
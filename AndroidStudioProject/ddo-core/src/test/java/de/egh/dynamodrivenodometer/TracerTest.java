@@ -0,0 +1,133 @@
+package de.egh.dynamodrivenodometer;
+
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class TracerTest extends TestCase {
+
+	private static final Pattern EVENT = Pattern.compile(
+			"\\{\"name\":\"([^\"]*)\",\"ph\":\"(X|i)\"(?:,\"s\":\"t\")?(?:,\"dur\":(\\d+\\.\\d{3}))?"
+					+ ",\"ts\":(-?\\d+\\.\\d{3}),\"pid\":1,\"tid\":(\\d+)(?:,\"args\":\\{\"value\":(-?\\d+)\\})?\\}");
+
+	private static String export(Tracer tracer) throws Exception {
+		StringWriter out = new StringWriter();
+		tracer.writeJson(out, "DDO \"test\"");
+		return out.toString();
+	}
+
+	private static int countEvents(String json, String name) {
+		Matcher matcher = EVENT.matcher(json);
+		int count = 0;
+		while (matcher.find()) {
+			if (name == null || name.equals(matcher.group(1))) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public void testDisabled() throws Exception {
+		Tracer tracer = new Tracer(16);
+		long start = tracer.begin();
+		assertEquals(Tracer.NOT_STARTED, start);
+		tracer.end("decode", start);
+		tracer.instant("scan");
+		assertEquals(0, tracer.getRecordedCount());
+
+		// A span started while disabled isn't recorded after enabling
+		tracer.setEnabled(true);
+		tracer.end("decode", start);
+		assertEquals(0, tracer.getRecordedCount());
+		assertEquals(0, countEvents(export(tracer), null));
+	}
+
+	/**
+	 * Traces a Mockbike ride through the sample pipeline like the service does and checks the
+	 * exported timeline.
+	 */
+	public void testMockbikeRide() throws Exception {
+		Tracer tracer = new Tracer(1024);
+		tracer.setEnabled(true);
+		RideSimulator simulator = new RideSimulator(RideSimulator.PROFILE_STOP_AND_GO, 100, 7, 0);
+		simulator.setMessageInterval(1000);
+		SamplePipeline pipeline = new SamplePipeline(new OdometerReconciler(), new KinematicsEngine(),
+				new SampleChannel(), null);
+
+		long connect = tracer.begin();
+		tracer.instant("scan.window");
+		tracer.end("connect", connect);
+		byte[] frame = new byte[FrameDecoder.FRAME_SIZE];
+		for (int i = 0; i < 500; i++) {
+			long read = tracer.begin();
+			int length = simulator.nextFrame(frame);
+			long decode = tracer.begin();
+			pipeline.process(simulator.getTimestamp(), frame);
+			tracer.end("decode", decode);
+			tracer.end("gatt.read", read, length);
+		}
+
+		String json = export(tracer);
+		assertTrue(json.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n"));
+		assertTrue(json.endsWith("\n]}\n"));
+		assertTrue(json.contains("\"args\":{\"name\":\"DDO \\\"test\\\"\"}"));
+		assertEquals(1002, tracer.getRecordedCount());
+
+		// Buffer keeps the newest 1024 spans: All of them
+		assertEquals(1002, countEvents(json, null));
+		assertEquals(500, countEvents(json, "decode"));
+		assertEquals(1, countEvents(json, "scan.window"));
+
+		// Every line is a valid event, durations are non-negative, reads carry the frame length
+		String[] lines = json.split("\n");
+		// Header, process name, events, end
+		assertEquals(2 + 1002 + 1, lines.length);
+		for (int i = 2; i < lines.length - 1; i++) {
+			String line = lines[i].endsWith(",") ? lines[i].substring(0, lines[i].length() - 1) : lines[i];
+			Matcher matcher = EVENT.matcher(line);
+			assertTrue(line, matcher.matches());
+			if ("gatt.read".equals(matcher.group(1))) {
+				assertTrue(Integer.parseInt(matcher.group(6)) > 0);
+			}
+			assertEquals(String.valueOf(Thread.currentThread().getId()), matcher.group(5));
+		}
+	}
+
+	public void testRingOverwritesOldest() throws Exception {
+		Tracer tracer = new Tracer(10);
+		assertEquals(16, tracer.getCapacity());
+		tracer.setEnabled(true);
+		for (int i = 1; i <= 40; i++) {
+			tracer.end("span", tracer.begin(), i);
+		}
+		String json = export(tracer);
+		assertEquals(16, countEvents(json, "span"));
+		assertFalse(json.contains("\"value\":24}"));
+		assertTrue(json.contains("\"value\":25}"));
+		assertTrue(json.contains("\"value\":40}"));
+
+		tracer.clear();
+		assertEquals(0, countEvents(export(tracer), null));
+	}
+
+	public void testCrossThreadSpan() throws Exception {
+		final Tracer tracer = new Tracer(16);
+		tracer.setEnabled(true);
+		final long start = tracer.begin();
+		Thread callback = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				tracer.end("connect", start);
+			}
+		});
+		callback.start();
+		callback.join();
+
+		Matcher matcher = EVENT.matcher(export(tracer));
+		assertTrue(matcher.find());
+		assertEquals("connect", matcher.group(1));
+		assertEquals(String.valueOf(callback.getId()), matcher.group(5));
+	}
+}